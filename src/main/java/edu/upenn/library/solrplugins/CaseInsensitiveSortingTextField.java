@@ -53,6 +53,7 @@ public class CaseInsensitiveSortingTextField extends TextField implements MultiS
   private static final String DISPLAYIZER_ARGNAME = "displayizer";
   private static final String PAYLOAD_HANDLER_ARGNAME = "payloadHandler";
   private static final String HIERARCHY_LEVEL_ARGNAME = "hierarchyLevel";
+  private static final String UNIQUE_REFERENCES_ARGNAME = "uniqueReferences";
   private static final char DELIM_CHAR = '\u0000';
   private static final int DEFAULT_HIERARCHY_LEVEL = 0;
 
@@ -83,6 +84,15 @@ public class CaseInsensitiveSortingTextField extends TextField implements MultiS
     } else {
       payloadHandler = new DefaultPayloadHandler();
     }
+    if (args.containsKey(UNIQUE_REFERENCES_ARGNAME)) {
+      boolean uniqueReferences = Boolean.parseBoolean(args.remove(UNIQUE_REFERENCES_ARGNAME));
+      if (payloadHandler instanceof JsonReferencePayloadHandler) {
+        ((JsonReferencePayloadHandler)payloadHandler).setUniqueReferences(uniqueReferences);
+      } else {
+        throw new IllegalArgumentException(UNIQUE_REFERENCES_ARGNAME + " is only supported for "
+            + JsonReferencePayloadHandler.class.getSimpleName() + "; found " + payloadHandler.getClass().getName());
+      }
+    }
     if (args.containsKey(HIERARCHY_LEVEL_ARGNAME)) {
       hierarchyLevel = loader.newInstance(args.remove(HIERARCHY_LEVEL_ARGNAME), Integer.class);
     }
@@ -254,6 +264,11 @@ public class CaseInsensitiveSortingTextField extends TextField implements MultiS
     return payloadHandler.updateValueExternalRepresentation(internal);
   }
 
+  @Override
+  public Object compactPayload(Object val) {
+    return payloadHandler.compactPayload(val);
+  }
+
   private static class DefaultPayloadHandler implements FacetPayload<Object> {
 
     @Override
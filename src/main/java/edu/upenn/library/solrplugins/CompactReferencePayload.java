@@ -0,0 +1,259 @@
+package edu.upenn.library.solrplugins;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * Compact form of the facet payload built by {@link JsonReferencePayloadHandler}, for transfer
+ * from shard to aggregator (as a javabin-friendly byte[]) and for merging on the aggregator.
+ * References are held in insertion-ordered hash maps (by reference type, then display name),
+ * so merging does not require linear lookups; only values in the final window are expanded
+ * (via {@link #toNamedList()}) to the public NamedList structure.
+ *
+ * Encoded form: vLong count; flag byte (1 if "self" is present), followed (if present) by
+ * vLong self count, filing and prefix; vInt number of reference types, each followed by the
+ * type, vInt number of names, and for each name: the name, vLong count, filing and prefix.
+ * Strings are written as a vInt (UTF-8 length + 1, or 0 for null) followed by UTF-8 bytes.
+ *
+ * @author magibney
+ */
+final class CompactReferencePayload {
+
+  private static final String KEY_SELF = "self";
+  private static final String KEY_REFS = "refs";
+  private static final String KEY_PREFIX = "prefix";
+  private static final String KEY_FILING = "filing";
+  private static final String KEY_COUNT = "count";
+
+  private long count;
+  private Ref self;
+  private final Map<String, Map<String, Ref>> refs = new LinkedHashMap<>();
+
+  private static final class Ref {
+    private long count;
+    private String filing;
+    private String prefix;
+
+    private void merge(Ref add) {
+      count += add.count;
+      if (add.filing != null) {
+        filing = add.filing;
+      }
+      if (add.prefix != null) {
+        prefix = add.prefix;
+      }
+    }
+
+    private NamedList<Object> toNamedList() {
+      NamedList<Object> ret = new NamedList<>(3);
+      ret.add(KEY_COUNT, count);
+      if (filing != null) {
+        ret.add(KEY_FILING, filing);
+      }
+      if (prefix != null) {
+        ret.add(KEY_PREFIX, prefix);
+      }
+      return ret;
+    }
+
+    private static Ref fromNamedList(NamedList<Object> nl) {
+      Ref ret = new Ref();
+      Object c = nl.get(KEY_COUNT);
+      ret.count = c == null ? 0 : ((Number) c).longValue();
+      ret.filing = (String) nl.get(KEY_FILING);
+      ret.prefix = (String) nl.get(KEY_PREFIX);
+      return ret;
+    }
+  }
+
+  private static final class BuilderDataOutput extends DataOutput {
+    private final BytesRefBuilder bytes = new BytesRefBuilder();
+
+    @Override
+    public void writeByte(byte b) {
+      bytes.append(b);
+    }
+
+    @Override
+    public void writeBytes(byte[] b, int offset, int length) {
+      bytes.append(b, offset, length);
+    }
+  }
+
+  long getCount() {
+    return count;
+  }
+
+  /**
+   * @return the total count of the encoded payload, without decoding the rest of the payload
+   */
+  static long decodeCount(byte[] encoded) {
+    return new ByteArrayDataInput(encoded).readVLong();
+  }
+
+  static CompactReferencePayload decode(byte[] encoded) {
+    ByteArrayDataInput in = new ByteArrayDataInput(encoded);
+    CompactReferencePayload ret = new CompactReferencePayload();
+    ret.count = in.readVLong();
+    if (in.readByte() != 0) {
+      ret.self = readRef(in);
+    }
+    for (int i = in.readVInt(); i > 0; i--) {
+      String type = readString(in);
+      int size = in.readVInt();
+      Map<String, Ref> names = new LinkedHashMap<>(size << 1);
+      for (int j = 0; j < size; j++) {
+        String name = readString(in);
+        names.put(name, readRef(in));
+      }
+      ret.refs.put(type, names);
+    }
+    return ret;
+  }
+
+  static CompactReferencePayload fromNamedList(NamedList<Object> nl) {
+    CompactReferencePayload ret = new CompactReferencePayload();
+    ret.count = ((Number) nl.get(KEY_COUNT)).longValue();
+    NamedList<Object> self = (NamedList<Object>) nl.get(KEY_SELF);
+    if (self != null) {
+      ret.self = Ref.fromNamedList(self);
+    }
+    NamedList<Object> refs = (NamedList<Object>) nl.get(KEY_REFS);
+    if (refs != null) {
+      for (Entry<String, Object> typeEntry : refs) {
+        Map<String, Ref> names = ret.refs.get(typeEntry.getKey());
+        if (names == null) {
+          names = new LinkedHashMap<>();
+          ret.refs.put(typeEntry.getKey(), names);
+        }
+        for (Entry<String, Object> nameEntry : (NamedList<Object>) typeEntry.getValue()) {
+          Ref add = Ref.fromNamedList((NamedList<Object>) nameEntry.getValue());
+          Ref existing = names.putIfAbsent(nameEntry.getKey(), add);
+          if (existing != null) {
+            existing.merge(add);
+          }
+        }
+      }
+    }
+    return ret;
+  }
+
+  byte[] encode() {
+    BuilderDataOutput out = new BuilderDataOutput();
+    try {
+      out.writeVLong(count);
+      if (self == null) {
+        out.writeByte((byte) 0);
+      } else {
+        out.writeByte((byte) 1);
+        writeRef(out, self);
+      }
+      out.writeVInt(refs.size());
+      for (Entry<String, Map<String, Ref>> typeEntry : refs.entrySet()) {
+        writeString(out, typeEntry.getKey());
+        out.writeVInt(typeEntry.getValue().size());
+        for (Entry<String, Ref> nameEntry : typeEntry.getValue().entrySet()) {
+          writeString(out, nameEntry.getKey());
+          writeRef(out, nameEntry.getValue());
+        }
+      }
+    } catch (java.io.IOException ex) {
+      // not thrown by in-memory output
+      throw new IllegalStateException(ex);
+    }
+    return out.bytes.toBytesRef().bytes;
+  }
+
+  /**
+   * merges the specified payload into this payload, with the same semantics as merging the
+   * corresponding NamedList structures
+   */
+  void merge(CompactReferencePayload add) {
+    count += add.count;
+    if (add.self != null) {
+      if (self == null) {
+        self = new Ref();
+      }
+      self.merge(add.self);
+    }
+    for (Entry<String, Map<String, Ref>> typeEntry : add.refs.entrySet()) {
+      Map<String, Ref> names = refs.get(typeEntry.getKey());
+      if (names == null) {
+        names = new LinkedHashMap<>(typeEntry.getValue().size() << 1);
+        refs.put(typeEntry.getKey(), names);
+      }
+      for (Entry<String, Ref> nameEntry : typeEntry.getValue().entrySet()) {
+        Ref existing = names.get(nameEntry.getKey());
+        if (existing == null) {
+          existing = new Ref();
+          names.put(nameEntry.getKey(), existing);
+        }
+        existing.merge(nameEntry.getValue());
+      }
+    }
+  }
+
+  /**
+   * @return the public NamedList structure described by {@link JsonReferencePayloadHandler}
+   */
+  NamedList<Object> toNamedList() {
+    NamedList<Object> ret = new NamedList<>(3);
+    ret.add(KEY_COUNT, count);
+    if (self != null) {
+      ret.add(KEY_SELF, self.toNamedList());
+    }
+    if (!refs.isEmpty()) {
+      NamedList<Object> refsList = new NamedList<>(refs.size());
+      for (Entry<String, Map<String, Ref>> typeEntry : refs.entrySet()) {
+        NamedList<Object> names = new NamedList<>(typeEntry.getValue().size());
+        for (Entry<String, Ref> nameEntry : typeEntry.getValue().entrySet()) {
+          names.add(nameEntry.getKey(), nameEntry.getValue().toNamedList());
+        }
+        refsList.add(typeEntry.getKey(), names);
+      }
+      ret.add(KEY_REFS, refsList);
+    }
+    return ret;
+  }
+
+  private static void writeRef(DataOutput out, Ref ref) throws java.io.IOException {
+    out.writeVLong(ref.count);
+    writeString(out, ref.filing);
+    writeString(out, ref.prefix);
+  }
+
+  private static Ref readRef(ByteArrayDataInput in) {
+    Ref ret = new Ref();
+    ret.count = in.readVLong();
+    ret.filing = readString(in);
+    ret.prefix = readString(in);
+    return ret;
+  }
+
+  private static void writeString(DataOutput out, String s) throws java.io.IOException {
+    if (s == null) {
+      out.writeVInt(0);
+    } else {
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      out.writeVInt(bytes.length + 1);
+      out.writeBytes(bytes, 0, bytes.length);
+    }
+  }
+
+  private static String readString(ByteArrayDataInput in) {
+    int length = in.readVInt() - 1;
+    if (length < 0) {
+      return null;
+    }
+    String ret = new String(in.bytes(), in.getPosition(), length, StandardCharsets.UTF_8);
+    in.skipBytes(length);
+    return ret;
+  }
+
+}
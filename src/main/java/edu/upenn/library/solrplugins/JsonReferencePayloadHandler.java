@@ -1,16 +1,17 @@
 package edu.upenn.library.solrplugins;
 
+import edu.upenn.library.solrplugins.codec.ReferenceAggregatePostingsFormat.ReferenceAggregateTerms;
+import edu.upenn.library.solrplugins.codec.ReferenceAggregates;
 import java.io.IOException;
 import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
@@ -43,9 +44,28 @@ import org.apache.solr.request.FacetPayload;
  *   </lst>
  * </lst>
  *
+ * By default, duplicate payloads for a term within a single document are
+ * tracked (and ignored) when aggregating references. If the index guarantees
+ * that each (term, payload) pair occurs at most once per document (e.g., via
+ * the "dedupeReferences" option of JsonReferencePayloadTokenizerFactory, for
+ * fields that never contain duplicate values within a document), this
+ * tracking may be disabled via {@link #setUniqueReferences(boolean)}.
+ *
+ * For segments written with ReferenceAggregatePostingsFormat, reference counts
+ * are read from the segment's precomputed aggregates whenever every live document
+ * in the segment matches the request (contributions of deleted documents are
+ * excluded by visiting only the deleted documents' postings); otherwise postings
+ * are iterated as usual.
+ *
+ * For transfer from shard to aggregator, payloads may be compacted (see
+ * {@link #compactPayload(Object)}) to a byte[] encoding of {@link CompactReferencePayload}.
+ * Shard payloads (compact or not) are merged on the aggregator into a hash-indexed
+ * CompactReferencePayload, rather than by linear scans of NamedList keys, and are expanded
+ * to the NamedList structure above only for output.
+ *
  * @author jeffchiu
  */
-public class JsonReferencePayloadHandler implements FacetPayload<NamedList<Object>> {
+public class JsonReferencePayloadHandler implements FacetPayload<Object> {
   private static final String DELIM = "\u0000";
   private static final String KEY_SELF = "self";
   private static final String KEY_REFS = "refs";
@@ -53,6 +73,17 @@ public class JsonReferencePayloadHandler implements FacetPayload<NamedList<Objec
   private static final String KEY_FILING = "filing";
   private static final String KEY_COUNT = "count";
 
+  private boolean uniqueReferences = false;
+
+  /**
+   * @param uniqueReferences true if the index guarantees that each (term, payload)
+   * pair occurs at most once per document, in which case positions are iterated
+   * without tracking duplicates.
+   */
+  public void setUniqueReferences(boolean uniqueReferences) {
+    this.uniqueReferences = uniqueReferences;
+  }
+
   /**
    * overwrite entry in NamedList with new value
    * (update existing key, or add the key/value if key doesn't already exist)
@@ -66,22 +97,6 @@ public class JsonReferencePayloadHandler implements FacetPayload<NamedList<Objec
     }
   }
 
-  /**
-   * Copies a field value from one NamedList into another
-   */
-  private static void copyFieldInNamedList(NamedList<Object> from, NamedList<Object> to, String key) {
-    int index = from.indexOf(key, 0);
-    if(index != -1) {
-      Object value = from.get(key);
-      int index2 = to.indexOf(key, 0);
-      if(index2 != -1) {
-        to.setVal(index2, value);
-      } else {
-        to.add(key, value);
-      }
-    }
-  }
-
   /**
    * For passed-in NamedList, get the NamedList value for a certain key,
    * creating and storing it if it doesn't exist.
@@ -102,32 +117,51 @@ public class JsonReferencePayloadHandler implements FacetPayload<NamedList<Objec
    * if it doesn't exist.
    */
   private static void incrementLongInNamedList(NamedList<Object> namedList, String key) {
+    addLongInNamedList(namedList, key, 1L);
+  }
+
+  /**
+   * add to a Long value in a NamedList stored under "key", creating it with value of "delta"
+   * if it doesn't exist.
+   */
+  private static void addLongInNamedList(NamedList<Object> namedList, String key, long delta) {
     int index = namedList.indexOf(key, 0);
     if(index != -1) {
       long oldCount = ((Number) namedList.getVal(index)).longValue();
-      namedList.setVal(index, oldCount + 1L);
+      namedList.setVal(index, oldCount + delta);
     } else {
-      namedList.add(key, 1L);
+      namedList.add(key, delta);
     }
   }
 
   /**
-   * Updates the Long value for the specified key in the 'preExisting' NamedList
-   * by adding the value from the 'add' NamedList.
+   * Adds the specified count for the reference represented by the specified
+   * (non-null) payload.
    */
-  private static void mergeCount(NamedList<Object> from, NamedList<Object> to, String key) {
-    // merge count
-    long existingCount = 0;
-    int indexOfCount = to.indexOf(key, 0);
-    if(indexOfCount != -1) {
-      existingCount = ((Number) to.get(key)).longValue();
+  private static void addReference(NamedList<Object> refs, String payloadStr, long count) {
+    int pos = payloadStr.indexOf(JsonReferencePayloadTokenizer.PAYLOAD_ATTR_SEPARATOR);
+    if (pos != -1) {
+      String referenceType = payloadStr.substring(0, pos);
+      String target = payloadStr.substring(pos + 1);
+
+      MultiPartString multiPartString = MultiPartString.parseFilingAndPrefix(target);
+      String displayName = multiPartString.getDisplay();
+
+      NamedList<Object> displayNameStructs = getOrCreateNamedListValue(refs, referenceType);
+
+      NamedList<Object> nameStruct = getOrCreateNamedListValue(displayNameStructs, displayName);
+
+      addLongInNamedList(nameStruct, KEY_COUNT, count);
+
+      overwriteInNamedList(nameStruct, KEY_FILING, multiPartString.getFiling());
+      if (multiPartString.getPrefix() != null) {
+        overwriteInNamedList(nameStruct, KEY_PREFIX, multiPartString.getPrefix());
+      }
     }
-    long newCount = existingCount + ((Number) from.get(key)).longValue();
-    overwriteInNamedList(to, key, newCount);
   }
 
   @Override
-  public boolean addEntry(String termKey, long count, Term t, List<Entry<LeafReader, Bits>> leaves, NamedList<NamedList<Object>> res) throws IOException {
+  public boolean addEntry(String termKey, long count, Term t, List<Entry<LeafReader, Bits>> leaves, NamedList<Object> res) throws IOException {
     MultiPartString term = MultiPartString.parseNormalizedFilingAndPrefix(termKey);
 
     NamedList<Object> entry = buildEntryValue(term, count, t, leaves);
@@ -137,7 +171,7 @@ public class JsonReferencePayloadHandler implements FacetPayload<NamedList<Objec
   }
 
   @Override
-  public Entry<String, NamedList<Object>> addEntry(String termKey, long count, Term t, List<Entry<LeafReader, Bits>> leaves) throws IOException {
+  public Entry<String, Object> addEntry(String termKey, long count, Term t, List<Entry<LeafReader, Bits>> leaves) throws IOException {
     MultiPartString term = MultiPartString.parseNormalizedFilingAndPrefix(termKey);
     return new SimpleImmutableEntry<>(termKey, buildEntryValue(term, count, t, leaves));
   }
@@ -158,47 +192,44 @@ public class JsonReferencePayloadHandler implements FacetPayload<NamedList<Objec
     }
 
     NamedList<Object> refs = new NamedList<>();
-    Set<BytesRef> trackDuplicates = new HashSet<>();
+    Set<BytesRef> trackDuplicates = uniqueReferences ? null : new HashSet<>();
 
     for (Entry<LeafReader, Bits> e : leaves) {
+      Bits liveDocs = e.getValue();
+      if (liveDocs == null || liveDocs == e.getKey().getLiveDocs()) {
+        // every (live) doc in the segment matches; use precomputed aggregates if the segment has them
+        Terms terms = e.getKey().terms(t.field());
+        if (terms instanceof ReferenceAggregateTerms) {
+          ReferenceAggregates aggregates = ((ReferenceAggregateTerms) terms).getReferenceAggregates(t.bytes(), liveDocs);
+          if (aggregates != null) {
+            addLongInNamedList(self, KEY_COUNT, aggregates.getSelfCount());
+            for (int i = 0; i < aggregates.size(); i++) {
+              addReference(refs, aggregates.getPayload(i), aggregates.getCount(i));
+            }
+          }
+          continue;
+        }
+      }
       PostingsEnum postings = e.getKey().postings(t, PostingsEnum.PAYLOADS);
       if (postings == null) {
         continue;
       }
-      Bits liveDocs = e.getValue();
       while (postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
         if (liveDocs != null && !liveDocs.get(postings.docID())) {
           continue;
         }
-        trackDuplicates.clear();
+        if (trackDuplicates != null) {
+          trackDuplicates.clear();
+        }
         for (int j = 0; j < postings.freq(); j++) {
           postings.nextPosition();
 
           BytesRef payload = postings.getPayload();
-          if (!trackDuplicates.add(payload)) {
+          if (trackDuplicates != null && !trackDuplicates.add(payload)) {
             continue;
           }
           if (payload != null) {
-            String payloadStr = payload.utf8ToString();
-            int pos = payloadStr.indexOf(JsonReferencePayloadTokenizer.PAYLOAD_ATTR_SEPARATOR);
-            if (pos != -1) {
-              String referenceType = payloadStr.substring(0, pos);
-              String target = payloadStr.substring(pos + 1);
-
-              MultiPartString multiPartString = MultiPartString.parseFilingAndPrefix(target);
-              String displayName = multiPartString.getDisplay();
-
-              NamedList<Object> displayNameStructs = getOrCreateNamedListValue(refs, referenceType);
-
-              NamedList<Object> nameStruct = getOrCreateNamedListValue(displayNameStructs, displayName);
-
-              incrementLongInNamedList(nameStruct, KEY_COUNT);
-
-              overwriteInNamedList(nameStruct, KEY_FILING, multiPartString.getFiling());
-              if (multiPartString.getPrefix() != null) {
-                overwriteInNamedList(nameStruct, KEY_PREFIX, multiPartString.getPrefix());
-              }
-            }
+            addReference(refs, payload.utf8ToString(), 1L);
           } else {
             // no payload means term is for self, so increment count
             incrementLongInNamedList(self, KEY_COUNT);
@@ -222,69 +253,61 @@ public class JsonReferencePayloadHandler implements FacetPayload<NamedList<Objec
     return entry;
   }
 
+  /**
+   * Merges into a hash-indexed accumulator ({@link CompactReferencePayload}), which is returned
+   * and should be passed as preExisting for subsequent shard values for the same term; the
+   * accumulator is converted back to the NamedList structure only once, by
+   * {@link #updateValueExternalRepresentation(Object)}.
+   */
   @Override
-  public NamedList<Object> mergePayload(NamedList<Object> preExisting, NamedList<Object> add, long preExistingCount, long addCount) {
-
-    if (addCount != ((Number)add.get(KEY_COUNT)).longValue()) {
+  public Object mergePayload(Object preExisting, Object add, long preExistingCount, long addCount) {
+    // a decoded preExisting value is the product of an earlier merge, so may be updated in place
+    CompactReferencePayload merged = toCompact(preExisting);
+    CompactReferencePayload addCompact = toCompact(add);
+    if (addCount != addCompact.getCount()) {
       throw new IllegalStateException("fieldType-internal and -external counts do not match");
     }
-    int countIndex = preExisting.indexOf(KEY_COUNT, 0);
-    long preCount = ((Number)preExisting.getVal(countIndex)).longValue();
-    preExisting.setVal(countIndex, preCount + addCount);
-
-    if(add.get(KEY_SELF) != null) {
-      NamedList<Object> addSelf = (NamedList<Object>) add.get(KEY_SELF);
-
-      NamedList<Object> preExistingSelf = getOrCreateNamedListValue(preExisting, KEY_SELF);
-
-      mergeCount(addSelf, preExistingSelf, KEY_COUNT);
+    merged.merge(addCompact);
+    return merged;
+  }
 
-      copyFieldInNamedList(addSelf, preExistingSelf, KEY_FILING);
-      copyFieldInNamedList(addSelf, preExistingSelf, KEY_PREFIX);
+  /**
+   * @return the specified value (NamedList, encoded byte[], or already decoded) as a
+   * CompactReferencePayload
+   */
+  private static CompactReferencePayload toCompact(Object val) {
+    if (val instanceof CompactReferencePayload) {
+      return (CompactReferencePayload) val;
+    } else if (val instanceof byte[]) {
+      return CompactReferencePayload.decode((byte[]) val);
+    } else {
+      return CompactReferencePayload.fromNamedList((NamedList<Object>) val);
     }
+  }
 
-    if(add.get(KEY_REFS) != null) {
-      NamedList<Object> addRefs = (NamedList<Object>) add.get(KEY_REFS);
-      Iterator<Map.Entry<String, Object>> refTypesIter = addRefs.iterator();
-      while (refTypesIter.hasNext()) {
-        Map.Entry<String, Object> entry = refTypesIter.next();
-        String addReferenceType = entry.getKey();
-        NamedList<Object> addNameStructs = (NamedList<Object>) entry.getValue();
-
-        // if "refs" doesn't exist in preExisting yet, create it
-        NamedList<Object> preExistingRefs = getOrCreateNamedListValue(preExisting, KEY_REFS);
-
-        // if referenceType doesn't exist in preExisting yet, create it
-        NamedList<Object> preExistingNameStructs = getOrCreateNamedListValue(preExistingRefs, addReferenceType);
-
-        // loop through names and merge them into preExisting
-        Iterator<Map.Entry<String, Object>> addNameStructsIter = addNameStructs.iterator();
-        while (addNameStructsIter.hasNext()) {
-          Map.Entry<String, Object> nameStructEntry = addNameStructsIter.next();
-          String name = nameStructEntry.getKey();
-          NamedList<Object> addNameStruct = (NamedList<Object>) nameStructEntry.getValue();
-
-          // if name doesn't exist in preExisting yet, create it
-          NamedList<Object> preExistingNameStruct = getOrCreateNamedListValue(preExistingNameStructs, name);
-
-          mergeCount(addNameStruct, preExistingNameStruct, KEY_COUNT);
-
-          copyFieldInNamedList(addNameStruct, preExistingNameStruct, KEY_FILING);
-          copyFieldInNamedList(addNameStruct, preExistingNameStruct, KEY_PREFIX);
-        }
-      }
+  @Override
+  public long extractCount(Object val) {
+    if (val instanceof byte[]) {
+      return CompactReferencePayload.decodeCount((byte[]) val);
+    } else if (val instanceof CompactReferencePayload) {
+      return ((CompactReferencePayload) val).getCount();
     }
-    return preExisting;
+    return ((Number) ((NamedList<Object>) val).get(KEY_COUNT)).longValue();
   }
 
   @Override
-  public long extractCount(NamedList<Object> val) {
-    return ((Number) val.get(KEY_COUNT)).longValue();
+  public Object updateValueExternalRepresentation(Object internal) {
+    if (internal instanceof byte[]) {
+      return CompactReferencePayload.decode((byte[]) internal).toNamedList();
+    } else if (internal instanceof CompactReferencePayload) {
+      return ((CompactReferencePayload) internal).toNamedList();
+    }
+    return null;
   }
 
   @Override
-  public Object updateValueExternalRepresentation(NamedList<Object> internal) {
-    return null;
+  public Object compactPayload(Object val) {
+    return val instanceof NamedList ? CompactReferencePayload.fromNamedList((NamedList<Object>) val).encode() : val;
   }
 
 }
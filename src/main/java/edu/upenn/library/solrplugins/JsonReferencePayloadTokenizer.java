@@ -2,8 +2,10 @@ package edu.upenn.library.solrplugins;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
@@ -40,6 +42,10 @@ import org.apache.lucene.util.BytesRef;
  * which should be suitable for normalized sorting and which
  * can be parsed for facet payloads.
  *
+ * If configured to dedupe references, repeated identical references
+ * (same reference type and same target) within a single field value are
+ * collapsed, so that each (term, payload) pair is emitted at most once.
+ *
  * @author jeffchiu
  */
 public final class JsonReferencePayloadTokenizer extends Tokenizer {
@@ -60,6 +66,9 @@ public final class JsonReferencePayloadTokenizer extends Tokenizer {
   //private final ReferenceAttribute refAtt = addAttribute(ReferenceAttribute.class);
   private final PayloadAttribute payloadAtt = addAttribute(PayloadAttribute.class);
 
+  private final boolean dedupeReferences;
+  private final Set<String> seenReferences;
+
   private boolean consumed = false;
   private JsonParser parser;
   private List<Token> tokens = new ArrayList<>();
@@ -74,18 +83,37 @@ public final class JsonReferencePayloadTokenizer extends Tokenizer {
   }
 
   public JsonReferencePayloadTokenizer() {
+    this(false);
+  }
+
+  public JsonReferencePayloadTokenizer(boolean dedupeReferences) {
     super();
+    this.dedupeReferences = dedupeReferences;
+    this.seenReferences = dedupeReferences ? new HashSet<>() : null;
   }
 
   public JsonReferencePayloadTokenizer(AttributeFactory factory) {
+    this(factory, false);
+  }
+
+  public JsonReferencePayloadTokenizer(AttributeFactory factory, boolean dedupeReferences) {
     super(factory);
+    this.dedupeReferences = dedupeReferences;
+    this.seenReferences = dedupeReferences ? new HashSet<>() : null;
   }
 
   /**
    * Creates tokens for the passed-in MultiPartString
    * and appends them to this object's internal list.
+   *
+   * @return false if tokens were not appended because they would duplicate
+   * a reference already appended for this field value.
    */
-  private void appendTokens(MultiPartString multiPartString, String payload, int positionIncrement) {
+  private boolean appendTokens(MultiPartString multiPartString, String payload, int positionIncrement) {
+    if (dedupeReferences && payload != null
+        && !seenReferences.add(payload.concat(PAYLOAD_ATTR_SEPARATOR).concat(multiPartString.toDelimitedStringForFilingAndPrefix()))) {
+      return false;
+    }
     Token filingToken = new Token();
     filingToken.term = multiPartString.getFiling();
     filingToken.type = TYPE_FILING;
@@ -101,6 +129,7 @@ public final class JsonReferencePayloadTokenizer extends Tokenizer {
       prefixToken.positionIncrement = 0;
       tokens.add(prefixToken);
     }
+    return true;
   }
 
   private void parse() throws IOException {
@@ -145,8 +174,9 @@ public final class JsonReferencePayloadTokenizer extends Tokenizer {
                   parser.nextToken();
                 }
                 String payload = referenceType + PAYLOAD_ATTR_SEPARATOR + raw.toDelimitedStringForFilingAndPrefix();
-                appendTokens(parseStringOrMultipartStringObject(), payload, positionIncrement);
-                positionIncrement++;
+                if (appendTokens(parseStringOrMultipartStringObject(), payload, positionIncrement)) {
+                  positionIncrement++;
+                }
               }
             } else {
               throw new IOException("Expected start of array as object value for relationship = " + referenceType);
@@ -236,6 +266,9 @@ public final class JsonReferencePayloadTokenizer extends Tokenizer {
     parser = null;
     tokens.clear();
     tokensIter = null;
+    if (dedupeReferences) {
+      seenReferences.clear();
+    }
   }
 
 }
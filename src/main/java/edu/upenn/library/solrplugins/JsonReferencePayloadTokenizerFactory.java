@@ -8,17 +8,27 @@ import org.apache.lucene.util.AttributeFactory;
 /**
  * Accompanying factory for JsonReferencePayloadTokenizer.
  *
+ * Optional "dedupeReferences" argument (default false) causes identical
+ * references within a single field value to be collapsed at index time.
+ *
  * @author jeffchiu
  */
 public class JsonReferencePayloadTokenizerFactory extends TokenizerFactory {
 
+  private static final String DEDUPE_REFERENCES_ARGNAME = "dedupeReferences";
+  private static final boolean DEFAULT_DEDUPE_REFERENCES = false;
+
+  private final boolean dedupeReferences;
+
   public JsonReferencePayloadTokenizerFactory(Map<String,String> args) {
     super(args);
+    String dedupeReferencesS = args.get(DEDUPE_REFERENCES_ARGNAME);
+    this.dedupeReferences = dedupeReferencesS == null ? DEFAULT_DEDUPE_REFERENCES : Boolean.parseBoolean(dedupeReferencesS);
   }
 
   @Override
   public Tokenizer create(AttributeFactory factory) {
-    return new JsonReferencePayloadTokenizer(factory);
+    return new JsonReferencePayloadTokenizer(factory, dedupeReferences);
   }
 
 }
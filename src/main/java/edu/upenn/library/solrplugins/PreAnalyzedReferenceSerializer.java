@@ -0,0 +1,122 @@
+package edu.upenn.library.solrplugins;
+
+import java.io.IOException;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Client-side counterpart to PreAnalyzedReferenceTokenizer. Runs the
+ * full index-time analysis chain (e.g., JsonReferencePayloadTokenizer,
+ * TokenTypeSplitFilter, TokenTypeJoinFilter) in the indexing client, and
+ * serializes the resulting (final, joined) tokens and payloads into a compact
+ * string that may be sent to Solr as an ordinary field value.
+ *
+ * The serialized form looks like this:
+ *
+ *   1|1,indexed,hegel\0Hegel|2,indexed,hegelianism\0Hegelianism,see_also\0Hegel
+ *
+ * i.e., a format version, followed by one entry per token, each consisting of
+ * position increment, token type, term, and (optionally) payload. Delimiter
+ * and control characters (including the null bytes used to delimit
+ * normalized/filing/prefix components) are escaped, so the serialized value
+ * is safe to transfer in JSON and XML update documents.
+ *
+ * The analyzer used here should be equivalent to the "index" analyzer that
+ * would otherwise be configured for the field on the Solr server, e.g.:
+ *
+ * Analyzer a = CustomAnalyzer.builder()
+ *     .withTokenizer(JsonReferencePayloadTokenizerFactory.class)
+ *     .addTokenFilter(TokenTypeSplitFilterFactory.class, "includeTypes", "filing", "outputType", "normalized",
+ *         "_class", "org.apache.lucene.analysis.icu.ICUFoldingFilterFactory")
+ *     .addTokenFilter(TokenTypeJoinFilterFactory.class, "inputTypes", "normalized,filing,prefix",
+ *         "outputType", "indexed", "typeForPayload", "normalized")
+ *     .build();
+ *
+ * Payloads are serialized as UTF-8 strings (as generated by JsonReferencePayloadTokenizer).
+ *
+ * @author magibney
+ */
+public class PreAnalyzedReferenceSerializer {
+
+  public static final String VERSION = "1";
+  public static final char TOKEN_SEPARATOR = '|';
+  public static final char FIELD_SEPARATOR = ',';
+  public static final char ESCAPE = '\\';
+  public static final char ESCAPE_UNICODE = 'u';
+
+  private final Analyzer analyzer;
+
+  public PreAnalyzedReferenceSerializer(Analyzer analyzer) {
+    this.analyzer = analyzer;
+  }
+
+  /**
+   * Analyzes the specified raw field value (e.g., a JSON reference object)
+   * and returns the serialized pre-analyzed form.
+   */
+  public String serialize(String fieldName, String value) throws IOException {
+    return serialize(analyzer.tokenStream(fieldName, value));
+  }
+
+  /**
+   * Consumes and closes the specified TokenStream, returning the serialized
+   * pre-analyzed form of its tokens.
+   */
+  public static String serialize(TokenStream ts) throws IOException {
+    StringBuilder sb = new StringBuilder(256);
+    sb.append(VERSION);
+    try {
+      CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+      TypeAttribute typeAtt = ts.addAttribute(TypeAttribute.class);
+      PositionIncrementAttribute posIncrAtt = ts.addAttribute(PositionIncrementAttribute.class);
+      PayloadAttribute payloadAtt = ts.addAttribute(PayloadAttribute.class);
+      ts.reset();
+      while (ts.incrementToken()) {
+        sb.append(TOKEN_SEPARATOR);
+        sb.append(posIncrAtt.getPositionIncrement()).append(FIELD_SEPARATOR);
+        escape(typeAtt.type(), sb).append(FIELD_SEPARATOR);
+        escape(termAtt, sb);
+        BytesRef payload = payloadAtt.getPayload();
+        if (payload != null) {
+          sb.append(FIELD_SEPARATOR);
+          escape(payload.utf8ToString(), sb);
+        }
+      }
+      ts.end();
+    } finally {
+      ts.close();
+    }
+    return sb.toString();
+  }
+
+  static StringBuilder escape(CharSequence input, StringBuilder sb) {
+    for (int i = 0; i < input.length(); i++) {
+      char c = input.charAt(i);
+      switch (c) {
+        case TOKEN_SEPARATOR:
+        case FIELD_SEPARATOR:
+        case ESCAPE:
+          sb.append(ESCAPE).append(c);
+          break;
+        default:
+          if (c < ' ') {
+            sb.append(ESCAPE).append(ESCAPE_UNICODE);
+            String hex = Integer.toHexString(c);
+            for (int j = hex.length(); j < 4; j++) {
+              sb.append('0');
+            }
+            sb.append(hex);
+          } else {
+            sb.append(c);
+          }
+      }
+    }
+    return sb;
+  }
+
+}
@@ -0,0 +1,174 @@
+package edu.upenn.library.solrplugins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.AttributeFactory;
+import org.apache.lucene.util.BytesRef;
+
+import static edu.upenn.library.solrplugins.PreAnalyzedReferenceSerializer.ESCAPE;
+import static edu.upenn.library.solrplugins.PreAnalyzedReferenceSerializer.ESCAPE_UNICODE;
+import static edu.upenn.library.solrplugins.PreAnalyzedReferenceSerializer.FIELD_SEPARATOR;
+import static edu.upenn.library.solrplugins.PreAnalyzedReferenceSerializer.TOKEN_SEPARATOR;
+import static edu.upenn.library.solrplugins.PreAnalyzedReferenceSerializer.VERSION;
+
+/**
+ * Tokenizer that deserializes tokens that were analyzed off-cluster
+ * by PreAnalyzedReferenceSerializer (see that class for a description of the
+ * serialized form). Term text, token type, position increment, and payload of
+ * each token are restored exactly as they were emitted by the client-side
+ * analysis chain, so this tokenizer may be used (with no subsequent filters)
+ * as the "index" analyzer for a CaseInsensitiveSortingTextField, in place of
+ * the JsonReferencePayloadTokenizer/TokenTypeSplitFilter/TokenTypeJoinFilter
+ * chain. The "query" analyzer should remain unchanged.
+ *
+ * @author magibney
+ */
+public final class PreAnalyzedReferenceTokenizer extends Tokenizer {
+
+  private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+  private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
+  private final PositionIncrementAttribute posIncrAtt = addAttribute(PositionIncrementAttribute.class);
+  private final PayloadAttribute payloadAtt = addAttribute(PayloadAttribute.class);
+
+  private final StringBuilder sb = new StringBuilder(256);
+  private final char[] buffer = new char[1024];
+  private boolean consumed = false;
+  private final List<Token> tokens = new ArrayList<>();
+  private Iterator<Token> tokensIter;
+
+  /** Represents a deserialized token for this Tokenizer to emit in its stream */
+  private static class Token {
+    private final int positionIncrement;
+    private final String type;
+    private final String term;
+    private final BytesRef payload;
+
+    private Token(int positionIncrement, String type, String term, BytesRef payload) {
+      this.positionIncrement = positionIncrement;
+      this.type = type;
+      this.term = term;
+      this.payload = payload;
+    }
+  }
+
+  public PreAnalyzedReferenceTokenizer() {
+    super();
+  }
+
+  public PreAnalyzedReferenceTokenizer(AttributeFactory factory) {
+    super(factory);
+  }
+
+  private void parse() throws IOException {
+    sb.setLength(0);
+    int read;
+    while ((read = input.read(buffer)) != -1) {
+      sb.append(buffer, 0, read);
+    }
+    int limit = sb.length();
+    int versionEnd = 0;
+    while (versionEnd < limit && sb.charAt(versionEnd) != TOKEN_SEPARATOR) {
+      versionEnd++;
+    }
+    String version = sb.substring(0, versionEnd);
+    if (!VERSION.equals(version)) {
+      throw new IOException("input not recognized as pre-analyzed (expected version " + VERSION + ", found \"" + version + "\")");
+    }
+    List<String> fields = new ArrayList<>(4);
+    StringBuilder field = new StringBuilder();
+    int i = versionEnd;
+    while (i < limit) {
+      // sb.charAt(i) is TOKEN_SEPARATOR
+      fields.clear();
+      field.setLength(0);
+      i++;
+      for (; i < limit; i++) {
+        char c = sb.charAt(i);
+        if (c == TOKEN_SEPARATOR) {
+          break;
+        } else if (c == FIELD_SEPARATOR) {
+          fields.add(field.toString());
+          field.setLength(0);
+        } else if (c != ESCAPE) {
+          field.append(c);
+        } else if (++i >= limit) {
+          throw new IOException("unterminated escape sequence at end of input");
+        } else if ((c = sb.charAt(i)) != ESCAPE_UNICODE) {
+          field.append(c);
+        } else if (i + 4 >= limit) {
+          throw new IOException("unterminated unicode escape sequence at end of input");
+        } else {
+          String hex = sb.substring(i + 1, i + 5);
+          try {
+            if (Character.digit(hex.charAt(0), 16) < 0) {
+              // Integer.parseInt would accept a leading sign
+              throw new NumberFormatException(hex);
+            }
+            field.append((char) Integer.parseInt(hex, 16));
+          } catch (NumberFormatException ex) {
+            throw new IOException("malformed unicode escape sequence \"" + ESCAPE + ESCAPE_UNICODE + hex
+                + "\" at position " + (i - 1), ex);
+          }
+          i += 4;
+        }
+      }
+      fields.add(field.toString());
+      tokens.add(newToken(fields));
+    }
+  }
+
+  private static Token newToken(List<String> fields) throws IOException {
+    int positionIncrement;
+    switch (fields.size()) {
+      case 3:
+      case 4:
+        try {
+          positionIncrement = Integer.parseInt(fields.get(0));
+        } catch (NumberFormatException ex) {
+          throw new IOException("bad position increment: " + fields.get(0), ex);
+        }
+        BytesRef payload = fields.size() > 3 ? new BytesRef(fields.get(3)) : null;
+        return new Token(positionIncrement, fields.get(1), fields.get(2), payload);
+      default:
+        throw new IOException("expected 3 or 4 fields for pre-analyzed token, found " + fields.size() + ": " + fields);
+    }
+  }
+
+  @Override
+  public boolean incrementToken() throws IOException {
+    clearAttributes();
+
+    if (!consumed) {
+      parse();
+      tokensIter = tokens.iterator();
+      consumed = true;
+    }
+
+    if (tokensIter.hasNext()) {
+      Token token = tokensIter.next();
+      termAtt.append(token.term);
+      typeAtt.setType(token.type);
+      posIncrAtt.setPositionIncrement(token.positionIncrement);
+      payloadAtt.setPayload(token.payload);
+      return true;
+    }
+
+    return false;
+  }
+
+  @Override
+  public void reset() throws IOException {
+    super.reset();
+    consumed = false;
+    tokens.clear();
+    tokensIter = null;
+  }
+
+}
@@ -0,0 +1,24 @@
+package edu.upenn.library.solrplugins;
+
+import java.util.Map;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.util.TokenizerFactory;
+import org.apache.lucene.util.AttributeFactory;
+
+/**
+ * Accompanying factory for PreAnalyzedReferenceTokenizer.
+ *
+ * @author magibney
+ */
+public class PreAnalyzedReferenceTokenizerFactory extends TokenizerFactory {
+
+  public PreAnalyzedReferenceTokenizerFactory(Map<String,String> args) {
+    super(args);
+  }
+
+  @Override
+  public Tokenizer create(AttributeFactory factory) {
+    return new PreAnalyzedReferenceTokenizer(factory);
+  }
+
+}
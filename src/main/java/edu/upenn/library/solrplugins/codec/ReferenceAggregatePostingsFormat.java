@@ -0,0 +1,367 @@
+/*
+ * Copyright 2016 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.library.solrplugins.codec;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.FieldsConsumer;
+import org.apache.lucene.codecs.FieldsProducer;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.Accountables;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.WeakIdentityMap;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+import org.apache.lucene.util.fst.Util;
+
+/**
+ * PostingsFormat that wraps a delegate PostingsFormat (by default "Lucene50"),
+ * and additionally writes, for each segment, a side index of per-term payload
+ * aggregates (see {@link ReferenceAggregates}). Aggregates are computed when
+ * segments are flushed or merged, so that at query time reference counts for
+ * an unfiltered segment may be read directly, rather than by iterating over
+ * the term's postings and payloads.
+ *
+ * Aggregates are only recorded for terms that occur with a payload in at least
+ * one document of the segment; for other terms, the self count is simply the
+ * term's docFreq. Aggregates are exposed via the {@link ReferenceAggregateTerms}
+ * returned by the FieldsProducer for each field.
+ *
+ * When a segment is opened, the term index of each field (an FST mapping terms to
+ * file pointers in the side file) is loaded on heap; aggregates themselves are read
+ * on demand from the side file via an IndexInput, and so are memory-mapped only if
+ * the Directory (e.g., MMapDirectory) maps index files.
+ *
+ * Enable for a field type by configuring SchemaCodecFactory in solrconfig.xml,
+ * and setting postingsFormat="ReferenceAggregate" on the fieldType.
+ *
+ * @author magibney
+ */
+public class ReferenceAggregatePostingsFormat extends PostingsFormat {
+
+  public static final String NAME = "ReferenceAggregate";
+  public static final String DEFAULT_DELEGATE_NAME = "Lucene50";
+
+  static final String EXTENSION = "rag";
+  static final String CODEC_NAME = "ReferenceAggregates";
+  static final int VERSION_START = 0;
+  static final int VERSION_CURRENT = VERSION_START;
+
+  private final PostingsFormat delegatePostingsFormat;
+
+  /**
+   * Used only by SPI (for reading); the delegate for reading is determined by
+   * the name recorded in each segment's side index.
+   */
+  public ReferenceAggregatePostingsFormat() {
+    this(null);
+  }
+
+  public ReferenceAggregatePostingsFormat(PostingsFormat delegatePostingsFormat) {
+    super(NAME);
+    this.delegatePostingsFormat = delegatePostingsFormat;
+  }
+
+  @Override
+  public FieldsConsumer fieldsConsumer(SegmentWriteState state) throws IOException {
+    PostingsFormat delegate = delegatePostingsFormat != null ? delegatePostingsFormat : PostingsFormat.forName(DEFAULT_DELEGATE_NAME);
+    return new ReferenceAggregateFieldsConsumer(delegate, state);
+  }
+
+  @Override
+  public FieldsProducer fieldsProducer(SegmentReadState state) throws IOException {
+    return new ReferenceAggregateFieldsProducer(state);
+  }
+
+  @Override
+  public String toString() {
+    return NAME + "(" + (delegatePostingsFormat == null ? DEFAULT_DELEGATE_NAME : delegatePostingsFormat.getName()) + ")";
+  }
+
+  private static final class ReferenceAggregateFieldsConsumer extends FieldsConsumer {
+
+    private final SegmentWriteState state;
+    private final FieldsConsumer delegateFieldsConsumer;
+    private final IndexOutput data;
+    private final Map<String, FST<Long>> fieldIndexes = new HashMap<>();
+
+    private ReferenceAggregateFieldsConsumer(PostingsFormat delegate, SegmentWriteState state) throws IOException {
+      this.state = state;
+      String fileName = IndexFileNames.segmentFileName(state.segmentInfo.name, state.segmentSuffix, EXTENSION);
+      boolean success = false;
+      IndexOutput out = null;
+      FieldsConsumer delegateConsumer = null;
+      try {
+        out = state.directory.createOutput(fileName, state.context);
+        CodecUtil.writeIndexHeader(out, CODEC_NAME, VERSION_CURRENT, state.segmentInfo.getId(), state.segmentSuffix);
+        out.writeString(delegate.getName());
+        delegateConsumer = delegate.fieldsConsumer(state);
+        success = true;
+      } finally {
+        if (!success) {
+          IOUtils.closeWhileHandlingException(out, delegateConsumer);
+        }
+      }
+      this.data = out;
+      this.delegateFieldsConsumer = delegateConsumer;
+    }
+
+    @Override
+    public void write(Fields fields) throws IOException {
+      delegateFieldsConsumer.write(fields);
+      // aggregates reflect every doc written to the segment, including docs deleted by term
+      // before flush (which are excluded at query time, as for any other deleted doc); at
+      // merge, the merged fields already exclude docs deleted from the source segments, so
+      // that merged aggregates are recomputed over live docs only
+      ReferenceAggregates.Builder aggregates = new ReferenceAggregates.Builder();
+      IntsRefBuilder scratchInts = new IntsRefBuilder();
+      for (String field : fields) {
+        FieldInfo fieldInfo = state.fieldInfos.fieldInfo(field);
+        Terms terms = fields.terms(field);
+        if (fieldInfo == null || !fieldInfo.hasPayloads() || terms == null) {
+          continue;
+        }
+        Builder<Long> fstBuilder = new Builder<>(FST.INPUT_TYPE.BYTE1, PositiveIntOutputs.getSingleton());
+        TermsEnum termsEnum = terms.iterator();
+        PostingsEnum postings = null;
+        BytesRef term;
+        while ((term = termsEnum.next()) != null) {
+          postings = termsEnum.postings(postings, PostingsEnum.PAYLOADS);
+          if (aggregates.accumulate(postings, null)) {
+            long fp = data.getFilePointer();
+            aggregates.write(data);
+            fstBuilder.add(Util.toIntsRef(term, scratchInts), fp);
+          }
+        }
+        FST<Long> fst = fstBuilder.finish();
+        if (fst != null) {
+          fieldIndexes.put(field, fst);
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      boolean success = false;
+      try {
+        long indexFP = data.getFilePointer();
+        data.writeVInt(fieldIndexes.size());
+        for (Map.Entry<String, FST<Long>> e : fieldIndexes.entrySet()) {
+          data.writeString(e.getKey());
+          e.getValue().save(data);
+        }
+        data.writeLong(indexFP);
+        CodecUtil.writeFooter(data);
+        success = true;
+      } finally {
+        if (success) {
+          IOUtils.close(data, delegateFieldsConsumer);
+        } else {
+          IOUtils.closeWhileHandlingException(data, delegateFieldsConsumer);
+        }
+      }
+    }
+
+  }
+
+  private static final class ReferenceAggregateFieldsProducer extends FieldsProducer {
+
+    private final FieldsProducer delegateFieldsProducer;
+    private final IndexInput data;
+    private final Map<String, FST<Long>> fieldIndexes = new HashMap<>();
+
+    private ReferenceAggregateFieldsProducer(SegmentReadState state) throws IOException {
+      String fileName = IndexFileNames.segmentFileName(state.segmentInfo.name, state.segmentSuffix, EXTENSION);
+      boolean success = false;
+      IndexInput in = state.directory.openInput(fileName, state.context);
+      FieldsProducer delegateProducer = null;
+      try {
+        CodecUtil.checkIndexHeader(in, CODEC_NAME, VERSION_START, VERSION_CURRENT, state.segmentInfo.getId(), state.segmentSuffix);
+        String delegateName = in.readString();
+        CodecUtil.retrieveChecksum(in);
+        in.seek(in.length() - CodecUtil.footerLength() - Long.BYTES);
+        in.seek(in.readLong());
+        int numFields = in.readVInt();
+        for (int i = 0; i < numFields; i++) {
+          String field = in.readString();
+          fieldIndexes.put(field, new FST<>(in, PositiveIntOutputs.getSingleton()));
+        }
+        delegateProducer = PostingsFormat.forName(delegateName).fieldsProducer(state);
+        success = true;
+      } finally {
+        if (!success) {
+          IOUtils.closeWhileHandlingException(in, delegateProducer);
+        }
+      }
+      this.data = in;
+      this.delegateFieldsProducer = delegateProducer;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+      return delegateFieldsProducer.iterator();
+    }
+
+    @Override
+    public Terms terms(String field) throws IOException {
+      Terms terms = delegateFieldsProducer.terms(field);
+      return terms == null ? null : new ReferenceAggregateTerms(terms, fieldIndexes.get(field), data);
+    }
+
+    @Override
+    public int size() {
+      return delegateFieldsProducer.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+      IOUtils.close(data, delegateFieldsProducer);
+    }
+
+    @Override
+    public void checkIntegrity() throws IOException {
+      delegateFieldsProducer.checkIntegrity();
+      CodecUtil.checksumEntireFile(data.clone());
+    }
+
+    @Override
+    public long ramBytesUsed() {
+      long ret = delegateFieldsProducer.ramBytesUsed();
+      for (FST<Long> fst : fieldIndexes.values()) {
+        ret += fst.ramBytesUsed();
+      }
+      return ret;
+    }
+
+    @Override
+    public Collection<Accountable> getChildResources() {
+      return Collections.singletonList(Accountables.namedAccountable("delegate", delegateFieldsProducer));
+    }
+
+    @Override
+    public String toString() {
+      return getClass().getSimpleName() + "(fields=" + fieldIndexes.size() + ",delegate=" + delegateFieldsProducer + ")";
+    }
+
+  }
+
+  /**
+   * Terms for a field written by ReferenceAggregatePostingsFormat, exposing
+   * the per-term aggregates recorded for the segment.
+   */
+  public static final class ReferenceAggregateTerms extends FilterLeafReader.FilterTerms {
+
+    private final FST<Long> index;
+    private final IndexInput data;
+
+    private ReferenceAggregateTerms(Terms in, FST<Long> index, IndexInput data) {
+      super(in);
+      this.index = index;
+      this.data = data;
+    }
+
+    /**
+     * Aggregates reflect all documents in the segment, including deleted
+     * documents; for segments with deletions, see
+     * {@link #getReferenceAggregates(BytesRef, Bits)}.
+     *
+     * @return aggregates for the specified term, or null if the term does not
+     * occur in this segment.
+     */
+    public ReferenceAggregates getReferenceAggregates(BytesRef term) throws IOException {
+      Long fp = index == null ? null : Util.get(index, term);
+      if (fp != null) {
+        IndexInput input = data.clone();
+        input.seek(fp);
+        return ReferenceAggregates.read(input);
+      }
+      TermsEnum termsEnum = in.iterator();
+      return termsEnum.seekExact(term) ? ReferenceAggregates.selfOnly(termsEnum.docFreq()) : null;
+    }
+
+    /**
+     * Aggregates over the live documents of the segment: the recorded aggregates, less the
+     * contributions of deleted documents. Deleted documents are visited by advancing the term's
+     * postings, so for the usual case of relatively few deletions, most postings are skipped.
+     *
+     * @param liveDocs the live docs of the segment (may be null, if the segment has no deletions)
+     * @return aggregates for the specified term over live docs, or null if the term does not
+     * occur in this segment.
+     */
+    public ReferenceAggregates getReferenceAggregates(BytesRef term, Bits liveDocs) throws IOException {
+      ReferenceAggregates ret = getReferenceAggregates(term);
+      if (ret == null || liveDocs == null) {
+        return ret;
+      }
+      int[] deletedDocs = deletedDocs(liveDocs);
+      if (deletedDocs.length == 0) {
+        return ret;
+      }
+      TermsEnum termsEnum = in.iterator();
+      return termsEnum.seekExact(term) ? ret.exclude(termsEnum.postings(null, PostingsEnum.PAYLOADS), deletedDocs) : null;
+    }
+
+  }
+
+  /**
+   * sorted deleted doc ids, per liveDocs instance (which is shared by all readers over the same
+   * segment and deletions)
+   */
+  private static final WeakIdentityMap<Bits, int[]> DELETED_DOCS = WeakIdentityMap.newConcurrentHashMap();
+
+  private static int[] deletedDocs(Bits liveDocs) {
+    int[] ret = DELETED_DOCS.get(liveDocs);
+    if (ret == null) {
+      int maxDoc = liveDocs.length();
+      int[] tmp = new int[16];
+      int size = 0;
+      for (int i = 0; i < maxDoc; i++) {
+        if (!liveDocs.get(i)) {
+          if (size == tmp.length) {
+            tmp = Arrays.copyOf(tmp, size << 1);
+          }
+          tmp[size++] = i;
+        }
+      }
+      ret = Arrays.copyOf(tmp, size);
+      DELETED_DOCS.put(liveDocs, ret);
+    }
+    return ret;
+  }
+
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2016 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.library.solrplugins.codec;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Per-segment, per-term aggregation of term payloads: the number of documents
+ * in which the term occurs with no payload ("self" count), and the number of
+ * documents in which the term occurs with each distinct (non-null) payload, in
+ * order of first occurrence. Each payload is counted at most once per document.
+ *
+ * @author magibney
+ */
+public class ReferenceAggregates {
+
+  private final long selfCount;
+  private final String[] payloads;
+  private final long[] counts;
+
+  private ReferenceAggregates(long selfCount, String[] payloads, long[] counts) {
+    this.selfCount = selfCount;
+    this.payloads = payloads;
+    this.counts = counts;
+  }
+
+  /**
+   * @return aggregates for a term that occurs with no payloads
+   */
+  public static ReferenceAggregates selfOnly(long selfCount) {
+    return new ReferenceAggregates(selfCount, new String[0], new long[0]);
+  }
+
+  public long getSelfCount() {
+    return selfCount;
+  }
+
+  public int size() {
+    return payloads.length;
+  }
+
+  public String getPayload(int index) {
+    return payloads[index];
+  }
+
+  public long getCount(int index) {
+    return counts[index];
+  }
+
+  /**
+   * @param postings postings for the term (requested with {@link PostingsEnum#PAYLOADS}), over
+   * all docs in the segment
+   * @param excludeDocs sorted ids of docs whose contributions are to be excluded
+   * @return these aggregates, less the contributions of the specified docs (counted, as by
+   * {@link Builder}, at most once per payload per doc)
+   */
+  public ReferenceAggregates exclude(PostingsEnum postings, int[] excludeDocs) throws IOException {
+    Map<String, long[]> payloadCounts = new LinkedHashMap<>(payloads.length << 1);
+    for (int i = 0; i < payloads.length; i++) {
+      payloadCounts.put(payloads[i], new long[] {counts[i]});
+    }
+    long self = selfCount;
+    Set<BytesRef> trackDuplicates = new HashSet<>();
+    int i = 0;
+    int doc = postings.nextDoc();
+    while (doc != DocIdSetIterator.NO_MORE_DOCS && i < excludeDocs.length) {
+      if (excludeDocs[i] < doc) {
+        i++;
+      } else if (excludeDocs[i] > doc) {
+        doc = postings.advance(excludeDocs[i]);
+      } else {
+        trackDuplicates.clear();
+        int freq = postings.freq();
+        for (int j = 0; j < freq; j++) {
+          postings.nextPosition();
+          BytesRef payload = postings.getPayload();
+          if (payload == null) {
+            if (trackDuplicates.add(null)) {
+              self--;
+            }
+          } else if (trackDuplicates.add(BytesRef.deepCopyOf(payload))) {
+            long[] count = payloadCounts.get(payload.utf8ToString());
+            if (count != null) {
+              count[0]--;
+            }
+          }
+        }
+        i++;
+        doc = postings.nextDoc();
+      }
+    }
+    int size = 0;
+    for (long[] count : payloadCounts.values()) {
+      if (count[0] > 0) {
+        size++;
+      }
+    }
+    String[] retPayloads = new String[size];
+    long[] retCounts = new long[size];
+    int j = 0;
+    for (Map.Entry<String, long[]> e : payloadCounts.entrySet()) {
+      if (e.getValue()[0] > 0) {
+        retPayloads[j] = e.getKey();
+        retCounts[j++] = e.getValue()[0];
+      }
+    }
+    return new ReferenceAggregates(self, retPayloads, retCounts);
+  }
+
+  public static ReferenceAggregates read(DataInput in) throws IOException {
+    long selfCount = in.readVLong();
+    int size = in.readVInt();
+    String[] payloads = new String[size];
+    long[] counts = new long[size];
+    for (int i = 0; i < size; i++) {
+      payloads[i] = in.readString();
+      counts[i] = in.readVLong();
+    }
+    return new ReferenceAggregates(selfCount, payloads, counts);
+  }
+
+  /**
+   * Accumulates aggregates for one term at a time, and writes them to
+   * a DataOutput.
+   */
+  public static class Builder {
+
+    private final Set<BytesRef> trackDuplicates = new HashSet<>();
+    private final Map<String, long[]> payloadCounts = new LinkedHashMap<>();
+    private long selfCount;
+
+    /**
+     * Accumulates aggregates over the specified postings (which must have been
+     * requested with {@link PostingsEnum#PAYLOADS}), replacing any previously
+     * accumulated aggregates.
+     *
+     * @param liveDocs if non-null, documents for which liveDocs.get() returns false are ignored.
+     * @return true if any term payloads were encountered.
+     */
+    public boolean accumulate(PostingsEnum postings, Bits liveDocs) throws IOException {
+      payloadCounts.clear();
+      selfCount = 0;
+      int doc;
+      while ((doc = postings.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+        if (liveDocs != null && !liveDocs.get(doc)) {
+          continue;
+        }
+        trackDuplicates.clear();
+        int freq = postings.freq();
+        for (int j = 0; j < freq; j++) {
+          postings.nextPosition();
+          BytesRef payload = postings.getPayload();
+          if (payload == null) {
+            if (trackDuplicates.add(null)) {
+              selfCount++;
+            }
+          } else if (trackDuplicates.add(BytesRef.deepCopyOf(payload))) {
+            String payloadStr = payload.utf8ToString();
+            long[] count = payloadCounts.get(payloadStr);
+            if (count == null) {
+              payloadCounts.put(payloadStr, new long[] {1});
+            } else {
+              count[0]++;
+            }
+          }
+        }
+      }
+      return !payloadCounts.isEmpty();
+    }
+
+    public void write(DataOutput out) throws IOException {
+      out.writeVLong(selfCount);
+      out.writeVInt(payloadCounts.size());
+      for (Map.Entry<String, long[]> e : payloadCounts.entrySet()) {
+        out.writeString(e.getKey());
+        out.writeVLong(e.getValue()[0]);
+      }
+    }
+
+  }
+
+}
@@ -375,16 +375,44 @@ public interface FacetParams {
   public static final String FACET_TARGET = FACET.concat(".target");
   // interpret target string literally, with no case-folding, etc.
   public static final String FACET_TARGET_STRICT = FACET_TARGET.concat(".strict");
+  // strategy for counting terms in the window around the target: "auto" (default; cost-based),
+  // "dv" (count all terms over all matching docs), or "term" (count terms on demand via postings)
+  public static final String FACET_TARGET_COUNTING = FACET_TARGET.concat(".counting");
+  public static final String FACET_TARGET_COUNTING_AUTO = "auto";
+  public static final String FACET_TARGET_COUNTING_DV = "dv";
+  public static final String FACET_TARGET_COUNTING_TERM = "term";
+  // interpret target as a (normalized) section key, e.g. "b", resolving to the first term of the
+  // section via a cached jump table (see FacetSections)
+  public static final String FACET_TARGET_SECTION = FACET_TARGET.concat(".section");
+  // target token ("<index version>:<ord>") as returned by facet.suggest; if still valid, takes
+  // precedence over facet.target, which is then used only as a fallback
+  public static final String FACET_TARGET_ORD = FACET_TARGET.concat(".ord");
+  // internal (shard requests): alongside the "terms" of a facet.target window, return
+  // "terms_indexed", the indexed form of each term (see IndexedTermKeys)
+  public static final String FACET_TARGET_INDEXED = FACET_TARGET.concat(".indexed");
+  // opt-in: once a window is built, build the adjacent (next and previous) windows in the
+  // background, for a short-lived cache (see WindowPrefetcher)
+  public static final String FACET_TARGET_PREFETCH = FACET_TARGET.concat(".prefetch");
+
+  /*
+   PREFIX COMPLETION (TYPEAHEAD)
+   */
+  // return the top facet.limit terms (by count over all live docs) completing the specified prefix
+  public static final String FACET_SUGGEST = FACET.concat(".suggest");
 
   /*
    DOCUMENT-CENTRIC OUTPUT
    */
   public static final String FACET_TARGET_DOC = FACET.concat(".targetDoc"); // implies output docs
+  // return only the uniqueKey of each doc; stored fields are retrieved separately (for shard requests)
+  public static final String FACET_TARGET_DOC_DEFER = FACET_TARGET_DOC.concat(".deferFields");
 
   /*
    EXTEND FACET OUTPUT WHERE POSSIBLE
    */
   public static final String FACET_EXTEND = FACET.concat(".extend");
+  // return extended values in a compact, field-type-specific form (for shard requests)
+  public static final String FACET_EXTEND_COMPACT = FACET_EXTEND.concat(".compact");
 
   /**
    * An enumeration of the legal values for {@link #FACET_RANGE_OTHER} and {@link #FACET_DATE_OTHER} ...
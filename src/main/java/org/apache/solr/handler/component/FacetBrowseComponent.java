@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.search.DocListAndSet;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.DocSlice;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.QueryParsing;
+import org.apache.solr.search.SolrReturnFields;
+import org.apache.solr.search.SyntaxError;
+
+/**
+ * Lightweight replacement for {@link QueryComponent} in browse requests (see
+ * {@link FacetBrowseHandler}), which need only the DocSet over which facets are computed. The
+ * main query and filters are parsed as usual, but only their DocSet is computed (intersecting
+ * per-query DocSets from the filterCache, where cached); no scoring, sorting, or DocList
+ * collection is performed, and no documents are returned.
+ *
+ * For distributed requests, a single rows=0 shard request is issued, to which
+ * {@link FacetComponent} attaches the field facet (as it would to the main query request);
+ * shard responses are merged (and refined) by FacetComponent as usual.
+ *
+ * @author magibney
+ */
+public class FacetBrowseComponent extends SearchComponent {
+
+  public static final String COMPONENT_NAME = "xfacetBrowse";
+
+  @Override
+  public void prepare(ResponseBuilder rb) throws IOException {
+    SolrQueryRequest req = rb.req;
+    SolrParams params = req.getParams();
+    rb.rsp.setReturnFields(new SolrReturnFields(req));
+    try {
+      String q = params.get(CommonParams.Q);
+      Query query = null;
+      if (q != null && !q.trim().isEmpty()) {
+        query = QParser.getParser(q, params.get(QueryParsing.DEFTYPE), req).getQuery();
+      }
+      rb.setQuery(query == null ? new MatchAllDocsQuery() : query);
+      String[] fqs = params.getParams(CommonParams.FQ);
+      if (fqs != null && fqs.length > 0) {
+        List<Query> filters = new ArrayList<>(fqs.length);
+        for (String fq : fqs) {
+          if (fq != null && !fq.trim().isEmpty()) {
+            Query filter = QParser.getParser(fq, null, req).getQuery();
+            if (filter != null) {
+              filters.add(filter);
+            }
+          }
+        }
+        rb.setFilters(filters);
+      }
+    } catch (SyntaxError ex) {
+      throw new SolrException(ErrorCode.BAD_REQUEST, ex);
+    }
+    rb.setNeedDocSet(true);
+  }
+
+  @Override
+  public void process(ResponseBuilder rb) throws IOException {
+    List<Query> queries = new ArrayList<>();
+    queries.add(rb.getQuery());
+    if (rb.getFilters() != null) {
+      queries.addAll(rb.getFilters());
+    }
+    DocSet docs = rb.req.getSearcher().getDocSet(queries);
+    DocListAndSet results = new DocListAndSet();
+    results.docSet = docs;
+    // empty DocList, for the benefit of components (e.g., debug) that expect one
+    results.docList = new DocSlice(0, 0, new int[0], null, docs.size(), 0f);
+    rb.setResults(results);
+  }
+
+  @Override
+  public int distributedProcess(ResponseBuilder rb) throws IOException {
+    if (rb.stage < ResponseBuilder.STAGE_EXECUTE_QUERY) {
+      return ResponseBuilder.STAGE_EXECUTE_QUERY;
+    } else if (rb.stage == ResponseBuilder.STAGE_EXECUTE_QUERY) {
+      ShardRequest sreq = new ShardRequest();
+      // FacetComponent attaches facets to the (nominal) top ids request
+      sreq.purpose = ShardRequest.PURPOSE_GET_TOP_IDS;
+      sreq.params = new ModifiableSolrParams(rb.req.getParams());
+      sreq.params.remove(ShardParams.SHARDS);
+      sreq.params.set(CommonParams.START, 0);
+      sreq.params.set(CommonParams.ROWS, 0);
+      rb.addRequest(this, sreq);
+      // FacetComponent refines (and retrieves deferred docs) in STAGE_GET_FIELDS
+      return ResponseBuilder.STAGE_GET_FIELDS;
+    } else if (rb.stage < ResponseBuilder.STAGE_GET_FIELDS) {
+      return ResponseBuilder.STAGE_GET_FIELDS;
+    }
+    return ResponseBuilder.STAGE_DONE;
+  }
+
+  @Override
+  public String getDescription() {
+    return "DocSet-only query execution for facet browse requests";
+  }
+
+}
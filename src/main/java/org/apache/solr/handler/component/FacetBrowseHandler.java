@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.component;
+
+import java.util.Arrays;
+import java.util.List;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+
+/**
+ * Dedicated request handler for browsing a single field by facet.target window. Accepts the
+ * window parameters directly ({@value #FIELD}, {@value #TARGET}, {@value #OFFSET},
+ * {@value #LIMIT}, {@value #EXTEND}, {@value #TARGET_DOC}), along with the usual q and fq, and
+ * translates them to the equivalent field facet request, which is executed by
+ * {@link FacetBrowseComponent} (DocSet only; no main result list) and {@link FacetComponent}
+ * (including distributed merging and refinement). The response is reduced to the window alone,
+ * under the key {@value #RESPONSE_KEY}.
+ *
+ * Other facet params for the field (e.g., f.[field].facet.mincount) may be passed as usual.
+ * Shard requests (which already carry the translated facet params, as modified for the shards
+ * by FacetComponent) are executed as-is, and return the usual facet_counts.
+ *
+ * Requires the component to be registered, e.g.:
+ * <pre>
+ * &lt;searchComponent name="xfacetBrowse" class="org.apache.solr.handler.component.FacetBrowseComponent"/&gt;
+ * &lt;requestHandler name="/xbrowse" class="org.apache.solr.handler.component.FacetBrowseHandler"/&gt;
+ * </pre>
+ *
+ * @author magibney
+ */
+public class FacetBrowseHandler extends SearchHandler {
+
+  public static final String FIELD = "field";
+  public static final String TARGET = "target";
+  public static final String OFFSET = "offset";
+  public static final String LIMIT = "limit";
+  public static final String EXTEND = "extend";
+  public static final String TARGET_DOC = "targetDoc";
+
+  public static final String RESPONSE_KEY = "browse";
+
+  @Override
+  protected List<String> getDefaultComponents() {
+    return Arrays.asList(FacetBrowseComponent.COMPONENT_NAME, FacetComponent.COMPONENT_NAME,
+        DebugComponent.COMPONENT_NAME);
+  }
+
+  @Override
+  public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
+    SolrParams params = req.getParams();
+    boolean isShard = params.getBool(ShardParams.IS_SHARD, false);
+    String field = params.get(FIELD);
+    if (!isShard) {
+      if (field == null) {
+        throw new SolrException(ErrorCode.BAD_REQUEST, "missing required parameter: " + FIELD);
+      }
+      req.setParams(facetParams(params, field, (String) req.getContext().get("path")));
+    }
+    super.handleRequestBody(req, rsp);
+    if (!isShard) {
+      NamedList<Object> values = rsp.getValues();
+      NamedList<Object> facetCounts = (NamedList<Object>) values.get("facet_counts");
+      if (facetCounts != null) {
+        values.remove("facet_counts");
+        NamedList<Object> fields = (NamedList<Object>) facetCounts.get(FacetComponent.FACET_FIELD_KEY);
+        rsp.add(RESPONSE_KEY, fields == null ? null : fields.get(field));
+      }
+    }
+  }
+
+  /**
+   * @return the field facet params equivalent to the specified browse params
+   */
+  static ModifiableSolrParams facetParams(SolrParams params, String field, String path) {
+    ModifiableSolrParams ret = new ModifiableSolrParams(params);
+    String fieldPrefix = "f." + field + ".";
+    ret.set(FacetParams.FACET, true);
+    ret.set(FacetParams.FACET_FIELD, field);
+    copy(params, TARGET, ret, fieldPrefix + FacetParams.FACET_TARGET);
+    copy(params, OFFSET, ret, fieldPrefix + FacetParams.FACET_OFFSET);
+    copy(params, LIMIT, ret, fieldPrefix + FacetParams.FACET_LIMIT);
+    copy(params, EXTEND, ret, fieldPrefix + FacetParams.FACET_EXTEND);
+    copy(params, TARGET_DOC, ret, fieldPrefix + FacetParams.FACET_TARGET_DOC);
+    if (params.getFieldParam(field, FacetParams.FACET_SORT) == null) {
+      // windows are in index order
+      ret.set(fieldPrefix + FacetParams.FACET_SORT, FacetParams.FACET_SORT_INDEX);
+    }
+    ret.set(CommonParams.ROWS, 0);
+    if (path != null && params.get(ShardParams.SHARDS_QT) == null) {
+      // route shard requests to the same (lightweight) handler
+      ret.set(ShardParams.SHARDS_QT, path);
+    }
+    return ret;
+  }
+
+  private static void copy(SolrParams params, String from, ModifiableSolrParams ret, String to) {
+    String[] vals = params.getParams(from);
+    if (vals != null) {
+      ret.set(to, vals);
+    }
+  }
+
+  @Override
+  public String getDescription() {
+    return "Facet browse (facet.target window) request handler";
+  }
+
+}
@@ -38,13 +38,16 @@ import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefBuilder;
 import org.apache.lucene.util.FixedBitSet;
 import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrException.ErrorCode;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.HighlightParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.ShardParams;
 import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.params.StatsParams;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.common.util.SimpleOrderedMap;
 import org.apache.solr.common.util.StrUtils;
@@ -52,10 +55,13 @@ import org.apache.solr.request.BidirectionalFacetResponseBuilder;
 import org.apache.solr.request.BidirectionalFacetResponseBuilder.DistribDocEnv;
 import org.apache.solr.request.BidirectionalFacetResponseBuilder.DistribEnv;
 import org.apache.solr.request.BidirectionalFacetResponseBuilder.Env;
+import org.apache.solr.request.BidirectionalFacetResponseBuilder.MergedDistribEnv;
 import org.apache.solr.request.FacetPayload;
+import org.apache.solr.request.IndexedTermKeys;
 import org.apache.solr.request.MultiSerializable;
 import org.apache.solr.request.SimpleFacets;
 import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.WindowPrefetcher;
 import org.apache.solr.schema.FieldType;
 import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.schema.SchemaField;
@@ -87,6 +93,9 @@ public class FacetComponent extends SearchComponent {
   private static final String PIVOT_KEY = "facet_pivot";
   private static final String PIVOT_REFINE_PREFIX = "{!"+PivotFacet.REFINE_PARAM+"=";
 
+  // learned over-request for facet.target windows subject to coverage refinement
+  private final TargetOverRequest targetOverRequest = new TargetOverRequest();
+
   public MultiSerializable extendedFieldType(String name, ResponseBuilder rb) {
     IndexSchema sch;
     SchemaField sf;
@@ -472,9 +481,183 @@ public class FacetComponent extends SearchComponent {
 
     } // for shardNum
 
+    requestCoverageRefinements(rb);
+    requestDeferredDocFields(rb);
+
     return ResponseBuilder.STAGE_DONE;
   }
 
+  /**
+   * For facet.target windows subject to mincount &gt; 1 (index sort), shard windows are sparse, and
+   * may not span the window merged from all shards. Here the merged window is provisionally built,
+   * and each shard whose window (not exhausted in the relevant direction) falls short of either
+   * end of the merged window is asked for an extended window. The largest shortfall observed in
+   * each direction is recorded, to adapt over-request for subsequent requests on the field.
+   */
+  private void requestCoverageRefinements(ResponseBuilder rb) {
+    FacetInfo fi = rb._facetInfo;
+    for (DistribFieldFacet dff : fi.facets.values()) {
+      if (dff.coverage == null) continue;
+      BytesRef[] merged = dff.provisionalWindowKeys();
+      int maxExtraBelow = 0;
+      int maxExtraAbove = 0;
+      for (int shardNum = 0; shardNum < dff.coverage.length; shardNum++) {
+        ShardCoverage c = dff.coverage[shardNum];
+        if (c == null || merged.length == 0) continue; // shard request failed, or nothing to cover
+        int shortfallBelow = c.shortfallBelow(merged);
+        int shortfallAbove = c.shortfallAbove(merged);
+        maxExtraBelow = Math.max(maxExtraBelow, c.neededBelow(merged, dff.target.indexed) - dff.offset);
+        maxExtraAbove = Math.max(maxExtraAbove, c.neededAbove(merged, dff.target.indexed) - (dff.limit - dff.offset));
+        if (shortfallBelow == 0 && shortfallAbove == 0) continue;
+        ShardRequest sreq = newPrivateShardRequest(rb, shardNum);
+        sreq.params.set(CommonParams.ROWS, "0");
+        sreq.params.set(FacetParams.FACET, "true");
+        removeMainFacetTypeParams(sreq);
+        sreq.params.add(FacetParams.FACET_FIELD, dff.facetStr);
+        String paramStart = "f." + dff.field + '.';
+        sreq.params.set(paramStart + FacetParams.FACET_OFFSET, dff.shardOffset + shortfallBelow);
+        sreq.params.set(paramStart + FacetParams.FACET_LIMIT, dff.initialLimit + shortfallBelow + shortfallAbove);
+        sreq.params.set(paramStart + FacetParams.FACET_MINCOUNT, dff.initialMincount);
+        if (dff.ftype instanceof MultiSerializable) {
+          sreq.params.set(paramStart + FacetParams.FACET_TARGET_INDEXED, true);
+        }
+        if (dff.extend && dff.fPayload != null && dff.ftype instanceof MultiSerializable) {
+          sreq.params.set(paramStart + FacetParams.FACET_EXTEND_COMPACT, true);
+        }
+        fi.coverageRequests.add(sreq);
+        rb.addRequest(this, sreq);
+      }
+      targetOverRequest.record(dff.field, dff.limit, maxExtraBelow, maxExtraAbove);
+    }
+  }
+
+  private void refineCoverage(ResponseBuilder rb, ShardRequest sreq) {
+    FacetInfo fi = rb._facetInfo;
+    for (ShardResponse srsp : sreq.responses) {
+      int shardNum = rb.getShardNum(srsp.getShard());
+      NamedList facet_fields;
+      try {
+        NamedList facet_counts = (NamedList) srsp.getSolrResponse().getResponse().get("facet_counts");
+        facet_fields = (NamedList) facet_counts.get("facet_fields");
+      } catch (Exception ex) {
+        if (rb.req.getParams().getBool(ShardParams.SHARDS_TOLERANT, false)) {
+          continue; // the window merged from initial shard responses stands
+        }
+        throw new SolrException(ErrorCode.SERVER_ERROR,
+            "Unable to read facet coverage refinement for shard: " + srsp.getShard(), ex);
+      }
+      if (facet_fields == null) continue;
+      for (DistribFieldFacet dff : fi.facets.values()) {
+        if (dff.coverage == null) continue;
+        NamedList field_terms = (NamedList) facet_fields.get(dff.getKey());
+        NamedList window = field_terms == null ? null : (NamedList) field_terms.get("terms");
+        if (window == null) continue;
+        BytesRef[] indexedKeys = IndexedTermKeys.decode(field_terms.get(IndexedTermKeys.RESPONSE_KEY), window.size());
+        dff.addUncounted(shardNum, window, indexedKeys);
+      }
+    }
+  }
+
+  /**
+   * Second phase of distributed document-centric (facet.targetDoc) requests: shards initially
+   * return only the uniqueKey of each doc in their candidate windows. Here the final windows are
+   * settled, and stored fields are requested (from the owning shard) for only those docs that
+   * survive in the final windows.
+   */
+  private void requestDeferredDocFields(ResponseBuilder rb) {
+    FacetInfo fi = rb._facetInfo;
+    String idField = rb.req.getSchema().getUniqueKeyField().getName();
+    Map<Integer, Set<String>> shardIds = new HashMap<>();
+    for (DistribFieldFacet dff : fi.facets.values()) {
+      if (dff.docShards == null) continue;
+      dff.settleDocWindow();
+      NamedList<Object> termVals = dff.docWindowTerms;
+      for (int i = 0; i < termVals.size(); i++) {
+        NamedList<Object> termEntry = (NamedList<Object>) termVals.getVal(i);
+        NamedList<SolrDocument> docs = (NamedList<SolrDocument>) termEntry.getVal(termEntry.size() - 1);
+        for (int j = 0; j < docs.size(); j++) {
+          String docId = docs.getName(j);
+          Integer shardNum = dff.docShards.get(docId);
+          if (docs.getVal(j) != null || shardNum == null) continue;
+          SolrDocument placeholder = new SolrDocument();
+          placeholder.setField(idField, docId);
+          docs.setVal(j, placeholder);
+          List<SolrDocument> placeholders = fi.deferredDocs.get(docId);
+          if (placeholders == null) {
+            placeholders = new ArrayList<>(1);
+            fi.deferredDocs.put(docId, placeholders);
+          }
+          placeholders.add(placeholder);
+          Set<String> ids = shardIds.get(shardNum);
+          if (ids == null) {
+            ids = new LinkedHashSet<>();
+            shardIds.put(shardNum, ids);
+          }
+          ids.add(docId);
+        }
+      }
+    }
+    for (Entry<Integer, Set<String>> e : shardIds.entrySet()) {
+      ShardRequest sreq = newPrivateShardRequest(rb, e.getKey());
+      sreq.params.set(FacetParams.FACET, "false");
+      sreq.params.remove(CommonParams.ROWS);
+      sreq.params.set(ShardParams.IDS, StrUtils.join(e.getValue(), ','));
+      if (!rb.rsp.getReturnFields().wantsAllFields()) {
+        // docs are matched to their placeholders by uniqueKey
+        sreq.params.add(CommonParams.FL, idField);
+      }
+      fi.docFieldRequests.add(sreq);
+      rb.addRequest(this, sreq);
+    }
+  }
+
+  /**
+   * @return a request (to the specified shard) private to this component, and thus not modified by
+   * other components; other components' features that would otherwise be disabled for such a
+   * request (by their modifyRequest methods) are disabled here.
+   */
+  private static ShardRequest newPrivateShardRequest(ResponseBuilder rb, int shardNum) {
+    ShardRequest sreq = new ShardRequest();
+    sreq.purpose = ShardRequest.PURPOSE_PRIVATE;
+    sreq.shards = new String[] {rb.shards[shardNum]};
+    sreq.params = new ModifiableSolrParams(rb.req.getParams());
+    sreq.params.remove(CommonParams.START);
+    sreq.params.set(HighlightParams.HIGHLIGHT, "false");
+    sreq.params.set(StatsParams.STATS, "false");
+    sreq.params.remove(CommonParams.DEBUG);
+    sreq.params.remove(CommonParams.DEBUG_QUERY);
+    return sreq;
+  }
+
+  private void populateDeferredDocs(ResponseBuilder rb, ShardRequest sreq) {
+    FacetInfo fi = rb._facetInfo;
+    String idField = rb.req.getSchema().getUniqueKeyField().getName();
+    for (ShardResponse srsp : sreq.responses) {
+      SolrDocumentList docs;
+      try {
+        docs = (SolrDocumentList) srsp.getSolrResponse().getResponse().get("response");
+      } catch (Exception ex) {
+        if (rb.req.getParams().getBool(ShardParams.SHARDS_TOLERANT, false)) {
+          continue; // placeholders retain only the uniqueKey
+        }
+        throw new SolrException(ErrorCode.SERVER_ERROR,
+            "Unable to read facet docs for shard: " + srsp.getShard(), ex);
+      }
+      if (docs == null) continue;
+      for (SolrDocument doc : docs) {
+        Object id = doc.getFieldValue(idField);
+        List<SolrDocument> placeholders = id == null ? null : fi.deferredDocs.get(id.toString());
+        if (placeholders == null) continue;
+        for (SolrDocument placeholder : placeholders) {
+          placeholder.clear();
+          for (Entry<String, Object> field : doc) {
+            placeholder.setField(field.getKey(), field.getValue());
+          }
+        }
+      }
+    }
+  }
+
   public static String[] FACET_TYPE_PARAMS = {
       FacetParams.FACET_FIELD, FacetParams.FACET_PIVOT, FacetParams.FACET_QUERY, FacetParams.FACET_DATE,
       FacetParams.FACET_RANGE, FacetParams.FACET_INTERVAL, FacetParams.FACET_HEATMAP
@@ -564,9 +747,7 @@ public class FacetComponent extends SearchComponent {
       if (target == null) {
         sreq.params.remove(FacetParams.FACET_OFFSET);
       }
-      
-//    } else if ((sreq.purpose & (ShardRequest.PURPOSE_GET_FIELDS)) != 0) {
-//      // TODO get fields for xfacet docs as well
+
     } else {
       // turn off faceting on other requests
       sreq.params.set(FacetParams.FACET, "false");
@@ -596,6 +777,22 @@ public class FacetComponent extends SearchComponent {
         dff.initialLimit = dff.limit <= 0 ? dff.limit : dff.offset + dff.limit;
       } else {
         dff.initialLimit = dff.limit;
+        if (dff.targetDoc == null && dff.ftype instanceof MultiSerializable) {
+          sreq.params.set(paramStart + FacetParams.FACET_TARGET_INDEXED, true);
+        }
+      }
+      if (dff.docShards != null) {
+        sreq.params.set(paramStart + FacetParams.FACET_TARGET_DOC_DEFER, true);
+      }
+      if (dff.coverage != null) {
+        int extraBelow = targetOverRequest.extraBelow(dff.field, dff.limit);
+        dff.shardOffset = dff.offset + extraBelow;
+        dff.initialLimit = dff.limit + extraBelow + targetOverRequest.extraAbove(dff.field, dff.limit);
+        sreq.params.set(paramStart + FacetParams.FACET_OFFSET, dff.shardOffset);
+      }
+      if (dff.extend && dff.fPayload != null && dff.targetDoc == null && dff.ftype instanceof MultiSerializable) {
+        // payloads are expanded (via updateExternalRepresentation) only for the final window
+        sreq.params.set(paramStart + FacetParams.FACET_EXTEND_COMPACT, true);
       }
       
       if (dff.sort.equals(FacetParams.FACET_SORT_COUNT)) {
@@ -738,6 +935,10 @@ public class FacetComponent extends SearchComponent {
     
     if ((sreq.purpose & ShardRequest.PURPOSE_GET_FACETS) != 0) {
       countFacets(rb, sreq);
+    } else if (rb._facetInfo != null && rb._facetInfo.docFieldRequests.contains(sreq)) {
+      populateDeferredDocs(rb, sreq);
+    } else if (rb._facetInfo != null && rb._facetInfo.coverageRequests.contains(sreq)) {
+      refineCoverage(rb, sreq);
     } else {
       // at present PURPOSE_REFINE_FACETS and PURPOSE_REFINE_PIVOT_FACETS
       // don't co-exist in individual requests, but don't assume that
@@ -785,10 +986,18 @@ public class FacetComponent extends SearchComponent {
         for (DistribFieldFacet dff : fi.facets.values()) {
           String fieldName = dff.getKey();
           NamedList field_terms = (NamedList)facet_fields.get(fieldName);
+          BytesRef[] indexedKeys = null;
           if (dff.target != null) {
-            field_terms = (NamedList)field_terms.get("terms");
+            NamedList window = (NamedList)field_terms.get("terms");
+            if (window != null) {
+              indexedKeys = IndexedTermKeys.decode(field_terms.get(IndexedTermKeys.RESPONSE_KEY), window.size());
+            }
+            field_terms = window;
+          }
+          dff.add(shardNum, field_terms, dff.initialLimit, indexedKeys);
+          if (dff.coverage != null) {
+            dff.recordCoverage(shardNum, field_terms);
           }
-          dff.add(shardNum, field_terms, dff.initialLimit);
         }
       }
 
@@ -1028,7 +1237,7 @@ public class FacetComponent extends SearchComponent {
     FacetInfo fi = rb._facetInfo;
 
     for (ShardResponse srsp : sreq.responses) {
-      // int shardNum = rb.getShardNum(srsp.shard);
+      int shardNum = rb.getShardNum(srsp.getShard());
       NamedList facet_counts = (NamedList) srsp.getSolrResponse().getResponse().get("facet_counts");
       NamedList facet_fields = (NamedList) facet_counts.get("facet_fields");
       
@@ -1056,6 +1265,14 @@ public class FacetComponent extends SearchComponent {
                       + shardCounts);
             continue;
           }
+          if (dff.coverage != null) {
+            // the term may also be returned by a coverage refinement request for the shard
+            FixedBitSet fbs = dff.counted[shardNum];
+            if (fbs == null) continue;
+            if (sfc.termNum < fbs.length() && fbs.get(sfc.termNum)) continue;
+            fbs = dff.counted[shardNum] = FixedBitSet.ensureCapacity(fbs, sfc.termNum + 1);
+            fbs.set(sfc.termNum);
+          }
           sfc.count += count;
         }
       }
@@ -1144,8 +1361,11 @@ public class FacetComponent extends SearchComponent {
     facet_counts.add("facet_fields", facet_fields);
     
     for (DistribFieldFacet dff : fi.facets.values()) {
+      if (dff.docShards != null && dff.docWindow == null) {
+        dff.settleDocWindow();
+      }
       // order is important for facet values, so use NamedList
-      NamedList<Object> fieldCounts = new NamedList<>(); 
+      NamedList<Object> fieldCounts = dff.docWindow != null ? dff.docWindow : new NamedList<>();
       facet_fields.add(dff.getKey(), fieldCounts);
       
       ShardFacetCount[] counts;
@@ -1155,6 +1375,10 @@ public class FacetComponent extends SearchComponent {
         if (counts == null || dff.needRefinements) {
           counts = dff.getCountSorted();
         }
+      } else if (dff.docWindow != null) {
+        counts = null; // settled in STAGE_GET_FIELDS, for deferred retrieval of stored fields
+      } else if (dff.shardWindows != null) {
+        counts = null; // merged lazily around the target
       } else if (dff.sort.equals(FacetParams.FACET_SORT_INDEX)) {
         counts = dff.getLexSorted();
       } else { // TODO: log error or throw exception?
@@ -1191,16 +1415,22 @@ public class FacetComponent extends SearchComponent {
           Object val = counts[i].val != null ? counts[i].val : num(count);
           fieldCounts.add(counts[i].name, val);
         }
+      } else if (dff.docWindow != null) {
+        termVals = dff.docWindowTerms;
       } else {
         // index order with target/offset
-        int targetIdx = Arrays.binarySearch(counts, dff.target, (o1, o2) -> o1.indexed.compareTo(o2.indexed));
         Env env;
-        if (dff.targetDoc == null) {
-          env = new DistribEnv(dff.offset, dff.limit, targetIdx,
-            dff.minCount, dff.field, dff.ftype, fieldCounts, counts);
+        if (dff.shardWindows != null) {
+          env = new MergedDistribEnv(dff.offset, dff.limit, dff.minCount, dff.field, dff.ftype, fieldCounts, dff.mergeWindows());
         } else {
-          env = new DistribDocEnv(dff.offset, dff.limit, targetIdx,
-            dff.minCount, dff.field, dff.ftype, fieldCounts, counts);
+          int targetIdx = Arrays.binarySearch(counts, dff.target, (o1, o2) -> o1.indexed.compareTo(o2.indexed));
+          if (dff.targetDoc == null) {
+            env = new DistribEnv(dff.offset, dff.limit, targetIdx,
+              dff.minCount, dff.field, dff.ftype, fieldCounts, counts);
+          } else {
+            env = new DistribDocEnv(dff.offset, dff.limit, targetIdx,
+              dff.minCount, dff.field, dff.ftype, fieldCounts, counts);
+          }
         }
         try {
           termVals = BidirectionalFacetResponseBuilder.build(env, dff.targetDoc != null);
@@ -1296,6 +1526,15 @@ public class FacetComponent extends SearchComponent {
     return null;
   }
 
+  @Override
+  public NamedList getStatistics() {
+    NamedList<Object> ret = new SimpleOrderedMap<>();
+    for (Entry<String, Object> e : WindowPrefetcher.getStatistics()) {
+      ret.add("prefetch." + e.getKey(), e.getValue());
+    }
+    return ret;
+  }
+
   /**
    * This class is used exclusively for merging results from each shard
    * in a distributed facet request. It plays no role in the computation
@@ -1327,6 +1566,16 @@ public class FacetComponent extends SearchComponent {
     public SimpleOrderedMap<PivotFacet> pivotFacets
       = new SimpleOrderedMap<>();
     public LinkedHashMap<String,SpatialHeatmapFacets.HeatmapFacet> heatmapFacets;
+    /**
+     * placeholders (by uniqueKey) for docs in document-centric windows whose stored fields are
+     * retrieved by {@link #docFieldRequests}
+     */
+    public final Map<String, List<SolrDocument>> deferredDocs = new HashMap<>();
+    public final List<ShardRequest> docFieldRequests = new ArrayList<>();
+    /**
+     * requests extending shard windows that fell short of the merged facet.target window
+     */
+    public final List<ShardRequest> coverageRequests = new ArrayList<>();
 
     void parse(SolrParams params, ResponseBuilder rb) {
       queryFacets = new LinkedHashMap<>();
@@ -1489,12 +1738,22 @@ public class FacetComponent extends SearchComponent {
       this.prefix = params.getFieldParam(field, FacetParams.FACET_PREFIX);
       this.targetDoc = params.getFieldParam(field, FacetParams.FACET_TARGET_DOC);
       this.fl = rb.rsp.getReturnFields().getRequestedFieldNames();
-      String rawTarget = params.getFieldParam(field, FacetParams.FACET_TARGET);
+      String[] rawTargets = params.getFieldParams(field, FacetParams.FACET_TARGET);
+      if (rawTargets != null && rawTargets.length > 1) {
+        // shards would return a window per target, keyed by target
+        throw new SolrException(ErrorCode.BAD_REQUEST, "multiple " + FacetParams.FACET_TARGET
+            + " values are not supported for distributed requests (field " + field + ")");
+      }
+      String rawTarget = rawTargets == null ? null : rawTargets[0];
       if (rawTarget != null) {
         this.target = new ShardFacetCount();
         boolean targetStrict = params.getFieldBool(field, FacetParams.FACET_TARGET_STRICT, this.targetDoc != null && !this.targetDoc.isEmpty());
         boolean appendDoc = targetStrict && this.targetDoc != null;
-        if (ftype instanceof MultiSerializable) {
+        if (params.getFieldBool(field, FacetParams.FACET_TARGET_SECTION, false)) {
+          // section keys are already normalized
+          this.target.indexed = new BytesRef(rawTarget);
+          appendDoc = false;
+        } else if (ftype instanceof MultiSerializable) {
           try {
             this.target.indexed = ((MultiSerializable)ftype).normalizeQueryTarget(rawTarget, targetStrict, field, appendDoc);
           } catch (IOException ex) {
@@ -1543,6 +1802,25 @@ public class FacetComponent extends SearchComponent {
     public boolean needRefinements;
     public ShardFacetCount[] countSorted;
     public final FacetPayload fPayload;
+    /**
+     * for facet.target windows not subject to refinement, the index-ordered window returned by
+     * each shard, to be merged lazily (see {@link ShardWindowMerge}); otherwise null
+     */
+    public List<ShardFacetCount[]> shardWindows;
+    /**
+     * for document-centric windows not subject to refinement, the shard that returned each doc
+     * (by uniqueKey), for deferred retrieval of stored fields; otherwise null
+     */
+    public Map<String, Integer> docShards;
+    // the document-centric window (and its terms), once settled
+    NamedList<Object> docWindow;
+    NamedList<Object> docWindowTerms;
+    /**
+     * for facet.target windows subject to mincount &gt; 1 (index sort), the extent of each shard's
+     * window, for coverage refinement; otherwise null
+     */
+    ShardCoverage[] coverage;
+    int shardOffset; // facet.offset sent to each shard (for coverage refinement)
     
     DistribFieldFacet(ResponseBuilder rb, String facetStr) {
       super(rb, facetStr);
@@ -1551,6 +1829,103 @@ public class FacetComponent extends SearchComponent {
       counted = new FixedBitSet[rb.shards.length];
       fPayload = ftype instanceof FacetPayload ? (FacetPayload) ftype : null;
       termsMetadata = targetDoc == null ? null : new HashMap<>(128);
+      if (target != null && targetDoc == null && FacetParams.FACET_SORT_INDEX.equals(sort) && minCount <= 1) {
+        shardWindows = new ArrayList<>(rb.shards.length);
+      } else if (target != null && targetDoc != null && FacetParams.FACET_SORT_INDEX.equals(sort) && minCount <= 1) {
+        docShards = new HashMap<>(128);
+      }
+      if (target != null && targetDoc == null && FacetParams.FACET_SORT_INDEX.equals(sort) && minCount > 1
+          && offset >= 0 && limit > 0 && ftype != null) {
+        coverage = new ShardCoverage[rb.shards.length];
+      }
+    }
+
+    /**
+     * records the extent of the specified shard window, and whether the shard has no more terms
+     * (subject to initialMincount) below or above it
+     */
+    void recordCoverage(int shardNum, NamedList shardCounts) {
+      // shardCounts could be null if there was an exception
+      int sz = shardCounts == null ? 0 : shardCounts.size();
+      List<BytesRef> keys = new ArrayList<>(sz);
+      for (int i = 0; i < sz; i++) {
+        String name = shardCounts.getName(i);
+        ShardFacetCount sfc = name == null ? null : counts.get(name);
+        if (sfc != null) {
+          keys.add(sfc.indexed);
+        }
+      }
+      BytesRef[] arr = keys.toArray(new BytesRef[keys.size()]);
+      Arrays.sort(arr);
+      coverage[shardNum] = ShardCoverage.of(arr, target.indexed, shardOffset, initialLimit);
+    }
+
+    /**
+     * @return the (index-ordered) keys of the window merged from shard responses so far
+     */
+    BytesRef[] provisionalWindowKeys() {
+      ShardFacetCount[] counts = getLexSorted();
+      int targetIdx = Arrays.binarySearch(counts, target, (o1, o2) -> o1.indexed.compareTo(o2.indexed));
+      NamedList<Object> terms;
+      try {
+        terms = BidirectionalFacetResponseBuilder.build(new DistribEnv(offset, limit, targetIdx,
+            minCount, field, ftype, new NamedList<>(), counts), false);
+      } catch (IOException ex) {
+        throw new RuntimeException(ex);
+      }
+      BytesRef[] ret = new BytesRef[terms.size()];
+      for (int i = 0; i < ret.length; i++) {
+        ret[i] = this.counts.get(terms.getName(i)).indexed;
+      }
+      return ret;
+    }
+
+    /**
+     * adds those terms in the specified (extended) shard window that were not already counted
+     * for the shard
+     */
+    void addUncounted(int shardNum, NamedList shardCounts, BytesRef[] indexedKeys) {
+      FixedBitSet alreadyCounted = counted[shardNum];
+      NamedList<Object> uncounted = new NamedList<>();
+      List<BytesRef> uncountedKeys = indexedKeys == null ? null : new ArrayList<>();
+      for (int i = 0; i < shardCounts.size(); i++) {
+        String name = shardCounts.getName(i);
+        if (name == null) continue; // missing count was returned with the initial window
+        ShardFacetCount sfc = counts.get(name);
+        if (sfc != null && alreadyCounted != null && sfc.termNum < alreadyCounted.length()
+            && alreadyCounted.get(sfc.termNum)) continue;
+        uncounted.add(name, shardCounts.getVal(i));
+        if (uncountedKeys != null) {
+          uncountedKeys.add(indexedKeys[i]);
+        }
+      }
+      if (uncounted.size() == 0) {
+        return;
+      }
+      long maxPossible = missingMaxPossible;
+      long max = missingMax[shardNum];
+      add(shardNum, uncounted, -1, uncountedKeys == null ? null : uncountedKeys.toArray(new BytesRef[uncountedKeys.size()]));
+      missingMaxPossible = maxPossible;
+      missingMax[shardNum] = max;
+      if (alreadyCounted != null) {
+        counted[shardNum] = FixedBitSet.ensureCapacity(counted[shardNum], alreadyCounted.length());
+        counted[shardNum].or(alreadyCounted);
+      }
+    }
+
+    /**
+     * settles the document-centric window (before retrieval of deferred stored fields)
+     */
+    void settleDocWindow() {
+      ShardFacetCount[] counts = getLexSorted();
+      int targetIdx = Arrays.binarySearch(counts, target, (o1, o2) -> o1.indexed.compareTo(o2.indexed));
+      docWindow = new NamedList<>();
+      try {
+        docWindowTerms = BidirectionalFacetResponseBuilder.build(new DistribDocEnv(offset, limit, targetIdx,
+            minCount, field, ftype, docWindow, counts), true);
+      } catch (IOException ex) {
+        throw new RuntimeException(ex);
+      }
     }
     
     protected void fillParams(ResponseBuilder rb, SolrParams params, String field) {
@@ -1566,7 +1941,7 @@ public class FacetComponent extends SearchComponent {
     
     private static class TermMetadataEntry {
       private long count;
-      private final NamedList<Object> termMetadata;
+      private Object termMetadata; // merged value, possibly a FacetPayload accumulator
       private final List<ShardFacetCount> sfcs = new ArrayList<>(2);
 
       private TermMetadataEntry(long initCount, NamedList<Object> termMetadata, ShardFacetCount add) {
@@ -1585,6 +1960,18 @@ public class FacetComponent extends SearchComponent {
     }
 
     void add(int shardNum, NamedList shardCounts, int numRequested) {
+      add(shardNum, shardCounts, numRequested, null);
+    }
+
+    /**
+     * @param indexedKeys if non-null, the indexed form of each term in shardCounts (as returned
+     * by the shard; see {@link IndexedTermKeys})
+     */
+    void add(int shardNum, NamedList shardCounts, int numRequested, BytesRef[] indexedKeys) {
+      if (shardWindows != null) {
+        addWindow(shardCounts, indexedKeys);
+        return;
+      }
       // shardCounts could be null if there was an exception
       int sz = shardCounts == null ? 0 : shardCounts.size();
       int numReceived = sz;
@@ -1636,6 +2023,9 @@ public class FacetComponent extends SearchComponent {
           count = ((Number)shardCounts.getVal(i)).longValue();
         }
         do {
+          if (tdi != null && docShards != null) {
+            docShards.put(next.docId, shardNum);
+          }
           if (name == null) {
             missingCount += count;
             numReceived--;
@@ -1644,7 +2034,9 @@ public class FacetComponent extends SearchComponent {
             if (sfc == null) {
               sfc = new ShardFacetCount();
               sfc.name = name;
-              if (ftype == null) {
+              if (indexedKeys != null && tdi == null) {
+                sfc.indexed = indexedKeys[i];
+              } else if (ftype == null) {
                 sfc.indexed = null;
               } else if (ftype.isPointField()) {
                 sfc.indexed = ((PointField)ftype).toInternalByteRef(sfc.name);
@@ -1662,15 +2054,21 @@ public class FacetComponent extends SearchComponent {
               if (extend && fPayload != null) {
                 if (tdi == null) {
                   if (sfc.val != val) {
-                    fPayload.mergePayload(sfc.val, val, sfc.count, count);
+                    Object merged = fPayload.mergePayload(sfc.val, val, sfc.count, count);
+                    if (merged != null) {
+                      // compact payloads are merged into a new (decoded) value
+                      sfc.val = merged;
+                    }
                   }
                 } else {
                   if (termMetadataEntry == null) {
                     termMetadataEntry = new TermMetadataEntry(count, next.termMetadata, sfc);
                     termsMetadata.put(term, termMetadataEntry);
                   } else {
-                    fPayload.mergePayload(termMetadataEntry.termMetadata, next.termMetadata, termMetadataEntry.count, count);
-                    next.termMetadata = termMetadataEntry.termMetadata;
+                    Object merged = fPayload.mergePayload(termMetadataEntry.termMetadata, next.termMetadata, termMetadataEntry.count, count);
+                    if (merged != null) {
+                      termMetadataEntry.termMetadata = merged;
+                    }
                     termMetadataEntry.update(count, sfc);
                   }
                 }
@@ -1678,7 +2076,6 @@ public class FacetComponent extends SearchComponent {
               last = count;
             } else if (extend && fPayload != null && tdi != null) {
               termMetadataEntry.update(sfc);
-              next.termMetadata = termMetadataEntry.termMetadata;
             }
           }
         } while (tdi != null && tdi.hasNext()
@@ -1696,11 +2093,100 @@ public class FacetComponent extends SearchComponent {
       counted[shardNum] = terms;
     }
 
+    /**
+     * retains the (index-ordered) shard window as-is, deferring aggregation of terms across
+     * shards to {@link #mergeWindows()}
+     */
+    private void addWindow(NamedList shardCounts, BytesRef[] indexedKeys) {
+      // shardCounts could be null if there was an exception
+      int sz = shardCounts == null ? 0 : shardCounts.size();
+      List<ShardFacetCount> window = new ArrayList<>(sz);
+      boolean sorted = true;
+      for (int i = 0; i < sz; i++) {
+        String name = shardCounts.getName(i);
+        Object rawVal = shardCounts.getVal(i);
+        Object val;
+        long count;
+        if (fPayload == null || rawVal instanceof Number) {
+          val = null;
+          count = ((Number)rawVal).longValue();
+        } else {
+          val = rawVal;
+          count = fPayload.extractCount(val);
+        }
+        if (name == null) {
+          missingCount += count;
+          continue;
+        }
+        ShardFacetCount sfc = new ShardFacetCount();
+        sfc.name = name;
+        if (indexedKeys != null) {
+          sfc.indexed = indexedKeys[i];
+        } else if (ftype == null) {
+          sfc.indexed = null;
+        } else if (ftype.isPointField()) {
+          sfc.indexed = ((PointField)ftype).toInternalByteRef(sfc.name);
+        } else {
+          sfc.indexed = new BytesRef(ftype.toInternal(sfc.name));
+        }
+        sfc.count = count;
+        sfc.val = val;
+        if (sorted && !window.isEmpty() && window.get(window.size() - 1).indexed.compareTo(sfc.indexed) > 0) {
+          sorted = false;
+        }
+        window.add(sfc);
+      }
+      ShardFacetCount[] arr = window.toArray(new ShardFacetCount[window.size()]);
+      if (!sorted) {
+        // not expected for index-ordered windows; merging requires index order
+        Arrays.sort(arr, (o1, o2) -> o1.indexed.compareTo(o2.indexed));
+      }
+      shardWindows.add(arr);
+    }
+
+    /**
+     * @return a lazy merge of the shard windows around the target, aggregating counts (and
+     * payloads) for equal terms as for {@link #add(int, NamedList, int)}
+     */
+    ShardWindowMerge mergeWindows() {
+      return new ShardWindowMerge(shardWindows, target.indexed, new ShardWindowMerge.Accumulator() {
+        @Override
+        public ShardFacetCount newEntry(ShardFacetCount shardEntry) {
+          ShardFacetCount sfc = new ShardFacetCount();
+          sfc.name = shardEntry.name;
+          sfc.indexed = shardEntry.indexed;
+          sfc.val = shardEntry.val;
+          incCount(sfc, shardEntry.count);
+          return sfc;
+        }
+
+        @Override
+        public void accumulate(ShardFacetCount sfc, ShardFacetCount shardEntry) {
+          incCount(sfc, shardEntry.count);
+          if (extend && fPayload != null && sfc.val != shardEntry.val) {
+            Object merged = fPayload.mergePayload(sfc.val, shardEntry.val, sfc.count, shardEntry.count);
+            if (merged != null) {
+              sfc.val = merged;
+            }
+          }
+        }
+      });
+    }
+
     private void finish() {
       if (termsMetadata != null) {
         for (TermMetadataEntry tme : termsMetadata.values()) {
+          // merged metadata is converted to its external form once per term
+          Object external = fPayload.updateValueExternalRepresentation(tme.termMetadata);
+          if (external == null) {
+            external = tme.termMetadata;
+          }
+          NamedList<Object> termMetadata = external instanceof NamedList ? (NamedList<Object>) external : null;
           for (ShardFacetCount sfc : tme.sfcs) {
             sfc.count = tme.count;
+            if (termMetadata != null && sfc.val instanceof TermDocEntry) {
+              ((TermDocEntry) sfc.val).termMetadata = termMetadata;
+            }
           }
         }
       }
@@ -1822,6 +2308,98 @@ public class FacetComponent extends SearchComponent {
   }
 
   
+  /**
+   * The extent of a shard's facet.target window, for coverage refinement.
+   */
+  static final class ShardCoverage {
+    final BytesRef[] keys; // index-ordered
+    final boolean exhaustedBelow;
+    final boolean exhaustedAbove;
+
+    ShardCoverage(BytesRef[] keys, boolean exhaustedBelow, boolean exhaustedAbove) {
+      this.keys = keys;
+      this.exhaustedBelow = exhaustedBelow;
+      this.exhaustedAbove = exhaustedAbove;
+    }
+
+    /**
+     * @param keys the (sorted) keys of a shard window requested with the specified offset and limit
+     * @return the extent of the shard window; the shard has no more terms below (or above) the
+     * window if fewer entries were returned below (or above) the target than were requested
+     */
+    static ShardCoverage of(BytesRef[] keys, BytesRef target, int shardOffset, int shardLimit) {
+      int actualOffset = countBelow(keys, target);
+      return new ShardCoverage(keys, keys.length == 0 || actualOffset < shardOffset,
+          keys.length == 0 || keys.length - actualOffset < shardLimit - shardOffset);
+    }
+
+    /**
+     * @return the number of entries of the (non-empty) merged window below this shard window, or 0
+     * if the shard has no more terms below its window
+     */
+    int shortfallBelow(BytesRef[] merged) {
+      return exhaustedBelow ? 0 : countBelow(merged, keys[0]);
+    }
+
+    /**
+     * @return the number of entries of the (non-empty) merged window above this shard window, or 0
+     * if the shard has no more terms above its window
+     */
+    int shortfallAbove(BytesRef[] merged) {
+      return exhaustedAbove ? 0 : merged.length - countAtMost(merged, keys[keys.length - 1]);
+    }
+
+    /**
+     * @return the number of shard entries below the target that would have been needed to span the
+     * (non-empty) merged window
+     */
+    int neededBelow(BytesRef[] merged, BytesRef target) {
+      return countBelow(keys, target) - countBelow(keys, merged[0]) + shortfallBelow(merged);
+    }
+
+    /**
+     * @return the number of shard entries at or above the target that would have been needed to
+     * span the (non-empty) merged window
+     */
+    int neededAbove(BytesRef[] merged, BytesRef target) {
+      return countAtMost(keys, merged[merged.length - 1]) - countBelow(keys, target) + shortfallAbove(merged);
+    }
+
+    /**
+     * @return the number of (sorted) keys less than the specified key
+     */
+    static int countBelow(BytesRef[] keys, BytesRef key) {
+      int lo = 0;
+      int hi = keys.length;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (keys[mid].compareTo(key) < 0) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return lo;
+    }
+
+    /**
+     * @return the number of (sorted) keys less than or equal to the specified key
+     */
+    static int countAtMost(BytesRef[] keys, BytesRef key) {
+      int lo = 0;
+      int hi = keys.length;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (keys[mid].compareTo(key) <= 0) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return lo;
+    }
+  }
+
   private static final class DistribFacetExistsField extends DistribFieldFacet {
     private DistribFacetExistsField(ResponseBuilder rb, String facetStr) {
       super(rb, facetStr);
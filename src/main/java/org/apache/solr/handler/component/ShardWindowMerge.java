@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.handler.component.FacetComponent.ShardFacetCount;
+
+/**
+ * Lazy k-way merge of index-ordered shard windows around a facet.target. Each shard window is
+ * split at the target; merged entries (with equal terms from different shards aggregated) are
+ * produced on demand, separately in each direction, so that only as many entries are merged as
+ * are visited in building the final window.
+ *
+ * Merged entries are addressed relative to the target: index 0 is the first merged term greater
+ * than or equal to the target, and index -1 the greatest merged term less than the target.
+ *
+ * @author magibney
+ */
+public final class ShardWindowMerge {
+
+  /**
+   * Aggregates shard entries for equal terms.
+   */
+  public interface Accumulator {
+
+    /**
+     * @return a new merged entry for the term of the specified shard entry, accounting for that
+     * shard entry
+     */
+    ShardFacetCount newEntry(ShardFacetCount shardEntry);
+
+    /**
+     * accounts for the specified shard entry (for the same term) in the specified merged entry
+     */
+    void accumulate(ShardFacetCount entry, ShardFacetCount shardEntry);
+
+  }
+
+  private static final Comparator<ShardFacetCount> INDEX_ORDER = (o1, o2) -> o1.indexed.compareTo(o2.indexed);
+
+  private final Direction ascending;
+  private final Direction descending;
+
+  /**
+   * @param windows per-shard entries, each in ascending index order
+   */
+  public ShardWindowMerge(List<ShardFacetCount[]> windows, BytesRef target, Accumulator accumulator) {
+    List<Cursor> above = new ArrayList<>(windows.size());
+    List<Cursor> below = new ArrayList<>(windows.size());
+    for (ShardFacetCount[] window : windows) {
+      int split = ceiling(window, target);
+      if (split < window.length) {
+        above.add(new Cursor(window, split, 1));
+      }
+      if (split > 0) {
+        below.add(new Cursor(window, split - 1, -1));
+      }
+    }
+    this.ascending = new Direction(above, INDEX_ORDER, accumulator);
+    this.descending = new Direction(below, INDEX_ORDER.reversed(), accumulator);
+  }
+
+  /**
+   * @return the index of the first entry in the specified (sorted) window whose term is greater
+   * than or equal to the target
+   */
+  private static int ceiling(ShardFacetCount[] window, BytesRef target) {
+    int lo = 0;
+    int hi = window.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (window[mid].indexed.compareTo(target) < 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * @return the merged entry at the specified index (relative to the target), or null if there
+   * are no more merged entries in the direction of the specified index
+   */
+  public ShardFacetCount get(int index) {
+    return index >= 0 ? ascending.get(index) : descending.get(~index);
+  }
+
+  /**
+   * @return the number of merged entries produced so far, in both directions
+   */
+  public int mergedCount() {
+    return ascending.merged.size() + descending.merged.size();
+  }
+
+  private static final class Cursor {
+
+    private final ShardFacetCount[] window;
+    private final int step;
+    private int pos;
+
+    private Cursor(ShardFacetCount[] window, int pos, int step) {
+      this.window = window;
+      this.pos = pos;
+      this.step = step;
+    }
+
+    private ShardFacetCount current() {
+      return window[pos];
+    }
+
+    /**
+     * @return true if the cursor has a current entry after advancing
+     */
+    private boolean advance() {
+      pos += step;
+      return pos >= 0 && pos < window.length;
+    }
+
+  }
+
+  private static final class Direction {
+
+    private final PriorityQueue<Cursor> queue;
+    private final Comparator<ShardFacetCount> order;
+    private final Accumulator accumulator;
+    private final List<ShardFacetCount> merged = new ArrayList<>();
+
+    private Direction(List<Cursor> cursors, Comparator<ShardFacetCount> order, Accumulator accumulator) {
+      this.queue = new PriorityQueue<>(Math.max(1, cursors.size()), (c1, c2) -> order.compare(c1.current(), c2.current()));
+      this.queue.addAll(cursors);
+      this.order = order;
+      this.accumulator = accumulator;
+    }
+
+    private ShardFacetCount get(int i) {
+      while (merged.size() <= i && !queue.isEmpty()) {
+        Cursor top = queue.poll();
+        ShardFacetCount entry = accumulator.newEntry(top.current());
+        if (top.advance()) {
+          queue.add(top);
+        }
+        while (!queue.isEmpty() && order.compare(queue.peek().current(), entry) == 0) {
+          top = queue.poll();
+          accumulator.accumulate(entry, top.current());
+          if (top.advance()) {
+            queue.add(top);
+          }
+        }
+        merged.add(entry);
+      }
+      return i < merged.size() ? merged.get(i) : null;
+    }
+
+  }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.component;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-field over-request factors for distributed facet.target windows subject to mincount > 1,
+ * learned from recent requests. For each field, tracks an exponentially weighted moving average
+ * of the largest shortfall (relative to facet.limit) by which a shard window failed to cover the
+ * merged window, separately below and above the target. Shard windows are over-requested by
+ * these factors, so that most requests are satisfied without coverage refinement; factors decay
+ * toward zero when shard windows consistently cover the merged window.
+ *
+ * @author magibney
+ */
+final class TargetOverRequest {
+
+  /**
+   * weight of each new observation
+   */
+  private static final double ALPHA = 0.2;
+
+  /**
+   * upper bound on learned factors, as a multiple of facet.limit
+   */
+  private static final double MAX_FACTOR = 4;
+
+  private final ConcurrentHashMap<String, Factors> factors = new ConcurrentHashMap<>();
+
+  private static final class Factors {
+    private double below;
+    private double above;
+
+    private synchronized void update(double observedBelow, double observedAbove) {
+      below += ALPHA * (Math.min(observedBelow, MAX_FACTOR) - below);
+      above += ALPHA * (Math.min(observedAbove, MAX_FACTOR) - above);
+    }
+
+    private synchronized int extraBelow(int limit) {
+      return extra(below, limit);
+    }
+
+    private synchronized int extraAbove(int limit) {
+      return extra(above, limit);
+    }
+  }
+
+  /**
+   * factors (which decay toward, but never reach, zero) worth less than this fraction of an entry
+   * are treated as zero, so that over-request stops once shard windows consistently cover the
+   * merged window
+   */
+  private static final double MIN_EXTRA = 0.5;
+
+  private static int extra(double factor, int limit) {
+    double extra = factor * limit;
+    return extra < MIN_EXTRA ? 0 : (int) Math.ceil(extra);
+  }
+
+  /**
+   * @return the number of entries to over-request below the target, for the specified field
+   */
+  int extraBelow(String field, int limit) {
+    Factors f = factors.get(field);
+    return f == null ? 0 : f.extraBelow(limit);
+  }
+
+  /**
+   * @return the number of entries to over-request above the target, for the specified field
+   */
+  int extraAbove(String field, int limit) {
+    Factors f = factors.get(field);
+    return f == null ? 0 : f.extraAbove(limit);
+  }
+
+  /**
+   * records the largest per-shard shortfall (in entries) observed below and above the target for
+   * a request on the specified field
+   */
+  void record(String field, int limit, int shortfallBelow, int shortfallAbove) {
+    if (limit <= 0) {
+      return;
+    }
+    factors.computeIfAbsent(field, (k) -> new Factors())
+        .update((double) shortfallBelow / limit, (double) shortfallAbove / limit);
+  }
+
+}
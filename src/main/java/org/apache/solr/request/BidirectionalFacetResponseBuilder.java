@@ -20,7 +20,9 @@ import java.io.IOException;
 import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayDeque;
 import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.function.Predicate;
 import org.apache.lucene.index.LeafReader;
@@ -34,6 +36,7 @@ import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.handler.component.FacetComponent.DistribFieldFacet.TermDocEntry;
 import org.apache.solr.handler.component.FacetComponent.ShardFacetCount;
+import org.apache.solr.handler.component.ShardWindowMerge;
 import org.apache.solr.request.BidirectionalFacetResponseBuilder.FacetKey;
 import org.apache.solr.schema.FieldType;
 import org.apache.solr.search.DocSet;
@@ -76,6 +79,7 @@ public class BidirectionalFacetResponseBuilder<T extends FieldType & FacetPayloa
     NamedList<Object> ret = new NamedList<>(entryBuilder.toArray(new Entry[entryBuilder.size()]));
     ret = env.finalize(ret);
     res.add("terms", ret);
+    env.windowBuilt(entryBuilder);
     return ret;
   }
   
@@ -99,6 +103,21 @@ public class BidirectionalFacetResponseBuilder<T extends FieldType & FacetPayloa
 
   public static enum Provisional { NEVER, PROVISIONAL, SATISFIED }
 
+  /**
+   * Of the first <code>off</code> (provisional) entries from startKey in the specified direction,
+   * all but the last <code>limit</code> entries actually encountered would be added to the window
+   * and subsequently displaced. Where the env supports it, such entries may be skipped outright.
+   *
+   * @return the number of leading provisional entries that may be skipped
+   */
+  private static <T extends FieldType & FacetPayload, K extends FacetKey<K>> int skipCount(Env<T, K> env, K startKey, int off, boolean ascending) {
+    if (off <= 0 || env.limit <= 0 || startKey == null) {
+      return 0;
+    }
+    int count = env.countKeys(startKey, ascending);
+    return count < 0 ? 0 : Math.max(0, Math.min(off, count - env.limit));
+  }
+
   public static class AscendingFacetTermIteratorFactory<T extends FieldType & FacetPayload, K extends FacetKey<K>> implements InnerIteratorFactory<T, K> {
 
     private final boolean doc;
@@ -129,6 +148,12 @@ public class BidirectionalFacetResponseBuilder<T extends FieldType & FacetPayloa
       }
       LimitMinder<T, K> limitMinder;
       K targetKeyInit = env.targetKeyInit(true);
+      int skip = skipCount(env, targetKeyInit, off, true);
+      if (skip > 0) {
+        targetKeyInit = env.skipKeys(targetKeyInit, skip, true);
+        off -= skip;
+        actualOffsetInit -= skip;
+      }
       if (doc) {
         limitMinder = new IncrementingDocLimitMinder(targetKeyInit);
       } else {
@@ -186,12 +211,6 @@ public class BidirectionalFacetResponseBuilder<T extends FieldType & FacetPayloa
       boolean finalDescent = false;
       int actualOffsetInit = 0;
       K startIndex = env.decrementKey(env.targetKey());
-      LimitMinder<T, K> limitMinder;
-      if (doc) {
-        limitMinder = new DecrementingDocLimitMinder(startIndex);
-      } else {
-        limitMinder = new DecrementingLimitMinder(startIndex);
-      }
       int off;
       int lim;
       Provisional provisionalInit;
@@ -204,6 +223,18 @@ public class BidirectionalFacetResponseBuilder<T extends FieldType & FacetPayloa
         lim = env.offset;
         provisionalInit = Provisional.NEVER;
       }
+      int skip = skipCount(env, startIndex, off, false);
+      if (skip > 0) {
+        startIndex = env.skipKeys(startIndex, skip, false);
+        off -= skip;
+        actualOffsetInit += skip;
+      }
+      LimitMinder<T, K> limitMinder;
+      if (doc) {
+        limitMinder = new DecrementingDocLimitMinder(startIndex);
+      } else {
+        limitMinder = new DecrementingLimitMinder(startIndex);
+      }
       return new DescendingFacetTermIterator<>(limitMinder, actualOffsetInit, provisionalInit, off, lim, env, finalDescent, inner, outer);
     }
 
@@ -574,10 +605,36 @@ public class BidirectionalFacetResponseBuilder<T extends FieldType & FacetPayloa
 
     public abstract void initState(K key);
 
+    /**
+     * Optional support for skipping directly over deep offsets.
+     *
+     * @return the number of keys in the specified direction, starting with (and including) the
+     * specified key (which must be a key returned by this env), or -1 if not supported.
+     */
+    public int countKeys(K startKey, boolean ascending) {
+      return -1;
+    }
+
+    /**
+     * Only called if {@link #countKeys(FacetKey, boolean)} is supported.
+     *
+     * @return the key reached by n successive calls to incrementKey (ascending) or decrementKey
+     * (descending), starting from the specified key.
+     */
+    public K skipKeys(K startKey, int n, boolean ascending) throws IOException {
+      throw new UnsupportedOperationException();
+    }
+
     public NamedList<Object> finalize(NamedList<Object> ret) {
       return ret;
     }
 
+    /**
+     * Called once the window is complete (and added to {@link #res}), with its entries in window order.
+     */
+    public void windowBuilt(Deque<Entry<String, Object>> entries) {
+    }
+
   }
   
   public static class DistribDocEnv<T extends FieldType & FacetPayload> extends DistribEnv<T> {
@@ -700,6 +757,75 @@ public class BidirectionalFacetResponseBuilder<T extends FieldType & FacetPayloa
 
   }
 
+  /**
+   * Distributed env over shard windows merged lazily around the target (see {@link ShardWindowMerge}),
+   * so that shard entries are only merged as far as the window is built in each direction. Keys
+   * are indexes relative to the target (negative below the target).
+   */
+  public static class MergedDistribEnv<T extends FieldType & FacetPayload> extends Env<T, SimpleTermIndexKey> {
+
+    protected final ShardWindowMerge merged;
+
+    public MergedDistribEnv(int offset, int limit, int mincount, String fieldName, T ft, NamedList res, ShardWindowMerge merged) {
+      super(offset, limit, 0, mincount, fieldName, ft, res);
+      this.merged = merged;
+    }
+
+    @Override
+    public SimpleTermIndexKey incrementKey(SimpleTermIndexKey previousKey) {
+      ShardFacetCount sfc;
+      for (int index = previousKey.index + 1; (sfc = merged.get(index)) != null; index++) {
+        if (sfc.count >= mincount) {
+          return new SimpleTermIndexKey(index);
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public SimpleTermIndexKey decrementKey(SimpleTermIndexKey previousKey) {
+      ShardFacetCount sfc;
+      for (int index = previousKey.index - 1; (sfc = merged.get(index)) != null; index--) {
+        if (sfc.count >= mincount) {
+          return new SimpleTermIndexKey(index);
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public void addEntry(LimitMinder<T, SimpleTermIndexKey> limitMinder, SimpleTermIndexKey facetKey, Deque<Entry<String, Object>> entryBuilder) throws IOException {
+      ShardFacetCount sfc = merged.get(facetKey.index);
+      Object val = sfc.val != null ? sfc.val : DistribEnv.num(sfc.count);
+      limitMinder.addEntry(new SimpleImmutableEntry<>(sfc.name, val), entryBuilder);
+    }
+
+    @Override
+    public SimpleTermIndexKey targetKey() throws IOException {
+      return new SimpleTermIndexKey(0);
+    }
+
+    @Override
+    public SimpleTermIndexKey targetKeyInit(boolean ascending) throws IOException {
+      SimpleTermIndexKey ret = new SimpleTermIndexKey(0);
+      ShardFacetCount sfc = merged.get(0);
+      if (sfc != null && sfc.count >= mincount) {
+        return ret;
+      } else if (ascending) {
+        return incrementKey(ret);
+      } else {
+        return decrementKey(ret);
+      }
+    }
+
+    @Override
+    public void initState(SimpleTermIndexKey key) {
+      // nothing to initialize: any key returned by this env has already been merged (and is
+      // retained by the merge), and addEntry reads the merged entry directly by key index
+    }
+
+  }
+
   public static abstract class LocalEnv<T extends FieldType & FacetPayload, K extends FacetKey<K>> extends Env<T, K> {
 
     protected final int startTermOrd;
@@ -708,7 +834,9 @@ public class BidirectionalFacetResponseBuilder<T extends FieldType & FacetPayloa
     protected final int adjust;
     protected final int nTerms;
     protected final Predicate<BytesRef> termFilter;
-    protected final int[] counts;
+    protected final TermCounts counts;
+    protected final BlockMaxTermCounts blockMax;
+    protected final TrigramTermIndex.CandidateFilter candidates;
     protected final CharsRefBuilder charsRef;
     protected final boolean extend;
     protected final SortedSetDocValues si;
@@ -719,9 +847,11 @@ public class BidirectionalFacetResponseBuilder<T extends FieldType & FacetPayloa
     protected BytesRef currentTermBytes;
     protected String currentTerm;
     protected Term currentFieldTerm;
+
+    private Map<Entry<String, Object>, BytesRef> indexedTerms;
     
     public LocalEnv(int offset, int limit, int startTermIndex, int adjust, int targetIdx, int nTerms, Predicate<BytesRef> termFilter,
-        int mincount, int[] counts, CharsRefBuilder charsRef, boolean extend, SortedSetDocValues si,
+        int mincount, TermCounts counts, CharsRefBuilder charsRef, boolean extend, SortedSetDocValues si,
         SolrIndexSearcher searcher, List<Entry<LeafReader, Bits>> leaves, String fieldName, T ft, NamedList res) {
       super(offset, limit, targetIdx, mincount, fieldName, ft, res);
       if (startTermIndex == -1) {
@@ -739,6 +869,8 @@ public class BidirectionalFacetResponseBuilder<T extends FieldType & FacetPayloa
       this.nTerms = nTerms;
       this.termFilter = termFilter;
       this.counts = counts;
+      this.blockMax = counts instanceof BlockMaxTermCounts ? (BlockMaxTermCounts) counts : null;
+      this.candidates = termFilter instanceof TrigramTermIndex.CandidateFilter ? (TrigramTermIndex.CandidateFilter) termFilter : null;
       this.charsRef = charsRef;
       this.extend = extend;
       this.si = si;
@@ -748,7 +880,7 @@ public class BidirectionalFacetResponseBuilder<T extends FieldType & FacetPayloa
     
     protected boolean acceptTerm(int index) {
       currentTermBytes = null;
-      int c = counts[index - startTermIndex];
+      int c = counts.get(index - startTermIndex);
       if (c < mincount) {
         return false;
       }
@@ -767,19 +899,57 @@ public class BidirectionalFacetResponseBuilder<T extends FieldType & FacetPayloa
       currentFieldTerm = new Term(fieldName, currentTermBytes);
       return true;
     }
+
+    /**
+     * Records the indexed form of the term of each entry as it is added, so that the window's
+     * {@link IndexedTermKeys} are encoded from terms as read from the index (rather than by
+     * converting each term name back to its indexed form).
+     */
+    public void captureIndexedTerms() {
+      indexedTerms = new IdentityHashMap<>();
+    }
+
+    /**
+     * @param entry the entry for the current term, as added to the window
+     */
+    protected final void entryAdded(Entry<String, Object> entry) {
+      if (indexedTerms != null) {
+        indexedTerms.put(entry, BytesRef.deepCopyOf(currentTermBytes));
+      }
+    }
+
+    @Override
+    public void windowBuilt(Deque<Entry<String, Object>> entries) {
+      if (indexedTerms == null) {
+        return;
+      }
+      BytesRef[] keys = new BytesRef[entries.size()];
+      int i = 0;
+      for (Entry<String, Object> entry : entries) {
+        if ((keys[i++] = indexedTerms.get(entry)) == null) {
+          // not captured; the aggregator converts term names itself
+          return;
+        }
+      }
+      res.add(IndexedTermKeys.RESPONSE_KEY, IndexedTermKeys.encode(keys));
+    }
   }
     
   public static abstract class BaseLocalTermEnv<T extends FieldType & FacetPayload, K extends FacetKey<K>> extends LocalEnv<T, K> {
 
     public BaseLocalTermEnv(int offset, int limit, int startTermIndex, int adjust, int targetIdx, int nTerms, Predicate<BytesRef> termFilter,
-        int mincount, int[] counts, CharsRefBuilder charsRef, boolean extend, SortedSetDocValues si,
+        int mincount, TermCounts counts, CharsRefBuilder charsRef, boolean extend, SortedSetDocValues si,
         SolrIndexSearcher searcher, List<Entry<LeafReader, Bits>> leaves, String fieldName, T ft, NamedList res) {
       super(offset, limit, startTermIndex, adjust, targetIdx, nTerms, termFilter, mincount, counts,
           charsRef, extend, si, searcher, leaves, fieldName, ft, res);
     }
 
     protected final int incrementTermIndex(int lastKeyIndex) {
-      for (int i = lastKeyIndex + 1; i < endTermOrd; i++) {
+      for (int i = Math.max(lastKeyIndex + 1, startTermOrd); i < endTermOrd; i++) {
+        i = nextCandidate(i);
+        if (i < 0) {
+          break;
+        }
         if (acceptTerm(i)) {
           return i;
         }
@@ -788,7 +958,11 @@ public class BidirectionalFacetResponseBuilder<T extends FieldType & FacetPayloa
     }
 
     protected final int decrementTermIndex(int lastKeyIndex) {
-      for (int i = lastKeyIndex - 1; i >= startTermOrd; i--) {
+      for (int i = Math.min(lastKeyIndex, endTermOrd) - 1; i >= startTermOrd; i--) {
+        i = previousCandidate(i);
+        if (i < 0) {
+          break;
+        }
         if (acceptTerm(i)) {
           return i;
         }
@@ -796,6 +970,49 @@ public class BidirectionalFacetResponseBuilder<T extends FieldType & FacetPayloa
       return -1;
     }
 
+    /**
+     * @return the least index at or after the specified index (within the faceted range) that may be
+     * accepted, skipping blocks with counts below mincount and terms rejected by the term filter's
+     * candidate index (if any); or -1 if there is none
+     */
+    private int nextCandidate(int i) {
+      for (;;) {
+        int candidate = i;
+        if (candidates != null && ((candidate = candidates.nextCandidate(candidate)) < 0 || candidate >= endTermOrd)) {
+          return -1;
+        }
+        if (blockMax != null && ((candidate = blockMax.nextCandidate(candidate - startTermIndex, mincount)) < 0
+            || (candidate += startTermIndex) >= endTermOrd)) {
+          return -1;
+        }
+        if (candidate == i) {
+          return i;
+        }
+        i = candidate;
+      }
+    }
+
+    /**
+     * @return the greatest index at or before the specified index (within the faceted range) that may
+     * be accepted (see {@link #nextCandidate(int)}), or -1 if there is none
+     */
+    private int previousCandidate(int i) {
+      for (;;) {
+        int candidate = i;
+        if (candidates != null && (candidate = candidates.previousCandidate(candidate)) < startTermOrd) {
+          return -1;
+        }
+        if (blockMax != null && ((candidate = blockMax.previousCandidate(candidate - startTermIndex, mincount)) < 0
+            || (candidate += startTermIndex) < startTermOrd)) {
+          return -1;
+        }
+        if (candidate == i) {
+          return i;
+        }
+        i = candidate;
+      }
+    }
+
     protected final int getTargetKeyIndex() {
       return (targetIdx < 0 ? ~targetIdx : targetIdx);
     }
@@ -814,13 +1031,41 @@ public class BidirectionalFacetResponseBuilder<T extends FieldType & FacetPayloa
 
   public static final class LocalTermEnv<T extends FieldType & FacetPayload> extends BaseLocalTermEnv<T, SimpleTermIndexKey> {
 
+    private final TermRankSelect acceptedTerms;
+    private final Map<Integer, Entry<String, Object>> sharedEntries;
     private SimpleTermIndexKey facetKey;
 
+    /**
+     * @param acceptedTerms if non-null, an index over accepted term indexes (positions relative to the
+     * first term index of the faceted range), used to skip directly over deep offsets; only valid
+     * if termFilter is null.
+     * @param sharedEntries if non-null, (extended) entries by term index, shared among envs building
+     * windows over the same counts, so that entries for terms in overlapping windows are built once.
+     */
     public LocalTermEnv(int offset, int limit, int startTermIndex, int adjust, int targetIdx, int nTerms, Predicate<BytesRef> termFilter,
-        int mincount, int[] counts, CharsRefBuilder charsRef, boolean extend, SortedSetDocValues si,
+        int mincount, TermCounts counts, TermRankSelect acceptedTerms, Map<Integer, Entry<String, Object>> sharedEntries,
+        CharsRefBuilder charsRef, boolean extend, SortedSetDocValues si,
         SolrIndexSearcher searcher, List<Entry<LeafReader, Bits>> leaves, String fieldName, T ft, NamedList res) {
       super(offset, limit, startTermIndex, adjust, targetIdx, nTerms, termFilter, mincount, counts,
           charsRef, extend, si, searcher, leaves, fieldName, ft, res);
+      this.acceptedTerms = termFilter == null ? acceptedTerms : null;
+      this.sharedEntries = sharedEntries;
+    }
+
+    @Override
+    public int countKeys(SimpleTermIndexKey startKey, boolean ascending) {
+      if (acceptedTerms == null) {
+        return -1;
+      }
+      int pos = startKey.index - startTermOrd;
+      return ascending ? acceptedTerms.cardinality() - acceptedTerms.rank(pos) : acceptedTerms.rank(pos + 1);
+    }
+
+    @Override
+    public SimpleTermIndexKey skipKeys(SimpleTermIndexKey startKey, int n, boolean ascending) {
+      int pos = startKey.index - startTermOrd;
+      int rank = ascending ? acceptedTerms.rank(pos) + n : acceptedTerms.rank(pos + 1) - 1 - n;
+      return new SimpleTermIndexKey(acceptedTerms.select(rank) + startTermOrd);
     }
 
     @Override
@@ -851,11 +1096,15 @@ public class BidirectionalFacetResponseBuilder<T extends FieldType & FacetPayloa
       Entry<String, Object> entry;
       if (!extend) {
         entry = new SimpleImmutableEntry<>(currentTerm, currentTermCount);
-      } else {
+      } else if (sharedEntries == null || (entry = sharedEntries.get(facetKey.index)) == null) {
         if ((entry = ft.addEntry(currentTerm, currentTermCount, currentFieldTerm, leaves)) == null) {
           entry = new SimpleImmutableEntry<>(currentTerm, currentTermCount);
         }
+        if (sharedEntries != null) {
+          sharedEntries.put(facetKey.index, entry);
+        }
       }
+      entryAdded(entry);
       limitMinder.addEntry(entry, entryBuilder);
     }
 
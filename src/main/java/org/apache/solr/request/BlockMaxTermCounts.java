@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+/**
+ * TermCounts decorated with a summary of the maximum count in each block of
+ * {@value #BLOCK_SIZE} consecutive indexes, built in a single pass over fully
+ * computed counts. Walks over terms (see {@link BidirectionalFacetResponseBuilder.LocalEnv})
+ * use the summary to skip, in either direction, whole blocks in which no count could
+ * meet mincount.
+ *
+ * @author magibney
+ */
+public final class BlockMaxTermCounts implements TermCounts {
+
+  private static final int BLOCK_SHIFT = 6;
+  private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+  private final TermCounts counts;
+  private final int size;
+  private final int[] blockMax;
+
+  private BlockMaxTermCounts(TermCounts counts, int size, int[] blockMax) {
+    this.counts = counts;
+    this.size = size;
+    this.blockMax = blockMax;
+  }
+
+  public static BlockMaxTermCounts build(TermCounts counts, int size) {
+    int[] blockMax = new int[(size + BLOCK_SIZE - 1) >>> BLOCK_SHIFT];
+    for (int i = 0; i < size; i++) {
+      int c = counts.get(i);
+      int block = i >>> BLOCK_SHIFT;
+      if (c > blockMax[block]) {
+        blockMax[block] = c;
+      }
+    }
+    return new BlockMaxTermCounts(counts, size, blockMax);
+  }
+
+  @Override
+  public int get(int index) {
+    return counts.get(index);
+  }
+
+  /**
+   * @return the specified index if its block may contain a count of at least mincount; otherwise
+   * the first index of the next such block, or -1 if there is no such block.
+   */
+  public int nextCandidate(int index, int mincount) {
+    int block = index >>> BLOCK_SHIFT;
+    if (blockMax[block] >= mincount) {
+      return index;
+    }
+    while (++block < blockMax.length) {
+      if (blockMax[block] >= mincount) {
+        return block << BLOCK_SHIFT;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the specified index if its block may contain a count of at least mincount; otherwise
+   * the last index of the previous such block, or -1 if there is no such block.
+   */
+  public int previousCandidate(int index, int mincount) {
+    int block = index >>> BLOCK_SHIFT;
+    if (blockMax[block] >= mincount) {
+      return index;
+    }
+    while (--block >= 0) {
+      if (blockMax[block] >= mincount) {
+        return Math.min((block << BLOCK_SHIFT) + BLOCK_SIZE, size) - 1;
+      }
+    }
+    return -1;
+  }
+
+}
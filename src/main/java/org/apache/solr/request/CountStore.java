@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+/**
+ * Writable per-term facet counts, indexed (like {@link TermCounts}) relative
+ * to the first term ordinal of the faceted range. All counts are initially 0.
+ *
+ * @author magibney
+ */
+public interface CountStore extends TermCounts {
+
+  /**
+   * @return the number of counts in this store
+   */
+  int size();
+
+  void increment(int index);
+
+  void add(int index, int delta);
+
+  /**
+   * CountStore backed by a simple int array.
+   */
+  final class ArrayCountStore implements CountStore {
+
+    private final int[] counts;
+
+    public ArrayCountStore(int size) {
+      this.counts = new int[size];
+    }
+
+    /**
+     * @return the backing array, for counting loops to increment directly
+     */
+    int[] array() {
+      return counts;
+    }
+
+    @Override
+    public int size() {
+      return counts.length;
+    }
+
+    @Override
+    public int get(int index) {
+      return counts[index];
+    }
+
+    @Override
+    public void increment(int index) {
+      counts[index]++;
+    }
+
+    @Override
+    public void add(int index, int delta) {
+      counts[index] += delta;
+    }
+
+  }
+
+}
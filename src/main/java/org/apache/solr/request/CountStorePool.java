@@ -0,0 +1,253 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
+
+/**
+ * Per-core pool of reusable count stores for high-cardinality fields, to avoid
+ * allocating (and zeroing) large count arrays for every request. Pooled stores
+ * are cleared lazily: counts are divided into fixed-size blocks, each stamped with
+ * the generation in which it was last written; a block whose stamp does not match
+ * the store's current generation reads as all zeros, and is only zeroed when first
+ * written in the new generation.
+ *
+ * The maximum number of idle stores retained per core is configured by
+ * <code>&lt;xfacetCountPoolSize&gt;</code> in the <code>&lt;query&gt;</code> section of
+ * solrconfig.xml (default 0, i.e., pooling disabled), and should generally reflect
+ * the expected number of concurrent requests over high-cardinality fields. If
+ * <code>&lt;xfacetPackedCounts&gt;</code> is true, stores for high-cardinality fields
+ * (whether pooled or not) are {@link PackedCountStore}s, which trade speed for memory:
+ * they use roughly a quarter of the memory of plain int counts, but count and scan
+ * roughly 1.3-2x slower.
+ *
+ * @author magibney
+ */
+public final class CountStorePool {
+
+  public static final String POOL_SIZE_CONFIG_PATH = "query/xfacetCountPoolSize";
+  public static final String PACKED_CONFIG_PATH = "query/xfacetPackedCounts";
+
+  /**
+   * stores smaller than this are backed by a plain int array, allocated per-request
+   */
+  static final int MIN_POOLED_SIZE = 1 << 16;
+
+  private static final int BLOCK_SHIFT = 10;
+
+  private static final Map<SolrCore, CountStorePool> POOLS = new ConcurrentHashMap<>();
+
+  private final int maxIdle;
+  private final boolean packed;
+  private final List<Reusable> idle;
+
+  CountStorePool(int maxIdle, boolean packed) {
+    this.maxIdle = maxIdle;
+    this.packed = packed;
+    this.idle = new ArrayList<>(maxIdle);
+  }
+
+  /**
+   * CountStore that may be reset (all counts 0) for reuse
+   */
+  interface Reusable extends CountStore {
+
+    /**
+     * @return the maximum size to which this store may be reset
+     */
+    int capacity();
+
+    /**
+     * Resets all counts to 0, and sets the size of this store (which must not exceed
+     * {@link #capacity()}).
+     */
+    void reset(int size);
+
+  }
+
+  /**
+   * @return a CountStore of the specified size, with all counts 0. Stores acquired via
+   * this method should be returned via {@link #release(SolrCore, CountStore)}.
+   */
+  public static CountStore acquire(SolrCore core, int size) {
+    if (size < MIN_POOLED_SIZE || core == null) {
+      return new CountStore.ArrayCountStore(size);
+    }
+    return getPool(core).acquire(size);
+  }
+
+  /**
+   * returns the specified store (if pooled) to the pool for the specified core.
+   */
+  public static void release(SolrCore core, CountStore store) {
+    if (store instanceof Reusable) {
+      CountStorePool pool = POOLS.get(core);
+      if (pool != null && pool.maxIdle > 0) {
+        pool.release((Reusable) store);
+      }
+    }
+  }
+
+  private static CountStorePool getPool(SolrCore core) {
+    CountStorePool ret = POOLS.get(core);
+    if (ret == null) {
+      int maxIdle = Math.max(0, core.getSolrConfig().getInt(POOL_SIZE_CONFIG_PATH, 0));
+      boolean packed = core.getSolrConfig().getBool(PACKED_CONFIG_PATH, false);
+      CountStorePool existing = POOLS.putIfAbsent(core, ret = new CountStorePool(maxIdle, packed));
+      if (existing != null) {
+        ret = existing;
+      } else {
+        core.addCloseHook(new CloseHook() {
+          @Override
+          public void preClose(SolrCore core) {
+          }
+
+          @Override
+          public void postClose(SolrCore core) {
+            POOLS.remove(core);
+          }
+        });
+      }
+    }
+    return ret;
+  }
+
+  CountStore acquire(int size) {
+    if (maxIdle == 0) {
+      return packed ? new PackedCountStore(size) : new CountStore.ArrayCountStore(size);
+    }
+    Reusable ret = null;
+    synchronized (idle) {
+      // prefer the smallest sufficient store
+      Iterator<Reusable> iter = idle.iterator();
+      while (iter.hasNext()) {
+        Reusable candidate = iter.next();
+        if (candidate.capacity() >= size && (ret == null || candidate.capacity() < ret.capacity())) {
+          ret = candidate;
+        }
+      }
+      if (ret != null) {
+        idle.remove(ret);
+      }
+    }
+    if (ret == null) {
+      return packed ? new PackedCountStore(size) : new PooledCountStore(size);
+    }
+    ret.reset(size);
+    return ret;
+  }
+
+  void release(Reusable store) {
+    synchronized (idle) {
+      if (idle.size() < maxIdle) {
+        idle.add(store);
+      } else {
+        // displace the smallest idle store, if smaller than the released store
+        Reusable smallest = store;
+        for (Reusable candidate : idle) {
+          if (candidate.capacity() < smallest.capacity()) {
+            smallest = candidate;
+          }
+        }
+        if (smallest != store) {
+          idle.remove(smallest);
+          idle.add(store);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the number of idle stores currently retained
+   */
+  int idleCount() {
+    synchronized (idle) {
+      return idle.size();
+    }
+  }
+
+  static final class PooledCountStore implements Reusable {
+
+    private final int[] counts;
+    private final int[] blockGen;
+    private int gen = 1;
+    private int size;
+
+    private PooledCountStore(int size) {
+      this.counts = new int[size];
+      this.blockGen = new int[((size - 1) >>> BLOCK_SHIFT) + 1];
+      // a newly-allocated array is already clear for the initial generation
+      Arrays.fill(blockGen, gen);
+      this.size = size;
+    }
+
+    @Override
+    public int capacity() {
+      return counts.length;
+    }
+
+    @Override
+    public void reset(int size) {
+      this.size = size;
+      if (++gen == 0) {
+        // generation overflow; invalidate all blocks explicitly (generation 0 is never current)
+        Arrays.fill(blockGen, 0);
+        gen = 1;
+      }
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public int get(int index) {
+      return blockGen[index >>> BLOCK_SHIFT] == gen ? counts[index] : 0;
+    }
+
+    private void touch(int index) {
+      int block = index >>> BLOCK_SHIFT;
+      if (blockGen[block] != gen) {
+        int start = block << BLOCK_SHIFT;
+        Arrays.fill(counts, start, Math.min(start + (1 << BLOCK_SHIFT), counts.length), 0);
+        blockGen[block] = gen;
+      }
+    }
+
+    @Override
+    public void increment(int index) {
+      touch(index);
+      counts[index]++;
+    }
+
+    @Override
+    public void add(int index, int delta) {
+      touch(index);
+      counts[index] += delta;
+    }
+
+  }
+
+}
@@ -20,7 +20,6 @@ import java.io.IOException;
 import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.Deque;
 import java.util.List;
@@ -29,8 +28,12 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.function.Predicate;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DocValues;
 import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.index.SortedSetDocValues;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.Query;
@@ -49,6 +52,7 @@ import org.apache.solr.request.BidirectionalFacetResponseBuilder.LimitMinder;
 import org.apache.solr.response.DocsStreamer;
 import org.apache.solr.schema.FieldType;
 import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.DocIterator;
 import org.apache.solr.search.DocList;
 import org.apache.solr.search.DocSet;
 import org.apache.solr.search.SolrIndexSearcher;
@@ -84,6 +88,7 @@ public class DocBasedFacetResponseBuilder {
     private final Comparator<BytesRef> idFieldComparator;
     private final String idField;
     private final Set<String> fl;
+    private final boolean deferFields;
 
     private TermDocIndexKey termDocIndexKey;
 
@@ -94,8 +99,8 @@ public class DocBasedFacetResponseBuilder {
     private int localDocIndex = -1;
 
     public LocalDocEnv(int offset, int limit, int startTermIndex, int adjust, int targetIdx, String targetDoc, int nTerms,
-        Predicate<BytesRef> termFilter, int mincount, int[] counts, CharsRefBuilder charsRef, boolean extend,
-        SortedSetDocValues si, SolrIndexSearcher searcher, DocSet docs, List<Entry<LeafReader, Bits>> leaves, String fieldName, T ft, NamedList res, Set<String> fl) {
+        Predicate<BytesRef> termFilter, int mincount, TermCounts counts, CharsRefBuilder charsRef, boolean extend,
+        SortedSetDocValues si, SolrIndexSearcher searcher, DocSet docs, List<Entry<LeafReader, Bits>> leaves, String fieldName, T ft, NamedList res, Set<String> fl, boolean deferFields) {
       super(offset, limit, startTermIndex, adjust, targetIdx, nTerms, termFilter, mincount, counts,
           charsRef, extend, si, searcher, leaves, fieldName, ft, res);
       SchemaField uniqueKeyField = searcher.getSchema().getUniqueKeyField();
@@ -105,6 +110,7 @@ public class DocBasedFacetResponseBuilder {
       this.idFieldComparator = this.sortField.getBytesComparator();
       this.sort = new Sort(sortField);
       this.docs = docs;
+      this.deferFields = deferFields;
       this.fl = fl;
     }
 
@@ -123,12 +129,19 @@ public class DocBasedFacetResponseBuilder {
           return false;
         }
         activeTermIndex = termIndex;
-        documents = new Document[size];
         docIds = new BytesRef[size];
-        searcher.readDocs(documents, docList, fl);
         localDocIndex = -1;
-        for (int i = 0; i < size; i++) {
-          docIds[i] = new BytesRef(documents[i].get(idField));
+        if (deferFields) {
+          // stored fields are retrieved separately, for only those docs that survive in the final
+          // (distributed) window; no stored fields are read here
+          documents = null;
+          readIds(docList);
+        } else {
+          documents = new Document[size];
+          searcher.readDocs(documents, docList, fl);
+          for (int i = 0; i < size; i++) {
+            docIds[i] = new BytesRef(documents[i].get(idField));
+          }
         }
         return true;
       } catch (IOException ex) {
@@ -136,6 +149,27 @@ public class DocBasedFacetResponseBuilder {
       }
     }
 
+    /**
+     * reads the (readable) uniqueKey of each doc in the specified list from (possibly uninverted)
+     * docValues
+     */
+    private void readIds(DocList docList) throws IOException {
+      List<LeafReaderContext> leafContexts = searcher.getTopReaderContext().leaves();
+      SortedDocValues[] leafIds = new SortedDocValues[leafContexts.size()];
+      FieldType idType = searcher.getSchema().getUniqueKeyField().getType();
+      CharsRefBuilder readable = new CharsRefBuilder();
+      DocIterator iter = docList.iterator();
+      for (int i = 0; iter.hasNext(); i++) {
+        int docId = iter.nextDoc();
+        int leafIndex = ReaderUtil.subIndex(docId, leafContexts);
+        LeafReaderContext leaf = leafContexts.get(leafIndex);
+        if (leafIds[leafIndex] == null) {
+          leafIds[leafIndex] = DocValues.getSorted(leaf.reader(), idField);
+        }
+        docIds[i] = new BytesRef(idType.indexedToReadable(leafIds[leafIndex].get(docId - leaf.docBase), readable));
+      }
+    }
+
     private int acceptDoc(int termIndex, BytesRef docId) {
       if (activeTermIndex != termIndex) {
         if (!initTermIndex(termIndex)) {
@@ -144,7 +178,7 @@ public class DocBasedFacetResponseBuilder {
       }
       int ret = docIndex(docId);
       int cardinality = ret < 0 ? ~ret : ret;
-      if (cardinality >= documents.length) {
+      if (cardinality >= docIds.length) {
         return Integer.MIN_VALUE;
       } else {
         return ret;
@@ -252,7 +286,7 @@ public class DocBasedFacetResponseBuilder {
       }
       String docIdStr = docIds[localDocIndex].utf8ToString();
       // Because binary response writer does not recognize Lucene Documents, and treats them as simply Iterable.
-      SolrDocument doc = DocsStreamer.getDoc(documents[localDocIndex], this.searcher.getSchema());
+      SolrDocument doc = deferFields ? null : DocsStreamer.getDoc(documents[localDocIndex], this.searcher.getSchema());
       if (!limitMinder.updateEntry(currentTerm, docIdStr, doc, entryBuilder)) {
         Deque<Entry<String, SolrDocument>> docDeque = new ArrayDeque<>(4);
         docDeque.add(new SimpleImmutableEntry<>(docIdStr, doc));
@@ -265,6 +299,7 @@ public class DocBasedFacetResponseBuilder {
         }
         termEntry.add("docs", docDeque);
         Entry<String, Object> entry = new SimpleImmutableEntry<>(currentTerm, termEntry);
+        entryAdded(entry);
         limitMinder.addEntry(entry, entryBuilder);
       }
     }
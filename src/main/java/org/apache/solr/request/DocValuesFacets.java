@@ -16,13 +16,23 @@
  */
 package org.apache.solr.request;
 
+import com.carrotsearch.hppc.IntArrayList;
 import java.io.IOException;
 import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.Semaphore;
 import java.util.function.Predicate;
 
 import org.apache.lucene.index.DocValues;
@@ -34,6 +44,7 @@ import org.apache.lucene.index.MultiDocValues.OrdinalMap;
 import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.index.SortedSetDocValues;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
 import org.apache.lucene.search.DocIdSet;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.util.Bits;
@@ -43,15 +54,19 @@ import org.apache.lucene.util.CharsRefBuilder;
 import org.apache.lucene.util.FixedBitSet;
 import org.apache.lucene.util.LongValues;
 import org.apache.lucene.util.UnicodeUtil;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
 import org.apache.solr.common.params.FacetParams;
 import org.apache.solr.common.util.NamedList;
-import org.apache.solr.request.BidirectionalFacetResponseBuilder.Env;
+import org.apache.solr.request.BidirectionalFacetResponseBuilder.LocalEnv;
 import org.apache.solr.request.BidirectionalFacetResponseBuilder.LocalTermEnv;
 import org.apache.solr.request.DocBasedFacetResponseBuilder.LocalDocEnv;
+import org.apache.solr.request.SegmentTermCounts.SegmentKey;
 import org.apache.solr.schema.FieldType;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.search.DocSet;
 import org.apache.solr.search.Filter;
+import org.apache.solr.search.SolrCache;
 import org.apache.solr.search.SolrIndexSearcher;
 import org.apache.solr.search.facet.FacetDebugInfo;
 import org.apache.solr.util.LongPriorityQueue;
@@ -74,19 +89,30 @@ public class DocValuesFacets {
   private static class BitsBuilderDocIdSetIterator extends DocIdSetIterator {
 
     private final DocIdSetIterator backing;
+    private final LeafReader reader;
     private final FixedBitSet bits;
+    private int count = 0;
     private boolean finished = false;
 
-    public BitsBuilderDocIdSetIterator(DocIdSetIterator backing, FixedBitSet bits) {
+    public BitsBuilderDocIdSetIterator(DocIdSetIterator backing, LeafReader reader) {
       this.backing = backing;
-      this.bits = bits;
+      this.reader = reader;
+      this.bits = new FixedBitSet(reader.maxDoc() + 1);
     }
     
+    /**
+     * @return the docs visited by this iterator: null if every doc in the
+     * segment was visited (no deletions, and no filtering), or the reader's
+     * liveDocs if every live doc was visited (see {@link FacetPayload}).
+     */
     public Bits getBits() {
       if (!finished) {
         throw new IllegalStateException();
+      } else if (count == reader.maxDoc()) {
+        return null;
       } else {
-        return bits;
+        // DocSets contain only live docs
+        return count == reader.numDocs() ? reader.getLiveDocs() : bits;
       }
     }
     
@@ -100,6 +126,7 @@ public class DocValuesFacets {
       int ret = backing.nextDoc();
       if (ret != DocIdSetIterator.NO_MORE_DOCS) {
         bits.set(ret);
+        count++;
       } else {
         finished = true;
       }
@@ -118,16 +145,30 @@ public class DocValuesFacets {
     
   }
   
-  public static NamedList<Integer> getCounts(SolrIndexSearcher searcher, DocSet docs, String fieldName, int offset, int limit, int mincount, boolean missing, String sort, String prefix, String contains, boolean ignoreCase, FacetDebugInfo fdebug, boolean extend, BytesRef target, String targetDoc, boolean external, Set<String> fl) throws IOException {
+  public static NamedList<Integer> getCounts(SolrIndexSearcher searcher, DocSet docs, String fieldName, int offset, int limit, int mincount, boolean missing, String sort, String prefix, String contains, boolean ignoreCase, FacetDebugInfo fdebug, int threads, Object filterKey, boolean extend, Map<String, BytesRef> targets, boolean targetSection, String targetDoc, String targetCounting, boolean external, Set<String> fl) throws IOException {
     final Predicate<BytesRef> termFilter = new SubstringBytesRefFilter(contains, ignoreCase);
-    return getCounts(searcher, docs, fieldName, offset, limit, mincount, missing, sort, prefix, termFilter, fdebug, extend, target, targetDoc, external, fl);
+    return getCounts(searcher, docs, fieldName, offset, limit, mincount, missing, sort, prefix, termFilter, fdebug, threads, filterKey, extend, targets, targetSection, targetDoc, targetCounting, external, fl, false, false, null);
   }
   
-  public static NamedList<Integer> getCounts(SolrIndexSearcher searcher, DocSet docs, String fieldName, int offset, int limit, int mincount, boolean missing, String sort, String prefix, Predicate<BytesRef> termFilter, FacetDebugInfo fdebug, boolean extend, BytesRef target, String targetDoc, boolean external, Set<String> fl) throws IOException {
+  /**
+   * @param threads if positive, the maximum number of segments to count concurrently where all terms
+   * are counted over a multi-segment index (per the {!threads=} local param); otherwise (including the
+   * default, -1) segments are counted sequentially
+   * @param deferDocFields for document-centric output (targetDoc), return only the uniqueKey of
+   * each document (as the name of each doc entry, with a null value), deferring retrieval of
+   * stored fields to the caller (see {@link FacetParams#FACET_TARGET_DOC_DEFER}).
+   * @param indexedKeys for facet.target windows over {@link MultiSerializable} fields, also return
+   * the indexed form of each term in the window, as read from the index (see {@link IndexedTermKeys}).
+   * @param precounted if non-null, counts for all terms over docs (indexed by global ord + 1, with
+   * the missing count at index 0) already computed for this field (see {@link FusedFieldCounts}),
+   * which are used (and released) in place of counting; ignored if prefix is specified.
+   */
+  public static NamedList<Integer> getCounts(SolrIndexSearcher searcher, DocSet docs, String fieldName, int offset, int limit, int mincount, boolean missing, String sort, String prefix, Predicate<BytesRef> termFilter, FacetDebugInfo fdebug, int threads, Object filterKey, boolean extend, Map<String, BytesRef> targets, boolean targetSection, String targetDoc, String targetCounting, boolean external, Set<String> fl, boolean deferDocFields, boolean indexedKeys, CountStore precounted) throws IOException {
     SchemaField schemaField = searcher.getSchema().getField(fieldName);
     FieldType ft = schemaField.getType();
     NamedList<Integer> res = new NamedList<>();
-    NamedList termVals = res;
+    List<NamedList> termVals = new ArrayList<>(1);
+    termVals.add(res);
     // TODO: remove multiValuedFieldCache(), check dv type / uninversion type?
     final boolean multiValued = schemaField.multiValued() || ft.multiValuedFieldCache();
 
@@ -181,161 +222,218 @@ public class DocValuesFacets {
     final CharsRefBuilder charsRef = new CharsRefBuilder();
     if (nTerms>0 && docs.size() >= mincount) {
 
-      // count collection array only needs to be as big as the number of terms we are
-      // going to collect counts for.
-      final int[] counts = new int[nTerms];
-      if (fdebug != null) {
-        fdebug.putInfoItem("numBuckets", nTerms);
-      }
-
-      Filter filter = docs.getTopFilter();
-      List<Entry<LeafReader, Bits>> tmp = extend ? new ArrayList<>() : null;
-      List<LeafReaderContext> leaves = searcher.getTopReaderContext().leaves();
-      for (int subIndex = 0; subIndex < leaves.size(); subIndex++) {
-        LeafReaderContext leaf = leaves.get(subIndex);
-        DocIdSet dis = filter.getDocIdSet(leaf, null); // solr docsets already exclude any deleted docs
-        DocIdSetIterator disi = null;
-        if (dis != null) {
-          disi = dis.iterator();
-        }
-        if (disi != null) {
+      final boolean indexSort = !(sort.equals(FacetParams.FACET_SORT_COUNT) || sort.equals(FacetParams.FACET_SORT_COUNT_LEGACY));
+      final boolean targetWindow = targets != null && indexSort;
+      // explicitly requested term-at-a-time counting takes precedence over cached segment counts
+      final boolean fused = precounted != null && startTermIndex == -1 && precounted.size() == nTerms;
+      final SolrCache<SegmentKey, int[]> segmentCountsCache = fused || (targetWindow && FacetParams.FACET_TARGET_COUNTING_TERM.equals(targetCounting))
+          ? null : getSegmentCountsCache(searcher, filterKey, startTermIndex);
+      final boolean termCounting = !fused && targetWindow && segmentCountsCache == null
+          && useTermCounting(searcher, docs, schemaField, offset, windowLimit(limit, targets.size()), mincount, nTerms, si.getValueCount(), termFilter, targetCounting, fdebug);
+      CountStore counts = null;
+      try {
+        final TermCounts termCounts;
+        final PostingsTermCounts postingsTermCounts;
+        List<Entry<LeafReader, Bits>> tmp = null;
+        if (termCounting) {
+          termCounts = postingsTermCounts = new PostingsTermCounts(searcher, docs, fieldName, si, startTermIndex);
           if (extend) {
-            LeafReader reader = leaf.reader();
-            FixedBitSet bits = new FixedBitSet(reader.maxDoc() + 1);
-            disi = new BitsBuilderDocIdSetIterator(disi, bits);
-            tmp.add(new SimpleImmutableEntry<>(reader, bits));
+            tmp = leafBits(searcher, docs);
           }
-          if (multiValued) {
-            SortedSetDocValues sub = leaf.reader().getSortedSetDocValues(fieldName);
-            if (sub == null) {
-              sub = DocValues.emptySortedSet();
-            }
-            final SortedDocValues singleton = DocValues.unwrapSingleton(sub);
-            if (singleton != null) {
-              // some codecs may optimize SORTED_SET storage for single-valued fields
-              accumSingle(counts, startTermIndex, singleton, disi, subIndex, ordinalMap);
-            } else {
-              accumMulti(counts, startTermIndex, sub, disi, subIndex, ordinalMap);
-            }
+        } else if (fused) {
+          // already counted in a single pass shared with other fields
+          termCounts = counts = precounted;
+          postingsTermCounts = null;
+          missingCount = counts.get(0);
+          if (fdebug != null) {
+            fdebug.putInfoItem("numBuckets", nTerms);
+            fdebug.putInfoItem("fusedCounting", true);
+          }
+          if (extend) {
+            tmp = leafBits(searcher, docs);
+          }
+        } else if (segmentCountsCache != null) {
+          postingsTermCounts = null;
+          int[][] segCounts = SegmentTermCounts.getSegmentCounts(searcher, segmentCountsCache, docs, fieldName, multiValued, filterKey, fdebug);
+          missingCount = SegmentTermCounts.missingCount(segCounts);
+          if (targetWindow) {
+            termCounts = new SegmentTermCounts(ordinalMap, segCounts);
           } else {
-            SortedDocValues sub = leaf.reader().getSortedDocValues(fieldName);
-            if (sub == null) {
-              sub = DocValues.emptySorted();
-            }
-            accumSingle(counts, startTermIndex, sub, disi, subIndex, ordinalMap);
+            termCounts = counts = CountStorePool.acquire(searcher.getCore(), nTerms);
+            SegmentTermCounts.migrateGlobal(counts, segCounts, ordinalMap);
+          }
+          if (extend) {
+            tmp = leafBits(searcher, docs);
+          }
+        } else {
+          // count collection array only needs to be as big as the number of terms we are
+          // going to collect counts for.
+          termCounts = counts = CountStorePool.acquire(searcher.getCore(), nTerms);
+          postingsTermCounts = null;
+          if (fdebug != null) {
+            fdebug.putInfoItem("numBuckets", nTerms);
+          }
+          if (threads > 0 && ordinalMap != null && startTermIndex == -1 && nTerms < docs.size() * 10L) {
+            // same heuristic as accumSingle/accumMulti: collect separately per-segment, then map to global ords
+            tmp = accumCountsParallel(counts, searcher, docs, fieldName, multiValued, ordinalMap, extend, threads, fdebug);
+          } else {
+            tmp = accumCounts(counts, startTermIndex, searcher, docs, fieldName, multiValued, ordinalMap, extend);
+          }
+          if (startTermIndex == -1) {
+            missingCount = counts.get(0);
           }
         }
-      }
-
-      if (startTermIndex == -1) {
-        missingCount = counts[0];
-      }
 
-      // IDEA: we could also maintain a count of "other"... everything that fell outside
-      // of the top 'N'
+        // IDEA: we could also maintain a count of "other"... everything that fell outside
+        // of the top 'N'
 
-      int off=offset;
-      int lim=limit>=0 ? limit : Integer.MAX_VALUE;
+        int off=offset;
+        int lim=limit>=0 ? limit : Integer.MAX_VALUE;
 
-      if (sort.equals(FacetParams.FACET_SORT_COUNT) || sort.equals(FacetParams.FACET_SORT_COUNT_LEGACY)) {
-        int maxsize = limit>0 ? offset+limit : Integer.MAX_VALUE-1;
-        maxsize = Math.min(maxsize, nTerms);
-        LongPriorityQueue queue = new LongPriorityQueue(Math.min(maxsize,1000), maxsize, Long.MIN_VALUE);
+        if (!indexSort) {
+          int maxsize = limit>0 ? offset+limit : Integer.MAX_VALUE-1;
+          maxsize = Math.min(maxsize, nTerms);
+          LongPriorityQueue queue = new LongPriorityQueue(Math.min(maxsize,1000), maxsize, Long.MIN_VALUE);
 
-        int min=mincount-1;  // the smallest value in the top 'N' values
-        for (int i=(startTermIndex==-1)?1:0; i<nTerms; i++) {
-          int c = counts[i];
-          if (c>min) {
-            // NOTE: we use c>min rather than c>=min as an optimization because we are going in
-            // index order, so we already know that the keys are ordered.  This can be very
-            // important if a lot of the counts are repeated (like zero counts would be).
+          int min=mincount-1;  // the smallest value in the top 'N' values
+          for (int i=(startTermIndex==-1)?1:0; i<nTerms; i++) {
+            int c = counts.get(i);
+            if (c>min) {
+              // NOTE: we use c>min rather than c>=min as an optimization because we are going in
+              // index order, so we already know that the keys are ordered.  This can be very
+              // important if a lot of the counts are repeated (like zero counts would be).
 
-            if (termFilter != null) {
-              final BytesRef term = si.lookupOrd(startTermIndex+i);
-              if (!termFilter.test(term)) {
-                continue;
+              if (termFilter != null) {
+                final BytesRef term = si.lookupOrd(startTermIndex+i);
+                if (!termFilter.test(term)) {
+                  continue;
+                }
               }
-            }
 
-            // smaller term numbers sort higher, so subtract the term number instead
-            long pair = (((long)c)<<32) + (Integer.MAX_VALUE - i);
-            boolean displaced = queue.insert(pair);
-            if (displaced) min=(int)(queue.top() >>> 32);
+              // smaller term numbers sort higher, so subtract the term number instead
+              long pair = (((long)c)<<32) + (Integer.MAX_VALUE - i);
+              boolean displaced = queue.insert(pair);
+              if (displaced) min=(int)(queue.top() >>> 32);
+            }
           }
-        }
 
-        // if we are deep paging, we don't have to order the highest "offset" counts.
-        int collectCount = Math.max(0, queue.size() - off);
-        assert collectCount <= lim;
-
-        // the start and end indexes of our list "sorted" (starting with the highest value)
-        int sortedIdxStart = queue.size() - (collectCount - 1);
-        int sortedIdxEnd = queue.size() + 1;
-        final long[] sorted = queue.sort(collectCount);
-
-        for (int i=sortedIdxStart; i<sortedIdxEnd; i++) {
-          long pair = sorted[i];
-          int c = (int)(pair >>> 32);
-          int tnum = Integer.MAX_VALUE - (int)pair;
-          final BytesRef term = si.lookupOrd(startTermIndex+tnum);
-          ft.indexedToReadable(term, charsRef);
-          if (!(extend && addEntry(tmp, fieldName, (FieldType & FacetPayload)ft, charsRef, term, res, c))) {
-            res.add(charsRef.toString(), c);
-          }
-        }
-      
-      } else {
-        // add results in index order
-        int adjust=(startTermIndex==-1)?1:0;
-        int i = adjust;
-        if (mincount<=0 && termFilter == null) {
-          // if mincount<=0 and we're not examining the values for the term filter, then
-          // we won't discard any terms and we know exactly where to start.
-          i+=off;
-          off=0;
-        }
+          // if we are deep paging, we don't have to order the highest "offset" counts.
+          int collectCount = Math.max(0, queue.size() - off);
+          assert collectCount <= lim;
 
-        if (target == null) {
-        for (; i<nTerms; i++) {          
-          int c = counts[i];
-          if (c<mincount) continue;
-          BytesRef term = null;
-          if (termFilter != null) {
-            term = si.lookupOrd(startTermIndex+i);
-            if (!termFilter.test(term)) {
-              continue;
+          // the start and end indexes of our list "sorted" (starting with the highest value)
+          int sortedIdxStart = queue.size() - (collectCount - 1);
+          int sortedIdxEnd = queue.size() + 1;
+          final long[] sorted = queue.sort(collectCount);
+
+          for (int i=sortedIdxStart; i<sortedIdxEnd; i++) {
+            long pair = sorted[i];
+            int c = (int)(pair >>> 32);
+            int tnum = Integer.MAX_VALUE - (int)pair;
+            final BytesRef term = si.lookupOrd(startTermIndex+tnum);
+            ft.indexedToReadable(term, charsRef);
+            if (!(extend && addEntry(tmp, fieldName, (FieldType & FacetPayload)ft, charsRef, term, res, c))) {
+              res.add(charsRef.toString(), c);
             }
           }
-          if (--off>=0) continue;
-          if (--lim<0) break;
-          if (term == null) {
-            term = si.lookupOrd(startTermIndex+i);
-          }
-          ft.indexedToReadable(term, charsRef);
-          if (!(extend && addEntry(tmp, fieldName, (FieldType & FacetPayload)ft, charsRef, term, res, c))) {
-            res.add(charsRef.toString(), c);
-          }
-        }
+      
         } else {
-          int targetIdx = (int)si.lookupTerm(target);
-          Env env;
-          if (targetDoc != null) {
-            if (targetIdx < 0) {
-              targetDoc = "";
+          // add results in index order
+          int adjust=(startTermIndex==-1)?1:0;
+          int i = adjust;
+          if (mincount<=0 && termFilter == null) {
+            // if mincount<=0 and we're not examining the values for the term filter, then
+            // we won't discard any terms and we know exactly where to start.
+            i+=off;
+            off=0;
+          }
+
+          if (targets == null) {
+          for (; i<nTerms; i++) {          
+            int c = counts.get(i);
+            if (c<mincount) continue;
+            BytesRef term = null;
+            if (termFilter != null) {
+              term = si.lookupOrd(startTermIndex+i);
+              if (!termFilter.test(term)) {
+                continue;
+              }
             }
-            env = new LocalDocEnv(offset, limit, startTermIndex, adjust, targetIdx, targetDoc, nTerms, termFilter,
-                mincount, counts, charsRef, extend, si, searcher, docs, tmp, fieldName, ft, res, fl);
+            if (--off>=0) continue;
+            if (--lim<0) break;
+            if (term == null) {
+              term = si.lookupOrd(startTermIndex+i);
+            }
+            ft.indexedToReadable(term, charsRef);
+            if (!(extend && addEntry(tmp, fieldName, (FieldType & FacetPayload)ft, charsRef, term, res, c))) {
+              res.add(charsRef.toString(), c);
+            }
+          }
           } else {
-            env = new LocalTermEnv(offset, limit, startTermIndex, adjust, targetIdx, nTerms, termFilter,
-                mincount, counts, charsRef, extend, si, searcher, tmp, fieldName, ft, res);
+            final TermCounts envCounts;
+            if (counts != null && mincount > 1) {
+              // walks may then skip whole blocks of terms with counts below mincount
+              envCounts = BlockMaxTermCounts.build(counts, nTerms);
+            } else {
+              envCounts = termCounts;
+            }
+            final TermRankSelect acceptedTerms = targetDoc != null || termFilter != null ? null
+                : getAcceptedTerms(searcher, counts, fieldName, filterKey, startTermIndex, adjust, nTerms, offset, limit, mincount, fdebug);
+            // with multiple targets, each window is returned separately (keyed by target), and entries
+            // (with payloads) for terms in overlapping windows are built only once
+            final boolean keyed = targets.size() > 1;
+            final Map<Integer, Entry<String, Object>> sharedEntries = keyed && extend ? new HashMap<>() : null;
+            termVals.clear();
+            for (Entry<String, BytesRef> targetEntry : targets.entrySet()) {
+              final BytesRef target = targetEntry.getValue();
+              final NamedList window = keyed ? new NamedList<>() : res;
+              FacetSections sections = targetSection && ft instanceof MultiSerializable
+                  ? FacetSections.get(searcher, fieldName, (MultiSerializable)ft, si, target.utf8ToString()) : null;
+              int targetIdx;
+              if (sections == null) {
+                targetIdx = (int)si.lookupTerm(target);
+              } else {
+                int section = sections.ceiling(target);
+                targetIdx = sections.targetIdx(section);
+                SolrCache<List<Object>, TermRankSelect> liveTermsCache = searcher.getCache(TermRankSelect.CACHE_NAME);
+                TermRankSelect liveTerms = liveTermsCache == null ? null : liveTermsCache.get(Arrays.asList(fieldName, 1));
+                sections.describe(section, liveTerms, window);
+              }
+              LocalEnv env;
+              if (targetDoc != null) {
+                env = new LocalDocEnv(offset, limit, startTermIndex, adjust, targetIdx, targetIdx < 0 ? "" : targetDoc, nTerms, termFilter,
+                    mincount, envCounts, charsRef, extend, si, searcher, docs, tmp, fieldName, ft, window, fl, deferDocFields);
+              } else {
+                env = new LocalTermEnv(offset, limit, startTermIndex, adjust, targetIdx, nTerms, termFilter,
+                    mincount, envCounts, acceptedTerms, sharedEntries, charsRef, extend, si, searcher, tmp, fieldName, ft, window);
+              }
+              if (indexedKeys && ft instanceof MultiSerializable) {
+                env.captureIndexedTerms();
+              }
+              termVals.add(BidirectionalFacetResponseBuilder.build(env, targetDoc != null));
+              if (keyed) {
+                res.add(targetEntry.getKey(), window);
+              }
+            }
+            if (postingsTermCounts != null && fdebug != null) {
+              fdebug.putInfoItem("termsCounted", postingsTermCounts.termsCounted());
+              fdebug.putInfoItem("postingsVisited", postingsTermCounts.postingsVisited());
+            }
           }
-          termVals = BidirectionalFacetResponseBuilder.build(env, targetDoc != null);
+        }
+      } finally {
+        // counts are no longer referenced once results are built; a pooled store is returned
+        // to the pool even if counting (or building results) fails, since it is reset on reuse
+        if (counts != null) {
+          CountStorePool.release(searcher.getCore(), counts);
         }
       }
     }
 
     if (ft instanceof MultiSerializable && external) {
-      ((MultiSerializable)ft).updateExternalRepresentation(termVals);
+      for (NamedList window : termVals) {
+        ((MultiSerializable)ft).updateExternalRepresentation(window);
+      }
     }
 
     return finalize(res, searcher, schemaField, docs, missingCount, missing);
@@ -366,6 +464,389 @@ public class DocValuesFacets {
     return true;
   }
 
+  /**
+   * @return the cache of per-segment counts, if configured and applicable
+   */
+  static SolrCache<SegmentKey, int[]> getSegmentCountsCache(SolrIndexSearcher searcher, Object filterKey, int startTermIndex) {
+    if (filterKey == null || startTermIndex != -1 || !SegmentTermCounts.perSegment(filterKey)) {
+      return null;
+    }
+    return searcher.getCache(SegmentTermCounts.CACHE_NAME);
+  }
+
+  /**
+   * @return the total number of terms requested over the specified number of target windows
+   */
+  private static int windowLimit(int limit, int windows) {
+    return limit < 0 ? limit : (int) Math.min((long) limit * windows, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Stepping over accepted terms (for deep offsets relative to facet.target) costs a term lookup
+   * per term; building an index over accepted terms costs a pass over all counts. Per-term lookup
+   * is assumed to cost this many times more than checking a count.
+   */
+  private static final int ACCEPT_TERM_COST_SHIFT = 6;
+
+  /**
+   * @return a rank/select index over terms whose counts meet mincount (positions relative to the
+   * first term of the faceted range), allowing facet.target windows to skip directly to deep
+   * offsets; or null if the requested offset is not deep enough to justify building the index.
+   * Indexes over all docs are cached per-searcher, if {@value TermRankSelect#CACHE_NAME} is configured.
+   */
+  private static TermRankSelect getAcceptedTerms(SolrIndexSearcher searcher, CountStore counts, String fieldName, Object filterKey,
+      int startTermIndex, int adjust, int nTerms, int offset, int limit, int mincount, FacetDebugInfo fdebug) {
+    final int skippable = offset > limit ? offset - limit : -offset;
+    if (skippable <= 0 || limit <= 0) {
+      return null;
+    }
+    final SolrCache<List<Object>, TermRankSelect> cache = filterKey == SegmentTermCounts.ALL_DOCS && startTermIndex == -1
+        ? searcher.getCache(TermRankSelect.CACHE_NAME) : null;
+    final List<Object> cacheKey = cache == null ? null : Arrays.asList(fieldName, mincount);
+    TermRankSelect ret = cache == null ? null : cache.get(cacheKey);
+    if (ret != null) {
+      if (fdebug != null) {
+        fdebug.putInfoItem("acceptedTermsIndex", "cached");
+      }
+      return ret;
+    } else if (counts == null || (cache == null && skippable < (nTerms - adjust) >>> ACCEPT_TERM_COST_SHIFT)) {
+      // counts are computed lazily (only for terms in the window), or offset is too shallow to benefit
+      return null;
+    }
+    ret = TermRankSelect.build(counts, adjust, nTerms, mincount);
+    if (cache != null) {
+      cache.put(cacheKey, ret);
+    }
+    if (fdebug != null) {
+      fdebug.putInfoItem("acceptedTermsIndex", "built");
+    }
+    return ret;
+  }
+
+  /**
+   * @return top-level (global ord) term values for the specified field, or null if the field has
+   * no docValues in the index
+   */
+  static SortedSetDocValues termValues(SolrIndexSearcher searcher, String fieldName, boolean multiValued) throws IOException {
+    if (multiValued) {
+      return searcher.getSlowAtomicReader().getSortedSetDocValues(fieldName);
+    } else {
+      SortedDocValues single = searcher.getSlowAtomicReader().getSortedDocValues(fieldName);
+      return single == null ? null : DocValues.singleton(single);
+    }
+  }
+
+  /**
+   * @return the mapping from per-segment to global ords for the specified (top-level) term values,
+   * or null if segment ords are global ords
+   */
+  static OrdinalMap ordinalMap(SortedSetDocValues si) {
+    if (si instanceof MultiSortedSetDocValues) {
+      return ((MultiSortedSetDocValues)si).mapping;
+    } else if (DocValues.unwrapSingleton(si) instanceof MultiSortedDocValues) {
+      return ((MultiSortedDocValues)DocValues.unwrapSingleton(si)).mapping;
+    }
+    return null;
+  }
+
+  /**
+   * @return counts over all live docs for all terms of the specified field (indexed by global ord + 1,
+   * with the missing count at index 0), reusing cached per-segment counts where possible
+   */
+  static CountStore countLiveDocs(SolrIndexSearcher searcher, String fieldName, boolean multiValued, SortedSetDocValues si) throws IOException {
+    OrdinalMap ordinalMap = ordinalMap(si);
+    CountStore counts = new CountStore.ArrayCountStore((int) si.getValueCount() + 1);
+    SolrCache<SegmentKey, int[]> segmentCountsCache = getSegmentCountsCache(searcher, SegmentTermCounts.ALL_DOCS, -1);
+    if (segmentCountsCache != null) {
+      int[][] segCounts = SegmentTermCounts.getSegmentCounts(searcher, segmentCountsCache, searcher.getLiveDocs(),
+          fieldName, multiValued, SegmentTermCounts.ALL_DOCS, null);
+      SegmentTermCounts.migrateGlobal(counts, segCounts, ordinalMap);
+    } else {
+      accumCounts(counts, -1, searcher, searcher.getLiveDocs(), fieldName, multiValued, ordinalMap, false);
+    }
+    return counts;
+  }
+
+  /**
+   * counts all terms for the specified segment, over docs from the specified iterator
+   * @return counts in segment ord space, with the missing count at index 0
+   */
+  static int[] countSegment(LeafReader reader, DocIdSetIterator disi, String fieldName, boolean multiValued) throws IOException {
+    final int[] segCounts;
+    if (multiValued) {
+      SortedSetDocValues sub = reader.getSortedSetDocValues(fieldName);
+      if (sub == null) {
+        sub = DocValues.emptySortedSet();
+      }
+      segCounts = new int[1 + (int) sub.getValueCount()];
+      final SortedDocValues singleton = DocValues.unwrapSingleton(sub);
+      if (singleton != null) {
+        countSingleSeg(segCounts, singleton, disi);
+      } else {
+        countMultiSeg(segCounts, sub, disi);
+      }
+    } else {
+      SortedDocValues sub = reader.getSortedDocValues(fieldName);
+      if (sub == null) {
+        sub = DocValues.emptySorted();
+      }
+      segCounts = new int[1 + sub.getValueCount()];
+      countSingleSeg(segCounts, sub, disi);
+    }
+    return segCounts;
+  }
+
+  /**
+   * Builds per-segment Bits over the request DocSet, of the form expected by
+   * {@link FacetPayload} (null Bits indicates that every doc in the segment
+   * matches; the reader's liveDocs, that every live doc matches).
+   */
+  static List<Entry<LeafReader, Bits>> leafBits(SolrIndexSearcher searcher, DocSet docs) {
+    List<LeafReaderContext> leaves = searcher.getTopReaderContext().leaves();
+    List<Entry<LeafReader, Bits>> ret = new ArrayList<>(leaves.size());
+    boolean allLive = docs.size() == searcher.numDocs();
+    for (LeafReaderContext leaf : leaves) {
+      LeafReader reader = leaf.reader();
+      Bits bits;
+      if (allLive) {
+        bits = reader.getLiveDocs();
+      } else {
+        final int docBase = leaf.docBase;
+        final int maxDoc = reader.maxDoc();
+        bits = new Bits() {
+          @Override
+          public boolean get(int index) {
+            return docs.exists(docBase + index);
+          }
+
+          @Override
+          public int length() {
+            return maxDoc;
+          }
+        };
+      }
+      ret.add(new SimpleImmutableEntry<>(reader, bits));
+    }
+    return ret;
+  }
+
+  /**
+   * accumulates counts for all terms over all docs in the specified DocSet
+   * @return if extend, per-segment Bits of matching docs; otherwise null
+   */
+  private static List<Entry<LeafReader, Bits>> accumCounts(CountStore counts, int startTermIndex, SolrIndexSearcher searcher, DocSet docs,
+      String fieldName, boolean multiValued, OrdinalMap ordinalMap, boolean extend) throws IOException {
+    Filter filter = docs.getTopFilter();
+    List<BitsBuilderDocIdSetIterator> bitsBuilders = extend ? new ArrayList<>() : null;
+    List<LeafReaderContext> leaves = searcher.getTopReaderContext().leaves();
+    for (int subIndex = 0; subIndex < leaves.size(); subIndex++) {
+      LeafReaderContext leaf = leaves.get(subIndex);
+      DocIdSet dis = filter.getDocIdSet(leaf, null); // solr docsets already exclude any deleted docs
+      DocIdSetIterator disi = null;
+      if (dis != null) {
+        disi = dis.iterator();
+      }
+      if (disi != null) {
+        if (extend) {
+          BitsBuilderDocIdSetIterator bitsBuilder = new BitsBuilderDocIdSetIterator(disi, leaf.reader());
+          disi = bitsBuilder;
+          bitsBuilders.add(bitsBuilder);
+        }
+        if (multiValued) {
+          SortedSetDocValues sub = leaf.reader().getSortedSetDocValues(fieldName);
+          if (sub == null) {
+            sub = DocValues.emptySortedSet();
+          }
+          final SortedDocValues singleton = DocValues.unwrapSingleton(sub);
+          if (singleton != null) {
+            // some codecs may optimize SORTED_SET storage for single-valued fields
+            accumSingle(counts, startTermIndex, singleton, disi, subIndex, ordinalMap);
+          } else {
+            accumMulti(counts, startTermIndex, sub, disi, subIndex, ordinalMap);
+          }
+        } else {
+          SortedDocValues sub = leaf.reader().getSortedDocValues(fieldName);
+          if (sub == null) {
+            sub = DocValues.emptySorted();
+          }
+          accumSingle(counts, startTermIndex, sub, disi, subIndex, ordinalMap);
+        }
+      }
+    }
+    if (!extend) {
+      return null;
+    }
+    List<Entry<LeafReader, Bits>> ret = new ArrayList<>(bitsBuilders.size());
+    for (BitsBuilderDocIdSetIterator bitsBuilder : bitsBuilders) {
+      ret.add(new SimpleImmutableEntry<>(bitsBuilder.reader, bitsBuilder.getBits()));
+    }
+    return ret;
+  }
+
+  /**
+   * accumulates counts for all terms over all docs in the specified DocSet, counting each segment
+   * concurrently (in per-segment ord space) on the facet executor, and migrating per-segment counts
+   * to global ord space in segment (submission) order, each as soon as it and all preceding segments
+   * are counted. Only applicable where startTermIndex == -1 (no prefix).
+   * @param threads maximum number of segments to count concurrently (must be positive: each concurrent
+   * task allocates a count array over all terms of its segment, so concurrency is opt-in and bounded)
+   * @return if extend, per-segment Bits of matching docs; otherwise null
+   */
+  private static List<Entry<LeafReader, Bits>> accumCountsParallel(CountStore counts, SolrIndexSearcher searcher, DocSet docs,
+      String fieldName, boolean multiValued, OrdinalMap ordinalMap, boolean extend, int threads, FacetDebugInfo fdebug) throws IOException {
+    Filter filter = docs.getTopFilter();
+    List<BitsBuilderDocIdSetIterator> bitsBuilders = extend ? new ArrayList<>() : null;
+    List<LeafReaderContext> leaves = searcher.getTopReaderContext().leaves();
+    List<Future<int[]>> futures = new ArrayList<>(leaves.size());
+    IntArrayList subIndexes = new IntArrayList(leaves.size());
+    final Semaphore semaphore = new Semaphore(threads);
+    try {
+      for (int i = 0; i < leaves.size(); i++) {
+        final int subIndex = i;
+        final LeafReaderContext leaf = leaves.get(subIndex);
+        DocIdSet dis = filter.getDocIdSet(leaf, null); // solr docsets already exclude any deleted docs
+        DocIdSetIterator tmpDisi = dis == null ? null : dis.iterator();
+        if (tmpDisi == null) {
+          continue;
+        }
+        if (extend) {
+          BitsBuilderDocIdSetIterator bitsBuilder = new BitsBuilderDocIdSetIterator(tmpDisi, leaf.reader());
+          tmpDisi = bitsBuilder;
+          bitsBuilders.add(bitsBuilder);
+        }
+        final DocIdSetIterator disi = tmpDisi;
+        Callable<int[]> callable = () -> {
+          try {
+            return countSegment(leaf.reader(), disi, fieldName, multiValued);
+          } finally {
+            semaphore.release();
+          }
+        };
+        RunnableFuture<int[]> runnableFuture = new FutureTask<>(callable);
+        semaphore.acquire(); // may block and/or interrupt
+        SimpleFacets.facetExecutor.execute(runnableFuture); // releases semaphore when done
+        futures.add(runnableFuture);
+        subIndexes.add(subIndex);
+      }
+      if (fdebug != null) {
+        fdebug.putInfoItem("segmentTasks", futures.size());
+      }
+      for (int i = 0; i < futures.size(); i++) {
+        migrateGlobal(counts, futures.get(i).get(), subIndexes.get(i), ordinalMap);
+      }
+    } catch (InterruptedException e) {
+      throw new SolrException(ErrorCode.SERVER_ERROR, "Error while counting facet segments: InterruptedException", e);
+    } catch (ExecutionException ee) {
+      Throwable e = ee.getCause(); // unwrap
+      if (e instanceof IOException) {
+        throw (IOException) e;
+      } else if (e instanceof RuntimeException) {
+        throw (RuntimeException) e;
+      }
+      throw new SolrException(ErrorCode.SERVER_ERROR, "Error while counting facet segments: " + e.toString(), e);
+    }
+    if (!extend) {
+      return null;
+    }
+    List<Entry<LeafReader, Bits>> ret = new ArrayList<>(bitsBuilders.size());
+    for (BitsBuilderDocIdSetIterator bitsBuilder : bitsBuilders) {
+      ret.add(new SimpleImmutableEntry<>(bitsBuilder.reader, bitsBuilder.getBits()));
+    }
+    return ret;
+  }
+
+  /**
+   * @return true if a facet.target window (or windows) over all terms of the field would be counted term-at-a-time
+   */
+  static boolean prefersTermCounting(SolrIndexSearcher searcher, DocSet docs, SchemaField schemaField, int offset, int limit,
+      int mincount, int windows, Predicate<BytesRef> termFilter, String targetCounting) throws IOException {
+    SortedSetDocValues si = termValues(searcher, schemaField.getName(), schemaField.multiValued() || schemaField.getType().multiValuedFieldCache());
+    if (si == null || si.getValueCount() == 0) {
+      return false;
+    }
+    // as for getCounts with no prefix (where nTerms includes the "missing" slot)
+    final int nTerms = (int) si.getValueCount() + 1;
+    return useTermCounting(searcher, docs, schemaField, offset, windowLimit(limit, windows), mincount, nTerms, si.getValueCount(), termFilter, targetCounting, null);
+  }
+
+  /**
+   * Determines whether counts for a facet.target window should be computed term-at-a-time
+   * (intersecting the postings of each visited term with the DocSet; see {@link PostingsTermCounts})
+   * rather than by counting all terms over all docs in the DocSet. Absent an explicit choice,
+   * this compares rough estimates of the number of postings visited by each strategy: the
+   * number of terms expected to be visited to fill the window (accounting for terms skipped
+   * for falling below mincount), times the average docFreq; vs. the number of values over
+   * all docs in the DocSet, plus the cost of allocating/scanning a count for every term.
+   */
+  private static boolean useTermCounting(SolrIndexSearcher searcher, DocSet docs, SchemaField schemaField, int offset, int limit,
+      int mincount, int nTerms, long fieldTerms, Predicate<BytesRef> termFilter, String targetCounting, FacetDebugInfo fdebug) throws IOException {
+    final boolean ret;
+    if (!schemaField.indexed()) {
+      // no postings to count
+      ret = false;
+    } else if (FacetParams.FACET_TARGET_COUNTING_TERM.equals(targetCounting)) {
+      ret = true;
+    } else if (FacetParams.FACET_TARGET_COUNTING_DV.equals(targetCounting)) {
+      ret = false;
+    } else if (limit < 0 || termFilter != null) {
+      // unbounded window, or unbounded number of terms potentially rejected by termFilter
+      ret = false;
+    } else {
+      final int maxDoc = searcher.maxDoc();
+      Terms terms = searcher.getSlowAtomicReader().terms(schemaField.getName());
+      long sumDocFreq = terms == null ? -1 : terms.getSumDocFreq();
+      if (sumDocFreq < 0) {
+        sumDocFreq = maxDoc;
+      }
+      final double[] costs = countingCosts(offset, limit, mincount, nTerms, fieldTerms, sumDocFreq, maxDoc, docs.size());
+      ret = costs[0] < costs[1];
+      if (fdebug != null) {
+        fdebug.putInfoItem("termCountingCost", (long) costs[0]);
+        fdebug.putInfoItem("docValuesCountingCost", (long) costs[1]);
+      }
+    }
+    if (fdebug != null) {
+      fdebug.putInfoItem("targetCounting", ret ? FacetParams.FACET_TARGET_COUNTING_TERM : FacetParams.FACET_TARGET_COUNTING_DV);
+    }
+    return ret;
+  }
+
+  /**
+   * @param nTerms number of terms in the range over which the window may be built
+   * @param fieldTerms number of terms in the field
+   * @param numDocs number of docs in the DocSet
+   * @return the estimated cost of term-at-a-time counting (index 0) and of counting all terms over
+   * all docs (index 1) for a window of the specified geometry (see {@link #useTermCounting})
+   */
+  static double[] countingCosts(int offset, int limit, int mincount, int nTerms, long fieldTerms, long sumDocFreq,
+      int maxDoc, int numDocs) {
+    final double avgDocFreq = (double) sumDocFreq / Math.max(1, fieldTerms);
+    final double density = (double) numDocs / Math.max(1, maxDoc);
+    final double pAccept = probabilityAtLeast(avgDocFreq * density, mincount);
+    final double window = Math.abs((long) offset) + limit;
+    final double termsVisited = pAccept <= 0 ? nTerms : Math.min(nTerms, window / pAccept);
+    final double termCost = termsVisited * avgDocFreq;
+    final double docCost = numDocs * ((double) sumDocFreq / Math.max(1, maxDoc)) + nTerms;
+    return new double[] {termCost, docCost};
+  }
+
+  /**
+   * @return the probability that a poisson-distributed variable with the specified mean is
+   * greater than or equal to min.
+   */
+  private static double probabilityAtLeast(double mean, int min) {
+    if (min <= 0) {
+      return 1;
+    }
+    double term = Math.exp(-mean);
+    double cumulative = 0;
+    for (int k = 0; k < min; k++) {
+      cumulative += term;
+      term *= mean / (k + 1);
+    }
+    return Math.max(0, 1 - cumulative);
+  }
+
   /** finalizes result: computes missing count if applicable */
   static NamedList<Integer> finalize(NamedList<Integer> res, SolrIndexSearcher searcher, SchemaField schemaField, DocSet docs, int missingCount, boolean missing) throws IOException {
     if (missing) {
@@ -379,7 +860,7 @@ public class DocValuesFacets {
   }
   
   /** accumulates per-segment single-valued facet counts */
-  static void accumSingle(int counts[], int startTermIndex, SortedDocValues si, DocIdSetIterator disi, int subIndex, OrdinalMap map) throws IOException {
+  static void accumSingle(CountStore counts, int startTermIndex, SortedDocValues si, DocIdSetIterator disi, int subIndex, OrdinalMap map) throws IOException {
     if (startTermIndex == -1 && (map == null || si.getValueCount() < disi.cost()*10)) {
       // no prefixing, not too many unique values wrt matching docs (lucene/facets heuristic): 
       //   collect separately per-segment, then map to global ords
@@ -391,8 +872,10 @@ public class DocValuesFacets {
   }
   
   /** accumulates per-segment single-valued facet counts, mapping to global ordinal space on-the-fly */
-  static void accumSingleGeneric(int counts[], int startTermIndex, SortedDocValues si, DocIdSetIterator disi, int subIndex, OrdinalMap map) throws IOException {
+  static void accumSingleGeneric(CountStore counts, int startTermIndex, SortedDocValues si, DocIdSetIterator disi, int subIndex, OrdinalMap map) throws IOException {
     final LongValues ordmap = map == null ? null : map.getGlobalOrds(subIndex);
+    final int size = counts.size();
+    final int[] arr = counts instanceof CountStore.ArrayCountStore ? ((CountStore.ArrayCountStore) counts).array() : null;
     int doc;
     while ((doc = disi.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
       int term = si.getOrd(doc);
@@ -400,33 +883,45 @@ public class DocValuesFacets {
         term = (int) ordmap.get(term);
       }
       int arrIdx = term-startTermIndex;
-      if (arrIdx>=0 && arrIdx<counts.length) counts[arrIdx]++;
+      if (arrIdx>=0 && arrIdx<size) {
+        if (arr != null) {
+          arr[arrIdx]++;
+        } else {
+          counts.increment(arrIdx);
+        }
+      }
     }
   }
   
   /** "typical" single-valued faceting: not too many unique values, no prefixing. maps to global ordinals as a separate step */
-  static void accumSingleSeg(int counts[], SortedDocValues si, DocIdSetIterator disi, int subIndex, OrdinalMap map) throws IOException {
-    // First count in seg-ord space:
-    final int segCounts[];
-    if (map == null) {
-      segCounts = counts;
+  static void accumSingleSeg(CountStore counts, SortedDocValues si, DocIdSetIterator disi, int subIndex, OrdinalMap map) throws IOException {
+    if (map == null && counts instanceof CountStore.ArrayCountStore) {
+      // segment ord space is global ord space; count directly into the backing array
+      countSingleSeg(((CountStore.ArrayCountStore) counts).array(), si, disi);
+    } else if (map == null) {
+      // segment ord space is global ord space
+      int doc;
+      while ((doc = disi.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+        counts.increment(1+si.getOrd(doc));
+      }
     } else {
-      segCounts = new int[1+si.getValueCount()];
+      // First count in seg-ord space, then migrate to global ords
+      final int segCounts[] = new int[1+si.getValueCount()];
+      countSingleSeg(segCounts, si, disi);
+      migrateGlobal(counts, segCounts, subIndex, map);
     }
-    
+  }
+
+  /** counts single-valued facet values in segment ordinal space (with missing count at index 0) */
+  static void countSingleSeg(int segCounts[], SortedDocValues si, DocIdSetIterator disi) throws IOException {
     int doc;
     while ((doc = disi.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
       segCounts[1+si.getOrd(doc)]++;
     }
-    
-    // migrate to global ords (if necessary)
-    if (map != null) {
-      migrateGlobal(counts, segCounts, subIndex, map);
-    }
   }
   
   /** accumulates per-segment multi-valued facet counts */
-  static void accumMulti(int counts[], int startTermIndex, SortedSetDocValues si, DocIdSetIterator disi, int subIndex, OrdinalMap map) throws IOException {
+  static void accumMulti(CountStore counts, int startTermIndex, SortedSetDocValues si, DocIdSetIterator disi, int subIndex, OrdinalMap map) throws IOException {
     if (startTermIndex == -1 && (map == null || si.getValueCount() < disi.cost()*10)) {
       // no prefixing, not too many unique values wrt matching docs (lucene/facets heuristic): 
       //   collect separately per-segment, then map to global ords
@@ -438,8 +933,10 @@ public class DocValuesFacets {
   }
     
   /** accumulates per-segment multi-valued facet counts, mapping to global ordinal space on-the-fly */
-  static void accumMultiGeneric(int counts[], int startTermIndex, SortedSetDocValues si, DocIdSetIterator disi, int subIndex, OrdinalMap map) throws IOException {
+  static void accumMultiGeneric(CountStore counts, int startTermIndex, SortedSetDocValues si, DocIdSetIterator disi, int subIndex, OrdinalMap map) throws IOException {
     final LongValues ordMap = map == null ? null : map.getGlobalOrds(subIndex);
+    final int size = counts.size();
+    final int[] arr = counts instanceof CountStore.ArrayCountStore ? ((CountStore.ArrayCountStore) counts).array() : null;
     int doc;
     while ((doc = disi.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
       si.setDocument(doc);
@@ -447,7 +944,7 @@ public class DocValuesFacets {
       int term = (int) si.nextOrd();
       if (term < 0) {
         if (startTermIndex == -1) {
-          counts[0]++; // missing count
+          counts.increment(0); // missing count
         }
         continue;
       }
@@ -457,51 +954,82 @@ public class DocValuesFacets {
           term = (int) ordMap.get(term);
         }
         int arrIdx = term-startTermIndex;
-        if (arrIdx>=0 && arrIdx<counts.length) counts[arrIdx]++;
+        if (arrIdx>=0 && arrIdx<size) {
+          if (arr != null) {
+            arr[arrIdx]++;
+          } else {
+            counts.increment(arrIdx);
+          }
+        }
       } while ((term = (int) si.nextOrd()) >= 0);
     }
   }
   
   /** "typical" multi-valued faceting: not too many unique values, no prefixing. maps to global ordinals as a separate step */
-  static void accumMultiSeg(int counts[], SortedSetDocValues si, DocIdSetIterator disi, int subIndex, OrdinalMap map) throws IOException {
-    // First count in seg-ord space:
-    final int segCounts[];
-    if (map == null) {
-      segCounts = counts;
+  static void accumMultiSeg(CountStore counts, SortedSetDocValues si, DocIdSetIterator disi, int subIndex, OrdinalMap map) throws IOException {
+    if (map == null && counts instanceof CountStore.ArrayCountStore) {
+      // segment ord space is global ord space; count directly into the backing array
+      countMultiSeg(((CountStore.ArrayCountStore) counts).array(), si, disi);
+    } else if (map == null) {
+      // segment ord space is global ord space
+      int doc;
+      while ((doc = disi.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+        si.setDocument(doc);
+        int term = (int) si.nextOrd();
+        if (term < 0) {
+          counts.increment(0); // missing
+        } else {
+          do {
+            counts.increment(1+term);
+          } while ((term = (int)si.nextOrd()) >= 0);
+        }
+      }
     } else {
-      segCounts = new int[1+(int)si.getValueCount()];
+      // First count in seg-ord space, then migrate to global ords
+      final int segCounts[] = new int[1+(int)si.getValueCount()];
+      countMultiSeg(segCounts, si, disi);
+      migrateGlobal(counts, segCounts, subIndex, map);
     }
-    
+  }
+
+  /** counts multi-valued facet values in segment ordinal space (with missing count at index 0) */
+  static void countMultiSeg(int segCounts[], SortedSetDocValues si, DocIdSetIterator disi) throws IOException {
     int doc;
     while ((doc = disi.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
       si.setDocument(doc);
       int term = (int) si.nextOrd();
       if (term < 0) {
-        counts[0]++; // missing
+        segCounts[0]++; // missing
       } else {
         do {
           segCounts[1+term]++;
         } while ((term = (int)si.nextOrd()) >= 0);
       }
     }
-    
-    // migrate to global ords (if necessary)
-    if (map != null) {
-      migrateGlobal(counts, segCounts, subIndex, map);
-    }
   }
   
   /** folds counts in segment ordinal space (segCounts) into global ordinal space (counts) */
-  static void migrateGlobal(int counts[], int segCounts[], int subIndex, OrdinalMap map) {
+  static void migrateGlobal(CountStore counts, int segCounts[], int subIndex, OrdinalMap map) {
     final LongValues ordMap = map.getGlobalOrds(subIndex);
+    if (counts instanceof CountStore.ArrayCountStore) {
+      final int[] arr = ((CountStore.ArrayCountStore) counts).array();
+      arr[0] += segCounts[0];
+      for (int ord = 1; ord < segCounts.length; ord++) {
+        int count = segCounts[ord];
+        if (count != 0) {
+          arr[1+(int) ordMap.get(ord-1)] += count;
+        }
+      }
+      return;
+    }
     // missing count
-    counts[0] += segCounts[0];
+    counts.add(0, segCounts[0]);
     
     // migrate actual ordinals
     for (int ord = 1; ord < segCounts.length; ord++) {
       int count = segCounts[ord];
       if (count != 0) {
-        counts[1+(int) ordMap.get(ord-1)] += count;
+        counts.add(1+(int) ordMap.get(ord-1), count);
       }
     }
   }
@@ -25,6 +25,13 @@ import org.apache.lucene.util.Bits;
 import org.apache.solr.common.util.NamedList;
 
 /**
+ * Each entry in the "leaves" argument to addEntry() pairs a segment reader with
+ * the Bits of documents in that segment that match the request; a null Bits
+ * value indicates that every document in the segment matches (i.e., the segment
+ * has no deletions, and the request is unfiltered with respect to the segment).
+ * Where every live document in a segment with deletions matches, the Bits value is
+ * the segment reader's own liveDocs instance (so that implementations may detect
+ * this case by identity).
  *
  * @author magibney
  */
@@ -32,6 +39,25 @@ public interface FacetPayload<T> {
   long extractCount(T val);
   boolean addEntry(String termKey, long count, Term term, List<Entry<LeafReader, Bits>> leaves, NamedList<T> res) throws IOException;
   Entry<String, T> addEntry(String termKey, long count, Term term, List<Entry<LeafReader, Bits>> leaves) throws IOException;
+
+  /**
+   * @return the result of merging add into preExisting (which may be preExisting itself, modified
+   * in place, or a new accumulator of implementation-specific type), to be passed as preExisting
+   * when merging subsequent values for the same term; or null if the implementation does not
+   * merge values. Accumulators must be accepted as values by the other methods of this interface,
+   * and are converted to their external form by {@link #updateValueExternalRepresentation(Object)}.
+   */
   T mergePayload(T preExisting, T add, long preExistingCount, long addCount);
+
   Object updateValueExternalRepresentation(T internal);
+
+  /**
+   * @return a compact representation of the specified value, for transfer from shard to
+   * aggregator; the compact representation must be accepted in place of the value by
+   * {@link #extractCount(Object)}, {@link #mergePayload(Object, Object, long, long)} and
+   * {@link #updateValueExternalRepresentation(Object)}
+   */
+  default Object compactPayload(T val) {
+    return val;
+  }
 }
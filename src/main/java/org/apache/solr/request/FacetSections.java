@@ -0,0 +1,224 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.CharsRefBuilder;
+import org.apache.lucene.util.StringHelper;
+import org.apache.lucene.util.UnicodeUtil;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Per-searcher jump table for alphabetical browse navigation ("sections") over a
+ * {@link MultiSerializable} field: maps each distinct leading sequence of (up to) a
+ * given number of code points of normalized term values to the first ordinal of the
+ * section (and thus to the number of terms preceding the section). Tables are cached in a
+ * user-defined SolrCache named {@value #CACHE_NAME} (if configured), keyed by field
+ * and depth, so that facet.target.section requests resolve the target ordinal without
+ * analysis or term dictionary lookups.
+ *
+ * Terms whose normalized value is shorter than the table depth form a section of their
+ * own, preceding longer values that share the same leading code points.
+ *
+ * To enable, configure in solrconfig.xml, e.g.:
+ * <pre>
+ * &lt;cache name="xfacetSections" class="solr.LRUCache" size="32" initialSize="8"
+ *     autowarmCount="100%" regenerator="org.apache.solr.request.FacetSections$Regenerator"/&gt;
+ * </pre>
+ *
+ * @author magibney
+ */
+public final class FacetSections {
+
+  public static final String CACHE_NAME = "xfacetSections";
+
+  /**
+   * section keys longer than this (in code points) are resolved via the term dictionary
+   */
+  public static final int MAX_DEPTH = 4;
+
+  private final BytesRef[] keys;
+  private final String[] labels;
+  private final int[] startOrds;
+  private final int valueCount;
+
+  private FacetSections(BytesRef[] keys, String[] labels, int[] startOrds, int valueCount) {
+    this.keys = keys;
+    this.labels = labels;
+    this.startOrds = startOrds;
+    this.valueCount = valueCount;
+  }
+
+  /**
+   * @return the jump table for the specified field, at a depth equal to the number of code
+   * points in the specified section key; or null if sections are not supported for this
+   * request (no cache configured, or key too long).
+   */
+  public static FacetSections get(SolrIndexSearcher searcher, String fieldName, MultiSerializable ft,
+      SortedSetDocValues si, String sectionKey) throws IOException {
+    int depth = sectionKey.codePointCount(0, sectionKey.length());
+    if (depth == 0 || depth > MAX_DEPTH) {
+      return null;
+    }
+    SolrCache<List<Object>, FacetSections> cache = searcher.getCache(CACHE_NAME);
+    if (cache == null) {
+      return null;
+    }
+    List<Object> cacheKey = Arrays.asList(fieldName, depth);
+    FacetSections ret = cache.get(cacheKey);
+    if (ret == null) {
+      // concurrent builds for a new searcher are harmless (last put wins)
+      ret = build(si, ft, depth);
+      cache.put(cacheKey, ret);
+    }
+    return ret;
+  }
+
+  /**
+   * Rebuilds tables for fields and depths in use by the previous searcher (so that sections
+   * need not be rebuilt on first request).
+   */
+  public static class Regenerator implements CacheRegenerator {
+
+    @Override
+    public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache, SolrCache oldCache, Object oldKey, Object oldVal) throws IOException {
+      List<Object> key = (List<Object>) oldKey;
+      String fieldName = (String) key.get(0);
+      SchemaField sf = newSearcher.getSchema().getFieldOrNull(fieldName);
+      if (sf != null && sf.getType() instanceof MultiSerializable) {
+        SortedSetDocValues si = DocValuesFacets.termValues(newSearcher, fieldName, sf.multiValued() || sf.getType().multiValuedFieldCache());
+        if (si != null) {
+          newCache.put(oldKey, build(si, (MultiSerializable) sf.getType(), (Integer) key.get(1)));
+        }
+      }
+      return true;
+    }
+
+  }
+
+  /**
+   * Builds a table by visiting the first term of each section; the start of the following
+   * section is found by seeking past all terms sharing the section's key.
+   */
+  static FacetSections build(SortedSetDocValues si, MultiSerializable ft, int depth) throws IOException {
+    final int valueCount = (int) si.getValueCount();
+    final BytesRef delim = new BytesRef(ft.getDelim());
+    List<BytesRef> keys = new ArrayList<>();
+    List<String> labels = new ArrayList<>();
+    List<Integer> startOrds = new ArrayList<>();
+    CharsRefBuilder normalized = new CharsRefBuilder();
+    BytesRefBuilder seek = new BytesRefBuilder();
+    int ord = 0;
+    while (ord < valueCount) {
+      BytesRef term = si.lookupOrd(ord);
+      String value = ft.indexedToNormalized(term, normalized).toString();
+      String label;
+      BytesRef key;
+      if (value.codePointCount(0, value.length()) >= depth) {
+        label = value.substring(0, value.offsetByCodePoints(0, depth));
+        key = new BytesRef(label);
+      } else {
+        label = value;
+        BytesRefBuilder builder = new BytesRefBuilder();
+        builder.copyChars(value);
+        builder.append(delim);
+        key = builder.get();
+      }
+      if (!StringHelper.startsWith(term, key)) {
+        // term not structured as expected; treat as a section of its own
+        key = BytesRef.deepCopyOf(term);
+        label = value;
+      }
+      keys.add(key);
+      labels.add(label);
+      startOrds.add(ord);
+      seek.copyBytes(key);
+      seek.append(UnicodeUtil.BIG_TERM);
+      long next = si.lookupTerm(seek.get());
+      next = next < 0 ? -next - 1 : next + 1;
+      ord = Math.max(ord + 1, (int) next);
+    }
+    int[] ords = new int[startOrds.size()];
+    for (int i = 0; i < ords.length; i++) {
+      ords[i] = startOrds.get(i);
+    }
+    return new FacetSections(keys.toArray(new BytesRef[keys.size()]), labels.toArray(new String[labels.size()]), ords, valueCount);
+  }
+
+  /**
+   * @return the index of the first section whose key is greater than or equal to the specified
+   * (UTF-8) section key, or {@link #size()} if there is no such section
+   */
+  public int ceiling(BytesRef sectionKey) {
+    int lo = 0;
+    int hi = keys.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (keys[mid].compareTo(sectionKey) < 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  public int size() {
+    return keys.length;
+  }
+
+  /**
+   * @return the target index (as would be returned by SortedSetDocValues.lookupTerm for the section
+   * key, i.e., the encoded insertion point) for the section at the specified index
+   */
+  public int targetIdx(int section) {
+    return ~(section < keys.length ? startOrds[section] : valueCount);
+  }
+
+  /**
+   * Adds a description of the specified section and its neighbors to the specified response.
+   *
+   * @param liveTerms if non-null, an index over terms occurring in at least one live document
+   * (positions corresponding to ords), used to report the number of such terms preceding the
+   * section; otherwise the reported rank is the section's start ord (i.e., also counting terms
+   * that occur only in deleted documents).
+   */
+  public void describe(int section, TermRankSelect liveTerms, NamedList<Object> res) {
+    if (section < keys.length) {
+      int startOrd = startOrds[section];
+      res.add("section", labels[section]);
+      res.add("section_rank", liveTerms == null ? startOrd : liveTerms.rank(startOrd));
+    }
+    if (section > 0) {
+      res.add("previous_section", labels[section - 1]);
+    }
+    if (section + 1 < keys.length) {
+      res.add("next_section", labels[section + 1]);
+    }
+  }
+
+}
@@ -0,0 +1,231 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+import org.apache.lucene.util.fst.Util;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Per-searcher prefix completion ("typeahead") over the terms of a {@link MultiSerializable}
+ * field. Indexed terms (which begin with their normalized form) are compiled into an FST whose
+ * output for each term encodes both its weight (the number of live docs containing the term)
+ * and its ordinal; completions for a normalized prefix are then the top-weighted paths below
+ * the prefix node, found without counting or visiting the term dictionary. Terms occurring
+ * only in deleted docs are omitted.
+ *
+ * Ordinals are only meaningful for the index version for which they were reported; callers
+ * pass them back (with the version) as {@link #resolveTarget(SolrIndexSearcher, SortedSetDocValues, String)
+ * targets} for subsequent browse requests, which then require no analysis of facet.target.
+ *
+ * Suggesters are cached in a user-defined SolrCache named {@value #CACHE_NAME}, keyed by field
+ * name; suggestions are not supported unless the cache is configured. To enable, configure in
+ * solrconfig.xml, e.g.:
+ * <pre>
+ * &lt;cache name="xfacetSuggest" class="solr.LRUCache" size="16" initialSize="4"
+ *     autowarmCount="100%" regenerator="org.apache.solr.request.FacetSuggester$Regenerator"/&gt;
+ * </pre>
+ *
+ * @author magibney
+ */
+public final class FacetSuggester {
+
+  public static final String CACHE_NAME = "xfacetSuggest";
+
+  private static final PositiveIntOutputs OUTPUTS = PositiveIntOutputs.getSingleton();
+
+  /**
+   * FST outputs are summed along paths, and TopNSearcher returns minimal outputs first; weights
+   * are thus inverted in the high bits, with ordinals (breaking ties in index order) in the low bits.
+   */
+  private static final Comparator<Long> MIN_OUTPUT_FIRST = Comparator.naturalOrder();
+
+  private final FST<Long> fst; // null if the field has no terms in live docs
+  private final long version;
+
+  private FacetSuggester(FST<Long> fst, long version) {
+    this.fst = fst;
+    this.version = version;
+  }
+
+  public static final class Suggestion {
+
+    /**
+     * the indexed form of the suggested term
+     */
+    public final BytesRef term;
+    public final int count;
+    public final int ord;
+
+    private Suggestion(BytesRef term, int count, int ord) {
+      this.term = term;
+      this.count = count;
+      this.ord = ord;
+    }
+
+  }
+
+  /**
+   * @return the suggester for the specified field, from cache where possible; or null if
+   * suggestions are not supported (no cache configured), since an uncached suggester would
+   * be rebuilt from the field's terms for every request.
+   */
+  public static FacetSuggester get(SolrIndexSearcher searcher, String fieldName) throws IOException {
+    SolrCache<String, FacetSuggester> cache = searcher.getCache(CACHE_NAME);
+    if (cache == null) {
+      return null;
+    }
+    FacetSuggester ret = cache.get(fieldName);
+    if (ret == null) {
+      // concurrent builds for a new searcher are harmless (last put wins)
+      ret = build(searcher, fieldName);
+      cache.put(fieldName, ret);
+    }
+    return ret;
+  }
+
+  /**
+   * Rebuilds suggesters for fields in use by the previous searcher. Weights are recomputed from
+   * (cached, if {@value SegmentTermCounts#CACHE_NAME} is configured) per-segment counts.
+   */
+  public static class Regenerator implements CacheRegenerator {
+
+    @Override
+    public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache, SolrCache oldCache, Object oldKey, Object oldVal) throws IOException {
+      if (newSearcher.getSchema().getFieldOrNull((String) oldKey) != null) {
+        newCache.put(oldKey, build(newSearcher, (String) oldKey));
+      }
+      return true;
+    }
+
+  }
+
+  static FacetSuggester build(SolrIndexSearcher searcher, String fieldName) throws IOException {
+    final long version = searcher.getIndexReader().getVersion();
+    SchemaField sf = searcher.getSchema().getField(fieldName);
+    final boolean multiValued = sf.multiValued() || sf.getType().multiValuedFieldCache();
+    SortedSetDocValues si = DocValuesFacets.termValues(searcher, fieldName, multiValued);
+    if (si == null) {
+      return new FacetSuggester(null, version);
+    }
+    CountStore counts = DocValuesFacets.countLiveDocs(searcher, fieldName, multiValued, si);
+    Builder<Long> builder = new Builder<>(FST.INPUT_TYPE.BYTE1, OUTPUTS);
+    IntsRefBuilder scratch = new IntsRefBuilder();
+    final int valueCount = (int) si.getValueCount();
+    for (int ord = 0; ord < valueCount; ord++) {
+      int count = counts.get(ord + 1);
+      if (count > 0) {
+        builder.add(Util.toIntsRef(si.lookupOrd(ord), scratch), encode(count, ord));
+      }
+    }
+    return new FacetSuggester(builder.finish(), version);
+  }
+
+  private static long encode(int count, int ord) {
+    return ((long) (Integer.MAX_VALUE - count) << Integer.SIZE) | ord;
+  }
+
+  /**
+   * @return the index version for which this suggester was built (and for which its ordinals are valid)
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * @param prefix normalized prefix (indexed form, without trailing delimiter)
+   * @return up to n completions of the specified prefix, in descending order of count (and
+   * otherwise in index order)
+   */
+  public List<Suggestion> lookup(BytesRef prefix, int n) throws IOException {
+    if (fst == null || n <= 0) {
+      return Collections.emptyList();
+    }
+    FST.BytesReader reader = fst.getBytesReader();
+    FST.Arc<Long> arc = fst.getFirstArc(new FST.Arc<>());
+    Long prefixOutput = OUTPUTS.getNoOutput();
+    for (int i = 0; i < prefix.length; i++) {
+      if (fst.findTargetArc(prefix.bytes[prefix.offset + i] & 0xff, arc, arc, reader) == null) {
+        return Collections.emptyList();
+      }
+      prefixOutput = OUTPUTS.add(prefixOutput, arc.output);
+    }
+    Util.TopResults<Long> completions = Util.shortestPaths(fst, arc, prefixOutput, MIN_OUTPUT_FIRST, n, true);
+    List<Suggestion> ret = new ArrayList<>(completions.topN.size());
+    BytesRefBuilder term = new BytesRefBuilder();
+    BytesRefBuilder suffix = new BytesRefBuilder();
+    for (Util.Result<Long> completion : completions) {
+      term.copyBytes(prefix);
+      term.append(Util.toBytesRef(completion.input, suffix));
+      long output = completion.output;
+      ret.add(new Suggestion(term.toBytesRef(), Integer.MAX_VALUE - (int) (output >>> Integer.SIZE), (int) output));
+    }
+    return ret;
+  }
+
+  /**
+   * @return the target token for the specified suggestion, to be passed back as facet.target.ord
+   */
+  public String targetToken(Suggestion suggestion) {
+    return Long.toString(version).concat(":").concat(Integer.toString(suggestion.ord));
+  }
+
+  /**
+   * @param token target token as returned by {@link #targetToken(Suggestion)}
+   * @return the indexed term identified by the specified token, or null if the token was issued
+   * for a different index version (or is otherwise invalid), in which case the caller should
+   * resolve facet.target as usual.
+   */
+  public static BytesRef resolveTarget(SolrIndexSearcher searcher, SortedSetDocValues si, String token) throws IOException {
+    int split = token.indexOf(':');
+    if (si == null || split < 0) {
+      return null;
+    }
+    long ord;
+    try {
+      if (Long.parseLong(token.substring(0, split)) != searcher.getIndexReader().getVersion()) {
+        return null;
+      }
+      ord = Long.parseLong(token.substring(split + 1));
+    } catch (NumberFormatException ex) {
+      return null;
+    }
+    return ord < 0 || ord >= si.getValueCount() ? null : BytesRef.deepCopyOf(si.lookupOrd(ord));
+  }
+
+  /**
+   * @return an estimate of the memory used by this suggester, in bytes
+   */
+  public long ramBytesUsed() {
+    return fst == null ? 0 : fst.ramBytesUsed();
+  }
+
+}
@@ -0,0 +1,276 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.Semaphore;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiDocValues.OrdinalMap;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.LongValues;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.facet.FacetDebugInfo;
+
+/**
+ * Counts for several fields over the same DocSet, computed in a single pass: the matching
+ * docs of each segment are iterated once, advancing the docValues of all fields together,
+ * rather than once per field. Counts for each field are indexed by global ord + 1 (with the
+ * missing count at index 0), as for unprefixed counting in {@link DocValuesFacets}, and are
+ * handed off (once) to the per-field faceting that consumes them.
+ *
+ * @author magibney
+ */
+final class FusedFieldCounts {
+
+  private final SolrCore core;
+  private final Map<String, CountStore> counts;
+
+  private FusedFieldCounts(SolrCore core, Map<String, CountStore> counts) {
+    this.core = core;
+    this.counts = counts;
+  }
+
+  /**
+   * @param fieldNames distinct names of fields with docValues (or uninvertible) terms
+   * @param threads maximum number of segments to count concurrently on the facet executor
+   * (negative for unlimited; 0 to count on the calling thread)
+   */
+  static FusedFieldCounts count(SolrIndexSearcher searcher, DocSet docs, Collection<String> fieldNames,
+      int threads, FacetDebugInfo fdebug) throws IOException {
+    final List<String> names = new ArrayList<>(fieldNames.size());
+    final List<Boolean> multiValued = new ArrayList<>(fieldNames.size());
+    final List<OrdinalMap> ordinalMaps = new ArrayList<>(fieldNames.size());
+    final List<CountStore> stores = new ArrayList<>(fieldNames.size());
+    for (String fieldName : fieldNames) {
+      SchemaField sf = searcher.getSchema().getField(fieldName);
+      boolean mv = sf.multiValued() || sf.getType().multiValuedFieldCache();
+      SortedSetDocValues si = DocValuesFacets.termValues(searcher, fieldName, mv);
+      if (si == null || si.getValueCount() >= Integer.MAX_VALUE) {
+        continue; // counted per-field, as usual
+      }
+      names.add(fieldName);
+      multiValued.add(mv);
+      ordinalMaps.add(DocValuesFacets.ordinalMap(si));
+      stores.add(CountStorePool.acquire(searcher.getCore(), (int) si.getValueCount() + 1));
+    }
+    final String[] fields = names.toArray(new String[names.size()]);
+    final boolean[] mv = new boolean[fields.length];
+    for (int i = 0; i < mv.length; i++) {
+      mv[i] = multiValued.get(i);
+    }
+    final CountStore[] dest = stores.toArray(new CountStore[stores.size()]);
+    final List<LeafReaderContext> leaves = searcher.getTopReaderContext().leaves();
+    final Filter filter = docs.getTopFilter();
+    if (leaves.size() == 1) {
+      // segment ord space is global ord space
+      DocIdSetIterator disi = iterator(filter, leaves.get(0));
+      if (disi != null) {
+        countLeaf(leaves.get(0).reader(), disi, fields, mv, dest);
+      }
+    } else if (threads == 0) {
+      for (int i = 0; i < leaves.size(); i++) {
+        DocIdSetIterator disi = iterator(filter, leaves.get(i));
+        if (disi != null) {
+          migrateGlobal(dest, countSegment(leaves.get(i).reader(), disi, fields, mv), i, ordinalMaps);
+        }
+      }
+    } else {
+      countParallel(leaves, filter, fields, mv, dest, ordinalMaps, threads, fdebug);
+    }
+    if (fdebug != null) {
+      fdebug.putInfoItem("fusedFields", names);
+    }
+    Map<String, CountStore> ret = new ConcurrentHashMap<>(fields.length << 1);
+    for (int i = 0; i < fields.length; i++) {
+      ret.put(fields[i], dest[i]);
+    }
+    return new FusedFieldCounts(searcher.getCore(), ret);
+  }
+
+  /**
+   * @return the counts for the specified field, or null if the field was not counted (or its
+   * counts have already been taken). Counts may be taken only once, and thereafter belong to the
+   * caller.
+   */
+  CountStore take(String fieldName) {
+    return counts.remove(fieldName);
+  }
+
+  /**
+   * returns any counts not taken to the pool
+   */
+  void release() {
+    for (String fieldName : counts.keySet()) {
+      CountStore store = counts.remove(fieldName);
+      if (store != null) {
+        CountStorePool.release(core, store);
+      }
+    }
+  }
+
+  private static DocIdSetIterator iterator(Filter filter, LeafReaderContext leaf) throws IOException {
+    DocIdSet dis = filter.getDocIdSet(leaf, null); // solr docsets already exclude any deleted docs
+    return dis == null ? null : dis.iterator();
+  }
+
+  /**
+   * counts all terms of all fields for the specified segment, in segment ord space
+   */
+  private static CountStore[] countSegment(LeafReader reader, DocIdSetIterator disi, String[] fields, boolean[] mv) throws IOException {
+    CountStore[] ret = new CountStore[fields.length];
+    for (int i = 0; i < fields.length; i++) {
+      long valueCount;
+      if (mv[i]) {
+        SortedSetDocValues sub = reader.getSortedSetDocValues(fields[i]);
+        valueCount = sub == null ? 0 : sub.getValueCount();
+      } else {
+        SortedDocValues sub = reader.getSortedDocValues(fields[i]);
+        valueCount = sub == null ? 0 : sub.getValueCount();
+      }
+      ret[i] = new CountStore.ArrayCountStore(1 + (int) valueCount);
+    }
+    countLeaf(reader, disi, fields, mv, ret);
+    return ret;
+  }
+
+  /**
+   * accumulates counts (indexed by segment ord + 1, with the missing count at index 0) for all
+   * fields, visiting each doc from the specified iterator once
+   */
+  private static void countLeaf(LeafReader reader, DocIdSetIterator disi, String[] fields, boolean[] mv, CountStore[] dest) throws IOException {
+    final int n = fields.length;
+    final SortedDocValues[] single = new SortedDocValues[n];
+    final SortedSetDocValues[] multi = new SortedSetDocValues[n];
+    for (int i = 0; i < n; i++) {
+      if (mv[i]) {
+        SortedSetDocValues sub = reader.getSortedSetDocValues(fields[i]);
+        multi[i] = sub == null ? DocValues.emptySortedSet() : sub;
+      } else {
+        SortedDocValues sub = reader.getSortedDocValues(fields[i]);
+        single[i] = sub == null ? DocValues.emptySorted() : sub;
+      }
+    }
+    int doc;
+    while ((doc = disi.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+      for (int i = 0; i < n; i++) {
+        final CountStore counts = dest[i];
+        if (single[i] != null) {
+          counts.increment(1 + single[i].getOrd(doc));
+          continue;
+        }
+        final SortedSetDocValues sub = multi[i];
+        sub.setDocument(doc);
+        int term = (int) sub.nextOrd();
+        if (term < 0) {
+          counts.increment(0); // missing
+        } else {
+          do {
+            counts.increment(1 + term);
+          } while ((term = (int) sub.nextOrd()) >= 0);
+        }
+      }
+    }
+  }
+
+  private static void migrateGlobal(CountStore[] dest, CountStore[] segCounts, int subIndex, List<OrdinalMap> ordinalMaps) {
+    for (int i = 0; i < dest.length; i++) {
+      final CountStore counts = dest[i];
+      final CountStore seg = segCounts[i];
+      final LongValues ordMap = ordinalMaps.get(i).getGlobalOrds(subIndex);
+      // missing count
+      counts.add(0, seg.get(0));
+      final int size = seg.size();
+      for (int ord = 1; ord < size; ord++) {
+        int count = seg.get(ord);
+        if (count != 0) {
+          counts.add(1 + (int) ordMap.get(ord - 1), count);
+        }
+      }
+    }
+  }
+
+  /**
+   * counts segments concurrently on the facet executor (as for facet.threads in
+   * {@link DocValuesFacets}), migrating per-segment counts to global ord space on the
+   * calling thread as segments complete
+   */
+  private static void countParallel(List<LeafReaderContext> leaves, Filter filter, String[] fields, boolean[] mv,
+      CountStore[] dest, List<OrdinalMap> ordinalMaps, int threads, FacetDebugInfo fdebug) throws IOException {
+    List<Future<CountStore[]>> futures = new ArrayList<>(leaves.size());
+    List<Integer> subIndexes = new ArrayList<>(leaves.size());
+    final Semaphore semaphore = new Semaphore(threads < 0 ? Integer.MAX_VALUE : threads);
+    try {
+      for (int i = 0; i < leaves.size(); i++) {
+        final LeafReaderContext leaf = leaves.get(i);
+        final DocIdSetIterator disi = iterator(filter, leaf);
+        if (disi == null) {
+          continue;
+        }
+        Callable<CountStore[]> callable = () -> {
+          try {
+            return countSegment(leaf.reader(), disi, fields, mv);
+          } finally {
+            semaphore.release();
+          }
+        };
+        RunnableFuture<CountStore[]> runnableFuture = new FutureTask<>(callable);
+        semaphore.acquire(); // may block and/or interrupt
+        SimpleFacets.facetExecutor.execute(runnableFuture); // releases semaphore when done
+        futures.add(runnableFuture);
+        subIndexes.add(i);
+      }
+      if (fdebug != null) {
+        fdebug.putInfoItem("segmentTasks", futures.size());
+      }
+      for (int i = 0; i < futures.size(); i++) {
+        migrateGlobal(dest, futures.get(i).get(), subIndexes.get(i), ordinalMaps);
+      }
+    } catch (InterruptedException e) {
+      throw new SolrException(ErrorCode.SERVER_ERROR, "Error while counting fused facet segments: InterruptedException", e);
+    } catch (ExecutionException ee) {
+      Throwable e = ee.getCause(); // unwrap
+      if (e instanceof IOException) {
+        throw (IOException) e;
+      } else if (e instanceof RuntimeException) {
+        throw (RuntimeException) e;
+      }
+      throw new SolrException(ErrorCode.SERVER_ERROR, "Error while counting fused facet segments: " + e.toString(), e);
+    }
+  }
+
+}
@@ -0,0 +1,226 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+/**
+ * Single-flight coalescing of identical concurrent facet field computations. The first request
+ * to {@link #join} a given key (which must identify the searcher and every parameter that
+ * determines the result) becomes the leader, and computes the result; requests that join while
+ * the leader is computing wait for, and share, the leader's result. Every participant receives a
+ * structurally independent copy of the result (see {@link #copy}), so that subsequent
+ * per-request modification of the response is safe. Nothing is retained once the leader has
+ * completed; repeated (non-concurrent) requests are the business of the caches.
+ *
+ * Usage:
+ * <pre>
+ * Flight flight = InFlightCounts.join(key);
+ * if (!flight.isLeader()) {
+ *   ret = flight.await();
+ * } else {
+ *   try {
+ *     ret = compute();
+ *   } catch (Throwable t) {
+ *     flight.fail(t);
+ *     throw t;
+ *   }
+ *   ret = flight.complete(ret);
+ * }
+ * </pre>
+ *
+ * @author magibney
+ */
+public final class InFlightCounts {
+
+  private static final ConcurrentHashMap<List<Object>, Shared> flights = new ConcurrentHashMap<>();
+
+  private InFlightCounts() {
+  }
+
+  private static final class Shared {
+    private final CompletableFuture<NamedList<Object>> result = new CompletableFuture<>();
+    private final AtomicInteger waiters = new AtomicInteger();
+  }
+
+  /**
+   * A participant's view of a (possibly shared) computation.
+   */
+  public static final class Flight {
+
+    private final List<Object> key;
+    private final Shared shared;
+    private final boolean leader;
+
+    private Flight(List<Object> key, Shared shared, boolean leader) {
+      this.key = key;
+      this.shared = shared;
+      this.leader = leader;
+    }
+
+    /**
+     * @return true if the caller is responsible for computing the result, and must subsequently
+     * call exactly one of {@link #complete} or {@link #fail}
+     */
+    public boolean isLeader() {
+      return leader;
+    }
+
+    /**
+     * Publishes the leader's result to any waiters.
+     *
+     * @return the result to be used by the leader (a copy, if the result is shared)
+     */
+    public NamedList<Object> complete(NamedList<Object> ret) {
+      shared.result.complete(ret);
+      flights.remove(key, shared);
+      // no waiters can join once the flight has been removed
+      return shared.waiters.get() == 0 ? ret : (NamedList<Object>) copy(ret);
+    }
+
+    /**
+     * Propagates the leader's failure to any waiters.
+     */
+    public void fail(Throwable t) {
+      shared.result.completeExceptionally(t);
+      flights.remove(key, shared);
+    }
+
+    /**
+     * @return a copy of the leader's result
+     */
+    public NamedList<Object> await() throws IOException {
+      try {
+        return (NamedList<Object>) copy(shared.result.get());
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new SolrException(ErrorCode.SERVER_ERROR, "interrupted awaiting facet counts", ex);
+      } catch (ExecutionException ex) {
+        Throwable t = ex.getCause();
+        if (t instanceof IOException) {
+          throw (IOException) t;
+        } else if (t instanceof RuntimeException) {
+          throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+          throw (Error) t;
+        }
+        throw new SolrException(ErrorCode.SERVER_ERROR, t);
+      }
+    }
+
+  }
+
+  /**
+   * @return the caller's participation in the computation identified by the specified key
+   */
+  public static Flight join(List<Object> key) {
+    Shared[] joined = new Shared[1];
+    Shared shared = flights.compute(key, (k, v) -> {
+      if (v != null) {
+        // registered atomically with respect to removal by the leader
+        v.waiters.incrementAndGet();
+        joined[0] = v;
+        return v;
+      }
+      return new Shared();
+    });
+    return new Flight(key, shared, joined[0] == null);
+  }
+
+  /**
+   * @return a structurally independent copy of the specified response value: NamedLists,
+   * collections, maps, documents and arrays are copied recursively; other values (strings,
+   * numbers, etc.) are assumed to be immutable, and are shared.
+   */
+  public static Object copy(Object val) {
+    if (val instanceof NamedList) {
+      NamedList<Object> nl = (NamedList<Object>) val;
+      NamedList<Object> ret = nl instanceof SimpleOrderedMap ? new SimpleOrderedMap<>() : new NamedList<>(nl.size());
+      for (int i = 0; i < nl.size(); i++) {
+        ret.add(nl.getName(i), copy(nl.getVal(i)));
+      }
+      return ret;
+    } else if (val instanceof SolrDocumentList) {
+      SolrDocumentList dl = (SolrDocumentList) val;
+      SolrDocumentList ret = new SolrDocumentList();
+      ret.setNumFound(dl.getNumFound());
+      ret.setStart(dl.getStart());
+      ret.setMaxScore(dl.getMaxScore());
+      for (SolrDocument doc : dl) {
+        ret.add((SolrDocument) copy(doc));
+      }
+      return ret;
+    } else if (val instanceof SolrDocument) {
+      SolrDocument doc = (SolrDocument) val;
+      SolrDocument ret = new SolrDocument();
+      for (Entry<String, Object> e : doc) {
+        ret.setField(e.getKey(), copy(e.getValue()));
+      }
+      if (doc.hasChildDocuments()) {
+        for (SolrDocument child : doc.getChildDocuments()) {
+          ret.addChildDocument((SolrDocument) copy(child));
+        }
+      }
+      return ret;
+    } else if (val instanceof Map) {
+      Map<Object, Object> map = (Map<Object, Object>) val;
+      Map<Object, Object> ret = new LinkedHashMap<>(map.size() << 1);
+      for (Entry<Object, Object> e : map.entrySet()) {
+        ret.put(e.getKey(), copy(e.getValue()));
+      }
+      return ret;
+    } else if (val instanceof Collection) {
+      Collection<Object> c = (Collection<Object>) val;
+      Collection<Object> ret = val instanceof Deque ? new ArrayDeque<>(c.size())
+          : val instanceof Set ? new LinkedHashSet<>(c.size() << 1) : new ArrayList<>(c.size());
+      for (Object o : c) {
+        ret.add(copy(o));
+      }
+      return ret;
+    } else if (val instanceof byte[]) {
+      return ((byte[]) val).clone();
+    } else if (val instanceof Object[]) {
+      Object[] arr = ((Object[]) val).clone();
+      for (int i = 0; i < arr.length; i++) {
+        arr[i] = copy(arr[i]);
+      }
+      return arr;
+    }
+    return val;
+  }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.util.Arrays;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+
+/**
+ * Compact shard-to-aggregator encoding of the indexed form of each term in a facet.target
+ * window (see {@link org.apache.solr.common.params.FacetParams#FACET_TARGET_INDEXED}), so that
+ * the aggregator can order shard terms (and locate the target among them) without converting
+ * each term name back to its indexed form. Shards capture keys as terms are read from the index
+ * while building the window (see BidirectionalFacetResponseBuilder.LocalEnv), so neither side
+ * re-analyzes term names. Keys are concatenated in window order into a single byte[], each
+ * preceded by its length as a vInt.
+ *
+ * @author magibney
+ */
+public final class IndexedTermKeys {
+
+  /**
+   * key under which the encoded keys are returned, alongside "terms"
+   */
+  public static final String RESPONSE_KEY = "terms_indexed";
+
+  private IndexedTermKeys() {
+  }
+
+  /**
+   * @return the encoding of the specified keys (the indexed form of each term in a window, in
+   * window order, as read from the index)
+   */
+  public static byte[] encode(BytesRef[] keys) {
+    BytesRefBuilder ret = new BytesRefBuilder();
+    for (BytesRef key : keys) {
+      int length = key.length;
+      while ((length & ~0x7F) != 0) {
+        ret.append((byte) ((length & 0x7F) | 0x80));
+        length >>>= 7;
+      }
+      ret.append((byte) length);
+      ret.append(key);
+    }
+    return ret.toBytesRef().bytes;
+  }
+
+  /**
+   * @return the keys encoded in the specified response value (as slices of the encoded bytes),
+   * or null if the value is not a valid encoding of exactly the specified number of keys
+   */
+  public static BytesRef[] decode(Object encoded, int size) {
+    if (!(encoded instanceof byte[])) {
+      return null;
+    }
+    byte[] bytes = (byte[]) encoded;
+    ByteArrayDataInput in = new ByteArrayDataInput(bytes);
+    BytesRef[] ret = new BytesRef[size];
+    for (int i = 0; i < size; i++) {
+      if (in.eof()) {
+        return null;
+      }
+      int length = in.readVInt();
+      int offset = in.getPosition();
+      if (offset + length > bytes.length) {
+        return null;
+      }
+      ret[i] = new BytesRef(bytes, offset, length);
+      in.skipBytes(length);
+    }
+    return in.eof() ? ret : null;
+  }
+
+  /**
+   * @return the encoding of the keys from index start (inclusive) to end (exclusive) of the
+   * specified encoded keys
+   */
+  public static byte[] slice(byte[] encoded, int start, int end) {
+    ByteArrayDataInput in = new ByteArrayDataInput(encoded);
+    int from = 0;
+    for (int i = 0; i < end; i++) {
+      if (i == start) {
+        from = in.getPosition();
+      }
+      in.skipBytes(in.readVInt());
+    }
+    return Arrays.copyOfRange(encoded, start < end ? from : 0, start < end ? in.getPosition() : 0);
+  }
+
+}
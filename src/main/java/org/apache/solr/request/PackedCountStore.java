@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.util.Arrays;
+
+/**
+ * CountStore for high-cardinality fields, where most counts are small. Counts are
+ * divided into fixed-size blocks, all of which are initially stored in a single
+ * array of unsigned bytes. When a count exceeds 255, its block (only) is promoted
+ * to a separate array of unsigned 16-bit values, and likewise to ints when a count
+ * exceeds 65535. Because counts for the vast majority of blocks are thus read and
+ * written in place in the byte array, the memory footprint (and cache pressure)
+ * of counting is roughly a quarter of that of an int array.
+ *
+ * Blocks are cleared lazily: each block is stamped with the generation in which it
+ * was last written, and a block whose stamp does not match the store's current
+ * generation reads as all zeros. A store may thus be cheaply {@link #reset(int) reset}
+ * for reuse by {@link CountStorePool}; arrays for promoted blocks are retained across
+ * resets. Counts must be non-negative.
+ *
+ * @author magibney
+ */
+public final class PackedCountStore implements CountStorePool.Reusable {
+
+  static final int BLOCK_SHIFT = 10;
+  private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+  private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+  private static final int BYTE = 0;
+  private static final int CHAR = 1;
+  private static final int INT = 2;
+  private static final int WIDTH_BITS = 2;
+  private static final int WIDTH_MASK = (1 << WIDTH_BITS) - 1;
+
+  private static final int MAX_BYTE_VALUE = 0xFF;
+  private static final int MAX_CHAR_VALUE = Character.MAX_VALUE;
+
+  /**
+   * per block: the generation in which the block was last written (high bits), and
+   * the width at which its counts are stored (low bits)
+   */
+  private final int[] blockState;
+  private final byte[] bytes;
+  private final char[][] chars;
+  private final int[][] ints;
+  private int gen = 1;
+  private int size;
+
+  public PackedCountStore(int size) {
+    int blockCount = size == 0 ? 0 : ((size - 1) >>> BLOCK_SHIFT) + 1;
+    this.blockState = new int[blockCount];
+    // a newly-allocated byte array is already clear for the initial generation
+    Arrays.fill(blockState, gen << WIDTH_BITS | BYTE);
+    this.bytes = new byte[blockCount << BLOCK_SHIFT];
+    this.chars = new char[blockCount][];
+    this.ints = new int[blockCount][];
+    this.size = size;
+  }
+
+  @Override
+  public int capacity() {
+    return bytes.length;
+  }
+
+  @Override
+  public void reset(int size) {
+    this.size = size;
+    if (++gen == 1 << (Integer.SIZE - WIDTH_BITS)) {
+      // generation overflow; invalidate all blocks explicitly (generation 0 is never current)
+      Arrays.fill(blockState, 0);
+      gen = 1;
+    }
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public int get(int index) {
+    int block = index >>> BLOCK_SHIFT;
+    int state = blockState[block];
+    if (state == (gen << WIDTH_BITS | BYTE)) {
+      return bytes[index] & MAX_BYTE_VALUE;
+    } else if (state >>> WIDTH_BITS != gen) {
+      return 0;
+    } else if ((state & WIDTH_MASK) == CHAR) {
+      return chars[block][index & BLOCK_MASK];
+    } else {
+      return ints[block][index & BLOCK_MASK];
+    }
+  }
+
+  @Override
+  public void increment(int index) {
+    add(index, 1);
+  }
+
+  @Override
+  public void add(int index, int delta) {
+    int block = index >>> BLOCK_SHIFT;
+    int state = blockState[block];
+    if (state >>> WIDTH_BITS != gen) {
+      state = clear(block);
+    }
+    int val;
+    switch (state & WIDTH_MASK) {
+      case BYTE:
+        val = (bytes[index] & MAX_BYTE_VALUE) + delta;
+        if (val <= MAX_BYTE_VALUE) {
+          bytes[index] = (byte) val;
+          return;
+        }
+        state = promote(block, state, val <= MAX_CHAR_VALUE ? CHAR : INT);
+        break;
+      case CHAR:
+        val = chars[block][index & BLOCK_MASK] + delta;
+        if (val <= MAX_CHAR_VALUE) {
+          chars[block][index & BLOCK_MASK] = (char) val;
+          return;
+        }
+        state = promote(block, state, INT);
+        break;
+      default:
+        ints[block][index & BLOCK_MASK] += delta;
+        return;
+    }
+    // block was promoted; store the new value at the new width
+    if ((state & WIDTH_MASK) == CHAR) {
+      chars[block][index & BLOCK_MASK] = (char) val;
+    } else {
+      ints[block][index & BLOCK_MASK] = val;
+    }
+  }
+
+  private int clear(int block) {
+    int start = block << BLOCK_SHIFT;
+    Arrays.fill(bytes, start, start + BLOCK_SIZE, (byte) 0);
+    return blockState[block] = gen << WIDTH_BITS | BYTE;
+  }
+
+  private int promote(int block, int state, int newWidth) {
+    int start = block << BLOCK_SHIFT;
+    if (newWidth == CHAR) {
+      char[] dest = chars[block];
+      if (dest == null) {
+        chars[block] = dest = new char[BLOCK_SIZE];
+      }
+      for (int i = 0; i < BLOCK_SIZE; i++) {
+        dest[i] = (char) (bytes[start + i] & MAX_BYTE_VALUE);
+      }
+    } else {
+      int[] dest = ints[block];
+      if (dest == null) {
+        ints[block] = dest = new int[BLOCK_SIZE];
+      }
+      if ((state & WIDTH_MASK) == BYTE) {
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+          dest[i] = bytes[start + i] & MAX_BYTE_VALUE;
+        }
+      } else {
+        char[] src = chars[block];
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+          dest[i] = src[i];
+        }
+      }
+    }
+    return blockState[block] = gen << WIDTH_BITS | newWidth;
+  }
+
+}
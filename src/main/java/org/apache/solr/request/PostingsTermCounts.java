@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import com.carrotsearch.hppc.IntIntHashMap;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Term-at-a-time counts: each term's count is computed on demand (and
+ * memoized) by intersecting the term's postings with the request DocSet.
+ * For narrow result windows over high-cardinality fields, this visits far
+ * fewer postings than counting all terms for all matching docs.
+ *
+ * Counts are only equivalent to docValues-based counts for fields whose
+ * indexed terms correspond to their docValues (e.g., uninverted fields).
+ *
+ * @author magibney
+ */
+final class PostingsTermCounts implements TermCounts {
+
+  private final DocSet docs;
+  private final SortedSetDocValues si;
+  private final int startTermIndex;
+  private final List<LeafReaderContext> leaves;
+  private final TermsEnum[] termsEnums;
+  private final IntIntHashMap memo = new IntIntHashMap();
+  private PostingsEnum postings;
+  private long postingsVisited = 0;
+
+  PostingsTermCounts(SolrIndexSearcher searcher, DocSet docs, String fieldName, SortedSetDocValues si, int startTermIndex) throws IOException {
+    this.docs = docs;
+    this.si = si;
+    this.startTermIndex = startTermIndex;
+    this.leaves = searcher.getTopReaderContext().leaves();
+    this.termsEnums = new TermsEnum[leaves.size()];
+    for (int i = 0; i < termsEnums.length; i++) {
+      Terms terms = leaves.get(i).reader().terms(fieldName);
+      termsEnums[i] = terms == null ? null : terms.iterator();
+    }
+  }
+
+  @Override
+  public int get(int index) {
+    int ret = memo.getOrDefault(index, -1);
+    if (ret < 0) {
+      int ord = index + startTermIndex;
+      try {
+        ret = ord < 0 ? 0 : count(si.lookupOrd(ord));
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+      memo.put(index, ret);
+    }
+    return ret;
+  }
+
+  private int count(BytesRef term) throws IOException {
+    int count = 0;
+    for (int i = 0; i < termsEnums.length; i++) {
+      TermsEnum termsEnum = termsEnums[i];
+      if (termsEnum == null || !termsEnum.seekExact(term)) {
+        continue;
+      }
+      int docBase = leaves.get(i).docBase;
+      postings = termsEnum.postings(postings, PostingsEnum.NONE);
+      int doc;
+      while ((doc = postings.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+        postingsVisited++;
+        if (docs.exists(docBase + doc)) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the number of distinct terms counted so far
+   */
+  int termsCounted() {
+    return memo.size();
+  }
+
+  long postingsVisited() {
+    return postingsVisited;
+  }
+
+}
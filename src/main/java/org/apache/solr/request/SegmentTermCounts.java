@@ -0,0 +1,369 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import com.carrotsearch.hppc.IntIntHashMap;
+import java.io.IOException;
+import java.util.List;
+import java.util.Objects;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiDocValues.OrdinalMap;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.PointInSetQuery;
+import org.apache.lucene.search.PointRangeQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopTermsRewrite;
+import org.apache.lucene.util.LongValues;
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.Filter;
+import org.apache.solr.search.FilterQuery;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.WrappedQuery;
+import org.apache.solr.search.facet.FacetDebugInfo;
+
+/**
+ * Facet counts assembled from per-segment count arrays (in segment ord space),
+ * which are cached across searchers in a user-defined SolrCache named
+ * {@value #CACHE_NAME}, keyed by segment core, number of live docs, field and
+ * filter signature. On reopen, only new or changed segments are recounted;
+ * global counts are computed on demand, only for the ordinals requested (mapped to segment
+ * ords via the {@link OrdinalMap}).
+ *
+ * Counts are only cached for filter signatures whose matching docs within each
+ * segment are determined by the segment itself (i.e., independent of other segments;
+ * see {@link #perSegment(Object)}); since deletions within a segment core only
+ * accumulate, the number of live docs identifies the segment's deletions.
+ *
+ * To enable, configure in solrconfig.xml, e.g.:
+ * <pre>
+ * &lt;cache name="xfacetSegmentCounts" class="solr.LRUCache" size="1024" initialSize="64"
+ *     autowarmCount="100%" regenerator="org.apache.solr.request.SegmentTermCounts$Regenerator"/&gt;
+ * </pre>
+ *
+ * @author magibney
+ */
+public final class SegmentTermCounts implements TermCounts {
+
+  public static final String CACHE_NAME = "xfacetSegmentCounts";
+
+  /**
+   * filter signature for a DocSet containing all live docs
+   */
+  public static final Object ALL_DOCS = new Object() {
+    @Override
+    public String toString() {
+      return "ALL_DOCS";
+    }
+  };
+
+  /**
+   * @return true if the specified filter signature (all docs, or a list of queries whose
+   * intersection is the DocSet) matches, within each segment, docs determined by that segment
+   * alone, so that per-segment counts may be reused across searchers. Queries not known to have
+   * this property are excluded: e.g., join, graph and function range queries, whose matches in
+   * one segment may change as docs are added to or deleted from other segments.
+   */
+  public static boolean perSegment(Object filterKey) {
+    if (filterKey == ALL_DOCS) {
+      return true;
+    } else if (!(filterKey instanceof List)) {
+      return false;
+    }
+    for (Object q : (List<?>) filterKey) {
+      if (!(q instanceof Query) || !perSegment((Query) q)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean perSegment(Query q) {
+    if (q instanceof TermQuery || q instanceof PhraseQuery || q instanceof MatchAllDocsQuery
+        || q instanceof MatchNoDocsQuery || q instanceof PointRangeQuery || q instanceof PointInSetQuery) {
+      return true;
+    } else if (q instanceof MultiTermQuery) {
+      // top-terms rewrites (e.g., fuzzy queries) select terms across all segments
+      return !(((MultiTermQuery) q).getRewriteMethod() instanceof TopTermsRewrite);
+    } else if (q instanceof BooleanQuery) {
+      for (BooleanClause clause : (BooleanQuery) q) {
+        if (!perSegment(clause.getQuery())) {
+          return false;
+        }
+      }
+      return true;
+    } else if (q instanceof DisjunctionMaxQuery) {
+      for (Query disjunct : ((DisjunctionMaxQuery) q).getDisjuncts()) {
+        if (!perSegment(disjunct)) {
+          return false;
+        }
+      }
+      return true;
+    } else if (q instanceof ConstantScoreQuery) {
+      return perSegment(((ConstantScoreQuery) q).getQuery());
+    } else if (q instanceof BoostQuery) {
+      return perSegment(((BoostQuery) q).getQuery());
+    } else if (q instanceof WrappedQuery) {
+      return perSegment(((WrappedQuery) q).getWrappedQuery());
+    } else if (q instanceof FilterQuery) {
+      return perSegment(((FilterQuery) q).getQuery());
+    }
+    return false;
+  }
+
+  private final OrdinalMap ordinalMap;
+  private final LongValues[] globalOrds; // per segment: segment ord -> global ord
+  private final int[] cursors; // per segment: where the last search for a segment ord ended
+  private final int[][] segCounts;
+  private final IntIntHashMap memo = new IntIntHashMap();
+
+  /**
+   * @param ordinalMap maps segment ords to global ords, or null if segment ords are global ords
+   * @param segCounts per-segment counts (as returned by {@link #getSegmentCounts}), where index 0
+   * of each array is the missing count
+   */
+  SegmentTermCounts(OrdinalMap ordinalMap, int[][] segCounts) {
+    this.ordinalMap = ordinalMap;
+    this.segCounts = segCounts;
+    if (ordinalMap == null) {
+      this.globalOrds = null;
+      this.cursors = null;
+    } else {
+      this.globalOrds = new LongValues[segCounts.length];
+      for (int i = 0; i < globalOrds.length; i++) {
+        globalOrds[i] = ordinalMap.getGlobalOrds(i);
+      }
+      this.cursors = new int[segCounts.length];
+    }
+  }
+
+  /**
+   * @param index global ord + 1 (index 0 is the missing count), consistent with a startTermIndex of -1
+   */
+  @Override
+  public int get(int index) {
+    int ret = memo.getOrDefault(index, -1);
+    if (ret >= 0) {
+      return ret;
+    } else if (index == 0) {
+      ret = missingCount(segCounts);
+    } else if (ordinalMap == null) {
+      ret = segCounts[0][index];
+    } else {
+      ret = 0;
+      for (int i = 0; i < segCounts.length; i++) {
+        int segOrd = segmentOrd(i, index - 1);
+        if (segOrd >= 0) {
+          ret += segCounts[i][1 + segOrd];
+        }
+      }
+    }
+    memo.put(index, ret);
+    return ret;
+  }
+
+  /**
+   * Segment ords map monotonically to global ords, so the segment ord (if any) of a global ord is
+   * found by searching the segment's global ords. The search gallops out from where the previous
+   * search in the segment ended, so that walks over adjacent global ords (in either direction)
+   * cost amortized constant time per segment.
+   *
+   * @return the ord in the specified segment of the specified global ord, or -1 if the term does
+   * not occur in the segment
+   */
+  private int segmentOrd(int segment, long globalOrd) {
+    final LongValues map = globalOrds[segment];
+    final int size = segCounts[segment].length - 1;
+    if (size == 0) {
+      return -1;
+    }
+    final int cursor = Math.min(cursors[segment], size - 1);
+    final long atCursor = map.get(cursor);
+    if (atCursor == globalOrd) {
+      return cursor;
+    }
+    int lo;
+    int hi;
+    int bound = 1;
+    if (atCursor < globalOrd) {
+      lo = cursor + 1;
+      while (cursor + bound < size && map.get(cursor + bound) < globalOrd) {
+        lo = cursor + bound + 1;
+        bound <<= 1;
+      }
+      hi = Math.min(cursor + bound, size - 1);
+    } else {
+      hi = cursor - 1;
+      while (cursor - bound >= 0 && map.get(cursor - bound) > globalOrd) {
+        hi = cursor - bound - 1;
+        bound <<= 1;
+      }
+      lo = Math.max(cursor - bound, 0);
+    }
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      long midVal = map.get(mid);
+      if (midVal < globalOrd) {
+        lo = mid + 1;
+      } else if (midVal > globalOrd) {
+        hi = mid - 1;
+      } else {
+        cursors[segment] = mid;
+        return mid;
+      }
+    }
+    cursors[segment] = lo;
+    return -1;
+  }
+
+  static int missingCount(int[][] segCounts) {
+    int ret = 0;
+    for (int[] c : segCounts) {
+      ret += c[0];
+    }
+    return ret;
+  }
+
+  /**
+   * migrates all per-segment counts into the specified global counts array (indexed by global ord + 1)
+   */
+  static void migrateGlobal(CountStore counts, int[][] segCounts, OrdinalMap ordinalMap) {
+    if (ordinalMap == null) {
+      int[] src = segCounts[0];
+      for (int i = 0; i < src.length; i++) {
+        if (src[i] != 0) {
+          counts.add(i, src[i]);
+        }
+      }
+    } else {
+      for (int i = 0; i < segCounts.length; i++) {
+        DocValuesFacets.migrateGlobal(counts, segCounts[i], i, ordinalMap);
+      }
+    }
+  }
+
+  /**
+   * @return counts (in segment ord space; index 0 is the missing count) for each segment of the
+   * specified searcher, loaded from the specified cache where possible, and otherwise computed
+   * and added to the cache.
+   */
+  static int[][] getSegmentCounts(SolrIndexSearcher searcher, SolrCache<SegmentKey, int[]> cache, DocSet docs,
+      String fieldName, boolean multiValued, Object filterKey, FacetDebugInfo fdebug) throws IOException {
+    assert perSegment(filterKey);
+    List<LeafReaderContext> leaves = searcher.getTopReaderContext().leaves();
+    int[][] ret = new int[leaves.size()][];
+    Filter filter = null;
+    int counted = 0;
+    for (int subIndex = 0; subIndex < ret.length; subIndex++) {
+      LeafReaderContext leaf = leaves.get(subIndex);
+      LeafReader reader = leaf.reader();
+      SegmentKey key = new SegmentKey(reader.getCoreCacheKey(), reader.numDocs(), fieldName, filterKey);
+      int[] segCounts = cache.get(key);
+      if (segCounts == null) {
+        if (filter == null) {
+          filter = docs.getTopFilter();
+        }
+        DocIdSet dis = filter.getDocIdSet(leaf, null); // solr docsets already exclude any deleted docs
+        DocIdSetIterator disi = dis == null ? null : dis.iterator();
+        if (disi == null) {
+          disi = DocIdSetIterator.empty();
+        }
+        segCounts = DocValuesFacets.countSegment(reader, disi, fieldName, multiValued);
+        cache.put(key, segCounts);
+        counted++;
+      }
+      ret[subIndex] = segCounts;
+    }
+    if (fdebug != null) {
+      fdebug.putInfoItem("segmentsCounted", counted);
+      fdebug.putInfoItem("segmentsReused", ret.length - counted);
+    }
+    return ret;
+  }
+
+  public static final class SegmentKey {
+
+    private final Object coreKey;
+    private final int numDocs;
+    private final String fieldName;
+    private final Object filterKey;
+    private final int hashCode;
+
+    SegmentKey(Object coreKey, int numDocs, String fieldName, Object filterKey) {
+      this.coreKey = coreKey;
+      this.numDocs = numDocs;
+      this.fieldName = fieldName;
+      this.filterKey = filterKey;
+      this.hashCode = Objects.hash(System.identityHashCode(coreKey), numDocs, fieldName, filterKey);
+    }
+
+    boolean matches(LeafReader reader) {
+      return reader.getCoreCacheKey() == coreKey && reader.numDocs() == numDocs;
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      } else if (!(obj instanceof SegmentKey)) {
+        return false;
+      }
+      SegmentKey other = (SegmentKey) obj;
+      return coreKey == other.coreKey && numDocs == other.numDocs && fieldName.equals(other.fieldName)
+          && filterKey.equals(other.filterKey);
+    }
+
+  }
+
+  /**
+   * Carries forward cached counts for segments that are unchanged in the new searcher.
+   */
+  public static class Regenerator implements CacheRegenerator {
+
+    @Override
+    public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache, SolrCache oldCache, Object oldKey, Object oldVal) throws IOException {
+      SegmentKey key = (SegmentKey) oldKey;
+      for (LeafReaderContext leaf : newSearcher.getTopReaderContext().leaves()) {
+        if (key.matches(leaf.reader())) {
+          newCache.put(oldKey, oldVal);
+          break;
+        }
+      }
+      return true;
+    }
+
+  }
+
+}
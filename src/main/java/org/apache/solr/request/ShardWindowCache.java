@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.function.Predicate;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.facet.FacetDebugInfo;
+
+/**
+ * Shard-side cache of facet.target windows, as returned to the aggregator (terms, counts, and
+ * compact payloads and indexed keys, where requested). Windows are cached per-searcher in a
+ * user-defined SolrCache named {@value #CACHE_NAME} (if configured), keyed by field, filter
+ * signature (see {@link SegmentTermCounts}), target, and the parameters (other than offset and
+ * limit) that determine the window. On a miss, a window padded by facet.limit entries on
+ * either side of the requested window is computed and cached, so that subsequent requests for
+ * the same target with nearby offsets (e.g., paging back and forth) are served by slicing the
+ * cached window, without counting.
+ *
+ * To enable, configure in solrconfig.xml, e.g.:
+ * <pre>
+ * &lt;cache name="xfacetShardWindows" class="solr.LRUCache" size="256" initialSize="32"
+ *     autowarmCount="32" regenerator="org.apache.solr.request.ShardWindowCache$Regenerator"/&gt;
+ * </pre>
+ *
+ * @author magibney
+ */
+public final class ShardWindowCache {
+
+  public static final String CACHE_NAME = "xfacetShardWindows";
+
+  private static final int KEY_FIELD = 0;
+  private static final int KEY_FILTER = 1;
+  private static final int KEY_TARGET = 2;
+  private static final int KEY_MINCOUNT = 3;
+  private static final int KEY_SORT = 4;
+  private static final int KEY_PREFIX = 5;
+  private static final int KEY_EXTEND = 6;
+  private static final int KEY_COUNTING = 7;
+  private static final int KEY_INDEXED = 8;
+  private static final int KEY_COMPACT = 9;
+  private static final int KEY_EXTERNAL = 10;
+
+  private final NamedList<Object> window; // complete response for the padded window
+  private final int offset; // padded offset
+  private final int limit; // padded limit
+  private final int size;
+  private final int targetOffset;
+  private final boolean atStart; // no accepted terms precede the window
+  private final boolean atEnd; // no accepted terms follow the window
+
+  ShardWindowCache(NamedList<Object> window, int offset, int limit) {
+    this.window = window;
+    this.offset = offset;
+    this.limit = limit;
+    NamedList<Object> terms = (NamedList<Object>) window.get("terms");
+    this.size = terms.size();
+    Integer actualOffset = (Integer) window.get("target_offset");
+    this.targetOffset = actualOffset == null ? 0 : actualOffset;
+    // the window is shifted toward the target only at the bounds of the accepted terms
+    this.atStart = size < limit || targetOffset < offset;
+    this.atEnd = size < limit || targetOffset > offset;
+  }
+
+  /**
+   * @return the cache key for the specified single-target request (which must not be
+   * section-based, document-centric, or report missing counts, and must have no term filter)
+   */
+  static List<Object> key(String field, Object filterKey, BytesRef target, int mincount, String sort, String prefix,
+      boolean extend, String targetCounting, boolean indexedKeys, boolean compact, boolean external) {
+    return Arrays.asList(field, filterKey, BytesRef.deepCopyOf(target), mincount, sort, prefix, extend,
+        targetCounting, indexedKeys, compact, external);
+  }
+
+  /**
+   * @return the window for the specified request, as would be returned by
+   * {@link DocValuesFacets#getCounts} (and prepared for the aggregator per the key), served from
+   * the cache if possible; or null if no cache is configured.
+   */
+  static NamedList<Object> get(SolrIndexSearcher searcher, DocSet docs, List<Object> key, int offset, int limit,
+      FacetDebugInfo fdebug, int threads) throws IOException {
+    SolrCache<List<Object>, ShardWindowCache> cache = searcher.getCache(CACHE_NAME);
+    if (cache == null) {
+      return null;
+    }
+    ShardWindowCache cached = cache.get(key);
+    NamedList<Object> ret = cached == null ? null : cached.slice(offset, limit);
+    if (fdebug != null) {
+      fdebug.putInfoItem("shardWindowCache", ret == null ? "miss" : "hit");
+    }
+    if (ret == null) {
+      int pad = limit;
+      cached = new ShardWindowCache(compute(searcher, docs, key, offset + pad, limit + (pad << 1), fdebug, threads),
+          offset + pad, limit + (pad << 1));
+      // concurrent builds for the same key are harmless (last put wins)
+      cache.put(key, cached);
+      ret = cached.slice(offset, limit);
+    }
+    return ret;
+  }
+
+  /**
+   * @return the window for the specified key, offset and limit, as would be returned by
+   * {@link DocValuesFacets#getCounts} (and prepared for the aggregator per the key)
+   */
+  static NamedList<Object> compute(SolrIndexSearcher searcher, DocSet docs, List<Object> key, int offset,
+      int limit, FacetDebugInfo fdebug, int threads) throws IOException {
+    String field = (String) key.get(KEY_FIELD);
+    BytesRef target = (BytesRef) key.get(KEY_TARGET);
+    FieldType ft = searcher.getSchema().getField(field).getType();
+    NamedList<Object> ret = (NamedList) DocValuesFacets.getCounts(searcher, docs, field, offset, limit,
+        (Integer) key.get(KEY_MINCOUNT), false, (String) key.get(KEY_SORT), (String) key.get(KEY_PREFIX),
+        (Predicate<BytesRef>) null, fdebug, threads, key.get(KEY_FILTER), (Boolean) key.get(KEY_EXTEND),
+        Collections.singletonMap(target.utf8ToString(), target), false, null, (String) key.get(KEY_COUNTING),
+        (Boolean) key.get(KEY_EXTERNAL), null, false, (Boolean) key.get(KEY_INDEXED), null);
+    SimpleFacets.prepareForAggregator(ft, ret, true, (Boolean) key.get(KEY_COMPACT));
+    return ret;
+  }
+
+  /**
+   * @return the sub-window for the specified offset and limit (with count and target_offset
+   * as would be computed for the request directly), or null if the request cannot be determined
+   * to fall within this window
+   */
+  NamedList<Object> slice(int offset, int limit) {
+    int start = targetOffset - offset;
+    if (start + limit > size) {
+      if (!atEnd) {
+        return null;
+      }
+      start = size - limit;
+    }
+    if (start < 0) {
+      if (!atStart) {
+        return null;
+      }
+      start = 0;
+      if (limit > size && !atEnd) {
+        return null;
+      }
+    }
+    int end = Math.min(start + limit, size);
+    NamedList<Object> terms = (NamedList<Object>) window.get("terms");
+    NamedList<Object> sliced = new NamedList<>(end - start);
+    for (int i = start; i < end; i++) {
+      sliced.add(terms.getName(i), terms.getVal(i));
+    }
+    NamedList<Object> ret = new NamedList<>(window.size());
+    for (Entry<String, Object> e : window) {
+      switch (e.getKey()) {
+        case "count":
+          ret.add("count", sliced.size());
+          if (sliced.size() > 0) {
+            ret.add("target_offset", targetOffset - start);
+          }
+          break;
+        case "target_offset":
+          break;
+        case "terms":
+          ret.add("terms", sliced);
+          break;
+        default:
+          if (IndexedTermKeys.RESPONSE_KEY.equals(e.getKey())) {
+            byte[] keys = IndexedTermKeys.slice((byte[]) e.getValue(), start, end);
+            ret.add(IndexedTermKeys.RESPONSE_KEY, keys);
+          } else {
+            ret.add(e.getKey(), e.getValue());
+          }
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * @return the DocSet (in the specified searcher) identified by the filter signature of the
+   * specified key
+   */
+  static DocSet docSet(SolrIndexSearcher searcher, List<Object> key) throws IOException {
+    Object filterKey = key.get(KEY_FILTER);
+    return filterKey == SegmentTermCounts.ALL_DOCS ? searcher.getLiveDocs()
+        : searcher.getDocSet((List<Query>) filterKey);
+  }
+
+  /**
+   * Recomputes windows in use by the previous searcher, with the same padding.
+   */
+  public static class Regenerator implements CacheRegenerator {
+
+    @Override
+    public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache, SolrCache oldCache, Object oldKey, Object oldVal) throws IOException {
+      List<Object> key = (List<Object>) oldKey;
+      ShardWindowCache old = (ShardWindowCache) oldVal;
+      if (newSearcher.getSchema().getFieldOrNull((String) key.get(KEY_FIELD)) == null) {
+        return true;
+      }
+      DocSet docs = docSet(newSearcher, key);
+      newCache.put(oldKey, new ShardWindowCache(compute(newSearcher, docs, key, old.offset, old.limit, null, 0),
+          old.offset, old.limit));
+      return true;
+    }
+
+  }
+
+}
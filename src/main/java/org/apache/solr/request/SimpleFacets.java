@@ -19,11 +19,14 @@ package org.apache.solr.request;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -43,6 +46,7 @@ import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.MultiPostingsEnum;
 import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SortedSetDocValues;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
@@ -67,6 +71,7 @@ import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.FacetParams;
 import org.apache.solr.common.params.GroupParams;
 import org.apache.solr.common.params.RequiredSolrParams;
+import org.apache.solr.common.params.ShardParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.ExecutorUtil;
 import org.apache.solr.common.util.NamedList;
@@ -82,10 +87,12 @@ import org.apache.solr.schema.SchemaField;
 import org.apache.solr.schema.TrieField;
 import org.apache.solr.search.BitDocSet;
 import org.apache.solr.search.DocSet;
+import org.apache.solr.search.ExtendedQuery;
 import org.apache.solr.search.Filter;
 import org.apache.solr.search.Grouping;
 import org.apache.solr.search.HashDocSet;
 import org.apache.solr.search.Insanity;
+import org.apache.solr.search.PostFilter;
 import org.apache.solr.search.QParser;
 import org.apache.solr.search.QueryParsing;
 import org.apache.solr.search.SolrIndexSearcher;
@@ -415,29 +422,33 @@ public class SimpleFacets {
    * @see FacetParams#FACET_ZEROS
    */
   private NamedList<Integer> getTermCounts(String field, Integer mincount, ParsedParams parsed) throws IOException {
+    return getTermCounts(field, mincount, parsed, null);
+  }
+
+  /**
+   * @param precounted if non-null, counts for all terms of the field over parsed.docs, as computed
+   * by {@link FusedFieldCounts}
+   */
+  private NamedList<Integer> getTermCounts(String field, Integer mincount, ParsedParams parsed, CountStore precounted) throws IOException {
     final SolrParams params = parsed.params;
     final DocSet docs = parsed.docs;
     final int threads = parsed.threads;
     int offset = params.getFieldInt(field, FacetParams.FACET_OFFSET, 0);
-    int limit = params.getFieldInt(field, FacetParams.FACET_LIMIT, 100);
+    SchemaField sf = searcher.getSchema().getField(field);
+    final FieldCounting counting = new FieldCounting(field, sf, params, mincount);
+    int limit = counting.limit;
     if (limit == 0) return new NamedList<>();
-    if (mincount==null) {
-      Boolean zeros = params.getFieldBool(field, FacetParams.FACET_ZEROS);
-      // mincount = (zeros!=null && zeros) ? 0 : 1;
-      mincount = (zeros!=null && !zeros) ? 1 : 0;
-      // current default is to include zeros.
-    }
+    mincount = counting.mincount;
     boolean missing = params.getFieldBool(field, FacetParams.FACET_MISSING, false);
     // default to sorting if there is a limit.
     String sort = params.getFieldParam(field, FacetParams.FACET_SORT, limit>0 ? FacetParams.FACET_SORT_COUNT : FacetParams.FACET_SORT_INDEX);
-    String prefix = params.getFieldParam(field, FacetParams.FACET_PREFIX);
+    String prefix = counting.prefix;
 
     final Predicate<BytesRef> termFilter = newBytesRefFilter(field, params);
 
-    boolean exists = params.getFieldBool(field, FacetParams.FACET_EXISTS, false);
+    boolean exists = counting.exists;
     
     NamedList<Integer> counts;
-    SchemaField sf = searcher.getSchema().getField(field);
     if (sf.getType().isPointField() && !sf.hasDocValues()) {
       throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, 
           "Can't facet on a PointField without docValues");
@@ -448,39 +459,51 @@ public class SimpleFacets {
     if (ft instanceof FacetPayload) {
       extend = params.getFieldBool(field, FacetParams.FACET_EXTEND, true);
     }
-    String target = params.getFieldParam(field, FacetParams.FACET_TARGET);
+    if (counting.suggest) {
+      return getSuggestions(field, ft, params.getFieldParam(field, FacetParams.FACET_SUGGEST), limit, params);
+    }
+    // facet.target may be multi-valued, in which case a separate window is built for each target
+    // (over counts computed once), keyed by target
+    String[] rawTargets = params.getFieldParams(field, FacetParams.FACET_TARGET);
     String targetDoc = null;
-    BytesRef targetBr = null;
-    if (target != null) {
+    Map<String, BytesRef> targets = null;
+    String targetCounting = null;
+    boolean targetSection = false;
+    if (rawTargets != null && rawTargets.length > 0) {
+      targetCounting = params.getFieldParam(field, FacetParams.FACET_TARGET_COUNTING, FacetParams.FACET_TARGET_COUNTING_AUTO);
       targetDoc = params.getFieldParam(field, FacetParams.FACET_TARGET_DOC);
+      targetSection = params.getFieldBool(field, FacetParams.FACET_TARGET_SECTION, false);
       boolean targetStrict = params.getFieldBool(field, FacetParams.FACET_TARGET_STRICT, targetDoc != null && !targetDoc.isEmpty());
-      if (ft instanceof MultiSerializable) {
-        targetBr = ((MultiSerializable)ft).normalizeQueryTarget(target, targetStrict, field);
-      } else {
-        targetBr = new BytesRef(target);
+      String targetOrd = params.getFieldParam(field, FacetParams.FACET_TARGET_ORD);
+      targets = new LinkedHashMap<>(rawTargets.length << 1);
+      for (String target : rawTargets) {
+        BytesRef targetBr = null;
+        if (rawTargets.length == 1 && targetOrd != null && !params.getBool(ShardParams.IS_SHARD, false)) {
+          // ordinals are specific to a single index; shards resolve facet.target as usual
+          targetBr = FacetSuggester.resolveTarget(searcher,
+              DocValuesFacets.termValues(searcher, field, sf.multiValued() || ft.multiValuedFieldCache()), targetOrd);
+        }
+        if (targetBr != null) {
+          // exact indexed term, as reported by facet.suggest
+          targetSection = false;
+        } else if (targetSection) {
+          // section keys are already normalized
+          targetBr = new BytesRef(target);
+        } else if (ft instanceof MultiSerializable) {
+          targetBr = ((MultiSerializable)ft).normalizeQueryTarget(target, targetStrict, field);
+        } else {
+          targetBr = new BytesRef(target);
+        }
+        targets.put(target, targetBr);
       }
     }
 
     // determine what type of faceting method to use
-    final String methodStr = params.getFieldParam(field, FacetParams.FACET_METHOD);
-    final FacetMethod requestedMethod;
-    if (FacetParams.FACET_METHOD_enum.equals(methodStr)) {
-      requestedMethod = FacetMethod.ENUM;
-    } else if (FacetParams.FACET_METHOD_fcs.equals(methodStr)) {
-      requestedMethod = FacetMethod.FCS;
-    } else if (FacetParams.FACET_METHOD_fc.equals(methodStr)) {
-      requestedMethod = FacetMethod.FC;
-    } else if(FacetParams.FACET_METHOD_uif.equals(methodStr)) {
-      requestedMethod = FacetMethod.UIF;
-    } else {
-      requestedMethod=null;
-    }
+    final FacetMethod requestedMethod = counting.requestedMethod;
 
     final boolean multiToken = sf.multiValued() || ft.multiValuedFieldCache();
 
-    FacetMethod appliedFacetMethod = selectFacetMethod(field,
-                                sf, requestedMethod, mincount,
-                                exists);
+    FacetMethod appliedFacetMethod = counting.appliedMethod;
 
     RTimer timer = null;
     if (fdebug != null) {
@@ -491,7 +514,7 @@ public class SimpleFacets {
        timer = new RTimer();
     }
 
-    if (params.getFieldBool(field, GroupParams.GROUP_FACET, false)) {
+    if (counting.groupFacet) {
       counts = getGroupedCounts(searcher, docs, field, multiToken, offset,limit, mincount, missing, sort, prefix, termFilter);
     } else {
       assert appliedFacetMethod != null;
@@ -582,7 +605,63 @@ public class SimpleFacets {
         case FC:
           boolean external = params.getBool("distrib", true);
           Set<String> fl = rb.rsp.getReturnFields().getRequestedFieldNames();
-          counts = DocValuesFacets.getCounts(searcher, docs, field, offset,limit, mincount, missing, sort, prefix, termFilter, fdebug, extend, targetBr, targetDoc, external, fl);
+          Predicate<BytesRef> walkFilter = termFilter;
+          String contains = params.getFieldParam(field, FacetParams.FACET_CONTAINS);
+          if (targets != null && contains != null) {
+            // browse windows need only visit terms containing every trigram of the substring
+            SortedSetDocValues si = DocValuesFacets.termValues(searcher, field, sf.multiValued() || ft.multiValuedFieldCache());
+            if (si != null) {
+              walkFilter = TrigramTermIndex.candidateFilter(searcher, field, si, termFilter, contains);
+            }
+          }
+          boolean deferDocFields = targetDoc != null && params.getFieldBool(field, FacetParams.FACET_TARGET_DOC_DEFER, false);
+          Object filterKey = segmentCountsFilterKey(parsed);
+          boolean indexedKeys = targets != null && params.getFieldBool(field, FacetParams.FACET_TARGET_INDEXED, false);
+          boolean compact = extend && params.getFieldBool(field, FacetParams.FACET_EXTEND_COMPACT, false);
+          counts = null;
+          List<Object> windowKey = null;
+          if (targets != null && targets.size() == 1 && !targetSection && targetDoc == null && !missing
+              && walkFilter == null && precounted == null && filterKey != null && limit > 0) {
+            // a window determined by its key, offset and limit (and the searcher), which may be cached
+            windowKey = ShardWindowCache.key(field, filterKey, targets.values().iterator().next(),
+                mincount, sort, prefix, extend, targetCounting, indexedKeys, compact, external);
+          }
+          boolean prefetch = windowKey != null && params.getFieldBool(field, FacetParams.FACET_TARGET_PREFETCH, false);
+          if (prefetch) {
+            counts = (NamedList) WindowPrefetcher.get(searcher, windowKey, offset, limit, fdebug);
+          }
+          if (counts == null && windowKey != null && params.getBool(ShardParams.IS_SHARD, false)) {
+            // adjacent-page shard requests may be served from a cached wider window
+            counts = (NamedList) ShardWindowCache.get(searcher, docs, windowKey, offset, limit, fdebug, threads);
+          }
+          InFlightCounts.Flight flight = null;
+          if (counts == null && filterKey != null && walkFilter == null && precounted == null && fdebug == null) {
+            // identical concurrent requests (e.g., bursts for a popular browse page) share one computation
+            flight = InFlightCounts.join(Arrays.asList(searcher, field, filterKey,
+                targets == null ? null : new ArrayList<>(targets.entrySet()), offset, limit, mincount, missing, sort,
+                prefix, extend, targetSection, targetDoc, targetCounting, external, fl, deferDocFields, indexedKeys,
+                compact));
+            if (!flight.isLeader()) {
+              counts = (NamedList) flight.await();
+            }
+          }
+          if (counts == null) {
+            try {
+              counts = DocValuesFacets.getCounts(searcher, docs, field, offset,limit, mincount, missing, sort, prefix, walkFilter, fdebug, threads, filterKey, extend, targets, targetSection, targetDoc, targetCounting, external, fl, deferDocFields, indexedKeys, precounted);
+              prepareForAggregator(ft, counts, targets != null, compact);
+            } catch (Throwable t) {
+              if (flight != null) {
+                flight.fail(t);
+              }
+              throw t;
+            }
+            if (flight != null) {
+              counts = (NamedList) flight.complete((NamedList) counts);
+            }
+          }
+          if (prefetch) {
+            WindowPrefetcher.prefetch(searcher, windowKey, offset, limit, (NamedList) counts, fdebug);
+          }
           break;
         default:
           throw new AssertionError();
@@ -597,6 +676,130 @@ public class SimpleFacets {
     return counts;
   }
 
+  /**
+   * How {@link #getTermCounts} counts a field, as determined by the params. Resolved once per
+   * field, and shared with the selection of fields for fused counting (see
+   * {@link #fusedCountingEligible}), so that both apply the same rules.
+   */
+  private static final class FieldCounting {
+    final int limit;
+    final int mincount;
+    final String prefix;
+    final boolean exists;
+    final boolean suggest;
+    final boolean groupFacet;
+    final FacetMethod requestedMethod;
+    /**
+     * null where no faceting method applies (facet.limit=0, or facet.suggest)
+     */
+    final FacetMethod appliedMethod;
+
+    /**
+     * @param mincount if null, the "zeros" param is consulted for the appropriate backcompat default
+     */
+    FieldCounting(String field, SchemaField sf, SolrParams params, Integer mincount) {
+      suggest = params.getFieldParam(field, FacetParams.FACET_SUGGEST) != null && sf.getType() instanceof MultiSerializable;
+      limit = params.getFieldInt(field, FacetParams.FACET_LIMIT, suggest ? DEFAULT_SUGGEST_LIMIT : 100);
+      if (mincount == null) {
+        Boolean zeros = params.getFieldBool(field, FacetParams.FACET_ZEROS);
+        // mincount = (zeros!=null && zeros) ? 0 : 1;
+        mincount = (zeros != null && !zeros) ? 1 : 0;
+        // current default is to include zeros.
+      }
+      this.mincount = mincount;
+      prefix = params.getFieldParam(field, FacetParams.FACET_PREFIX);
+      exists = params.getFieldBool(field, FacetParams.FACET_EXISTS, false);
+      groupFacet = params.getFieldBool(field, GroupParams.GROUP_FACET, false);
+      final String methodStr = params.getFieldParam(field, FacetParams.FACET_METHOD);
+      if (FacetParams.FACET_METHOD_enum.equals(methodStr)) {
+        requestedMethod = FacetMethod.ENUM;
+      } else if (FacetParams.FACET_METHOD_fcs.equals(methodStr)) {
+        requestedMethod = FacetMethod.FCS;
+      } else if (FacetParams.FACET_METHOD_fc.equals(methodStr)) {
+        requestedMethod = FacetMethod.FC;
+      } else if (FacetParams.FACET_METHOD_uif.equals(methodStr)) {
+        requestedMethod = FacetMethod.UIF;
+      } else {
+        requestedMethod = null;
+      }
+      appliedMethod = limit == 0 || suggest ? null : selectFacetMethod(field, sf, requestedMethod, this.mincount, exists);
+    }
+
+    /**
+     * @return true if all terms of the field are counted over the DocSet by {@link DocValuesFacets}
+     */
+    boolean countsAllTerms() {
+      return appliedMethod == FacetMethod.FC && !groupFacet && (prefix == null || prefix.isEmpty());
+    }
+  }
+
+  /**
+   * @return up to limit completions (by count over all live docs) of the specified prefix, in
+   * place of facet counts, each with a target token that may be passed back as facet.target.ord
+   */
+  private NamedList<Integer> getSuggestions(String field, FieldType ft, String prefix, int limit, SolrParams params) throws IOException {
+    if (params.getBool(ShardParams.IS_SHARD, false)) {
+      throw new SolrException(ErrorCode.BAD_REQUEST, FacetParams.FACET_SUGGEST + " is not supported for distributed requests");
+    }
+    MultiSerializable mft = (MultiSerializable) ft;
+    BytesRef normalized = mft.normalizeQueryTarget(prefix, false, field);
+    // drop the trailing delimiter, which would restrict completions to exact matches
+    normalized.length = Math.max(0, normalized.length - new BytesRef(mft.getDelim()).length);
+    FacetSuggester suggester = FacetSuggester.get(searcher, field);
+    if (suggester == null) {
+      throw new SolrException(ErrorCode.BAD_REQUEST, FacetParams.FACET_SUGGEST + " requires a user cache named " + FacetSuggester.CACHE_NAME);
+    }
+    NamedList<Object> terms = new NamedList<>();
+    List<String> targets = new ArrayList<>();
+    CharsRefBuilder charsRef = new CharsRefBuilder();
+    for (FacetSuggester.Suggestion suggestion : suggester.lookup(normalized, limit > 0 ? limit : DEFAULT_SUGGEST_LIMIT)) {
+      ft.indexedToReadable(suggestion.term, charsRef);
+      terms.add(charsRef.toString(), suggestion.count);
+      targets.add(suggester.targetToken(suggestion));
+    }
+    if (params.getBool("distrib", true)) {
+      mft.updateExternalRepresentation(terms);
+    }
+    NamedList res = new NamedList<>();
+    res.add("count", terms.size());
+    res.add("terms", terms);
+    res.add("targets", targets);
+    return res;
+  }
+
+  /**
+   * number of completions returned by {@link #getSuggestions} if facet.limit is unspecified or negative
+   */
+  private static final int DEFAULT_SUGGEST_LIMIT = 10;
+
+  /**
+   * compacts payloads in (see {@link FacetParams#FACET_EXTEND_COMPACT}) the specified field counts,
+   * as requested by the aggregator (indexed term keys, see {@link FacetParams#FACET_TARGET_INDEXED},
+   * are added by {@link DocValuesFacets#getCounts} as each window is built)
+   */
+  static void prepareForAggregator(FieldType ft, NamedList counts, boolean targeted, boolean compact) {
+    if (compact && ft instanceof FacetPayload) {
+      compactPayloads((FacetPayload) ft, targeted ? counts.get("terms") : counts);
+    }
+  }
+
+  /**
+   * replaces each payload value in the specified term list with its compact representation
+   * (see {@link FacetPayload#compactPayload(Object)}), for transfer to the aggregator
+   */
+  private static void compactPayloads(FacetPayload fp, Object terms) {
+    if (!(terms instanceof NamedList)) {
+      return;
+    }
+    NamedList nl = (NamedList) terms;
+    for (int i = 0; i < nl.size(); i++) {
+      Object val = nl.getVal(i);
+      if (val != null && !(val instanceof Number)) {
+        nl.setVal(i, fp.compactPayload(val));
+      }
+    }
+  }
+
    /**
     * @param existsRequested facet.exists=true is passed for the given field
     * */
@@ -757,6 +960,34 @@ public class SimpleFacets {
   }
 
 
+  /**
+   * @return a signature identifying the DocSet of the specified parsed params (all docs, or the query and
+   * filters that determine it), for caching of facet results; or null if no such signature can be
+   * determined. The signature identifies the DocSet within any one searcher; per-segment facet counts
+   * are reused across searchers only where it also identifies each segment's matching docs
+   * independent of other segments (see {@link SegmentTermCounts#perSegment(Object)}).
+   */
+  private Object segmentCountsFilterKey(ParsedParams parsed) {
+    if (parsed.docs.size() == searcher.numDocs()) {
+      return SegmentTermCounts.ALL_DOCS;
+    } else if (parsed.docs != docsOrig || rb == null || rb.getQuery() == null || rb.grouping()
+        || global.getBool(GroupParams.GROUP, false)) {
+      // excluded filters, or DocSet not (necessarily) determined by query and filters
+      return null;
+    }
+    List<Query> ret = new ArrayList<>();
+    ret.add(rb.getQuery());
+    if (rb.getFilters() != null) {
+      ret.addAll(rb.getFilters());
+    }
+    for (Query q : ret) {
+      if (q instanceof PostFilter || (q instanceof ExtendedQuery && !((ExtendedQuery) q).getCache())) {
+        return null;
+      }
+    }
+    return ret;
+  }
+
   static final Executor directExecutor = new Executor() {
     @Override
     public void execute(Runnable r) {
@@ -802,24 +1033,33 @@ public class SimpleFacets {
       fdebugParent.putInfoItem("maxThreads", maxThreads);
     }
 
+    List<ParsedParams> parsedFields = new ArrayList<>(facetFs.length);
+    for (String f : facetFs) {
+      parsedFields.add(parseParams(FacetParams.FACET_FIELD, f));
+    }
+    final Map<DocSet, FusedFieldCounts> fused = fuseFieldCounts(parsedFields, maxThreads);
+
     try {
       //Loop over fields; submit to executor, keeping the future
-      for (String f : facetFs) {
+      for (final ParsedParams parsed : parsedFields) {
         if (fdebugParent != null) {
           fdebug = new FacetDebugInfo();
           fdebugParent.addChild(fdebug);
         }
-        final ParsedParams parsed = parseParams(FacetParams.FACET_FIELD, f);
         final SolrParams localParams = parsed.localParams;
         final String termList = localParams == null ? null : localParams.get(CommonParams.TERMS);
         final String key = parsed.key;
         final String facetValue = parsed.facetValue;
+        final FusedFieldCounts fusedCounts = termList == null ? fused.get(parsed.docs) : null;
         Callable<NamedList> callable = () -> {
           try {
             NamedList<Object> result = new SimpleOrderedMap<>();
             if(termList != null) {
               List<String> terms = StrUtils.splitSmart(termList, ",", true);
               result.add(key, getListedTermCounts(facetValue, parsed, terms));
+            } else if (fusedCounts != null) {
+              Integer mincount = parsed.params.getFieldInt(facetValue, FacetParams.FACET_MINCOUNT);
+              result.add(key, getTermCounts(facetValue, mincount, parsed, fusedCounts.take(facetValue)));
             } else {
               result.add(key, getTermCounts(facetValue, parsed));
             }
@@ -855,11 +1095,95 @@ public class SimpleFacets {
       }
       throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
           "Error while processing facet fields: " + e.toString(), e);
+    } finally {
+      for (FusedFieldCounts fusedCounts : fused.values()) {
+        fusedCounts.release();
+      }
     }
 
     return res;
   }
 
+  /**
+   * Where several browse-enabled ({@link MultiSerializable}) fields would be counted by
+   * {@link DocValuesFacets} over all terms of the same DocSet, counts them in a single pass
+   * over the DocSet (see {@link FusedFieldCounts}).
+   *
+   * @return fused counts, keyed by (identity of) the DocSet over which they were computed
+   */
+  private Map<DocSet, FusedFieldCounts> fuseFieldCounts(List<ParsedParams> parsedFields, int maxThreads) throws IOException {
+    Map<DocSet, Set<String>> groups = new IdentityHashMap<>();
+    for (ParsedParams parsed : parsedFields) {
+      if (fusedCountingEligible(parsed)) {
+        Set<String> fields = groups.get(parsed.docs);
+        if (fields == null) {
+          groups.put(parsed.docs, fields = new LinkedHashSet<>());
+        }
+        fields.add(parsed.facetValue);
+      }
+    }
+    Map<DocSet, FusedFieldCounts> ret = new IdentityHashMap<>();
+    for (Map.Entry<DocSet, Set<String>> group : groups.entrySet()) {
+      if (group.getValue().size() < 2) {
+        continue;
+      }
+      FacetDebugInfo fusedDebug = null;
+      RTimer timer = null;
+      if (fdebugParent != null) {
+        fusedDebug = new FacetDebugInfo();
+        fdebugParent.addChild(fusedDebug);
+        fusedDebug.putInfoItem("inputDocSetSize", group.getKey().size());
+        timer = new RTimer();
+      }
+      ret.put(group.getKey(), FusedFieldCounts.count(searcher, group.getKey(), group.getValue(), maxThreads, fusedDebug));
+      if (fusedDebug != null) {
+        fusedDebug.setElapse((long) timer.getTime());
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * @return true if {@link #getTermCounts(String, ParsedParams)} would count all terms of the
+   * specified field over the DocSet via {@link DocValuesFacets} (i.e., method fc, no prefix,
+   * and no cached per-segment counts or term-at-a-time counting, whether requested or selected
+   * by cost under facet.target.counting=auto).
+   */
+  private boolean fusedCountingEligible(ParsedParams parsed) throws IOException {
+    final SolrParams params = parsed.params;
+    final String field = parsed.facetValue;
+    if (parsed.localParams != null && parsed.localParams.get(CommonParams.TERMS) != null) {
+      return false;
+    }
+    SchemaField sf = searcher.getSchema().getFieldOrNull(field);
+    if (sf == null || !(sf.getType() instanceof MultiSerializable)) {
+      return false;
+    }
+    Integer requestedMincount = params.getFieldInt(field, FacetParams.FACET_MINCOUNT);
+    FieldCounting counting = new FieldCounting(field, sf, params, requestedMincount);
+    if (!counting.countsAllTerms() || (requestedMincount != null && parsed.docs.size() < requestedMincount)) {
+      return false;
+    }
+    // cached per-segment counts are cheaper than any counting
+    if (DocValuesFacets.getSegmentCountsCache(searcher, segmentCountsFilterKey(parsed), -1) != null) {
+      return false;
+    }
+    String[] targets = params.getFieldParams(field, FacetParams.FACET_TARGET);
+    if (targets == null || targets.length == 0) {
+      return true;
+    }
+    int limit = counting.limit;
+    String sort = params.getFieldParam(field, FacetParams.FACET_SORT, limit > 0 ? FacetParams.FACET_SORT_COUNT : FacetParams.FACET_SORT_INDEX);
+    if (FacetParams.FACET_SORT_COUNT.equals(sort) || FacetParams.FACET_SORT_COUNT_LEGACY.equals(sort)) {
+      return true;
+    }
+    // windows counted term-at-a-time (as requested, or as estimated to be cheaper) count only the
+    // terms they visit
+    return !DocValuesFacets.prefersTermCounting(searcher, parsed.docs, sf, params.getFieldInt(field, FacetParams.FACET_OFFSET, 0),
+        limit, counting.mincount, new HashSet<>(Arrays.asList(targets)).size(), newBytesRefFilter(field, params),
+        params.getFieldParam(field, FacetParams.FACET_TARGET_COUNTING, FacetParams.FACET_TARGET_COUNTING_AUTO));
+  }
+
   /**
    * Computes the term-&gt;count counts for the specified term values relative to the 
    * @param field the name of the field to compute term counts against
@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+/**
+ * Succinct rank/select index over a fixed set of positions (here, the term indexes
+ * accepted for a facet.target window, i.e. whose counts meet mincount), so that
+ * "the nth accepted term before/after a given term" may be computed directly, rather
+ * than by stepping through accepted terms one at a time.
+ *
+ * Positions are stored as a bitset; cumulative ranks are sampled every
+ * {@value #RANK_SAMPLE_BITS} bits (rank in constant time), and the rank block of every
+ * {@value #SELECT_SAMPLE}th set bit is recorded, bounding the search for select.
+ *
+ * Indexes over all docs (for a given field and mincount) are fixed for a searcher,
+ * and are cached in a user-defined SolrCache named {@value #CACHE_NAME}, if configured.
+ *
+ * @author magibney
+ */
+public final class TermRankSelect {
+
+  public static final String CACHE_NAME = "xfacetAcceptedTerms";
+
+  private static final int RANK_SAMPLE_SHIFT = 3; // in words
+  private static final int RANK_SAMPLE_BITS = Long.SIZE << RANK_SAMPLE_SHIFT;
+  private static final int SELECT_SAMPLE_SHIFT = 9;
+  private static final int SELECT_SAMPLE = 1 << SELECT_SAMPLE_SHIFT;
+
+  private final long[] words;
+  private final int[] ranks;
+  private final int[] selectSamples;
+  private final int cardinality;
+
+  private TermRankSelect(long[] words) {
+    this.words = words;
+    int rankSamples = (words.length >>> RANK_SAMPLE_SHIFT) + 1;
+    this.ranks = new int[rankSamples];
+    int rank = 0;
+    for (int i = 0; i < words.length; i++) {
+      if ((i & ((1 << RANK_SAMPLE_SHIFT) - 1)) == 0) {
+        ranks[i >>> RANK_SAMPLE_SHIFT] = rank;
+      }
+      rank += Long.bitCount(words[i]);
+    }
+    if ((words.length & ((1 << RANK_SAMPLE_SHIFT) - 1)) == 0) {
+      ranks[rankSamples - 1] = rank;
+    }
+    this.cardinality = rank;
+    this.selectSamples = new int[(rank + SELECT_SAMPLE - 1) >>> SELECT_SAMPLE_SHIFT];
+    int block = 0;
+    for (int i = 0; i < selectSamples.length; i++) {
+      int sampleRank = i << SELECT_SAMPLE_SHIFT;
+      while (block + 1 < rankSamples && ranks[block + 1] <= sampleRank) {
+        block++;
+      }
+      selectSamples[i] = block;
+    }
+  }
+
+  /**
+   * @return an index over positions [0, to - from), where position i is set if
+   * counts.get(from + i) >= mincount.
+   */
+  public static TermRankSelect build(TermCounts counts, int from, int to, int mincount) {
+    long[] words = new long[((to - from) + Long.SIZE - 1) >>> 6];
+    for (int i = from; i < to; i++) {
+      if (counts.get(i) >= mincount) {
+        int pos = i - from;
+        words[pos >>> 6] |= 1L << pos;
+      }
+    }
+    return new TermRankSelect(words);
+  }
+
+  /**
+   * @return the number of set positions
+   */
+  public int cardinality() {
+    return cardinality;
+  }
+
+  /**
+   * @return the number of set positions less than the specified position
+   */
+  public int rank(int pos) {
+    int word = pos >>> 6;
+    int ret = ranks[word >>> RANK_SAMPLE_SHIFT];
+    for (int i = word & ~((1 << RANK_SAMPLE_SHIFT) - 1); i < word; i++) {
+      ret += Long.bitCount(words[i]);
+    }
+    if ((pos & (Long.SIZE - 1)) != 0) {
+      ret += Long.bitCount(words[word] & ((1L << pos) - 1));
+    }
+    return ret;
+  }
+
+  /**
+   * @return the set position with the specified rank (0-based), i.e., the position p
+   * such that p is set and {@link #rank(int) rank(p)} == rank.
+   */
+  public int select(int rank) {
+    if (rank < 0 || rank >= cardinality) {
+      throw new IndexOutOfBoundsException("rank=" + rank + ", cardinality=" + cardinality);
+    }
+    int sample = rank >>> SELECT_SAMPLE_SHIFT;
+    // binary search for the last rank block starting at or before the specified rank
+    int lo = selectSamples[sample];
+    int hi = sample + 1 < selectSamples.length ? selectSamples[sample + 1] : ranks.length - 1;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (ranks[mid] <= rank) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    int remaining = rank - ranks[lo];
+    for (int i = lo << RANK_SAMPLE_SHIFT;; i++) {
+      long word = words[i];
+      int bitCount = Long.bitCount(word);
+      if (remaining < bitCount) {
+        for (; remaining > 0; remaining--) {
+          word &= word - 1;
+        }
+        return (i << 6) + Long.numberOfTrailingZeros(word);
+      }
+      remaining -= bitCount;
+    }
+  }
+
+  /**
+   * @return an estimate of the memory used by this index, in bytes
+   */
+  public long ramBytesUsed() {
+    return ((long) words.length << 3) + ((long) (ranks.length + selectSamples.length) << 2);
+  }
+
+}
@@ -0,0 +1,234 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.LongObjectHashMap;
+import com.carrotsearch.hppc.cursors.LongObjectCursor;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.Predicate;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Per-searcher index from character trigrams to (sorted) term ordinals, for a single field,
+ * so that facet.contains browse windows need only visit terms containing every trigram of
+ * the requested substring, rather than scanning every term around the target.
+ *
+ * Trigrams are taken from the whole indexed form of each term (which is what facet.contains
+ * matches against), case-folded per char (consistent with facet.contains.ignoreCase), so the
+ * candidates for a substring are a superset of the matching terms for either setting of
+ * ignoreCase; candidates are verified by the original term filter. Substrings shorter than
+ * three chars are not indexable, and fall back to scanning.
+ *
+ * Indexes are cached in a user-defined SolrCache named {@value #CACHE_NAME}, keyed by field
+ * name, and are only used if the cache is configured, e.g.:
+ * <pre>
+ * &lt;cache name="xfacetTrigrams" class="solr.LRUCache" size="8" initialSize="2"
+ *     autowarmCount="100%" regenerator="org.apache.solr.request.TrigramTermIndex$Regenerator"/&gt;
+ * </pre>
+ *
+ * @author magibney
+ */
+public final class TrigramTermIndex {
+
+  public static final String CACHE_NAME = "xfacetTrigrams";
+
+  private static final int GRAM_SIZE = 3;
+
+  private final LongObjectHashMap<int[]> postings;
+
+  private TrigramTermIndex(LongObjectHashMap<int[]> postings) {
+    this.postings = postings;
+  }
+
+  /**
+   * Term filter that additionally exposes the (sorted) ordinals of candidate terms, outside of
+   * which the wrapped filter is known to reject every term.
+   */
+  public static final class CandidateFilter implements Predicate<BytesRef> {
+
+    private final Predicate<BytesRef> verify;
+    private final int[] candidates;
+
+    private CandidateFilter(Predicate<BytesRef> verify, int[] candidates) {
+      this.verify = verify;
+      this.candidates = candidates;
+    }
+
+    @Override
+    public boolean test(BytesRef term) {
+      return verify.test(term);
+    }
+
+    /**
+     * @return the least candidate ord greater than or equal to the specified ord, or -1 if there is none
+     */
+    public int nextCandidate(int ord) {
+      int i = Arrays.binarySearch(candidates, ord);
+      if (i < 0) {
+        i = ~i;
+      }
+      return i < candidates.length ? candidates[i] : -1;
+    }
+
+    /**
+     * @return the greatest candidate ord less than or equal to the specified ord, or -1 if there is none
+     */
+    public int previousCandidate(int ord) {
+      int i = Arrays.binarySearch(candidates, ord);
+      if (i < 0) {
+        i = ~i - 1;
+      }
+      return i >= 0 ? candidates[i] : -1;
+    }
+
+    public int size() {
+      return candidates.length;
+    }
+
+  }
+
+  /**
+   * @return a filter equivalent to the specified termFilter, restricted to candidate terms containing
+   * (ignoring case) the specified substring; or the specified termFilter, if no trigram index is
+   * configured or the substring is too short to be indexed.
+   */
+  public static Predicate<BytesRef> candidateFilter(SolrIndexSearcher searcher, String fieldName, SortedSetDocValues si,
+      Predicate<BytesRef> termFilter, String contains) throws IOException {
+    if (contains.length() < GRAM_SIZE) {
+      return termFilter;
+    }
+    SolrCache<String, TrigramTermIndex> cache = searcher.getCache(CACHE_NAME);
+    if (cache == null) {
+      return termFilter;
+    }
+    TrigramTermIndex index = cache.get(fieldName);
+    if (index == null) {
+      index = build(si);
+      cache.put(fieldName, index);
+    }
+    return new CandidateFilter(termFilter, index.candidates(contains));
+  }
+
+  /**
+   * Rebuilds indexes for fields in use by the previous searcher.
+   */
+  public static class Regenerator implements CacheRegenerator {
+
+    @Override
+    public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache, SolrCache oldCache, Object oldKey, Object oldVal) throws IOException {
+      String fieldName = (String) oldKey;
+      SchemaField sf = newSearcher.getSchema().getFieldOrNull(fieldName);
+      if (sf != null) {
+        SortedSetDocValues si = DocValuesFacets.termValues(newSearcher, fieldName, sf.multiValued() || sf.getType().multiValuedFieldCache());
+        if (si != null) {
+          newCache.put(oldKey, build(si));
+        }
+      }
+      return true;
+    }
+
+  }
+
+  static TrigramTermIndex build(SortedSetDocValues si) throws IOException {
+    final int valueCount = (int) si.getValueCount();
+    LongObjectHashMap<IntArrayList> builder = new LongObjectHashMap<>();
+    for (int ord = 0; ord < valueCount; ord++) {
+      String term = si.lookupOrd(ord).utf8ToString();
+      for (int i = GRAM_SIZE; i <= term.length(); i++) {
+        long gram = trigram(term, i - GRAM_SIZE);
+        IntArrayList ords = builder.get(gram);
+        if (ords == null) {
+          ords = new IntArrayList();
+          builder.put(gram, ords);
+        } else if (ords.get(ords.size() - 1) == ord) {
+          // repeated within this term
+          continue;
+        }
+        ords.add(ord);
+      }
+    }
+    LongObjectHashMap<int[]> postings = new LongObjectHashMap<>(builder.size());
+    for (LongObjectCursor<IntArrayList> c : builder) {
+      postings.put(c.key, c.value.toArray());
+    }
+    return new TrigramTermIndex(postings);
+  }
+
+  /**
+   * @return the case-folded trigram starting at the specified offset, packed as a long
+   */
+  private static long trigram(String s, int offset) {
+    long ret = 0;
+    for (int i = offset; i < offset + GRAM_SIZE; i++) {
+      ret = (ret << Character.SIZE) | fold(s.charAt(i));
+    }
+    return ret;
+  }
+
+  /**
+   * chars equal ignoring case (per String.regionMatches) have equal folded forms
+   */
+  private static char fold(char c) {
+    return Character.toLowerCase(Character.toUpperCase(c));
+  }
+
+  /**
+   * @return sorted ordinals of terms containing every trigram of the specified substring
+   */
+  int[] candidates(String contains) {
+    int gramCount = contains.length() - GRAM_SIZE + 1;
+    int[][] lists = new int[gramCount][];
+    for (int i = 0; i < gramCount; i++) {
+      lists[i] = postings.get(trigram(contains, i));
+      if (lists[i] == null) {
+        return new int[0];
+      }
+    }
+    // probe less selective lists for each member of the most selective list
+    Arrays.sort(lists, Comparator.comparingInt(l -> l.length));
+    int[] ret = lists[0].clone();
+    int size = ret.length;
+    for (int j = 1; j < lists.length && size > 0; j++) {
+      int[] probe = lists[j];
+      if (probe == lists[j - 1]) {
+        continue; // repeated trigram
+      }
+      int from = 0;
+      int kept = 0;
+      for (int k = 0; k < size; k++) {
+        int i = Arrays.binarySearch(probe, from, probe.length, ret[k]);
+        if (i >= 0) {
+          ret[kept++] = ret[k];
+          from = i + 1;
+        } else {
+          from = ~i;
+        }
+      }
+      size = kept;
+    }
+    return size == ret.length ? ret : Arrays.copyOf(ret, size);
+  }
+
+}
@@ -0,0 +1,270 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.facet.FacetDebugInfo;
+import org.apache.solr.util.DefaultSolrThreadFactory;
+import org.apache.solr.util.RefCounted;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Opt-in background computation of the windows adjacent to a facet.target window (see
+ * {@link org.apache.solr.common.params.FacetParams#FACET_TARGET_PREFETCH}), so that a
+ * subsequent request for the next or previous page (same target, offset shifted by facet.limit)
+ * is served without counting. Prefetched windows are held per-searcher in a user-defined
+ * SolrCache named {@value #CACHE_NAME} (if configured), and are served for at most
+ * {@link #TTL_NANOS} after they were built; browse sessions move on quickly, and stale entries
+ * are simply ignored (and eventually evicted). No entries are regenerated on commit.
+ *
+ * Prefetching is strictly best-effort: tasks run on a small pool of low-priority threads with
+ * a bounded queue, and tasks that cannot be queued are dropped (and counted as shed), so that
+ * prefetching never competes with foreground requests for more than a bounded share of
+ * resources. Hit, miss and shed counts are reported by {@link #getStatistics()} (exposed with the
+ * statistics of {@link org.apache.solr.handler.component.FacetComponent}), and with facet debug
+ * output.
+ *
+ * To enable, configure in solrconfig.xml, e.g.:
+ * <pre>
+ * &lt;cache name="xfacetPrefetch" class="solr.LRUCache" size="256" initialSize="32"
+ *     autowarmCount="0"/&gt;
+ * </pre>
+ *
+ * @author magibney
+ */
+public final class WindowPrefetcher {
+
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  public static final String CACHE_NAME = "xfacetPrefetch";
+
+  /**
+   * time for which a prefetched window may be served
+   */
+  public static final long TTL_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+  private static final int THREADS = 2;
+  private static final int QUEUE_CAPACITY = 8;
+
+  private static final LongAdder lookups = new LongAdder();
+  private static final LongAdder hits = new LongAdder();
+  private static final LongAdder expired = new LongAdder();
+  private static final LongAdder submitted = new LongAdder();
+  private static final LongAdder shed = new LongAdder();
+  private static final LongAdder failed = new LongAdder();
+
+  /**
+   * keys of windows currently queued or being computed, to avoid redundant work when
+   * concurrent requests would prefetch the same window
+   */
+  private static final Set<List<Object>> pending = ConcurrentHashMap.newKeySet();
+
+  private static final ThreadPoolExecutor prefetchExecutor;
+
+  static {
+    ThreadFactory delegate = new DefaultSolrThreadFactory("facetPrefetch");
+    prefetchExecutor = new ExecutorUtil.MDCAwareThreadPoolExecutor(
+        THREADS,
+        THREADS,
+        10, TimeUnit.SECONDS, // terminate idle threads after 10 sec
+        new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+        (r) -> {
+          Thread t = delegate.newThread(r);
+          t.setPriority(Thread.MIN_PRIORITY);
+          return t;
+        },
+        new ThreadPoolExecutor.AbortPolicy() // shed load rather than block or run on the caller
+    );
+    prefetchExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  private WindowPrefetcher() {
+  }
+
+  private static final class Prefetched {
+    private final NamedList<Object> window;
+    private final long created;
+
+    private Prefetched(NamedList<Object> window, long created) {
+      this.window = window;
+      this.created = created;
+    }
+  }
+
+  private static List<Object> key(List<Object> windowKey, int offset, int limit) {
+    List<Object> ret = new ArrayList<>(windowKey.size() + 2);
+    ret.addAll(windowKey);
+    ret.add(offset);
+    ret.add(limit);
+    return ret;
+  }
+
+  /**
+   * @return the prefetched window for the specified window key (see
+   * {@link ShardWindowCache#key}), offset and limit, or null if no such window is available (or
+   * no cache is configured)
+   */
+  static NamedList<Object> get(SolrIndexSearcher searcher, List<Object> windowKey, int offset, int limit,
+      FacetDebugInfo fdebug) {
+    SolrCache<List<Object>, Prefetched> cache = searcher.getCache(CACHE_NAME);
+    if (cache == null) {
+      return null;
+    }
+    lookups.increment();
+    Prefetched cached = cache.get(key(windowKey, offset, limit));
+    NamedList<Object> ret = null;
+    if (cached != null) {
+      if (System.nanoTime() - cached.created > TTL_NANOS) {
+        expired.increment();
+      } else {
+        hits.increment();
+        // so that the cached instance is not exposed to modification of the response
+        ret = (NamedList<Object>) InFlightCounts.copy(cached.window);
+      }
+    }
+    if (fdebug != null) {
+      fdebug.putInfoItem("prefetch", ret == null ? "miss" : "hit");
+    }
+    return ret;
+  }
+
+  /**
+   * caches the specified window (for the specified window key, offset and limit), as built at the
+   * specified time (per {@link System#nanoTime()})
+   */
+  static void put(SolrIndexSearcher searcher, List<Object> windowKey, int offset, int limit,
+      NamedList<Object> window, long created) {
+    SolrCache<List<Object>, Prefetched> cache = searcher.getCache(CACHE_NAME);
+    if (cache != null) {
+      cache.put(key(windowKey, offset, limit), new Prefetched(window, created));
+    }
+  }
+
+  /**
+   * Submits for background computation the windows adjacent to the specified window (as
+   * returned for the specified window key, offset and limit), where such windows exist.
+   */
+  static void prefetch(SolrIndexSearcher searcher, List<Object> windowKey, int offset, int limit,
+      NamedList<Object> window, FacetDebugInfo fdebug) {
+    if (searcher.getCache(CACHE_NAME) == null) {
+      return;
+    }
+    for (int adjacentOffset : adjacentOffsets(offset, limit, window)) {
+      submit(searcher, windowKey, adjacentOffset, limit);
+    }
+    if (fdebug != null) {
+      fdebug.putInfoItem("prefetchStats", getStatistics());
+    }
+  }
+
+  /**
+   * @return the offsets of the windows adjacent to the specified window (as returned for the
+   * specified offset and limit) that exist: the window following (offset - limit), unless the
+   * specified window is at the end of the terms, then the window preceding (offset + limit),
+   * unless the specified window is at the start of the terms
+   */
+  static List<Integer> adjacentOffsets(int offset, int limit, NamedList<Object> window) {
+    List<Integer> ret = new ArrayList<>(2);
+    NamedList<Object> terms = (NamedList<Object>) window.get("terms");
+    int size = terms == null ? 0 : terms.size();
+    if (size == 0) {
+      return ret;
+    }
+    Integer actualOffset = (Integer) window.get("target_offset");
+    int targetOffset = actualOffset == null ? 0 : actualOffset;
+    // as for ShardWindowCache: the window is shifted toward the target only at the bounds
+    boolean atStart = size < limit || targetOffset < offset;
+    boolean atEnd = size < limit || targetOffset > offset;
+    if (!atEnd) {
+      ret.add(offset - limit);
+    }
+    if (!atStart) {
+      ret.add(offset + limit);
+    }
+    return ret;
+  }
+
+  private static void submit(SolrIndexSearcher searcher, List<Object> windowKey, int offset, int limit) {
+    List<Object> key = key(windowKey, offset, limit);
+    SolrCache<List<Object>, Prefetched> cache = searcher.getCache(CACHE_NAME);
+    Prefetched cached = cache.get(key);
+    if ((cached != null && System.nanoTime() - cached.created <= TTL_NANOS) || !pending.add(key)) {
+      return;
+    }
+    Runnable task = () -> {
+      RefCounted<SolrIndexSearcher> ref = searcher.getCore().getSearcher();
+      try {
+        SolrIndexSearcher current = ref.get();
+        if (current != searcher) {
+          return; // a new searcher has been opened; the window would be of no use
+        }
+        DocSet docs = ShardWindowCache.docSet(current, windowKey);
+        put(current, windowKey, offset, limit, ShardWindowCache.compute(current, docs, windowKey, offset, limit, null, 0),
+            System.nanoTime());
+      } catch (Exception ex) {
+        failed.increment();
+        log.warn("failed to prefetch facet window for field " + windowKey.get(0), ex);
+      } finally {
+        ref.decref();
+        pending.remove(key);
+      }
+    };
+    try {
+      prefetchExecutor.execute(task);
+      submitted.increment();
+    } catch (RejectedExecutionException ex) {
+      shed.increment();
+      pending.remove(key);
+    }
+  }
+
+  /**
+   * @return prefetch statistics (since startup), across all cores
+   */
+  public static NamedList<Object> getStatistics() {
+    long lookupCount = lookups.sum();
+    long hitCount = hits.sum();
+    NamedList<Object> ret = new SimpleOrderedMap<>();
+    ret.add("lookups", lookupCount);
+    ret.add("hits", hitCount);
+    ret.add("hitratio", lookupCount == 0 ? 0f : (float) hitCount / lookupCount);
+    ret.add("expired", expired.sum());
+    ret.add("submitted", submitted.sum());
+    ret.add("shed", shed.sum());
+    ret.add("failed", failed.sum());
+    ret.add("queued", prefetchExecutor.getQueue().size());
+    return ret;
+  }
+
+}
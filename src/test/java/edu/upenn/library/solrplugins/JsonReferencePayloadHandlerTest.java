@@ -8,7 +8,49 @@ public class JsonReferencePayloadHandlerTest {
 
   @Test
   public void testMergePayload() {
-    // build data for preExisting record
+    JsonReferencePayloadHandler handler = new JsonReferencePayloadHandler();
+    Object merged = handler.mergePayload(buildPreExisting(), buildAdd(), 9L, 12L);
+    assertEquals(21L, handler.extractCount(merged));
+    checkMerged((NamedList<Object>) handler.updateValueExternalRepresentation(merged));
+  }
+
+  @Test
+  public void testMergePayloadAccumulator() {
+    // accumulate across several shard values for the same term
+    JsonReferencePayloadHandler handler = new JsonReferencePayloadHandler();
+    Object merged = handler.mergePayload(buildPreExisting(), buildAdd(), 9L, 12L);
+    merged = handler.mergePayload(merged, handler.compactPayload(buildAdd()), 21L, 12L);
+    merged = handler.mergePayload(merged, buildPreExisting(), 33L, 9L);
+    assertEquals(42L, handler.extractCount(merged));
+
+    NamedList<Object> result = (NamedList<Object>) handler.updateValueExternalRepresentation(merged);
+    assertEquals(42L, result.get("count"));
+    assertEquals(14L, ((NamedList<Object>) result.get("self")).get("count"));
+    NamedList<Object> useFor = (NamedList<Object>) ((NamedList<Object>) result.get("refs")).get("use_for");
+    assertEquals(3, useFor.size());
+    assertEquals(12L, ((NamedList<Object>) useFor.get("G. Hegel")).get("count"));
+    assertEquals(6L, ((NamedList<Object>) useFor.get("Georg Hegel2")).get("count"));
+    assertEquals(2L, ((NamedList<Object>) useFor.get("Hegel3")).get("count"));
+  }
+
+  @Test
+  public void testMergeCompactPayload() {
+    JsonReferencePayloadHandler handler = new JsonReferencePayloadHandler();
+    Object preExisting = handler.compactPayload(buildPreExisting());
+    Object add = handler.compactPayload(buildAdd());
+    assertEquals(9L, handler.extractCount(preExisting));
+    assertEquals(12L, handler.extractCount(add));
+
+    Object merged = handler.mergePayload(preExisting, add, 9L, 12L);
+    assertEquals(21L, handler.extractCount(merged));
+    checkMerged((NamedList<Object>) handler.updateValueExternalRepresentation(merged));
+
+    // mixed representations
+    merged = handler.mergePayload(buildPreExisting(), add, 9L, 12L);
+    checkMerged((NamedList<Object>) handler.updateValueExternalRepresentation(merged));
+  }
+
+  private static NamedList<Object> buildPreExisting() {
 
     NamedList<Object> preGHegelStruct = new NamedList<>();
     preGHegelStruct.add("count", 2L);
@@ -35,8 +77,10 @@ public class JsonReferencePayloadHandlerTest {
     preExisting.add("count", 9L);
     preExisting.add("refs", preRefs);
     preExisting.add("self", preSelf);
+    return preExisting;
+  }
 
-    // build data for record to add/merge
+  private static NamedList<Object> buildAdd() {
 
     NamedList<Object> addGHegelStruct = new NamedList<>();
     addGHegelStruct.add("count", 4L);
@@ -71,13 +115,10 @@ public class JsonReferencePayloadHandlerTest {
     add.add("count", 12L);
     add.add("refs", addRefs);
     add.add("self", addSelf);
+    return add;
+  }
 
-    // test merge
-
-    JsonReferencePayloadHandler handler = new JsonReferencePayloadHandler();
-
-    NamedList<Object> result = (NamedList<Object>) handler.mergePayload(preExisting, add, 9L, 12L);
-
+  private static void checkMerged(NamedList<Object> result) {
     assertEquals(21L, result.get("count"));
 
     NamedList<Object> self = (NamedList<Object>) result.get("self");
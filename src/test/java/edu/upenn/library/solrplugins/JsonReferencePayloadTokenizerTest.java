@@ -149,4 +149,40 @@ public class JsonReferencePayloadTokenizerTest {
     assertFalse(tokenizer.incrementToken());
   }
 
+  @Test
+  public void testDedupeReferences() throws IOException {
+    JsonReferencePayloadTokenizer tokenizer = new JsonReferencePayloadTokenizer(true);
+    tokenizer.setReader(new StringReader("{\"raw\": \"some value\", \"refs\": {\"use_for\":[\"ref1\",\"ref1\",{\"prefix\": \"a \", \"filing\": \"ref1\"}], \"see_also\":[\"ref1\"]}}"));
+    tokenizer.reset();
+
+    assertTrue(tokenizer.incrementToken());
+    assertEquals("some value", tokenizer.getAttribute(CharTermAttribute.class).toString());
+    assertEquals(1, tokenizer.getAttribute(PositionIncrementAttribute.class).getPositionIncrement());
+    assertNull(tokenizer.getAttribute(PayloadAttribute.class).getPayload());
+
+    assertTrue(tokenizer.incrementToken());
+    assertEquals("ref1", tokenizer.getAttribute(CharTermAttribute.class).toString());
+    assertEquals(2, tokenizer.getAttribute(PositionIncrementAttribute.class).getPositionIncrement());
+    assertEquals("use_for" + JsonReferencePayloadTokenizer.PAYLOAD_ATTR_SEPARATOR + "some value", tokenizer.getAttribute(PayloadAttribute.class).getPayload().utf8ToString());
+
+    // duplicate "ref1" use_for reference is collapsed; multipart "a ref1" is distinct
+    assertTrue(tokenizer.incrementToken());
+    assertEquals("ref1", tokenizer.getAttribute(CharTermAttribute.class).toString());
+    assertEquals(3, tokenizer.getAttribute(PositionIncrementAttribute.class).getPositionIncrement());
+    assertEquals("use_for" + JsonReferencePayloadTokenizer.PAYLOAD_ATTR_SEPARATOR + "some value", tokenizer.getAttribute(PayloadAttribute.class).getPayload().utf8ToString());
+
+    assertTrue(tokenizer.incrementToken());
+    assertEquals("a ", tokenizer.getAttribute(CharTermAttribute.class).toString());
+    assertEquals(JsonReferencePayloadTokenizer.TYPE_PREFIX, tokenizer.getAttribute(TypeAttribute.class).type());
+    assertEquals(0, tokenizer.getAttribute(PositionIncrementAttribute.class).getPositionIncrement());
+
+    // same target under a different reference type is distinct
+    assertTrue(tokenizer.incrementToken());
+    assertEquals("ref1", tokenizer.getAttribute(CharTermAttribute.class).toString());
+    assertEquals(4, tokenizer.getAttribute(PositionIncrementAttribute.class).getPositionIncrement());
+    assertEquals("see_also" + JsonReferencePayloadTokenizer.PAYLOAD_ATTR_SEPARATOR + "some value", tokenizer.getAttribute(PayloadAttribute.class).getPayload().utf8ToString());
+
+    assertFalse(tokenizer.incrementToken());
+  }
+
 }
@@ -0,0 +1,95 @@
+package edu.upenn.library.solrplugins;
+
+import edu.upenn.library.solrplugins.tokentype.TokenTypeJoinFilter;
+import java.io.IOException;
+import java.io.StringReader;
+import static junit.framework.Assert.assertEquals;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class PreAnalyzedReferenceTokenizerTest {
+
+  private static final String INPUT = "{\"raw\": {\"prefix\": \"the \", \"filing\": \"unconsoled\"}, \"refs\": {\"use_for\":[\"ref1|a,b\\\\c\",{\"prefix\": \"a \", \"filing\": \"chicken\"}], \"see_also\":[\"ref3\"]}}";
+
+  private static TokenStream analysisChain(String input) {
+    JsonReferencePayloadTokenizer tokenizer = new JsonReferencePayloadTokenizer();
+    tokenizer.setReader(new StringReader(input));
+    return new TokenTypeJoinFilter(tokenizer, new String[] {"filing", "prefix"}, "indexed", "filing", "\u0000", false, false);
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    String serialized = PreAnalyzedReferenceSerializer.serialize(analysisChain(INPUT));
+    assertTrue(serialized.startsWith(PreAnalyzedReferenceSerializer.VERSION + '|'));
+    assertEquals(-1, serialized.indexOf('\u0000'));
+
+    TokenStream expected = analysisChain(INPUT);
+    PreAnalyzedReferenceTokenizer actual = new PreAnalyzedReferenceTokenizer();
+    actual.setReader(new StringReader(serialized));
+    expected.reset();
+    actual.reset();
+    int count = 0;
+    while (expected.incrementToken()) {
+      assertTrue(actual.incrementToken());
+      assertEquals(expected.getAttribute(CharTermAttribute.class).toString(), actual.getAttribute(CharTermAttribute.class).toString());
+      assertEquals(expected.getAttribute(TypeAttribute.class).type(), actual.getAttribute(TypeAttribute.class).type());
+      assertEquals(expected.getAttribute(PositionIncrementAttribute.class).getPositionIncrement(), actual.getAttribute(PositionIncrementAttribute.class).getPositionIncrement());
+      assertEquals(expected.getAttribute(PayloadAttribute.class).getPayload(), actual.getAttribute(PayloadAttribute.class).getPayload());
+      count++;
+    }
+    assertFalse(actual.incrementToken());
+    assertEquals(4, count);
+    expected.close();
+    actual.close();
+  }
+
+  @Test
+  public void testEmpty() throws IOException {
+    PreAnalyzedReferenceTokenizer tokenizer = new PreAnalyzedReferenceTokenizer();
+    tokenizer.setReader(new StringReader(PreAnalyzedReferenceSerializer.VERSION));
+    tokenizer.reset();
+    assertFalse(tokenizer.incrementToken());
+    tokenizer.close();
+  }
+
+  @Test
+  public void testMalformedUnicodeEscape() throws IOException {
+    for (String escape : new String[] {"\\uZZ12", "\\u-001", "\\u+001", "\\u12 4"}) {
+      String input = PreAnalyzedReferenceSerializer.VERSION + "|1,indexed,ab" + escape + "cd";
+      PreAnalyzedReferenceTokenizer tokenizer = new PreAnalyzedReferenceTokenizer();
+      tokenizer.setReader(new StringReader(input));
+      tokenizer.reset();
+      try {
+        tokenizer.incrementToken();
+        fail("expected IOException for " + input);
+      } catch (IOException ex) {
+        // position of the escape character
+        assertTrue(ex.getMessage(), ex.getMessage().endsWith("at position " + input.indexOf('\\')));
+      }
+      tokenizer.close();
+    }
+    // well-formed escapes are unaffected
+    PreAnalyzedReferenceTokenizer tokenizer = new PreAnalyzedReferenceTokenizer();
+    tokenizer.setReader(new StringReader(PreAnalyzedReferenceSerializer.VERSION + "|1,indexed,ab\\u00e9\\u00C9"));
+    tokenizer.reset();
+    assertTrue(tokenizer.incrementToken());
+    assertEquals("ab\u00e9\u00c9", tokenizer.getAttribute(CharTermAttribute.class).toString());
+    tokenizer.close();
+  }
+
+  @Test(expected = IOException.class)
+  public void testUnrecognizedInput() throws IOException {
+    PreAnalyzedReferenceTokenizer tokenizer = new PreAnalyzedReferenceTokenizer();
+    tokenizer.setReader(new StringReader("{\"raw\": \"some value\"}"));
+    tokenizer.reset();
+    tokenizer.incrementToken();
+  }
+
+}
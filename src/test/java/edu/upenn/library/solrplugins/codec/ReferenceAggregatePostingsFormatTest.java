@@ -0,0 +1,306 @@
+/*
+ * Copyright 2016 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.library.solrplugins.codec;
+
+import edu.upenn.library.solrplugins.JsonReferencePayloadHandler;
+import edu.upenn.library.solrplugins.codec.ReferenceAggregatePostingsFormat.ReferenceAggregateTerms;
+import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import org.apache.lucene.analysis.CannedTokenStream;
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.analysis.Token;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.LogDocMergePolicy;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+/**
+ *
+ * @author magibney
+ */
+public class ReferenceAggregatePostingsFormatTest extends LuceneTestCase {
+
+  private static final String FIELD = "f";
+  private static final String HEGEL = "hegel\u0000Hegel";
+  private static final String KANT = "kant\u0000Kant";
+  private static final String LOCKE = "locke\u0000Locke";
+  private static final String[] TERMS = new String[] {HEGEL, KANT, LOCKE};
+  private static final String USE_FOR_G = "use_for\u0000Hegel\u0000G. ";
+  private static final String USE_FOR_GEORG = "use_for\u0000Hegel2\u0000Georg ";
+  private static final String SEE_ALSO = "see_also\u0000Kant";
+
+  /**
+   * each doc is a list of "term" (self) or "term|payload" tokens
+   */
+  private static final String[][] DOCS = new String[][] {
+    {HEGEL, KANT + "|" + SEE_ALSO},
+    {HEGEL + "|" + USE_FOR_G},
+    {HEGEL, HEGEL + "|" + USE_FOR_G},
+    {HEGEL + "|" + USE_FOR_GEORG},
+    {KANT, LOCKE}
+  };
+
+  private static Document doc(int id, String[] tokens) {
+    Token[] canned = new Token[tokens.length];
+    for (int i = 0; i < tokens.length; i++) {
+      int split = tokens[i].indexOf('|');
+      String term = split < 0 ? tokens[i] : tokens[i].substring(0, split);
+      canned[i] = new Token(term, 0, term.length());
+      if (split >= 0) {
+        canned[i].setPayload(new BytesRef(tokens[i].substring(split + 1)));
+      }
+    }
+    Document doc = new Document();
+    doc.add(new StringField("id", Integer.toString(id), Field.Store.NO));
+    doc.add(new Field(FIELD, new CannedTokenStream(canned), TextField.TYPE_NOT_STORED));
+    return doc;
+  }
+
+  /**
+   * indexes DOCS in two segments (split after the third doc), and deletes the specified docs
+   */
+  private static void index(Directory dir, Codec codec, int... deletes) throws IOException {
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(codec);
+    iwc.setMergePolicy(new LogDocMergePolicy());
+    try (IndexWriter w = new IndexWriter(dir, iwc)) {
+      for (int i = 0; i < DOCS.length; i++) {
+        w.addDocument(doc(i, DOCS[i]));
+        if (i == 2) {
+          w.commit();
+        }
+      }
+      w.commit();
+      for (int id : deletes) {
+        w.deleteDocuments(new Term("id", Integer.toString(id)));
+      }
+      w.commit();
+    }
+  }
+
+  private static void forceMerge(Directory dir, Codec codec) throws IOException {
+    IndexWriterConfig iwc = new IndexWriterConfig(new MockAnalyzer(random()));
+    iwc.setCodec(codec);
+    try (IndexWriter w = new IndexWriter(dir, iwc)) {
+      w.forceMerge(1);
+    }
+  }
+
+  private static Codec aggregateCodec() {
+    return TestUtil.alwaysPostingsFormat(new ReferenceAggregatePostingsFormat());
+  }
+
+  /**
+   * @return aggregates computed by walking postings over live docs
+   */
+  private static ReferenceAggregates walk(LeafReader reader, String term) throws IOException {
+    PostingsEnum postings = reader.postings(new Term(FIELD, term), PostingsEnum.PAYLOADS);
+    if (postings == null) {
+      return null;
+    }
+    ReferenceAggregates.Builder builder = new ReferenceAggregates.Builder();
+    builder.accumulate(postings, reader.getLiveDocs());
+    byte[] buffer = new byte[4096];
+    ByteArrayDataOutput out = new ByteArrayDataOutput(buffer);
+    builder.write(out);
+    return ReferenceAggregates.read(new ByteArrayDataInput(buffer, 0, out.getPosition()));
+  }
+
+  private static Map<String, Long> asMap(ReferenceAggregates aggregates) {
+    Map<String, Long> ret = new TreeMap<>();
+    ret.put("_self", aggregates.getSelfCount());
+    for (int i = 0; i < aggregates.size(); i++) {
+      ret.put(aggregates.getPayload(i), aggregates.getCount(i));
+    }
+    return ret;
+  }
+
+  private static Map<String, Long> expected(long self, Object... payloadCounts) {
+    Map<String, Long> ret = new TreeMap<>();
+    ret.put("_self", self);
+    for (int i = 0; i < payloadCounts.length; i += 2) {
+      ret.put((String) payloadCounts[i], ((Number) payloadCounts[i + 1]).longValue());
+    }
+    return ret;
+  }
+
+  /**
+   * @return live-docs aggregates for each term in the index, asserting that aggregates read from
+   * the side file agree with aggregates computed by walking postings
+   */
+  private static Map<String, Map<String, Long>> checkLeaves(DirectoryReader reader) throws IOException {
+    Map<String, Map<String, Long>> ret = new TreeMap<>();
+    for (LeafReaderContext leaf : reader.leaves()) {
+      LeafReader r = leaf.reader();
+      Terms terms = r.terms(FIELD);
+      assertTrue(terms instanceof ReferenceAggregateTerms);
+      for (String term : TERMS) {
+        ReferenceAggregates walked = walk(r, term);
+        ReferenceAggregates read = ((ReferenceAggregateTerms) terms).getReferenceAggregates(new BytesRef(term), r.getLiveDocs());
+        if (walked == null) {
+          assertNull(read);
+          continue;
+        }
+        assertEquals(term, asMap(walked), asMap(read));
+        Map<String, Long> agg = ret.get(term);
+        if (agg == null) {
+          ret.put(term, asMap(read));
+        } else {
+          for (Entry<String, Long> e : asMap(read).entrySet()) {
+            agg.merge(e.getKey(), e.getValue(), Long::sum);
+          }
+        }
+      }
+    }
+    // payloads whose every occurrence was deleted are not reported
+    for (Map<String, Long> agg : ret.values()) {
+      agg.values().removeIf((v) -> v == 0);
+      agg.putIfAbsent("_self", 0L);
+    }
+    return ret;
+  }
+
+  @Test
+  public void testFlush() throws IOException {
+    try (Directory dir = newDirectory()) {
+      index(dir, aggregateCodec());
+      try (DirectoryReader reader = DirectoryReader.open(dir)) {
+        assertEquals(2, reader.leaves().size());
+        Map<String, Map<String, Long>> aggregates = checkLeaves(reader);
+        assertEquals(expected(2, USE_FOR_G, 2, USE_FOR_GEORG, 1), aggregates.get(HEGEL));
+        assertEquals(expected(1, SEE_ALSO, 1), aggregates.get(KANT));
+        assertEquals(expected(1), aggregates.get(LOCKE));
+      }
+    }
+  }
+
+  @Test
+  public void testLiveDocs() throws IOException {
+    try (Directory dir = newDirectory()) {
+      index(dir, aggregateCodec(), 1, 4);
+      try (DirectoryReader reader = DirectoryReader.open(dir)) {
+        assertEquals(2, reader.leaves().size());
+        for (LeafReaderContext leaf : reader.leaves()) {
+          assertNotNull(leaf.reader().getLiveDocs());
+        }
+        Map<String, Map<String, Long>> aggregates = checkLeaves(reader);
+        assertEquals(expected(2, USE_FOR_G, 1, USE_FOR_GEORG, 1), aggregates.get(HEGEL));
+        assertEquals(expected(0, SEE_ALSO, 1), aggregates.get(KANT));
+        assertEquals(expected(0), aggregates.get(LOCKE));
+      }
+    }
+  }
+
+  @Test
+  public void testMergeWithDeletions() throws IOException {
+    try (Directory dir = newDirectory()) {
+      index(dir, aggregateCodec(), 1, 4);
+      forceMerge(dir, aggregateCodec());
+      try (DirectoryReader reader = DirectoryReader.open(dir)) {
+        assertEquals(1, reader.leaves().size());
+        LeafReader r = reader.leaves().get(0).reader();
+        assertNull(r.getLiveDocs());
+        ReferenceAggregateTerms terms = (ReferenceAggregateTerms) r.terms(FIELD);
+        // merged aggregates are recomputed over the surviving docs
+        assertEquals(expected(2, USE_FOR_G, 1, USE_FOR_GEORG, 1), asMap(terms.getReferenceAggregates(new BytesRef(HEGEL))));
+        assertEquals(expected(0, SEE_ALSO, 1), asMap(terms.getReferenceAggregates(new BytesRef(KANT))));
+        assertNull(terms.getReferenceAggregates(new BytesRef(LOCKE)));
+        checkLeaves(reader);
+      }
+    }
+  }
+
+  /**
+   * converts NamedLists to sorted maps, so that structures may be compared irrespective of
+   * the order in which references were first encountered
+   */
+  private static Object canonical(Object val) {
+    if (val instanceof NamedList) {
+      NamedList<Object> nl = (NamedList<Object>) val;
+      Map<String, Object> ret = new TreeMap<>();
+      for (int i = 0; i < nl.size(); i++) {
+        ret.put(nl.getName(i), canonical(nl.getVal(i)));
+      }
+      return ret;
+    }
+    return val;
+  }
+
+  private static List<Entry<LeafReader, Bits>> leaves(DirectoryReader reader) {
+    List<Entry<LeafReader, Bits>> ret = new ArrayList<>();
+    for (LeafReaderContext leaf : reader.leaves()) {
+      ret.add(new SimpleImmutableEntry<>(leaf.reader(), leaf.reader().getLiveDocs()));
+    }
+    return ret;
+  }
+
+  private void checkHandler(int... deletes) throws IOException {
+    JsonReferencePayloadHandler handler = new JsonReferencePayloadHandler();
+    try (Directory aggregateDir = newDirectory(); Directory defaultDir = newDirectory()) {
+      index(aggregateDir, aggregateCodec(), deletes);
+      index(defaultDir, TestUtil.getDefaultCodec(), deletes);
+      try (DirectoryReader aggregateReader = DirectoryReader.open(aggregateDir);
+          DirectoryReader defaultReader = DirectoryReader.open(defaultDir)) {
+        for (LeafReaderContext leaf : defaultReader.leaves()) {
+          assertFalse(leaf.reader().terms(FIELD) instanceof ReferenceAggregateTerms);
+        }
+        for (String term : TERMS) {
+          Term t = new Term(FIELD, term);
+          long count = defaultReader.docFreq(t);
+          Entry<String, Object> fromSideFile = handler.addEntry(term, count, t, leaves(aggregateReader));
+          Entry<String, Object> fromPostings = handler.addEntry(term, count, t, leaves(defaultReader));
+          assertEquals(term, canonical(fromPostings.getValue()), canonical(fromSideFile.getValue()));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testHandlerSideFileMatchesPostings() throws IOException {
+    checkHandler();
+  }
+
+  @Test
+  public void testHandlerSideFileMatchesPostingsLiveDocs() throws IOException {
+    checkHandler(1, 4);
+  }
+
+}
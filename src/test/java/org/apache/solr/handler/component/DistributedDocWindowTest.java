@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import org.apache.solr.BaseDistributedSearchTestCase;
+import org.apache.solr.SolrTestCaseJ4.SuppressSSL;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+/**
+ * Distributed document-centric (facet.targetDoc) windows, whose stored fields are retrieved
+ * (from the owning shard) only for docs in the merged window.
+ *
+ * @author magibney
+ */
+@SuppressSSL
+public class DistributedDocWindowTest extends BaseDistributedSearchTestCase {
+
+  private static final int DOCS = 24;
+
+  private static String name(int id) {
+    // two docs per name
+    return String.format(Locale.ROOT, "Name %02d", id / 2);
+  }
+
+  private static String title(int id) {
+    return "title " + id;
+  }
+
+  /**
+   * @return the docs of the specified field's window, in window order, as (id, title) pairs
+   */
+  private static List<String> windowDocs(NamedList<?> response, String field) {
+    NamedList<?> counts = (NamedList<?>) response.findRecursive("facet_counts", "facet_fields", field);
+    NamedList<?> terms = (NamedList<?>) counts.get("terms");
+    List<String> ret = new ArrayList<>();
+    for (int i = 0; i < terms.size(); i++) {
+      NamedList<?> termEntry = (NamedList<?>) terms.getVal(i);
+      NamedList<?> docs = (NamedList<?>) termEntry.get("docs");
+      for (int j = 0; j < docs.size(); j++) {
+        SolrDocument doc = (SolrDocument) docs.getVal(j);
+        assertNotNull(docs.getName(j), doc);
+        ret.add(docs.getName(j) + "=" + doc.getFirstValue("title"));
+      }
+    }
+    return ret;
+  }
+
+  @Test
+  @ShardsFixed(num = 3)
+  public void test() throws Exception {
+    del("*:*");
+    for (int id = 0; id < DOCS; id++) {
+      index("id", Integer.toString(id), "title", title(id), "name", name(id));
+    }
+    commit();
+    for (int offset : new int[] {0, 3}) {
+      for (int limit : new int[] {1, 5}) {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(CommonParams.Q, "*:*");
+        params.set(CommonParams.ROWS, 0);
+        params.set(CommonParams.FL, "id,title");
+        params.set(FacetParams.FACET, true);
+        params.set(FacetParams.FACET_FIELD, "name");
+        params.set(FacetParams.FACET_SORT, FacetParams.FACET_SORT_INDEX);
+        params.set("f.name." + FacetParams.FACET_TARGET, name(9));
+        params.set("f.name." + FacetParams.FACET_TARGET_DOC, "9");
+        params.set("f.name." + FacetParams.FACET_OFFSET, offset);
+        params.set("f.name." + FacetParams.FACET_LIMIT, limit);
+        params.set("f.name." + FacetParams.FACET_EXTEND, false);
+        List<String> expected = windowDocs(controlClient.query(params).getResponse(), "name");
+        assertEquals(limit, expected.size());
+        for (String doc : expected) {
+          // id=title
+          String id = doc.substring(0, doc.indexOf('='));
+          assertEquals(id + "=" + title(Integer.parseInt(id)), doc);
+        }
+        ModifiableSolrParams distrib = new ModifiableSolrParams(params);
+        distrib.set(ShardParams.SHARDS, shards);
+        // deferred fields reach every doc in the merged window
+        assertEquals(params.toString(), expected, windowDocs(queryServer(distrib).getResponse(), "name"));
+      }
+    }
+  }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.component;
+
+import java.util.Arrays;
+import java.util.Locale;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Browse requests (see {@link FacetBrowseHandler}) against the equivalent /select facet windows.
+ *
+ * @author magibney
+ */
+public class FacetBrowseHandlerTest extends SolrTestCaseJ4 {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCore("solrconfig.xml", "schema.xml");
+    for (int id = 0; id < 40; id++) {
+      assertU(adoc("id", Integer.toString(id), "title", "title " + id, "genre", "g" + (id % 3),
+          "name", name(id), "name", name(id * 7 % 40)));
+      if (id % 10 == 9) {
+        assertU(commit());
+      }
+    }
+    assertU(commit());
+  }
+
+  private static String name(int i) {
+    return String.format(Locale.ROOT, "Name %02d", i / 2);
+  }
+
+  private static SolrQueryResponse response(String handler, String... params) throws Exception {
+    SolrQueryRequest req = req(params);
+    try {
+      SolrQueryResponse rsp = h.queryAndResponse(handler, req);
+      if (rsp.getException() != null) {
+        throw rsp.getException();
+      }
+      // render while the request (and its searcher) is open
+      rsp.getValues().toString();
+      return rsp;
+    } finally {
+      req.close();
+    }
+  }
+
+  @Test
+  public void testFacetParams() {
+    SolrParams browse = params("q", "*:*", "fq", "genre:g1", FacetBrowseHandler.FIELD, "name",
+        FacetBrowseHandler.TARGET, "name 07", FacetBrowseHandler.OFFSET, "3", FacetBrowseHandler.LIMIT, "10",
+        FacetBrowseHandler.EXTEND, "false", FacetBrowseHandler.TARGET_DOC, "12", "f.name.facet.mincount", "2");
+    ModifiableSolrParams params = FacetBrowseHandler.facetParams(browse, "name", "/xbrowse");
+    // browse params map to the corresponding per-field facet params
+    assertEquals("true", params.get(FacetParams.FACET));
+    assertArrayEquals(new String[] {"name"}, params.getParams(FacetParams.FACET_FIELD));
+    assertEquals("name 07", params.get("f.name." + FacetParams.FACET_TARGET));
+    assertEquals("3", params.get("f.name." + FacetParams.FACET_OFFSET));
+    assertEquals("10", params.get("f.name." + FacetParams.FACET_LIMIT));
+    assertEquals("false", params.get("f.name." + FacetParams.FACET_EXTEND));
+    assertEquals("12", params.get("f.name." + FacetParams.FACET_TARGET_DOC));
+    // other params are passed through
+    assertEquals("genre:g1", params.get(CommonParams.FQ));
+    assertEquals("2", params.get("f.name." + FacetParams.FACET_MINCOUNT));
+    assertEquals("0", params.get(CommonParams.ROWS));
+    // windows are in index order, unless otherwise specified
+    assertEquals(FacetParams.FACET_SORT_INDEX, params.get("f.name." + FacetParams.FACET_SORT));
+    assertEquals(FacetParams.FACET_SORT_COUNT, FacetBrowseHandler.facetParams(params(FacetBrowseHandler.FIELD, "name",
+        FacetParams.FACET_SORT, FacetParams.FACET_SORT_COUNT), "name", null).getFieldParam("name", FacetParams.FACET_SORT));
+    // shard requests are routed to the same handler, unless otherwise specified
+    assertEquals("/xbrowse", params.get(ShardParams.SHARDS_QT));
+    assertEquals("/other", FacetBrowseHandler.facetParams(params(FacetBrowseHandler.FIELD, "name",
+        ShardParams.SHARDS_QT, "/other"), "name", "/xbrowse").get(ShardParams.SHARDS_QT));
+    assertNull(FacetBrowseHandler.facetParams(params(FacetBrowseHandler.FIELD, "name"), "name", null)
+        .get(ShardParams.SHARDS_QT));
+    // browse params that are not specified are not mapped
+    params = FacetBrowseHandler.facetParams(params(FacetBrowseHandler.FIELD, "name"), "name", null);
+    assertNull(params.get("f.name." + FacetParams.FACET_TARGET));
+    assertNull(params.get("f.name." + FacetParams.FACET_TARGET_DOC));
+  }
+
+  @Test
+  public void testBrowseMatchesSelect() throws Exception {
+    for (String fq : new String[] {"*:*", "genre:g1"}) {
+      for (String target : new String[] {"name 00", "Name 07", "name 07a", "z"}) {
+        for (int offset : new int[] {0, 3, 6}) {
+          for (String extend : new String[] {"true", "false"}) {
+            NamedList<?> browse = response("/xbrowse", "q", "*:*", "fq", fq, FacetBrowseHandler.FIELD, "name",
+                FacetBrowseHandler.TARGET, target, FacetBrowseHandler.OFFSET, Integer.toString(offset),
+                FacetBrowseHandler.LIMIT, "5", FacetBrowseHandler.EXTEND, extend).getValues();
+            NamedList<?> select = response("/select", "q", "*:*", "fq", fq, "rows", "0", "facet", "true",
+                "facet.field", "name", "f.name." + FacetParams.FACET_TARGET, target,
+                "f.name." + FacetParams.FACET_OFFSET, Integer.toString(offset), "f.name." + FacetParams.FACET_LIMIT, "5",
+                "f.name." + FacetParams.FACET_EXTEND, extend, "f.name." + FacetParams.FACET_SORT,
+                FacetParams.FACET_SORT_INDEX).getValues();
+            Object expected = select.findRecursive("facet_counts", "facet_fields", "name");
+            assertNotNull(expected);
+            String msg = Arrays.asList(fq, target, offset, extend).toString();
+            assertEquals(msg, expected.toString(), String.valueOf(browse.get(FacetBrowseHandler.RESPONSE_KEY)));
+            // the window alone
+            assertNull(msg, browse.get("facet_counts"));
+            assertNull(msg, browse.get("response"));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testMissingField() throws Exception {
+    try {
+      response("/xbrowse", "q", "*:*", FacetBrowseHandler.TARGET, "name 07");
+      fail("expected exception");
+    } catch (SolrException ex) {
+      assertEquals(SolrException.ErrorCode.BAD_REQUEST.code, ex.code());
+    }
+  }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.component;
+
+import java.util.Random;
+import java.util.TreeSet;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.handler.component.FacetComponent.ShardCoverage;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magibney
+ */
+public class ShardCoverageTest {
+
+  private static BytesRef[] keys(String... terms) {
+    BytesRef[] ret = new BytesRef[terms.length];
+    for (int i = 0; i < terms.length; i++) {
+      ret[i] = new BytesRef(terms[i]);
+    }
+    return ret;
+  }
+
+  @Test
+  public void testCounts() {
+    Random r = new Random(42);
+    for (int round = 0; round < 200; round++) {
+      TreeSet<String> terms = new TreeSet<>();
+      int size = r.nextInt(10);
+      for (int i = 0; i < size; i++) {
+        terms.add(Character.toString((char) ('a' + r.nextInt(26))));
+      }
+      BytesRef[] keys = keys(terms.toArray(new String[terms.size()]));
+      BytesRef key = new BytesRef(Character.toString((char) ('a' + r.nextInt(27))));
+      int below = 0;
+      int atMost = 0;
+      for (BytesRef k : keys) {
+        below += k.compareTo(key) < 0 ? 1 : 0;
+        atMost += k.compareTo(key) <= 0 ? 1 : 0;
+      }
+      assertEquals(below, ShardCoverage.countBelow(keys, key));
+      assertEquals(atMost, ShardCoverage.countAtMost(keys, key));
+    }
+  }
+
+  @Test
+  public void testExhausted() {
+    BytesRef target = new BytesRef("d");
+    // requested 2 entries below the target, and 3 at or above
+    ShardCoverage c = ShardCoverage.of(keys("b", "c", "d", "e", "f"), target, 2, 5);
+    assertFalse(c.exhaustedBelow);
+    assertFalse(c.exhaustedAbove);
+    c = ShardCoverage.of(keys("c", "d", "e", "f"), target, 2, 5);
+    assertTrue(c.exhaustedBelow);
+    assertFalse(c.exhaustedAbove);
+    c = ShardCoverage.of(keys("b", "c", "d", "e"), target, 2, 5);
+    assertFalse(c.exhaustedBelow);
+    assertTrue(c.exhaustedAbove);
+    c = ShardCoverage.of(keys(), target, 2, 5);
+    assertTrue(c.exhaustedBelow);
+    assertTrue(c.exhaustedAbove);
+  }
+
+  @Test
+  public void testRefinement() {
+    BytesRef target = new BytesRef("d");
+    BytesRef[] merged = keys("b", "c", "d", "e", "f");
+
+    // a sparse shard window falls short of the merged window in both directions
+    ShardCoverage c = ShardCoverage.of(keys("c", "d", "e"), target, 1, 3);
+    assertEquals(1, c.shortfallBelow(merged));
+    assertEquals(1, c.shortfallAbove(merged));
+    assertEquals(2, c.neededBelow(merged, target));
+    assertEquals(3, c.neededAbove(merged, target));
+
+    // ... but no refinement is needed where the shard has no more terms
+    c = ShardCoverage.of(keys("c", "d", "e"), target, 2, 5);
+    assertEquals(0, c.shortfallBelow(merged));
+    assertEquals(0, c.shortfallAbove(merged));
+    assertEquals(1, c.neededBelow(merged, target));
+    assertEquals(2, c.neededAbove(merged, target));
+
+    // a shard window extending beyond the merged window covers it
+    c = ShardCoverage.of(keys("a", "c", "d", "e", "g"), target, 2, 5);
+    assertEquals(0, c.shortfallBelow(merged));
+    assertEquals(0, c.shortfallAbove(merged));
+    assertEquals(1, c.neededBelow(merged, target));
+    assertEquals(2, c.neededAbove(merged, target));
+
+    // a shard window entirely below the merged window
+    BytesRef first = merged[0];
+    c = ShardCoverage.of(keys("a", "aa"), first, 2, 2);
+    assertEquals(0, c.shortfallBelow(merged));
+    assertEquals(5, c.shortfallAbove(merged));
+    assertEquals(0, c.neededBelow(merged, first));
+    assertEquals(5, c.neededAbove(merged, first));
+
+    // an empty shard window has nothing more to offer
+    c = ShardCoverage.of(keys(), target, 2, 5);
+    assertEquals(0, c.shortfallBelow(merged));
+    assertEquals(0, c.shortfallAbove(merged));
+    assertEquals(0, c.neededBelow(merged, target));
+    assertEquals(0, c.neededAbove(merged, target));
+  }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.handler.component.FacetComponent.ShardFacetCount;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magibney
+ */
+public class ShardWindowMergeTest {
+
+  private static final ShardWindowMerge.Accumulator SUM = new ShardWindowMerge.Accumulator() {
+    @Override
+    public ShardFacetCount newEntry(ShardFacetCount shardEntry) {
+      ShardFacetCount ret = new ShardFacetCount();
+      ret.name = shardEntry.name;
+      ret.indexed = shardEntry.indexed;
+      ret.count = shardEntry.count;
+      return ret;
+    }
+
+    @Override
+    public void accumulate(ShardFacetCount entry, ShardFacetCount shardEntry) {
+      entry.count += shardEntry.count;
+    }
+  };
+
+  private static ShardFacetCount[] window(Random r, Map<String, Long> expected) {
+    TreeSet<String> terms = new TreeSet<>();
+    int size = r.nextInt(20);
+    for (int i = 0; i < size; i++) {
+      terms.add(Character.toString((char) ('a' + r.nextInt(26))));
+    }
+    List<ShardFacetCount> ret = new ArrayList<>(terms.size());
+    for (String term : terms) {
+      ShardFacetCount sfc = new ShardFacetCount();
+      sfc.name = term;
+      sfc.indexed = new BytesRef(term);
+      sfc.count = 1 + r.nextInt(5);
+      expected.merge(term, sfc.count, Long::sum);
+      ret.add(sfc);
+    }
+    return ret.toArray(new ShardFacetCount[ret.size()]);
+  }
+
+  @Test
+  public void testRandomMerge() {
+    Random r = new Random(42);
+    for (int round = 0; round < 500; round++) {
+      TreeMap<String, Long> expected = new TreeMap<>();
+      List<ShardFacetCount[]> windows = new ArrayList<>();
+      int shards = 1 + r.nextInt(4);
+      for (int i = 0; i < shards; i++) {
+        windows.add(window(r, expected));
+      }
+      String target = Character.toString((char) ('a' + r.nextInt(27)));
+      ShardWindowMerge merge = new ShardWindowMerge(windows, new BytesRef(target), SUM);
+      List<String> terms = new ArrayList<>(expected.keySet());
+      int split = expected.headMap(target).size();
+      for (int i = -split - 2; i < terms.size() - split + 2; i++) {
+        ShardFacetCount sfc = merge.get(i);
+        int pos = split + i;
+        if (pos < 0 || pos >= terms.size()) {
+          assertNull(sfc);
+        } else {
+          assertEquals(terms.get(pos), sfc.name);
+          assertEquals(expected.get(sfc.name).longValue(), sfc.count);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testLazy() {
+    Map<String, Long> expected = new TreeMap<>();
+    List<ShardFacetCount[]> windows = new ArrayList<>();
+    Random r = new Random(7);
+    for (int i = 0; i < 3; i++) {
+      windows.add(window(r, expected));
+    }
+    ShardWindowMerge merge = new ShardWindowMerge(windows, new BytesRef("m"), SUM);
+    assertEquals(0, merge.mergedCount());
+    merge.get(0);
+    merge.get(-1);
+    assertTrue(merge.mergedCount() <= 2);
+  }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.component;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magibney
+ */
+public class TargetOverRequestTest {
+
+  private static final double ALPHA = 0.2;
+
+  private static double update(double factor, int shortfall, int limit) {
+    return factor + ALPHA * (Math.min((double) shortfall / limit, 4) - factor);
+  }
+
+  private static int extra(double factor, int limit) {
+    return factor * limit < 0.5 ? 0 : (int) Math.ceil(factor * limit);
+  }
+
+  @Test
+  public void testMovingAverage() {
+    TargetOverRequest overRequest = new TargetOverRequest();
+    assertEquals(0, overRequest.extraBelow("name", 10));
+    assertEquals(0, overRequest.extraAbove("name", 10));
+
+    double below = 0;
+    double above = 0;
+    int[][] shortfalls = {{10, 0}, {10, 5}, {3, 20}, {0, 7}, {25, 1}};
+    for (int[] shortfall : shortfalls) {
+      overRequest.record("name", 10, shortfall[0], shortfall[1]);
+      below = update(below, shortfall[0], 10);
+      above = update(above, shortfall[1], 10);
+      assertEquals(extra(below, 10), overRequest.extraBelow("name", 10));
+      assertEquals(extra(above, 10), overRequest.extraAbove("name", 10));
+      // factors are relative to facet.limit
+      assertEquals(extra(below, 3), overRequest.extraBelow("name", 3));
+      assertEquals(extra(above, 3), overRequest.extraAbove("name", 3));
+    }
+  }
+
+  @Test
+  public void testConvergenceAndDecay() {
+    TargetOverRequest overRequest = new TargetOverRequest();
+    for (int i = 0; i < 100; i++) {
+      // consistent shortfalls, the latter beyond the cap
+      overRequest.record("name", 10, 10, 1000);
+    }
+    assertEquals(10, overRequest.extraBelow("name", 10));
+    assertEquals(40, overRequest.extraAbove("name", 10));
+
+    int previousBelow = overRequest.extraBelow("name", 10);
+    int previousAbove = overRequest.extraAbove("name", 10);
+    for (int i = 0; i < 100; i++) {
+      // shard windows consistently cover the merged window
+      overRequest.record("name", 10, 0, 0);
+      int extraBelow = overRequest.extraBelow("name", 10);
+      int extraAbove = overRequest.extraAbove("name", 10);
+      assertTrue(extraBelow <= previousBelow);
+      assertTrue(extraAbove <= previousAbove);
+      previousBelow = extraBelow;
+      previousAbove = extraAbove;
+    }
+    assertEquals(0, overRequest.extraBelow("name", 10));
+    assertEquals(0, overRequest.extraAbove("name", 10));
+  }
+
+  @Test
+  public void testReturnsToZero() {
+    TargetOverRequest overRequest = new TargetOverRequest();
+    // a single shortfall ...
+    overRequest.record("name", 10, 10, 10);
+    assertEquals(2, overRequest.extraBelow("name", 10));
+    assertEquals(2, overRequest.extraAbove("name", 10));
+    // ... is forgotten after a short run of exact coverage
+    int exact = 0;
+    while (overRequest.extraBelow("name", 10) > 0) {
+      overRequest.record("name", 10, 0, 0);
+      exact++;
+    }
+    assertEquals(7, exact);
+    assertEquals(0, overRequest.extraAbove("name", 10));
+  }
+
+  @Test
+  public void testIgnoredAndIndependent() {
+    TargetOverRequest overRequest = new TargetOverRequest();
+    // no window to relate shortfalls to
+    overRequest.record("name", 0, 10, 10);
+    overRequest.record("name", -1, 10, 10);
+    assertEquals(0, overRequest.extraBelow("name", 10));
+    assertEquals(0, overRequest.extraAbove("name", 10));
+
+    overRequest.record("author", 5, 5, 0);
+    assertEquals(1, overRequest.extraBelow("author", 5));
+    assertEquals(0, overRequest.extraAbove("author", 5));
+    assertEquals(0, overRequest.extraBelow("name", 5));
+  }
+
+}
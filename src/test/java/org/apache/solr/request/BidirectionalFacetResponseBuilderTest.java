@@ -21,10 +21,27 @@ import java.util.AbstractMap;
 import java.util.Arrays;
 import java.util.Deque;
 import java.util.Map;
+import java.util.Locale;
+import java.util.Random;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.CharsRefBuilder;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.request.BidirectionalFacetResponseBuilder.Env;
+import org.apache.solr.request.BidirectionalFacetResponseBuilder.LocalTermEnv;
 import org.apache.solr.request.BidirectionalFacetResponseBuilder.SimpleTermIndexKey;
 import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.StrField;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -123,6 +140,102 @@ public class BidirectionalFacetResponseBuilderTest<T extends FieldType & FacetPa
     runTest(1, 1, 2, 1, 0);
   }
   
+  /**
+   * @return the term (in the index built by {@link #beforeClass()}) at the specified ord
+   */
+  private static String term(int ord) {
+    return String.format(Locale.ROOT, "t%03d", ord);
+  }
+
+  private static final int INDEX_TERMS = 256;
+  private static Directory dir;
+  private static DirectoryReader reader;
+
+  @BeforeClass
+  public static void beforeClass() throws IOException {
+    dir = new RAMDirectory();
+    try (IndexWriter w = new IndexWriter(dir, new IndexWriterConfig(new KeywordAnalyzer()))) {
+      for (int i = 0; i < INDEX_TERMS; i++) {
+        Document doc = new Document();
+        doc.add(new SortedSetDocValuesField("myField", new BytesRef(term(i))));
+        w.addDocument(doc);
+      }
+      w.forceMerge(1);
+    }
+    reader = DirectoryReader.open(dir);
+  }
+
+  @AfterClass
+  public static void afterClass() throws IOException {
+    reader.close();
+    dir.close();
+    reader = null;
+    dir = null;
+  }
+
+  /**
+   * @return the window built by {@link LocalTermEnv} over the test index, for the specified term
+   * counts (by ord), optionally skipping deep offsets via the specified accepted terms index
+   */
+  private static NamedList<Object> localWindow(int offset, int limit, int targetIdx, int mincount, int[] termCounts,
+      boolean skip) throws IOException {
+    // as for DocValuesFacets without a prefix: counts are indexed by ord + 1, with the missing count at 0
+    int[] counts = new int[termCounts.length + 1];
+    System.arraycopy(termCounts, 0, counts, 1, termCounts.length);
+    TermCounts tc = TermCounts.of(counts);
+    TermRankSelect acceptedTerms = skip ? TermRankSelect.build(tc, 1, counts.length, mincount) : null;
+    SortedSetDocValues si = reader.leaves().get(0).reader().getSortedSetDocValues("myField");
+    NamedList<Object> ret = new NamedList<>();
+    LocalTermEnv env = new LocalTermEnv(offset, limit, -1, 1, targetIdx, counts.length, null, mincount, tc,
+        acceptedTerms, null, new CharsRefBuilder(), false, si, null, null, "myField", new StrField(), ret);
+    if (skip) {
+      // skipping is supported from any accepted term
+      for (int i = 0; i < termCounts.length; i++) {
+        if (termCounts[i] >= mincount) {
+          SimpleTermIndexKey key = new SimpleTermIndexKey(i);
+          assertEquals(acceptedTerms.cardinality() - acceptedTerms.rank(i), env.countKeys(key, true));
+          assertEquals(acceptedTerms.rank(i + 1), env.countKeys(key, false));
+        }
+      }
+    } else {
+      assertEquals(-1, env.countKeys(new SimpleTermIndexKey(0), true));
+    }
+    BidirectionalFacetResponseBuilder.build(env, false);
+    return ret;
+  }
+
+  @Test
+  public void testSkipDeepOffsets() throws IOException {
+    Random r = new Random(42);
+    for (int i = 0; i < 1000; i++) {
+      int[] randomCounts = new int[1 + r.nextInt(INDEX_TERMS - 1)];
+      double density = r.nextDouble();
+      for (int j = 0; j < randomCounts.length; j++) {
+        randomCounts[j] = r.nextDouble() < density ? 1 + r.nextInt(2) : 0;
+      }
+      int mincount = 1 + r.nextInt(2);
+      int limit = 1 + r.nextInt(10);
+      int targetIdx = r.nextInt(randomCounts.length);
+      int requestedOffset = r.nextInt(300) - 100;
+      NamedList<Object> stepped = localWindow(requestedOffset, limit, targetIdx, mincount, randomCounts, false);
+      NamedList<Object> skipped = localWindow(requestedOffset, limit, targetIdx, mincount, randomCounts, true);
+      String msg = Arrays.asList(i, requestedOffset, limit, targetIdx, mincount).toString();
+      assertEquals(msg, stepped, skipped);
+
+      // both as for the (reference) test env, over the same counts
+      NamedList expected = new NamedList(3);
+      BidirectionalFacetResponseBuilder.build(new TestEnv<>(requestedOffset, limit, targetIdx, mincount, "myField", null, expected, randomCounts), false);
+      NamedList<Object> expectedTerms = (NamedList<Object>) expected.get("terms");
+      NamedList<Object> actualTerms = (NamedList<Object>) skipped.get("terms");
+      assertEquals(msg, expected.get("target_offset"), skipped.get("target_offset"));
+      assertEquals(msg, expectedTerms.size(), actualTerms.size());
+      for (int j = 0; j < expectedTerms.size(); j++) {
+        assertEquals(msg, term(Integer.parseInt(expectedTerms.getName(j))), actualTerms.getName(j));
+        assertEquals(msg, ((Number) expectedTerms.getVal(j)).longValue(), ((Number) actualTerms.getVal(j)).longValue());
+      }
+    }
+  }
+
   private void runTest(int limit, int targetIdx, int requestedOffset, Integer expectedOffset, int... expectedIndices) throws IOException {
     runTest(counts, limit, targetIdx, requestedOffset, expectedOffset, expectedIndices);
   }
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magibney
+ */
+public class BlockMaxTermCountsTest {
+
+  @Test
+  public void testCandidatesAgainstScan() {
+    Random r = new Random(42);
+    for (int round = 0; round < 200; round++) {
+      int[] counts = new int[1 + r.nextInt(500)];
+      // mostly low counts, with occasional (possibly isolated) high counts
+      double density = r.nextDouble() * 0.05;
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = r.nextDouble() < density ? 2 + r.nextInt(3) : r.nextInt(2);
+      }
+      BlockMaxTermCounts blockMax = BlockMaxTermCounts.build(TermCounts.of(counts), counts.length);
+      for (int mincount = 1; mincount <= 5; mincount++) {
+        for (int i = 0; i < counts.length; i++) {
+          assertEquals(counts[i], blockMax.get(i));
+          int next = blockMax.nextCandidate(i, mincount);
+          int nextAccepted = i;
+          while (nextAccepted < counts.length && counts[nextAccepted] < mincount) {
+            nextAccepted++;
+          }
+          if (nextAccepted == counts.length) {
+            // nothing to skip to, unless within the current block
+            assertTrue(next < 0 || next == i);
+          } else {
+            // never skips an accepted index
+            assertTrue(next >= i && next <= nextAccepted);
+          }
+          int previous = blockMax.previousCandidate(i, mincount);
+          int previousAccepted = i;
+          while (previousAccepted >= 0 && counts[previousAccepted] < mincount) {
+            previousAccepted--;
+          }
+          if (previousAccepted < 0) {
+            assertTrue(previous < 0 || previous == i);
+          } else {
+            assertTrue(previous <= i && previous >= previousAccepted);
+          }
+          assertTrue(previous < counts.length);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testSkipsWholeBlocks() {
+    int[] counts = new int[64 * 4 + 10];
+    counts[64 + 5] = 3;
+    counts[64 * 4 + 2] = 3;
+    BlockMaxTermCounts blockMax = BlockMaxTermCounts.build(TermCounts.of(counts), counts.length);
+    // within a candidate block, no skipping
+    assertEquals(64, blockMax.nextCandidate(64, 2));
+    assertEquals(64 + 20, blockMax.previousCandidate(64 + 20, 2));
+    // from a block with no candidates, to the first (or last) index of the next (or previous) candidate block
+    assertEquals(64, blockMax.nextCandidate(3, 2));
+    assertEquals(64 * 4, blockMax.nextCandidate(64 * 2, 2));
+    assertEquals(64 * 2 - 1, blockMax.previousCandidate(64 * 3 + 7, 2));
+    // the last (partial) block
+    assertEquals(-1, blockMax.previousCandidate(10, 2));
+    assertEquals(-1, blockMax.nextCandidate(64 * 3, 4));
+    assertEquals(counts.length - 1, blockMax.previousCandidate(counts.length - 1, 3));
+  }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magibney
+ */
+public class CountStorePoolTest {
+
+  private static final int SIZE = CountStorePool.MIN_POOLED_SIZE + 17;
+
+  private static void fill(CountStore store, Random r) {
+    for (int i = 0; i < 10000; i++) {
+      store.add(r.nextInt(store.size()), 1 + r.nextInt(300));
+    }
+  }
+
+  private static void checkReacquired(boolean packed) {
+    Random r = new Random(42);
+    CountStorePool pool = new CountStorePool(2, packed);
+    CountStore store = pool.acquire(SIZE);
+    assertTrue(store instanceof CountStorePool.Reusable);
+    assertEquals(packed, store instanceof PackedCountStore);
+    for (int round = 0; round < 3; round++) {
+      fill(store, r);
+      pool.release((CountStorePool.Reusable) store);
+      // reacquired at a smaller size (only blocks touched in a round are cleared, when first written)
+      int size = SIZE - round;
+      CountStore reacquired = pool.acquire(size);
+      assertSame(store, reacquired);
+      assertEquals(size, reacquired.size());
+      int[] expected = new int[size];
+      for (int i = 0; i < size; i++) {
+        assertEquals(0, reacquired.get(i));
+      }
+      for (int i = 0; i < 1000; i++) {
+        int index = r.nextInt(size);
+        reacquired.increment(index);
+        expected[index]++;
+      }
+      for (int i = 0; i < size; i++) {
+        assertEquals(expected[i], reacquired.get(i));
+      }
+    }
+  }
+
+  @Test
+  public void testReacquiredReadsZero() {
+    checkReacquired(false);
+  }
+
+  @Test
+  public void testReacquiredPackedReadsZero() {
+    checkReacquired(true);
+  }
+
+  @Test
+  public void testBound() {
+    CountStorePool pool = new CountStorePool(2, false);
+    List<CountStore> stores = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      stores.add(pool.acquire(SIZE + i));
+    }
+    for (CountStore store : stores) {
+      pool.release((CountStorePool.Reusable) store);
+      assertTrue(pool.idleCount() <= 2);
+    }
+    assertEquals(2, pool.idleCount());
+    // the largest stores are retained, and the smallest sufficient store is preferred
+    assertSame(stores.get(2), pool.acquire(SIZE));
+    assertSame(stores.get(3), pool.acquire(SIZE));
+    assertEquals(0, pool.idleCount());
+    // nothing suitable idle
+    CountStore fresh = pool.acquire(SIZE);
+    assertFalse(stores.contains(fresh));
+    // released stores smaller than all retained stores are dropped
+    pool.release((CountStorePool.Reusable) stores.get(3));
+    pool.release((CountStorePool.Reusable) stores.get(2));
+    pool.release((CountStorePool.Reusable) stores.get(0));
+    assertEquals(2, pool.idleCount());
+    assertSame(stores.get(2), pool.acquire(SIZE + 2));
+    assertSame(stores.get(3), pool.acquire(SIZE + 2));
+  }
+
+  @Test
+  public void testDisabled() {
+    CountStorePool pool = new CountStorePool(0, false);
+    CountStore store = pool.acquire(SIZE);
+    assertFalse(store instanceof CountStorePool.Reusable);
+    assertEquals(0, pool.idleCount());
+  }
+
+}
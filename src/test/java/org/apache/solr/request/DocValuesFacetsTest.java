@@ -0,0 +1,293 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.response.SolrQueryResponse;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks alternative counting strategies of {@link DocValuesFacets} against each other, over a
+ * multi-segment index (with deletions).
+ *
+ * @author magibney
+ */
+public class DocValuesFacetsTest extends SolrTestCaseJ4 {
+
+  private static final int SEGMENTS = 3;
+  private static final int DOCS_PER_SEGMENT = 40;
+  private static final int SUBJECTS = 60;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCore("solrconfig.xml", "schema.xml");
+    int id = 0;
+    for (int seg = 0; seg < SEGMENTS; seg++) {
+      for (int i = 0; i < DOCS_PER_SEGMENT; i++, id++) {
+        List<String> fields = new ArrayList<>();
+        fields.addAll(Arrays.asList("id", Integer.toString(id), "genre", "g" + (id % 5)));
+        for (int t = id * 3; t < id * 3 + 3; t++) {
+          fields.addAll(Arrays.asList("tag", tag(t)));
+        }
+        if (id % 40 == 0) {
+          // a few widely-spaced tags occur in two docs
+          fields.addAll(Arrays.asList("tag", tag((id + 20) * 3)));
+        }
+        if (id % 11 != 0) {
+          // some docs have no subject
+          for (int mult : new int[] {1, 7, 13}) {
+            fields.addAll(Arrays.asList("subject", subject((id * mult) % SUBJECTS)));
+          }
+        }
+        assertU(adoc(fields.toArray(new String[fields.size()])));
+      }
+      assertU(commit());
+    }
+    // deletions in existing segments
+    assertU(delI("3"));
+    assertU(delI("50"));
+    assertU(commit());
+  }
+
+  private static String subject(int i) {
+    return String.format(Locale.ROOT, "s%02d", i);
+  }
+
+  private static String tag(int i) {
+    return String.format(Locale.ROOT, "t%03d", i);
+  }
+
+  /**
+   * @return the facet_counts of the response to the specified request
+   */
+  static String facetCounts(String... params) throws Exception {
+    return String.valueOf(response(params).getValues().get("facet_counts"));
+  }
+
+  static SolrQueryResponse response(String... params) throws Exception {
+    SolrQueryRequest req = req(params);
+    try {
+      SolrQueryResponse rsp = h.queryAndResponse("/select", req);
+      if (rsp.getException() != null) {
+        throw rsp.getException();
+      }
+      // render while the request (and its searcher) is open
+      rsp.getValues().toString();
+      return rsp;
+    } finally {
+      req.close();
+    }
+  }
+
+  private static NamedList<?> fieldCounts(String[] params, String field) throws Exception {
+    NamedList<?> facetCounts = (NamedList<?>) response(params).getValues().get("facet_counts");
+    return (NamedList<?>) ((NamedList<?>) facetCounts.get("facet_fields")).get(field);
+  }
+
+  /**
+   * @return the value of the first entry with the specified name, at any depth in the specified
+   * (debug) response structure
+   */
+  static Object find(Object o, String name) {
+    if (o instanceof NamedList) {
+      NamedList<?> nl = (NamedList<?>) o;
+      for (int i = 0; i < nl.size(); i++) {
+        Object ret = name.equals(nl.getName(i)) ? nl.getVal(i) : find(nl.getVal(i), name);
+        if (ret != null) {
+          return ret;
+        }
+      }
+    } else if (o instanceof Map) {
+      for (Map.Entry<?, ?> e : ((Map<?, ?>) o).entrySet()) {
+        Object ret = name.equals(e.getKey()) ? e.getValue() : find(e.getValue(), name);
+        if (ret != null) {
+          return ret;
+        }
+      }
+    } else if (o instanceof Collection) {
+      for (Object val : (Collection<?>) o) {
+        Object ret = find(val, name);
+        if (ret != null) {
+          return ret;
+        }
+      }
+    }
+    return null;
+  }
+
+  private static String[] windowParams(String field, String fq, String target, int offset, int limit, int mincount, String counting) {
+    return new String[] {"q", "*:*", "fq", fq, "rows", "0", "facet", "true", "facet.field", field,
+      "f." + field + "." + FacetParams.FACET_TARGET, target,
+      "f." + field + "." + FacetParams.FACET_OFFSET, Integer.toString(offset),
+      "f." + field + "." + FacetParams.FACET_LIMIT, Integer.toString(limit),
+      "f." + field + "." + FacetParams.FACET_MINCOUNT, Integer.toString(mincount),
+      "f." + field + "." + FacetParams.FACET_SORT, FacetParams.FACET_SORT_INDEX,
+      "f." + field + "." + FacetParams.FACET_TARGET_COUNTING, counting};
+  }
+
+  @Test
+  public void testTermCountingWindows() throws Exception {
+    for (String field : new String[] {"subject", "genre"}) {
+      for (String fq : new String[] {"*:*", "genre:g1", "subject:s07"}) {
+        for (String target : new String[] {"a", "g2", "s23", "s23a", "z"}) {
+          // negative offsets extend the window forward from the target, positive offsets backward
+          for (int offset : new int[] {-3, 0, 2, 7}) {
+            for (int limit : new int[] {1, 5}) {
+              for (int mincount : new int[] {0, 1, 2}) {
+                String dv = facetCounts(windowParams(field, fq, target, offset, limit, mincount, FacetParams.FACET_TARGET_COUNTING_DV));
+                String term = facetCounts(windowParams(field, fq, target, offset, limit, mincount, FacetParams.FACET_TARGET_COUNTING_TERM));
+                assertEquals(Arrays.asList(field, fq, target, offset, limit, mincount).toString(), dv, term);
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testBlockMaxSkipping() throws Exception {
+    // tags t060, t180 and t300 (in every other block of 64 terms) are the only tags with count 2
+    for (String target : new String[] {"t000", "t060", "t100", "t180", "t200", "t250", "t300", "t359", "u"}) {
+      for (int offset : new int[] {-2, -1, 0, 1, 2, 5}) {
+        for (int limit : new int[] {1, 2, 4}) {
+          String dv = facetCounts(windowParams("tag", "*:*", target, offset, limit, 2, FacetParams.FACET_TARGET_COUNTING_DV));
+          String term = facetCounts(windowParams("tag", "*:*", target, offset, limit, 2, FacetParams.FACET_TARGET_COUNTING_TERM));
+          assertEquals(Arrays.asList(target, offset, limit).toString(), dv, term);
+        }
+      }
+    }
+    for (String counting : new String[] {FacetParams.FACET_TARGET_COUNTING_DV, FacetParams.FACET_TARGET_COUNTING_TERM}) {
+      // skipping forward, and backward
+      assertQ(req(windowParams("tag", "*:*", "t100", 0, 1, 2, counting)), "count(//lst[@name='tag']/lst[@name='terms']/int)=1",
+          "//lst[@name='tag']//int[@name='t180'][.='2']");
+      assertQ(req(windowParams("tag", "*:*", "t100", 1, 1, 2, counting)), "count(//lst[@name='tag']/lst[@name='terms']/int)=1",
+          "//lst[@name='tag']//int[@name='t060'][.='2']");
+      assertQ(req(windowParams("tag", "*:*", "t301", 2, 3, 2, counting)), "count(//lst[@name='tag']/lst[@name='terms']/int)=3",
+          "//lst[@name='tag']//int[@name='t060']", "//lst[@name='tag']//int[@name='t300']");
+    }
+  }
+
+  @Test
+  public void testMultipleTargets() throws Exception {
+    String[] targets = {"s05", "s23a", "z", "a"};
+    for (String counting : new String[] {FacetParams.FACET_TARGET_COUNTING_DV, FacetParams.FACET_TARGET_COUNTING_TERM}) {
+      for (int offset : new int[] {-1, 0, 2}) {
+        for (int mincount : new int[] {1, 2}) {
+          String[] params = windowParams("subject", "genre:g1", targets[0], offset, 3, mincount, counting);
+          for (int i = 1; i < targets.length; i++) {
+            params = withParams(params, "f.subject." + FacetParams.FACET_TARGET, targets[i]);
+          }
+          // keyed by target, in request order, each window as for a single-target request
+          NamedList<?> keyed = fieldCounts(params, "subject");
+          assertEquals(targets.length, keyed.size());
+          for (int i = 0; i < targets.length; i++) {
+            assertEquals(targets[i], keyed.getName(i));
+            NamedList<?> single = fieldCounts(windowParams("subject", "genre:g1", targets[i], offset, 3, mincount, counting), "subject");
+            assertEquals(Arrays.asList(counting, offset, mincount, targets[i]).toString(), single.toString(), keyed.getVal(i).toString());
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testCountingSelection() throws Exception {
+    for (String counting : new String[] {FacetParams.FACET_TARGET_COUNTING_DV, FacetParams.FACET_TARGET_COUNTING_TERM}) {
+      NamedList<Object> values = response(withParams(windowParams("subject", "*:*", "s23", 0, 5, 1, counting), "debug", "true")).getValues();
+      assertEquals(counting, find(values.get("debug"), "targetCounting"));
+      // term-at-a-time counting reports the terms it visited
+      assertEquals(FacetParams.FACET_TARGET_COUNTING_TERM.equals(counting), find(values.get("debug"), "termsCounted") != null);
+    }
+    // auto selects the cheaper strategy, as estimated
+    for (String fq : new String[] {"*:*", "subject:s07"}) {
+      for (int offset : new int[] {0, -50}) {
+        NamedList<Object> values = response(withParams(windowParams("subject", fq, "s23", offset, 5, 1, FacetParams.FACET_TARGET_COUNTING_AUTO), "debug", "true")).getValues();
+        Object debug = values.get("debug");
+        long termCost = ((Number) find(debug, "termCountingCost")).longValue();
+        long docCost = ((Number) find(debug, "docValuesCountingCost")).longValue();
+        if (termCost != docCost) {
+          // (otherwise indistinguishable, as reported)
+          String expected = termCost < docCost ? FacetParams.FACET_TARGET_COUNTING_TERM : FacetParams.FACET_TARGET_COUNTING_DV;
+          assertEquals(expected, find(debug, "targetCounting"));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testParallelSegmentCounts() throws Exception {
+    for (String field : new String[] {"subject", "genre"}) {
+      for (String fq : new String[] {"*:*", "genre:g1", "subject:s07"}) {
+        for (String sort : new String[] {FacetParams.FACET_SORT_COUNT, FacetParams.FACET_SORT_INDEX}) {
+          String[] params = {"q", "*:*", "fq", fq, "rows", "0", "facet", "true", "facet.limit", "-1",
+            "facet.missing", "true", "facet.sort", sort};
+          String sequential = facetCounts(withParams(params, "facet.field", field));
+          String parallel = facetCounts(withParams(params, "facet.field", "{!threads=2}" + field));
+          assertEquals(Arrays.asList(field, fq, sort).toString(), sequential, parallel);
+        }
+      }
+    }
+    // concurrency is opt-in
+    Object debug = response("q", "*:*", "rows", "0", "facet", "true", "facet.field", "{!threads=2}subject", "debug", "true").getValues().get("debug");
+    assertEquals(SEGMENTS, ((Number) find(debug, "segmentTasks")).intValue());
+    for (String threads : new String[] {"", "{!threads=-1}", "{!threads=0}"}) {
+      debug = response("q", "*:*", "rows", "0", "facet", "true", "facet.field", threads + "subject", "debug", "true").getValues().get("debug");
+      assertNull(threads, find(debug, "segmentTasks"));
+    }
+  }
+
+  @Test
+  public void testCountingCosts() {
+    // narrow window over a high-cardinality field
+    double[] costs = DocValuesFacets.countingCosts(0, 20, 1, 1000000, 1000000, 2000000, 1000000, 100000);
+    assertTrue(costs[0] < costs[1]);
+    // few terms meet mincount, so that filling the window would visit most terms
+    costs = DocValuesFacets.countingCosts(0, 20, 5, 1000000, 1000000, 2000000, 1000000, 100000);
+    assertTrue(costs[0] > costs[1]);
+    // sparse DocSet
+    costs = DocValuesFacets.countingCosts(0, 20, 1, 1000000, 1000000, 2000000, 1000000, 10);
+    assertTrue(costs[0] > costs[1]);
+    // deep offset
+    costs = DocValuesFacets.countingCosts(-900000, 20, 1, 1000000, 1000000, 2000000, 1000000, 100000);
+    assertTrue(costs[0] > costs[1]);
+  }
+
+  @Test
+  public void testSuggestRequiresCache() {
+    // without the xfacetSuggest cache, the suggester would be rebuilt for every request
+    assertQEx(FacetSuggester.CACHE_NAME, req("q", "*:*", "rows", "0", "facet", "true", "facet.field", "name",
+        FacetParams.FACET_SUGGEST, "a"), ErrorCode.BAD_REQUEST);
+  }
+
+  static String[] withParams(String[] params, String... more) {
+    String[] ret = Arrays.copyOf(params, params.length + more.length);
+    System.arraycopy(more, 0, ret, params.length, more.length);
+    return ret;
+  }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.io.IOException;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.CharsRef;
+import org.apache.lucene.util.CharsRefBuilder;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magibney
+ */
+public class FacetSectionsTest {
+
+  private static final String DELIM = "\u0000";
+
+  /**
+   * indexed form: normalized value, delimiter, display value (sorted)
+   */
+  private static final String[] TERMS = new String[] {
+    "a" + DELIM + "A",
+    "ab" + DELIM + "Ab",
+    "abc" + DELIM + "ABC",
+    "b" + DELIM + "B",
+    "ba" + DELIM + "Ba",
+    "bz" + DELIM + "Bz",
+    "c" + DELIM + "C"};
+
+  private static SortedSetDocValues termValues(final String[] terms) {
+    return new SortedSetDocValues() {
+      @Override
+      public long nextOrd() {
+        return NO_MORE_ORDS;
+      }
+
+      @Override
+      public void setDocument(int docID) {
+      }
+
+      @Override
+      public BytesRef lookupOrd(long ord) {
+        return new BytesRef(terms[(int) ord]);
+      }
+
+      @Override
+      public long getValueCount() {
+        return terms.length;
+      }
+    };
+  }
+
+  /**
+   * supports only what is required to build sections
+   */
+  private static final MultiSerializable FT = new MultiSerializable() {
+    @Override
+    public CharsRef indexedToNormalized(BytesRef input, CharsRefBuilder output) {
+      String indexed = input.utf8ToString();
+      int end = indexed.indexOf(DELIM);
+      output.copyChars(end < 0 ? indexed : indexed.substring(0, end));
+      return output.get();
+    }
+
+    @Override
+    public String getDelim() {
+      return DELIM;
+    }
+
+    @Override
+    public CharsRef readableToDisplay(CharsRef input) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String readableToDisplay(String input) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public CharsRef readableToSerialized(CharsRef input) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String readableToSerialized(String input) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String indexedToNormalized(String indexedForm) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void updateExternalRepresentation(NamedList<Object> nl) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public BytesRef normalizeQueryTarget(String val, boolean strict, String fieldName) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public BytesRef normalizeQueryTarget(String val, boolean strict, String fieldName, boolean appendExtraDelim) {
+      throw new UnsupportedOperationException();
+    }
+  };
+
+  private static NamedList<Object> describe(FacetSections sections, int section, TermRankSelect liveTerms) {
+    NamedList<Object> ret = new NamedList<>();
+    sections.describe(section, liveTerms, ret);
+    return ret;
+  }
+
+  @Test
+  public void testSections() throws IOException {
+    FacetSections sections = FacetSections.build(termValues(TERMS), FT, 1);
+    assertEquals(3, sections.size());
+    assertEquals(0, sections.ceiling(new BytesRef("a")));
+    assertEquals(1, sections.ceiling(new BytesRef("az")));
+    assertEquals(2, sections.ceiling(new BytesRef("c")));
+    assertEquals(3, sections.ceiling(new BytesRef("d")));
+    // encoded insertion points of each section's first term
+    assertEquals(~3, sections.targetIdx(1));
+    assertEquals(~6, sections.targetIdx(2));
+    assertEquals(~TERMS.length, sections.targetIdx(3));
+
+    // shorter values form sections of their own, preceding longer values with the same leading code points
+    sections = FacetSections.build(termValues(TERMS), FT, 2);
+    assertEquals(6, sections.size());
+    int b = sections.ceiling(new BytesRef("b"));
+    assertEquals(2, b);
+    assertEquals(~3, sections.targetIdx(b));
+    assertEquals(~1, sections.targetIdx(sections.ceiling(new BytesRef("ab"))));
+    assertEquals(~5, sections.targetIdx(sections.ceiling(new BytesRef("bb"))));
+  }
+
+  @Test
+  public void testDescribe() throws IOException {
+    FacetSections sections = FacetSections.build(termValues(TERMS), FT, 2);
+    NamedList<Object> described = describe(sections, 2, null);
+    assertEquals("b", described.get("section"));
+    assertEquals(3, described.get("section_rank"));
+    assertEquals("ab", described.get("previous_section"));
+    assertEquals("ba", described.get("next_section"));
+
+    // first section
+    described = describe(sections, 0, null);
+    assertEquals("a", described.get("section"));
+    assertEquals(0, described.get("section_rank"));
+    assertNull(described.get("previous_section"));
+    assertEquals("ab", described.get("next_section"));
+
+    // past the last section
+    described = describe(sections, sections.size(), null);
+    assertNull(described.get("section"));
+    assertNull(described.get("section_rank"));
+    assertEquals("c", described.get("previous_section"));
+    assertNull(described.get("next_section"));
+
+    // rank counting only terms in live docs ("abc" and "b" are not)
+    TermRankSelect liveTerms = TermRankSelect.build(TermCounts.of(new int[] {1, 1, 0, 0, 1, 1, 1}), 0, TERMS.length, 1);
+    assertEquals(2, describe(sections, sections.ceiling(new BytesRef("ba")), liveTerms).get("section_rank"));
+    assertEquals(4, describe(sections, sections.ceiling(new BytesRef("c")), liveTerms).get("section_rank"));
+  }
+
+}
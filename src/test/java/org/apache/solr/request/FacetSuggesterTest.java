@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.CharsRefBuilder;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Prefix completion over an xfacet field (requires the {@value FacetSuggester#CACHE_NAME} cache).
+ *
+ * @author magibney
+ */
+public class FacetSuggesterTest extends SolrTestCaseJ4 {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCore("solrconfig-xfacet-caches.xml", "schema.xml");
+    assertU(adoc("id", "1", "name", "Apple", "name", "Avocado"));
+    assertU(adoc("id", "2", "name", "Apple", "name", "banana"));
+    assertU(adoc("id", "3", "name", "Apple", "name", "Avocado", "name", "banana"));
+    assertU(adoc("id", "4", "name", "Avocado", "name", "apricot"));
+    assertU(adoc("id", "5", "name", "aardvark"));
+    assertU(commit());
+    // the term remains in the index, but occurs only in a deleted doc
+    assertU(delI("5"));
+    assertU(commit());
+  }
+
+  private static List<String> normalized(List<FacetSuggester.Suggestion> suggestions, MultiSerializable ft) {
+    List<String> ret = new ArrayList<>();
+    CharsRefBuilder normalized = new CharsRefBuilder();
+    for (FacetSuggester.Suggestion suggestion : suggestions) {
+      ret.add(ft.indexedToNormalized(suggestion.term, normalized).toString() + "=" + suggestion.count);
+    }
+    return ret;
+  }
+
+  @Test
+  public void testLookup() throws Exception {
+    RefCounted<SolrIndexSearcher> ref = h.getCore().getSearcher();
+    try {
+      SolrIndexSearcher searcher = ref.get();
+      MultiSerializable ft = (MultiSerializable) searcher.getSchema().getField("name").getType();
+      FacetSuggester suggester = FacetSuggester.get(searcher, "name");
+      assertSame(suggester, FacetSuggester.get(searcher, "name"));
+      assertEquals(searcher.getIndexReader().getVersion(), suggester.getVersion());
+      // descending count, then index order; terms only in deleted docs are omitted
+      assertEquals(Arrays.asList("apple=3", "avocado=3", "apricot=1"), normalized(suggester.lookup(new BytesRef("a"), 10), ft));
+      assertEquals(Arrays.asList("apple=3", "apricot=1"), normalized(suggester.lookup(new BytesRef("ap"), 10), ft));
+      assertEquals(Arrays.asList("apple=3"), normalized(suggester.lookup(new BytesRef("ap"), 1), ft));
+      assertEquals(Arrays.asList("banana=2"), normalized(suggester.lookup(new BytesRef("b"), 10), ft));
+      assertTrue(suggester.lookup(new BytesRef("aa"), 10).isEmpty());
+      assertTrue(suggester.lookup(new BytesRef("x"), 10).isEmpty());
+      assertTrue(suggester.lookup(new BytesRef("a"), 0).isEmpty());
+    } finally {
+      ref.decref();
+    }
+    assertQ(req("q", "*:*", "rows", "0", "facet", "true", "facet.field", "name", FacetParams.FACET_SUGGEST, "A"),
+        "//lst[@name='name']/int[@name='count'][.='3']", "count(//lst[@name='name']/arr[@name='targets']/str)=3");
+    // facet.limit (including per-field) applies; a negative limit falls back to the default
+    assertQ(req("q", "*:*", "rows", "0", "facet", "true", "facet.field", "name", FacetParams.FACET_SUGGEST, "A", "f.name.facet.limit", "2"),
+        "//lst[@name='name']/int[@name='count'][.='2']");
+    assertQ(req("q", "*:*", "rows", "0", "facet", "true", "facet.field", "name", FacetParams.FACET_SUGGEST, "A", "facet.limit", "-1"),
+        "//lst[@name='name']/int[@name='count'][.='3']");
+  }
+
+  @Test
+  public void testResolveTarget() throws Exception {
+    RefCounted<SolrIndexSearcher> ref = h.getCore().getSearcher();
+    try {
+      SolrIndexSearcher searcher = ref.get();
+      SortedSetDocValues si = DocValuesFacets.termValues(searcher, "name", true);
+      FacetSuggester suggester = FacetSuggester.get(searcher, "name");
+      for (FacetSuggester.Suggestion suggestion : suggester.lookup(new BytesRef(""), 10)) {
+        BytesRef resolved = FacetSuggester.resolveTarget(searcher, si, suggester.targetToken(suggestion));
+        assertEquals(suggestion.term, resolved);
+        assertEquals(suggestion.ord, si.lookupTerm(resolved));
+      }
+      long version = searcher.getIndexReader().getVersion();
+      assertNull(FacetSuggester.resolveTarget(searcher, si, "1"));
+      assertNull(FacetSuggester.resolveTarget(searcher, si, version + ":x"));
+      assertNull(FacetSuggester.resolveTarget(searcher, si, version + ":" + si.getValueCount()));
+      assertNull(FacetSuggester.resolveTarget(searcher, si, (version + 1) + ":0"));
+    } finally {
+      ref.decref();
+    }
+  }
+
+  @Test
+  public void testTargetToken() throws Exception {
+    String token;
+    RefCounted<SolrIndexSearcher> ref = h.getCore().getSearcher();
+    try {
+      FacetSuggester suggester = FacetSuggester.get(ref.get(), "name");
+      token = suggester.targetToken(suggester.lookup(new BytesRef("apr"), 1).get(0));
+    } finally {
+      ref.decref();
+    }
+    String[] window = {"q", "*:*", "rows", "0", "facet", "true", "facet.field", "name", FacetParams.FACET_EXTEND, "false",
+      "facet.sort", "index", "facet.limit", "1", FacetParams.FACET_TARGET, "banana", FacetParams.FACET_TARGET_ORD, token};
+    // the token identifies "apricot", in place of facet.target
+    assertQ(req(window), "count(//lst[@name='name']/lst[@name='terms']/int)=1", "//lst[@name='name']/lst[@name='terms']/int[1][.='1']");
+
+    // once the index changes, the token is ignored and facet.target is resolved as usual
+    assertU(adoc("id", "6", "name", "cherry"));
+    assertU(commit());
+    assertQ(req(window), "count(//lst[@name='name']/lst[@name='terms']/int)=1", "//lst[@name='name']/lst[@name='terms']/int[1][.='2']");
+  }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks counts shared across browse-enabled fields (see {@link FusedFieldCounts}) against
+ * counts for each field alone.
+ *
+ * @author magibney
+ */
+public class FusedFieldCountsTest extends SolrTestCaseJ4 {
+
+  private static final String[] FIELDS = {"name", "author", "publisher"};
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCore("solrconfig.xml", "schema.xml");
+    int id = 0;
+    for (int seg = 0; seg < 2; seg++) {
+      for (int i = 0; i < 30; i++, id++) {
+        List<String> fields = new ArrayList<>(Arrays.asList("id", Integer.toString(id)));
+        fields.addAll(Arrays.asList("name", value("Name", id * 3 % 40), "name", value("name", id * 7 % 40)));
+        if (id % 4 != 0) {
+          fields.addAll(Arrays.asList("author", value("Author", id % 25), "author", value("Author", id * 11 % 25)));
+        }
+        fields.addAll(Arrays.asList("publisher", value("Publisher", id % 6)));
+        assertU(adoc(fields.toArray(new String[fields.size()])));
+      }
+      assertU(commit());
+    }
+  }
+
+  private static String value(String prefix, int i) {
+    return String.format(Locale.ROOT, "%s %02d", prefix, i);
+  }
+
+  private static NamedList<?> fieldCounts(String[] params, String field) throws Exception {
+    NamedList<?> facetCounts = (NamedList<?>) DocValuesFacetsTest.response(params).getValues().get("facet_counts");
+    return (NamedList<?>) ((NamedList<?>) facetCounts.get("facet_fields")).get(field);
+  }
+
+  /**
+   * @return the facet debug info for the specified field, at any depth in the specified (debug)
+   * response structure
+   */
+  private static Object fieldDebug(Object o, String field) {
+    if (o instanceof NamedList) {
+      NamedList<?> nl = (NamedList<?>) o;
+      if (field.equals(nl.get("field"))) {
+        return nl;
+      }
+      for (int i = 0; i < nl.size(); i++) {
+        Object ret = fieldDebug(nl.getVal(i), field);
+        if (ret != null) {
+          return ret;
+        }
+      }
+    } else if (o instanceof Map) {
+      Map<?, ?> map = (Map<?, ?>) o;
+      if (field.equals(map.get("field"))) {
+        return map;
+      }
+      for (Object val : map.values()) {
+        Object ret = fieldDebug(val, field);
+        if (ret != null) {
+          return ret;
+        }
+      }
+    } else if (o instanceof Collection) {
+      for (Object val : (Collection<?>) o) {
+        Object ret = fieldDebug(val, field);
+        if (ret != null) {
+          return ret;
+        }
+      }
+    }
+    return null;
+  }
+
+  private static String[] request(String fq, String... more) {
+    String[] params = {"q", "*:*", "fq", fq, "rows", "0", "facet", "true", "facet.missing", "true"};
+    return DocValuesFacetsTest.withParams(params, more);
+  }
+
+  @Test
+  public void testFusedMatchesPerField() throws Exception {
+    for (String fq : new String[] {"*:*", "id:(1 2 3 5 8 13 21 34 55)"}) {
+      for (String sort : new String[] {FacetParams.FACET_SORT_COUNT, FacetParams.FACET_SORT_INDEX}) {
+        for (int mincount : new int[] {0, 1, 2}) {
+          String[] params = request(fq, "facet.sort", sort, "facet.limit", "-1", "facet.mincount", Integer.toString(mincount));
+          String[] fused = params;
+          for (String field : FIELDS) {
+            fused = DocValuesFacetsTest.withParams(fused, "facet.field", field);
+          }
+          Object debug = DocValuesFacetsTest.response(DocValuesFacetsTest.withParams(fused, "debug", "true")).getValues().get("debug");
+          for (String field : FIELDS) {
+            assertEquals(field, Boolean.TRUE, DocValuesFacetsTest.find(fieldDebug(debug, field), "fusedCounting"));
+            NamedList<?> single = fieldCounts(DocValuesFacetsTest.withParams(params, "facet.field", field), field);
+            assertEquals(Arrays.asList(fq, sort, mincount, field).toString(), single.toString(), fieldCounts(fused, field).toString());
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testTermCountedWindowNotFused() throws Exception {
+    for (String counting : new String[] {FacetParams.FACET_TARGET_COUNTING_AUTO, FacetParams.FACET_TARGET_COUNTING_TERM,
+        FacetParams.FACET_TARGET_COUNTING_DV}) {
+      // a narrow window over name, alongside full counts for the other fields
+      String[] params = request("*:*", "facet.limit", "-1", "f.name." + FacetParams.FACET_TARGET, "name 2",
+          "f.name." + FacetParams.FACET_LIMIT, "2", "f.name." + FacetParams.FACET_SORT, FacetParams.FACET_SORT_INDEX,
+          "f.name." + FacetParams.FACET_TARGET_COUNTING, counting);
+      String[] fused = params;
+      for (String field : FIELDS) {
+        fused = DocValuesFacetsTest.withParams(fused, "facet.field", field);
+      }
+      Object debug = DocValuesFacetsTest.response(DocValuesFacetsTest.withParams(fused, "debug", "true")).getValues().get("debug");
+      Object singleDebug = DocValuesFacetsTest.response(DocValuesFacetsTest.withParams(params, "facet.field", "name", "debug", "true"))
+          .getValues().get("debug");
+      Object expected = DocValuesFacetsTest.find(singleDebug, "targetCounting");
+      if (FacetParams.FACET_TARGET_COUNTING_AUTO.equals(counting)) {
+        // as estimated for this index, a narrow window is cheaper to count term-at-a-time
+        long termCost = ((Number) DocValuesFacetsTest.find(singleDebug, "termCountingCost")).longValue();
+        long docCost = ((Number) DocValuesFacetsTest.find(singleDebug, "docValuesCountingCost")).longValue();
+        assertTrue(termCost < docCost);
+        assertEquals(FacetParams.FACET_TARGET_COUNTING_TERM, expected);
+      }
+      Object nameDebug = fieldDebug(debug, "name");
+      if (FacetParams.FACET_TARGET_COUNTING_TERM.equals(expected)) {
+        // the selection for the field alone still holds
+        assertEquals(counting, expected, DocValuesFacetsTest.find(nameDebug, "targetCounting"));
+        assertNull(counting, DocValuesFacetsTest.find(nameDebug, "fusedCounting"));
+      } else {
+        assertEquals(counting, Boolean.TRUE, DocValuesFacetsTest.find(nameDebug, "fusedCounting"));
+      }
+      for (String field : FIELDS) {
+        if (!"name".equals(field)) {
+          assertEquals(field, Boolean.TRUE, DocValuesFacetsTest.find(fieldDebug(debug, field), "fusedCounting"));
+        }
+        NamedList<?> single = fieldCounts(DocValuesFacetsTest.withParams(params, "facet.field", field), field);
+        assertEquals(Arrays.asList(counting, field).toString(), single.toString(), fieldCounts(fused, field).toString());
+      }
+    }
+  }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magibney
+ */
+public class InFlightCountsTest {
+
+  private static NamedList<Object> window() {
+    SolrDocument doc = new SolrDocument();
+    doc.setField("id", "1");
+    doc.setField("title", Arrays.asList("a", "b"));
+    NamedList<Object> term = new NamedList<>();
+    term.add("count", 3);
+    term.add("doc", doc);
+    NamedList<Object> terms = new NamedList<>();
+    terms.add("term", term);
+    NamedList<Object> ret = new NamedList<>();
+    ret.add("count", 1);
+    ret.add("terms", terms);
+    return ret;
+  }
+
+  @Test
+  public void testCoalesce() throws IOException {
+    List<Object> key = Arrays.asList("field", 0, 10);
+    InFlightCounts.Flight leader = InFlightCounts.join(key);
+    assertTrue(leader.isLeader());
+    InFlightCounts.Flight waiter = InFlightCounts.join(key);
+    assertFalse(waiter.isLeader());
+    NamedList<Object> computed = window();
+    NamedList<Object> leaderResult = leader.complete(computed);
+    NamedList<Object> waiterResult = waiter.await();
+    assertEquals(computed.toString(), leaderResult.toString());
+    assertEquals(computed.toString(), waiterResult.toString());
+    assertNotSame(computed, leaderResult);
+    assertNotSame(leaderResult, waiterResult);
+    // modification of one participant's result is not visible to others
+    NamedList<Object> term = (NamedList<Object>) ((NamedList<Object>) waiterResult.get("terms")).get("term");
+    ((SolrDocument) term.get("doc")).setField("id", "2");
+    ((List<Object>) ((SolrDocument) term.get("doc")).getFieldValue("title")).add("c");
+    assertEquals(computed.toString(), leaderResult.toString());
+    // completed flights are not retained
+    InFlightCounts.Flight next = InFlightCounts.join(key);
+    assertTrue(next.isLeader());
+    assertSame(computed, next.complete(computed));
+  }
+
+  @Test
+  public void testFailure() {
+    List<Object> key = Arrays.asList("field", 10, 10);
+    InFlightCounts.Flight leader = InFlightCounts.join(key);
+    InFlightCounts.Flight waiter = InFlightCounts.join(key);
+    leader.fail(new IOException("expected"));
+    try {
+      waiter.await();
+      fail("expected exception");
+    } catch (IOException ex) {
+      assertEquals("expected", ex.getMessage());
+    }
+    InFlightCounts.Flight next = InFlightCounts.join(key);
+    assertTrue(next.isLeader());
+    next.complete(window());
+  }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.CharsRefBuilder;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.schema.FieldType;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *
+ * @author magibney
+ */
+public class IndexedTermKeysTest extends SolrTestCaseJ4 {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCore("solrconfig.xml", "schema.xml");
+    // case variants share a normalized form, but are distinct terms
+    String[] names = {"Apple", "apple", "APPLE", "Apricot", "Banana", "cherry", "Cherry"};
+    for (int i = 0; i < names.length; i++) {
+      assertU(adoc("id", Integer.toString(i), "name", names[i]));
+    }
+    assertU(commit());
+  }
+
+  private static BytesRef[] randomKeys(Random r, int size) {
+    BytesRef[] ret = new BytesRef[size];
+    for (int i = 0; i < size; i++) {
+      // lengths spanning one- and two-byte vInts
+      byte[] bytes = new byte[r.nextInt(10) == 0 ? 128 + r.nextInt(200) : r.nextInt(20)];
+      r.nextBytes(bytes);
+      ret[i] = new BytesRef(bytes);
+    }
+    return ret;
+  }
+
+  @Test
+  public void testRoundTrip() {
+    Random r = new Random(42);
+    for (int round = 0; round < 100; round++) {
+      BytesRef[] keys = randomKeys(r, r.nextInt(20));
+      byte[] encoded = IndexedTermKeys.encode(keys);
+      assertArrayEquals(keys, IndexedTermKeys.decode(encoded, keys.length));
+      int start = keys.length == 0 ? 0 : r.nextInt(keys.length);
+      int end = start + r.nextInt(keys.length - start + 1);
+      byte[] slice = IndexedTermKeys.slice(encoded, start, end);
+      assertArrayEquals(Arrays.copyOfRange(keys, start, end), IndexedTermKeys.decode(slice, end - start));
+    }
+  }
+
+  @Test
+  public void testMismatch() {
+    BytesRef[] keys = {new BytesRef("a"), new BytesRef(""), new BytesRef("abc")};
+    byte[] encoded = IndexedTermKeys.encode(keys);
+    // the aggregator then converts term names itself
+    assertNull(IndexedTermKeys.decode(encoded, 2));
+    assertNull(IndexedTermKeys.decode(encoded, 4));
+    assertNull(IndexedTermKeys.decode(Arrays.copyOf(encoded, encoded.length - 1), 3));
+    assertNull(IndexedTermKeys.decode(null, 0));
+    assertNull(IndexedTermKeys.decode("a", 1));
+    assertArrayEquals(new BytesRef[0], IndexedTermKeys.decode(IndexedTermKeys.encode(new BytesRef[0]), 0));
+  }
+
+  @Test
+  public void testWindowKeys() throws Exception {
+    FieldType ft = h.getCore().getLatestSchema().getField("name").getType();
+    for (String counting : new String[] {FacetParams.FACET_TARGET_COUNTING_DV, FacetParams.FACET_TARGET_COUNTING_TERM}) {
+      for (int offset : new int[] {0, 2}) {
+        // readable (non-external) term names, as for shard requests
+        NamedList<?> counts = (NamedList<?>) DocValuesFacetsTest.response("q", "*:*", "rows", "0", "distrib", "false",
+            "facet", "true", "facet.field", "name", FacetParams.FACET_EXTEND, "false", "facet.sort", "index",
+            "facet.limit", "4", "facet.offset", Integer.toString(offset), FacetParams.FACET_TARGET, "apricot",
+            FacetParams.FACET_TARGET_COUNTING, counting, FacetParams.FACET_TARGET_INDEXED, "true")
+            .getValues().findRecursive("facet_counts", "facet_fields", "name");
+        NamedList<?> window = (NamedList<?>) counts.get("terms");
+        assertEquals(4, window.size());
+        BytesRef[] keys = IndexedTermKeys.decode(counts.get(IndexedTermKeys.RESPONSE_KEY), window.size());
+        assertNotNull(keys);
+        CharsRefBuilder readable = new CharsRefBuilder();
+        for (int i = 0; i < keys.length; i++) {
+          // as read from the index: in index order, each the indexed form of the term name
+          assertTrue(i == 0 || keys[i - 1].compareTo(keys[i]) < 0);
+          assertEquals(window.getName(i), ft.indexedToReadable(keys[i], readable).toString());
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magibney
+ */
+public class PackedCountStoreTest {
+
+  private static final int SIZE = (3 << PackedCountStore.BLOCK_SHIFT) + 17;
+
+  @Test
+  public void testPromotion() {
+    PackedCountStore store = new PackedCountStore(SIZE);
+    int last = SIZE - 1;
+    store.increment(0);
+    store.increment(1);
+    store.add(last, 300);
+    assertEquals(1, store.get(0));
+    assertEquals(1, store.get(1));
+    assertEquals(300, store.get(last));
+    assertEquals(0, store.get(last - 1));
+    for (int i = 0; i < 65535; i++) {
+      store.increment(0);
+    }
+    assertEquals(65536, store.get(0));
+    assertEquals(1, store.get(1));
+    store.add(last, Integer.MAX_VALUE - 300);
+    assertEquals(Integer.MAX_VALUE, store.get(last));
+    assertEquals(0, store.get(SIZE >>> 1));
+  }
+
+  @Test
+  public void testRandomAgainstArray() {
+    Random r = new Random(42);
+    PackedCountStore store = new PackedCountStore(SIZE);
+    for (int round = 0; round < 3; round++) {
+      int[] expected = new int[SIZE];
+      for (int i = 0; i < 100000; i++) {
+        // skew toward low indexes, so that some blocks are promoted and others not
+        int index = r.nextBoolean() ? r.nextInt(64) : r.nextInt(SIZE);
+        int delta = r.nextInt(10) == 0 ? r.nextInt(1000) : 1;
+        expected[index] += delta;
+        store.add(index, delta);
+      }
+      for (int i = 0; i < SIZE; i++) {
+        assertEquals(expected[i], store.get(i));
+      }
+      store.reset(SIZE);
+      for (int i = 0; i < SIZE; i++) {
+        assertEquals(0, store.get(i));
+      }
+    }
+  }
+
+}
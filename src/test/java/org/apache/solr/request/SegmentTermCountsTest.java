@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.apache.lucene.index.MultiDocValues.OrdinalMap;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.function.FunctionQuery;
+import org.apache.lucene.queries.function.valuesource.ConstValueSource;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.FuzzyQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Reuse of per-segment counts across searchers (requires the {@value SegmentTermCounts#CACHE_NAME} cache).
+ *
+ * @author magibney
+ */
+public class SegmentTermCountsTest extends SolrTestCaseJ4 {
+
+  private static final String JOIN_FQ = "{!join from=parent_id to=id}*:*";
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCore("solrconfig-xfacet-caches.xml", "schema.xml");
+  }
+
+  @Before
+  public void clearIndex() {
+    assertU(delQ("*:*"));
+    assertU(commit());
+  }
+
+  @Test
+  public void testPerSegment() {
+    TermQuery term = new TermQuery(new Term("subject", "A"));
+    TermRangeQuery range = TermRangeQuery.newStringRange("subject", "A", "C", true, false);
+    assertTrue(SegmentTermCounts.perSegment(SegmentTermCounts.ALL_DOCS));
+    assertTrue(SegmentTermCounts.perSegment(Arrays.asList(new MatchAllDocsQuery(), term, range)));
+    BooleanQuery.Builder bq = new BooleanQuery.Builder();
+    bq.add(term, Occur.SHOULD);
+    bq.add(range, Occur.MUST_NOT);
+    assertTrue(SegmentTermCounts.perSegment(Collections.singletonList(bq.build())));
+    // top-terms rewrite selects terms over the whole index
+    assertFalse(SegmentTermCounts.perSegment(Collections.singletonList(new FuzzyQuery(new Term("subject", "A")))));
+    // not known to be per-segment, even when nested
+    FunctionQuery function = new FunctionQuery(new ConstValueSource(1));
+    assertFalse(SegmentTermCounts.perSegment(Arrays.asList(term, function)));
+    bq.add(function, Occur.MUST);
+    assertFalse(SegmentTermCounts.perSegment(Collections.singletonList(bq.build())));
+    assertFalse(SegmentTermCounts.perSegment(null));
+  }
+
+  @Test
+  public void testJoinFilterAfterReopen() throws Exception {
+    assertU(adoc("id", "p1", "subject", "A"));
+    assertU(adoc("id", "p2", "subject", "B"));
+    assertU(adoc("id", "c1", "parent_id", "p1"));
+    assertU(commit());
+    String[] counts = {"q", "*:*", "fq", JOIN_FQ, "rows", "0", "facet", "true", "facet.field", "subject", "facet.sort", "index"};
+    String[] window = {"q", "*:*", "fq", JOIN_FQ, "rows", "0", "facet", "true", "facet.field", "subject",
+      "facet.target", "A", "facet.limit", "2", "facet.target.counting", "dv"};
+    assertQ(req(counts), "//lst[@name='subject']/int[@name='A'][.='1']", "//lst[@name='subject']/int[@name='B'][.='0']");
+    assertQ(req(window), "//lst[@name='subject']//int[@name='A'][.='1']", "//lst[@name='subject']//int[@name='B'][.='0']");
+
+    // a new segment changes which docs match the join in the existing segment
+    assertU(adoc("id", "c2", "parent_id", "p2"));
+    assertU(commit());
+    assertQ(req(counts), "//lst[@name='subject']/int[@name='A'][.='1']", "//lst[@name='subject']/int[@name='B'][.='1']");
+    assertQ(req(window), "//lst[@name='subject']//int[@name='A'][.='1']", "//lst[@name='subject']//int[@name='B'][.='1']");
+    Object debug = DocValuesFacetsTest.response(DocValuesFacetsTest.withParams(counts, "debug", "true")).getValues().get("debug");
+    assertNull(DocValuesFacetsTest.find(debug, "segmentsCounted"));
+  }
+
+  @Test
+  public void testTermFilterReuse() throws Exception {
+    assertU(adoc("id", "1", "genre", "g1", "subject", "A"));
+    assertU(adoc("id", "2", "genre", "g2", "subject", "B"));
+    assertU(commit());
+    String[] counts = {"q", "*:*", "fq", "genre:g1", "rows", "0", "facet", "true", "facet.field", "subject", "debug", "true"};
+    Object debug = DocValuesFacetsTest.response(counts).getValues().get("debug");
+    assertEquals(1, ((Number) DocValuesFacetsTest.find(debug, "segmentsCounted")).intValue());
+
+    assertU(adoc("id", "3", "genre", "g1", "subject", "B"));
+    assertU(commit());
+    debug = DocValuesFacetsTest.response(counts).getValues().get("debug");
+    assertEquals(1, ((Number) DocValuesFacetsTest.find(debug, "segmentsCounted")).intValue());
+    assertEquals(1, ((Number) DocValuesFacetsTest.find(debug, "segmentsReused")).intValue());
+    assertQ(req(counts), "//lst[@name='subject']/int[@name='A'][.='1']", "//lst[@name='subject']/int[@name='B'][.='1']");
+  }
+
+  @Test
+  public void testLazyGlobalCounts() throws Exception {
+    Random r = new Random(42);
+    int id = 0;
+    for (int seg = 0; seg < 4; seg++) {
+      // segments with overlapping, sparse subsets of the terms
+      for (int i = 0; i < 20; i++, id++) {
+        assertU(adoc("id", Integer.toString(id), "subject", "s" + r.nextInt(10 + 30 * seg), "subject", "s" + r.nextInt(50)));
+      }
+      assertU(commit());
+    }
+    RefCounted<SolrIndexSearcher> ref = h.getCore().getSearcher();
+    try {
+      SolrIndexSearcher searcher = ref.get();
+      SortedSetDocValues si = DocValuesFacets.termValues(searcher, "subject", true);
+      OrdinalMap ordinalMap = DocValuesFacets.ordinalMap(si);
+      assertNotNull(ordinalMap);
+      int[][] segCounts = SegmentTermCounts.getSegmentCounts(searcher, searcher.getCache(SegmentTermCounts.CACHE_NAME),
+          searcher.getLiveDocs(), "subject", true, SegmentTermCounts.ALL_DOCS, null);
+      int nTerms = (int) si.getValueCount() + 1;
+      CountStore expected = new CountStore.ArrayCountStore(nTerms);
+      SegmentTermCounts.migrateGlobal(expected, segCounts, ordinalMap);
+      List<Integer> forward = new ArrayList<>();
+      for (int i = 0; i < nTerms; i++) {
+        forward.add(i);
+      }
+      List<Integer> backward = new ArrayList<>(forward);
+      Collections.reverse(backward);
+      List<Integer> shuffled = new ArrayList<>(forward);
+      Collections.shuffle(shuffled, r);
+      for (List<Integer> order : Arrays.asList(forward, backward, shuffled)) {
+        // a fresh instance, with nothing memoized
+        SegmentTermCounts lazy = new SegmentTermCounts(ordinalMap, segCounts);
+        for (int index : order) {
+          assertEquals(Integer.toString(index), expected.get(index), lazy.get(index));
+        }
+      }
+    } finally {
+      ref.decref();
+    }
+  }
+
+}
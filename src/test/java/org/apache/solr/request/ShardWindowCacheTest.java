@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.util.Random;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magibney
+ */
+public class ShardWindowCacheTest {
+
+  /**
+   * @return the window over terms 0 (inclusive) to size (exclusive) for the specified target
+   * index, offset and limit, per the documented facet.target semantics (priority to limit over
+   * offset)
+   */
+  private static NamedList<Object> window(int size, int targetIdx, int offset, int limit) {
+    int start = Math.max(0, Math.min(targetIdx - offset, size - limit));
+    int end = Math.min(start + limit, size);
+    NamedList<Object> terms = new NamedList<>();
+    for (int i = start; i < end; i++) {
+      terms.add(Integer.toString(i), i);
+    }
+    NamedList<Object> ret = new NamedList<>();
+    ret.add("count", terms.size());
+    if (terms.size() > 0) {
+      ret.add("target_offset", targetIdx - start);
+    }
+    ret.add("terms", terms);
+    return ret;
+  }
+
+  @Test
+  public void testSlice() {
+    Random r = new Random(42);
+    int hits = 0;
+    for (int round = 0; round < 2000; round++) {
+      int size = r.nextInt(40);
+      int targetIdx = r.nextInt(size + 1);
+      int limit = 1 + r.nextInt(10);
+      int offset = r.nextInt(limit + 3) - 2;
+      int pad = limit;
+      ShardWindowCache cached = new ShardWindowCache(window(size, targetIdx, offset + pad, limit + (pad << 1)),
+          offset + pad, limit + (pad << 1));
+      assertEquals(window(size, targetIdx, offset, limit), cached.slice(offset, limit));
+      for (int i = 0; i < 5; i++) {
+        int l = 1 + r.nextInt(10);
+        int o = r.nextInt(3 * l) - l;
+        NamedList<Object> slice = cached.slice(o, l);
+        if (slice != null) {
+          hits++;
+          assertEquals(window(size, targetIdx, o, l), slice);
+        }
+      }
+    }
+    assertTrue(hits > 0);
+  }
+
+}
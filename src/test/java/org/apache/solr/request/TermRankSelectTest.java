@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magibney
+ */
+public class TermRankSelectTest {
+
+  /**
+   * Checks cardinality, rank (for every position, inclusive of the end) and select (for every rank)
+   * against a scan of the specified counts over [from, counts.length).
+   */
+  private static void check(int[] counts, int from, int mincount) {
+    TermRankSelect index = TermRankSelect.build(TermCounts.of(counts), from, counts.length, mincount);
+    int size = counts.length - from;
+    int rank = 0;
+    for (int pos = 0; pos < size; pos++) {
+      assertEquals("pos=" + pos + ", size=" + size, rank, index.rank(pos));
+      if (counts[from + pos] >= mincount) {
+        assertEquals("rank=" + rank + ", size=" + size, pos, index.select(rank));
+        rank++;
+      }
+    }
+    assertEquals(rank, index.rank(size));
+    assertEquals(rank, index.cardinality());
+    assertSelectOutOfBounds(index, -1);
+    assertSelectOutOfBounds(index, rank);
+  }
+
+  private static void assertSelectOutOfBounds(TermRankSelect index, int rank) {
+    try {
+      index.select(rank);
+      fail("expected IndexOutOfBoundsException for rank " + rank);
+    } catch (IndexOutOfBoundsException ex) {
+      // expected
+    }
+  }
+
+  private static int[] filled(int size, int count) {
+    int[] ret = new int[size];
+    Arrays.fill(ret, count);
+    return ret;
+  }
+
+  @Test
+  public void testEmpty() {
+    check(new int[0], 0, 1);
+    check(new int[5], 5, 1);
+    // no accepted positions
+    check(new int[100], 0, 1);
+    check(filled(1000, 1), 0, 2);
+  }
+
+  @Test
+  public void testSingleBlock() {
+    for (int size : new int[] {1, 2, 63, 64, 65, 300, 511, 512}) {
+      check(filled(size, 1), 0, 1);
+      int[] counts = new int[size];
+      counts[0] = 1;
+      check(counts, 0, 1);
+      counts[0] = 0;
+      counts[size - 1] = 1;
+      check(counts, 0, 1);
+    }
+  }
+
+  @Test
+  public void testBlockBoundaries() {
+    // sizes at and around word (64), rank sample (512) and select sample (512 set bits) boundaries
+    int[] sizes = new int[] {511, 512, 513, 575, 576, 577, 1023, 1024, 1025, 4095, 4096, 4097};
+    for (int size : sizes) {
+      // all set (select samples fall exactly on rank block boundaries)
+      check(filled(size, 1), 0, 1);
+      // only the first, only the last, and only the first and last positions set
+      int[] counts = new int[size];
+      counts[0] = 1;
+      check(counts, 0, 1);
+      counts[size - 1] = 1;
+      check(counts, 0, 1);
+      counts[0] = 0;
+      check(counts, 0, 1);
+      // set bits only at either side of every rank block boundary
+      counts = new int[size];
+      for (int i = 511; i < size; i += 512) {
+        counts[i] = 1;
+        if (i + 1 < size) {
+          counts[i + 1] = 1;
+        }
+      }
+      check(counts, 0, 1);
+    }
+  }
+
+  @Test
+  public void testRandom() {
+    Random r = new Random(42);
+    for (int round = 0; round < 500; round++) {
+      int[] counts = new int[r.nextInt(5000)];
+      // from very sparse (runs of empty rank blocks) to dense
+      double density = Math.pow(r.nextDouble(), 3);
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = r.nextDouble() < density ? 1 + r.nextInt(3) : 0;
+      }
+      int from = counts.length == 0 ? 0 : r.nextInt(Math.min(counts.length, 100));
+      check(counts, from, 1 + r.nextInt(3));
+    }
+  }
+
+}
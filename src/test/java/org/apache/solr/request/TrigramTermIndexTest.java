@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magibney
+ */
+public class TrigramTermIndexTest {
+
+  private static final String ALPHABET = "abcABßİi ";
+
+  private static SortedSetDocValues termValues(final String[] terms) {
+    return new SortedSetDocValues() {
+      @Override
+      public long nextOrd() {
+        return NO_MORE_ORDS;
+      }
+
+      @Override
+      public void setDocument(int docID) {
+      }
+
+      @Override
+      public BytesRef lookupOrd(long ord) {
+        return new BytesRef(terms[(int) ord]);
+      }
+
+      @Override
+      public long getValueCount() {
+        return terms.length;
+      }
+    };
+  }
+
+  private static String randomString(Random r, int minLength, int maxLength) {
+    StringBuilder sb = new StringBuilder();
+    int length = minLength + r.nextInt(maxLength - minLength + 1);
+    for (int i = 0; i < length; i++) {
+      sb.append(ALPHABET.charAt(r.nextInt(ALPHABET.length())));
+    }
+    return sb.toString();
+  }
+
+  private static boolean containsIgnoreCase(String term, String contains) {
+    for (int i = 0; i + contains.length() <= term.length(); i++) {
+      if (term.regionMatches(true, i, contains, 0, contains.length())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Test
+  public void testCandidates() throws IOException {
+    String[] terms = new String[] {"abc", "abcd", "xabcx", "ABC", "bcd", "ab", "aBcaBc"};
+    Arrays.sort(terms);
+    TrigramTermIndex index = TrigramTermIndex.build(termValues(terms));
+    int[] candidates = index.candidates("abc");
+    String[] matched = new String[candidates.length];
+    for (int i = 0; i < candidates.length; i++) {
+      matched[i] = terms[candidates[i]];
+    }
+    assertArrayEquals(new String[] {"ABC", "aBcaBc", "abc", "abcd", "xabcx"}, matched);
+    assertEquals(0, index.candidates("zzz").length);
+  }
+
+  @Test
+  public void testRandomSuperset() throws IOException {
+    Random r = new Random(42);
+    for (int round = 0; round < 200; round++) {
+      TreeSet<String> termSet = new TreeSet<>();
+      for (int i = 0; i < 300; i++) {
+        termSet.add(randomString(r, 0, 8));
+      }
+      String[] terms = termSet.toArray(new String[termSet.size()]);
+      TrigramTermIndex index = TrigramTermIndex.build(termValues(terms));
+      String contains = randomString(r, 3, 5);
+      int[] candidates = index.candidates(contains);
+      for (int i = 1; i < candidates.length; i++) {
+        assertTrue(candidates[i - 1] < candidates[i]);
+      }
+      for (int ord = 0; ord < terms.length; ord++) {
+        if (containsIgnoreCase(terms[ord], contains)) {
+          assertTrue(terms[ord] + " / " + contains, Arrays.binarySearch(candidates, ord) >= 0);
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.handler.component.FacetComponent;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Geometry, expiry and isolation of prefetched windows (requires the
+ * {@value WindowPrefetcher#CACHE_NAME} cache).
+ *
+ * @author magibney
+ */
+public class WindowPrefetcherTest extends SolrTestCaseJ4 {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCore("solrconfig-xfacet-caches.xml", "schema.xml");
+  }
+
+  private static NamedList<Object> window(int size, Integer targetOffset) {
+    NamedList<Object> terms = new NamedList<>();
+    for (int i = 0; i < size; i++) {
+      terms.add("term" + i, 1);
+    }
+    NamedList<Object> ret = new NamedList<>();
+    ret.add("count", size);
+    if (targetOffset != null) {
+      ret.add("target_offset", targetOffset);
+    }
+    ret.add("terms", terms);
+    return ret;
+  }
+
+  private static long statistic(String name) {
+    return ((Number) WindowPrefetcher.getStatistics().get(name)).longValue();
+  }
+
+  @Test
+  public void testAdjacentOffsets() {
+    // a full window, not shifted: both adjacent windows exist
+    assertEquals(Arrays.asList(0, 10), WindowPrefetcher.adjacentOffsets(5, 5, window(5, 5)));
+    assertEquals(Arrays.asList(-5, 5), WindowPrefetcher.adjacentOffsets(0, 5, window(5, null)));
+    // shifted toward the target at the start of the terms (fewer than offset below the target)
+    assertEquals(Arrays.asList(0), WindowPrefetcher.adjacentOffsets(5, 5, window(5, 2)));
+    // shifted toward the target at the end of the terms
+    assertEquals(Arrays.asList(10), WindowPrefetcher.adjacentOffsets(5, 5, window(5, 7)));
+    // a short window spans all terms
+    assertEquals(Collections.emptyList(), WindowPrefetcher.adjacentOffsets(5, 5, window(4, 5)));
+    assertEquals(Collections.emptyList(), WindowPrefetcher.adjacentOffsets(5, 5, window(0, 0)));
+  }
+
+  @Test
+  public void testExpiry() {
+    List<Object> windowKey = Arrays.asList("name", "expiry");
+    RefCounted<SolrIndexSearcher> ref = h.getCore().getSearcher();
+    try {
+      SolrIndexSearcher searcher = ref.get();
+      assertNull(WindowPrefetcher.get(searcher, windowKey, 5, 5, null));
+
+      long expired = statistic("expired");
+      WindowPrefetcher.put(searcher, windowKey, 5, 5, window(5, 5), System.nanoTime() - WindowPrefetcher.TTL_NANOS - 1);
+      assertNull(WindowPrefetcher.get(searcher, windowKey, 5, 5, null));
+      assertEquals(expired + 1, statistic("expired"));
+
+      long hits = statistic("hits");
+      WindowPrefetcher.put(searcher, windowKey, 5, 5, window(5, 5), System.nanoTime());
+      assertEquals(window(5, 5), WindowPrefetcher.get(searcher, windowKey, 5, 5, null));
+      assertEquals(hits + 1, statistic("hits"));
+      // keyed by offset and limit
+      assertNull(WindowPrefetcher.get(searcher, windowKey, 0, 5, null));
+      assertNull(WindowPrefetcher.get(searcher, windowKey, 5, 10, null));
+    } finally {
+      ref.decref();
+    }
+    // reported with the facet component statistics
+    NamedList<?> stats = h.getCore().getSearchComponent(FacetComponent.COMPONENT_NAME).getStatistics();
+    assertEquals(WindowPrefetcher.getStatistics().get("expired"), stats.get("prefetch.expired"));
+  }
+
+  @Test
+  public void testCopy() {
+    List<Object> windowKey = Arrays.asList("name", "copy");
+    RefCounted<SolrIndexSearcher> ref = h.getCore().getSearcher();
+    try {
+      SolrIndexSearcher searcher = ref.get();
+      WindowPrefetcher.put(searcher, windowKey, 0, 3, window(3, 0), System.nanoTime());
+      NamedList<Object> served = WindowPrefetcher.get(searcher, windowKey, 0, 3, null);
+      // as when the response is modified (e.g., external representation of terms)
+      ((NamedList<Object>) served.get("terms")).setName(0, "modified");
+      ((NamedList<Object>) served.get("terms")).add("extra", 1);
+      served.add("extra", 1);
+      assertEquals(window(3, 0), WindowPrefetcher.get(searcher, windowKey, 0, 3, null));
+    } finally {
+      ref.decref();
+    }
+    NamedList<Object> window = extendedWindow();
+    NamedList<Object> copy = (NamedList<Object>) InFlightCounts.copy(window);
+    assertEquals(window, copy);
+    // nested entries (e.g., of extended terms) are copied too
+    ((NamedList<Object>) ((NamedList<Object>) copy.get("terms")).getVal(0)).add("extra", 1);
+    ((List<Object>) ((NamedList<Object>) ((NamedList<Object>) copy.get("terms")).getVal(0)).get("refs")).add("extra");
+    assertEquals(extendedWindow(), window);
+  }
+
+  private static NamedList<Object> extendedWindow() {
+    NamedList<Object> entry = new NamedList<>();
+    entry.add("count", 1);
+    entry.add("refs", new ArrayList<>(Arrays.asList("a", "b")));
+    NamedList<Object> terms = new NamedList<>();
+    terms.add("term0", entry);
+    NamedList<Object> ret = new NamedList<>();
+    ret.add("count", 1);
+    ret.add("terms", terms);
+    return ret;
+  }
+
+}